@@ -73,7 +73,7 @@ public class JmapCapabilityProcessor extends AbstractProcessor {
 
         System.out.println("creating for "+classes.size()+" classes");
         if (classes.size() == 0) {
-            return true;
+            return false;
         }
 
         try {
@@ -89,6 +89,6 @@ public class JmapCapabilityProcessor extends AbstractProcessor {
             e.printStackTrace();
         }
 
-        return true;
+        return false;
     }
 }
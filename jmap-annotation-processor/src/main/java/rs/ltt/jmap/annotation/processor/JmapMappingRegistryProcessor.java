@@ -0,0 +1,258 @@
+/*
+ * Copyright 2020 Daniel Gultsch
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package rs.ltt.jmap.annotation.processor;
+
+
+import com.google.auto.service.AutoService;
+import rs.ltt.jmap.annotation.JmapAccountCapability;
+import rs.ltt.jmap.annotation.JmapCapability;
+import rs.ltt.jmap.annotation.JmapError;
+import rs.ltt.jmap.annotation.JmapMethod;
+import rs.ltt.jmap.common.MappingRegistry;
+import rs.ltt.jmap.common.entity.AccountCapability;
+import rs.ltt.jmap.common.entity.Capability;
+import rs.ltt.jmap.common.method.MethodCall;
+import rs.ltt.jmap.common.method.MethodErrorResponse;
+import rs.ltt.jmap.common.method.MethodResponse;
+
+import javax.annotation.processing.*;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.Elements;
+import javax.lang.model.util.Types;
+import javax.tools.FileObject;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardLocation;
+import java.io.PrintWriter;
+import java.util.*;
+
+/**
+ * Generates a {@link MappingRegistry} with switch based lookups for all classes annotated with {@link JmapMethod},
+ * {@link JmapError}, {@link JmapCapability} and {@link JmapAccountCapability} in the current compilation unit. The
+ * registry is placed into the common package of the annotated classes and registered as a service.
+ * <p>
+ * Every module gets its own registry. The class name carries a hash of the annotated classes so that modules with the
+ * same common package do not produce the same class. A fixed name can be set with the processor option
+ * {@code -Ajmap.mappingRegistry=com.example.MyRegistry}.
+ */
+@SupportedAnnotationTypes({
+        "rs.ltt.jmap.annotation.JmapMethod",
+        "rs.ltt.jmap.annotation.JmapError",
+        "rs.ltt.jmap.annotation.JmapCapability",
+        "rs.ltt.jmap.annotation.JmapAccountCapability"
+})
+@SupportedSourceVersion(SourceVersion.RELEASE_7)
+@SupportedOptions(JmapMappingRegistryProcessor.OPTION_CLASS_NAME)
+@AutoService(Processor.class)
+public class JmapMappingRegistryProcessor extends AbstractProcessor {
+
+    static final String OPTION_CLASS_NAME = "jmap.mappingRegistry";
+
+    private static final String CLASS_NAME = "JmapMappingRegistry";
+
+    private static Class[] INTERFACES = {
+            MethodCall.class,
+            MethodResponse.class,
+            MethodErrorResponse.class,
+            Capability.class,
+            AccountCapability.class
+    };
+
+    private Filer filer;
+    private String qualifiedName;
+    private Types types;
+    private Elements elements;
+    private TypeMirror[] typeMirrors;
+    private boolean generated = false;
+
+    @Override
+    public synchronized void init(ProcessingEnvironment processingEnvironment) {
+        super.init(processingEnvironment);
+        this.filer = processingEnvironment.getFiler();
+        this.qualifiedName = processingEnvironment.getOptions().get(OPTION_CLASS_NAME);
+        this.types = processingEnvironment.getTypeUtils();
+        this.elements = processingEnvironment.getElementUtils();
+        this.typeMirrors = new TypeMirror[INTERFACES.length];
+        for (int i = 0; i < INTERFACES.length; ++i) {
+            this.typeMirrors[i] = elements.getTypeElement(INTERFACES[i].getName()).asType();
+        }
+    }
+
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnvironment) {
+        if (generated) {
+            return false;
+        }
+        final Map<Class, Map<String, TypeElement>> mappings = new LinkedHashMap<>();
+        for (Class clazz : INTERFACES) {
+            mappings.put(clazz, new TreeMap<String, TypeElement>());
+        }
+        for (Element element : roundEnvironment.getElementsAnnotatedWith(JmapMethod.class)) {
+            add(mappings, element, element.getAnnotation(JmapMethod.class).value(), MethodCall.class, MethodResponse.class);
+        }
+        for (Element element : roundEnvironment.getElementsAnnotatedWith(JmapError.class)) {
+            add(mappings, element, element.getAnnotation(JmapError.class).value(), MethodErrorResponse.class);
+        }
+        for (Element element : roundEnvironment.getElementsAnnotatedWith(JmapCapability.class)) {
+            add(mappings, element, element.getAnnotation(JmapCapability.class).namespace(), Capability.class);
+        }
+        for (Element element : roundEnvironment.getElementsAnnotatedWith(JmapAccountCapability.class)) {
+            add(mappings, element, element.getAnnotation(JmapAccountCapability.class).namespace(), AccountCapability.class);
+        }
+        final List<TypeElement> typeElements = new ArrayList<>();
+        for (Map<String, TypeElement> map : mappings.values()) {
+            typeElements.addAll(map.values());
+        }
+        if (typeElements.isEmpty()) {
+            return false;
+        }
+        generated = true;
+        final String qualifiedName = this.qualifiedName == null ? defaultName(typeElements) : this.qualifiedName;
+        final int index = qualifiedName.lastIndexOf('.');
+        final String packageName = index == -1 ? "" : qualifiedName.substring(0, index);
+        final String className = qualifiedName.substring(index + 1);
+        try {
+            createSourceFile(packageName, className, qualifiedName, mappings);
+            createServiceFile(qualifiedName);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        return false;
+    }
+
+    private void add(Map<Class, Map<String, TypeElement>> mappings, Element element, String name, Class... candidates) {
+        if (!(element instanceof TypeElement)) {
+            return;
+        }
+        for (Class candidate : candidates) {
+            if (types.isAssignable(element.asType(), typeMirrors[Arrays.asList(INTERFACES).indexOf(candidate)])) {
+                mappings.get(candidate).put(name, (TypeElement) element);
+            }
+        }
+    }
+
+    private String defaultName(Collection<TypeElement> typeElements) {
+        final List<String> names = new ArrayList<>();
+        for (TypeElement typeElement : typeElements) {
+            names.add(typeElement.getQualifiedName().toString());
+        }
+        Collections.sort(names);
+        final String className = String.format("%s_%08x", CLASS_NAME, names.toString().hashCode());
+        final String packageName = commonPackage(typeElements);
+        return packageName.isEmpty() ? className : packageName + "." + className;
+    }
+
+    private String commonPackage(Collection<TypeElement> typeElements) {
+        String common = null;
+        for (TypeElement typeElement : typeElements) {
+            final String packageName = elements.getPackageOf(typeElement).getQualifiedName().toString();
+            if (common == null) {
+                common = packageName;
+                continue;
+            }
+            while (!common.isEmpty() && !packageName.equals(common) && !packageName.startsWith(common + ".")) {
+                final int index = common.lastIndexOf('.');
+                common = index == -1 ? "" : common.substring(0, index);
+            }
+        }
+        return common == null ? "" : common;
+    }
+
+    private void createSourceFile(String packageName, String className, String qualifiedName, Map<Class, Map<String, TypeElement>> mappings) throws Exception {
+        final JavaFileObject sourceFile = filer.createSourceFile(qualifiedName);
+        final PrintWriter printWriter = new PrintWriter(sourceFile.openWriter());
+        if (!packageName.isEmpty()) {
+            printWriter.println(String.format("package %s;", packageName));
+            printWriter.println();
+        }
+        printWriter.println(String.format("public final class %s implements %s {", className, MappingRegistry.class.getName()));
+        printWriter.println();
+        printWriter.println("    @Override");
+        printWriter.println("    public String[] getNames(final Class<?> type) {");
+        printWriter.println("        switch (type.getName()) {");
+        for (Map.Entry<Class, Map<String, TypeElement>> entry : mappings.entrySet()) {
+            if (entry.getValue().isEmpty()) {
+                continue;
+            }
+            printWriter.println(String.format("            case \"%s\":", entry.getKey().getName()));
+            final StringBuilder names = new StringBuilder();
+            for (String name : entry.getValue().keySet()) {
+                if (names.length() > 0) {
+                    names.append(", ");
+                }
+                names.append(literal(name));
+            }
+            printWriter.println(String.format("                return new String[]{%s};", names));
+        }
+        printWriter.println("            default:");
+        printWriter.println("                return new String[0];");
+        printWriter.println("        }");
+        printWriter.println("    }");
+        printWriter.println();
+        printWriter.println("    @Override");
+        printWriter.println("    public Class<?> get(final Class<?> type, final String name) {");
+        printWriter.println("        switch (type.getName()) {");
+        for (Map.Entry<Class, Map<String, TypeElement>> entry : mappings.entrySet()) {
+            if (entry.getValue().isEmpty()) {
+                continue;
+            }
+            printWriter.println(String.format("            case \"%s\":", entry.getKey().getName()));
+            printWriter.println(String.format("                return %s(name);", methodName(entry.getKey())));
+        }
+        printWriter.println("            default:");
+        printWriter.println("                return null;");
+        printWriter.println("        }");
+        printWriter.println("    }");
+        for (Map.Entry<Class, Map<String, TypeElement>> entry : mappings.entrySet()) {
+            if (entry.getValue().isEmpty()) {
+                continue;
+            }
+            printWriter.println();
+            printWriter.println(String.format("    public static Class<? extends %s> %s(final String name) {", entry.getKey().getName(), methodName(entry.getKey())));
+            printWriter.println("        switch (name) {");
+            for (Map.Entry<String, TypeElement> mapping : entry.getValue().entrySet()) {
+                printWriter.println(String.format("            case %s:", literal(mapping.getKey())));
+                printWriter.println(String.format("                return %s.class;", elements.getBinaryName(mapping.getValue()).toString().replace('$', '.')));
+            }
+            printWriter.println("            default:");
+            printWriter.println("                return null;");
+            printWriter.println("        }");
+            printWriter.println("    }");
+        }
+        printWriter.println("}");
+        printWriter.flush();
+        printWriter.close();
+    }
+
+    private void createServiceFile(String qualifiedName) throws Exception {
+        final FileObject resourceFile = filer.createResource(StandardLocation.CLASS_OUTPUT, "", "META-INF/services/" + MappingRegistry.class.getName());
+        final PrintWriter printWriter = new PrintWriter(resourceFile.openOutputStream());
+        printWriter.println(qualifiedName);
+        printWriter.flush();
+        printWriter.close();
+    }
+
+    private static String methodName(Class clazz) {
+        final String simpleName = clazz.getSimpleName();
+        return Character.toLowerCase(simpleName.charAt(0)) + simpleName.substring(1);
+    }
+
+    private static String literal(String value) {
+        return '"' + value.replace("\\", "\\\\").replace("\"", "\\\"") + '"';
+    }
+}
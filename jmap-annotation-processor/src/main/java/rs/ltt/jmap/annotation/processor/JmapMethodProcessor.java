@@ -79,12 +79,12 @@ public class JmapMethodProcessor extends AbstractProcessor {
             }
         }
         if (emptyPass) {
-            return true;
+            return false;
         }
         for (Map.Entry<Class, List<TypeElement>> entry : typeElementMap.entrySet()) {
             createSourceFile(entry.getKey(), entry.getValue());
         }
-        return true;
+        return false;
     }
 
     private void createSourceFile(Class clazz, Collection<TypeElement> classes) {
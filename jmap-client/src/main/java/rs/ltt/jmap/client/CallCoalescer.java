@@ -0,0 +1,104 @@
+/*
+ * Copyright 2020 Daniel Gultsch
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package rs.ltt.jmap.client;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import rs.ltt.jmap.common.method.MethodCall;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+
+/**
+ * Collects independent method calls that are issued within a short window and merges them into a single
+ * {@link JmapRequest}. The request builder assigns new method call ids to the merged invocations; the responses are
+ * handed back to the individual callers through the futures of those invocations.
+ * <p>
+ * Only calls without result references can be merged. Calls made through a {@link JmapClient.MultiCall} are
+ * dispatched as they are.
+ */
+class CallCoalescer {
+
+    private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("jmap-call-coalescer-%d").setDaemon(true).build()
+    );
+
+    private final long windowMillis;
+    private final LongSupplier maxCallsInRequest;
+    private final Consumer<JmapRequest> dispatcher;
+
+    private JmapRequest.Builder pending = null;
+    private int pendingCalls = 0;
+    private ScheduledFuture<?> scheduledFlush = null;
+
+    CallCoalescer(final long windowMillis, final LongSupplier maxCallsInRequest, final Consumer<JmapRequest> dispatcher) {
+        this.windowMillis = windowMillis;
+        this.maxCallsInRequest = maxCallsInRequest;
+        this.dispatcher = dispatcher;
+    }
+
+    ListenableFuture<MethodResponses> call(final MethodCall methodCall) {
+        final SettableFuture<MethodResponses> future = SettableFuture.create();
+        final JmapRequest request;
+        synchronized (this) {
+            if (pending == null) {
+                pending = new JmapRequest.Builder();
+                scheduledFlush = SCHEDULER.schedule(this::flush, windowMillis, TimeUnit.MILLISECONDS);
+            }
+            future.setFuture(pending.call(methodCall).getMethodResponses());
+            pendingCalls++;
+            if (pendingCalls >= maxCallsInRequest.getAsLong()) {
+                request = takePending();
+            } else {
+                request = null;
+            }
+        }
+        if (request != null) {
+            dispatcher.accept(request);
+        }
+        return future;
+    }
+
+    void flush() {
+        final JmapRequest request;
+        synchronized (this) {
+            request = takePending();
+        }
+        if (request != null) {
+            dispatcher.accept(request);
+        }
+    }
+
+    private JmapRequest takePending() {
+        final JmapRequest.Builder builder = this.pending;
+        if (builder == null) {
+            return null;
+        }
+        if (scheduledFlush != null) {
+            scheduledFlush.cancel(false);
+        }
+        this.pending = null;
+        this.pendingCalls = 0;
+        this.scheduledFlush = null;
+        return builder.build();
+    }
+}
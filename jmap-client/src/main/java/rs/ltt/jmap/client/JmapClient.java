@@ -20,28 +20,108 @@ package rs.ltt.jmap.client;
 import com.google.common.base.Preconditions;
 import com.google.common.util.concurrent.*;
 import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.RequestBody;
+import okio.Source;
 import org.checkerframework.checker.nullness.compatqual.NonNullDecl;
 import org.checkerframework.checker.nullness.compatqual.NullableDecl;
+import rs.ltt.jmap.client.api.AbstractJmapApiClient;
+import rs.ltt.jmap.client.api.ConcurrentRequestLimit;
 import rs.ltt.jmap.client.api.HttpJmapApiClient;
-import rs.ltt.jmap.client.api.JmapApiClient;
+import rs.ltt.jmap.client.api.RequestTooLargeException;
 import rs.ltt.jmap.client.api.SessionStateListener;
+import rs.ltt.jmap.client.api.WebSocketJmapApiClient;
+import rs.ltt.jmap.client.blob.BlobCache;
+import rs.ltt.jmap.client.blob.BlobClient;
+import rs.ltt.jmap.client.blob.Download;
+import rs.ltt.jmap.client.event.CloseAfter;
+import rs.ltt.jmap.client.event.EventSourceClient;
+import rs.ltt.jmap.client.event.StateChangeListener;
 import rs.ltt.jmap.client.http.BasicAuthHttpAuthentication;
 import rs.ltt.jmap.client.http.HttpAuthentication;
 import rs.ltt.jmap.client.session.Session;
 import rs.ltt.jmap.client.session.SessionCache;
 import rs.ltt.jmap.client.session.SessionClient;
+import rs.ltt.jmap.client.util.SharedExecutorService;
+import rs.ltt.jmap.common.entity.AbstractIdentifiableEntity;
+import rs.ltt.jmap.common.entity.Upload;
+import rs.ltt.jmap.common.entity.capability.CoreCapability;
+import rs.ltt.jmap.common.entity.capability.WebSocketCapability;
 import rs.ltt.jmap.common.method.MethodCall;
 
 import java.io.Closeable;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToLongFunction;
 
 public class JmapClient implements Closeable {
 
     private final SessionClient sessionClient;
     private final HttpAuthentication authentication;
 
+    /**
+     * Used to size coalesced requests until a session with a {@link CoreCapability} has been retrieved. RFC 8620
+     * recommends servers to accept at least 16 calls per request.
+     */
+    private static final long DEFAULT_MAX_CALLS_IN_REQUEST = 16;
+
+    /**
+     * Interval in seconds in which the event source is asked to send a ping.
+     */
+    private static final long EVENT_SOURCE_PING_INTERVAL = 60;
+
+    private boolean streamingResponses = false;
+
+    private CallCoalescer callCoalescer = null;
+
+    private volatile long maxCallsInRequest = DEFAULT_MAX_CALLS_IN_REQUEST;
+
     private ListeningExecutorService executorService = MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(2));
 
+    private OkHttpClient okHttpClient = HttpJmapApiClient.OK_HTTP_CLIENT;
+
+    private Session apiClientSession = null;
+
+    private BlobClient blobClient = null;
+
+    private volatile BlobCache blobCache = null;
+
+    private AbstractJmapApiClient apiClient = null;
+
+    /**
+     * Shared by every HTTP API client of this JmapClient. Requests sent by a client of an outdated session count
+     * towards the limit until they complete.
+     */
+    private final ConcurrentRequestLimit concurrentRequestLimit = new ConcurrentRequestLimit(HttpJmapApiClient.DEFAULT_MAX_CONCURRENT_REQUESTS);
+
+    private boolean webSocketEnabled = false;
+
+    private StateChangeListener webSocketStateChangeListener = null;
+
+    private final Set<EventSourceClient> eventSourceClients = new HashSet<>();
+
+    private final Object dispatchLock = new Object();
+
+    /**
+     * The number of requests that are waiting for the session before they can be handed to the API client. Guarded
+     * by {@link #dispatchLock}.
+     */
+    private int pendingDispatches = 0;
+
+    /**
+     * Set by {@link #close()}; requests made afterwards are rejected. Guarded by {@link #dispatchLock}.
+     */
+    private boolean closed = false;
+
     private final SessionStateListener sessionStateListener = new SessionStateListener() {
         @Override
         public void onSessionStateRetrieved(String sessionState) {
@@ -78,6 +158,10 @@ public class JmapClient implements Closeable {
 
     public ListenableFuture<MethodResponses> call(MethodCall methodCall) {
         Preconditions.checkState(!isShutdown(), "Unable to call method. JmapClient has been closed already");
+        final CallCoalescer coalescer = this.callCoalescer;
+        if (coalescer != null) {
+            return coalescer.call(methodCall);
+        }
         final JmapRequest.Builder jmapRequestBuilder = new JmapRequest.Builder();
         final ListenableFuture<MethodResponses> methodResponsesFuture = jmapRequestBuilder.call(methodCall).getMethodResponses();
         this.execute(jmapRequestBuilder.build());
@@ -85,21 +169,280 @@ public class JmapClient implements Closeable {
     }
 
     private void execute(final JmapRequest request) {
-        Futures.addCallback(getSession(), new FutureCallback<Session>() {
+        synchronized (this.dispatchLock) {
+            if (closed) {
+                request.setException(new IllegalStateException("JmapClient has been closed already"));
+                return;
+            }
+            pendingDispatches++;
+        }
+        final ListenableFuture<Session> sessionFuture;
+        try {
+            sessionFuture = getSession();
+        } catch (final RejectedExecutionException e) {
+            dispatched();
+            request.setException(e);
+            return;
+        }
+        //the callback must not run on the executor; close() shuts it down while requests are waiting for the session
+        Futures.addCallback(sessionFuture, new FutureCallback<Session>() {
             @Override
             public void onSuccess(@NullableDecl Session session) {
-                Preconditions.checkState(session != null, "Session was null");
-                JmapApiClient apiClient = new HttpJmapApiClient(session.getApiUrl(), authentication, sessionStateListener);
-                apiClient.execute(request);
+                dispatch(request, session);
             }
 
             @Override
             public void onFailure(@NonNullDecl Throwable throwable) {
+                dispatched();
                 request.setException(throwable);
             }
+        }, MoreExecutors.directExecutor());
+    }
+
+    /**
+     * Hands the request to the API client. Every path first leaves the count of pending dispatches and only then
+     * completes the request; listeners running on the completing thread may call {@link #close()}.
+     */
+    private void dispatch(final JmapRequest request, final Session session) {
+        final AbstractJmapApiClient apiClient;
+        final JmapRequest splitRequest;
+        try {
+            Preconditions.checkState(session != null, "Session was null");
+            final long maxCallsInRequest = getLimit(session, CoreCapability::maxCallsInRequest, Long.MAX_VALUE);
+            final int calls = request.getInvocationFutureImmutableMap().size();
+            if (calls > maxCallsInRequest) {
+                dispatched();
+                request.setException(new RequestTooLargeException(
+                        String.format("Request contains %d calls. Server accepts at most %d", calls, maxCallsInRequest)
+                ));
+                return;
+            }
+            final CoreCapability coreCapability = session.getCapability(CoreCapability.class);
+            splitRequest = RequestSplitter.split(request, coreCapability, this::execute);
+            apiClient = getApiClient(session);
+        } catch (final RuntimeException e) {
+            dispatched();
+            request.setException(e);
+            return;
+        }
+        //the API client completes the request on its own threads unless it fails right away. It is only closed once
+        //the last pending dispatch has left the count, so it stays open for this call.
+        try {
+            apiClient.execute(splitRequest);
+        } catch (final RuntimeException e) {
+            request.setException(e);
+        } finally {
+            dispatched();
+        }
+    }
+
+    /**
+     * Leaves the count of pending dispatches. The last dispatch to finish after {@link #close()} closes the API
+     * client.
+     */
+    private void dispatched() {
+        final boolean closeApiClient;
+        synchronized (this.dispatchLock) {
+            pendingDispatches--;
+            closeApiClient = closed && pendingDispatches == 0;
+        }
+        if (closeApiClient) {
+            closeApiClient();
+        }
+    }
+
+    /**
+     * Returns the API client for the given session. The client is reused for as long as the API URL and the state of
+     * the session stay the same; which is until the {@link SessionClient} fetches a changed session resource.
+     */
+    private synchronized AbstractJmapApiClient getApiClient(final Session session) {
+        final AbstractJmapApiClient current = this.apiClient;
+        final Session currentSession = this.apiClientSession;
+        if (current != null && currentSession != null && (currentSession == session || isSameEndpoint(currentSession, session))) {
+            return current;
+        }
+        final String webSocketUrl = webSocketEnabled ? session.getWebSocketUrl() : null;
+        final AbstractJmapApiClient apiClient;
+        if (webSocketUrl != null) {
+            final WebSocketCapability webSocketCapability = session.getCapability(WebSocketCapability.class);
+            apiClient = new WebSocketJmapApiClient(
+                    webSocketUrl,
+                    authentication,
+                    sessionStateListener,
+                    okHttpClient,
+                    Boolean.TRUE.equals(webSocketCapability.getSupportsPush()) ? webSocketStateChangeListener : null
+            );
+        } else {
+            concurrentRequestLimit.setMaxConcurrentRequests((int) Math.min(Integer.MAX_VALUE, getLimit(
+                    session,
+                    CoreCapability::maxConcurrentRequests,
+                    HttpJmapApiClient.DEFAULT_MAX_CONCURRENT_REQUESTS
+            )));
+            apiClient = new HttpJmapApiClient(session.getApiUrl(), authentication, sessionStateListener, okHttpClient, concurrentRequestLimit);
+        }
+        apiClient.setStreamingResponses(streamingResponses);
+        apiClient.setMaxSizeRequest(getLimit(session, CoreCapability::maxSizeRequest, Long.MAX_VALUE));
+        this.maxCallsInRequest = getLimit(session, CoreCapability::maxCallsInRequest, DEFAULT_MAX_CALLS_IN_REQUEST);
+        closeApiClient();
+        this.apiClient = apiClient;
+        this.apiClientSession = session;
+        return apiClient;
+    }
+
+    private synchronized void closeApiClient() {
+        if (this.apiClient instanceof WebSocketJmapApiClient) {
+            ((WebSocketJmapApiClient) this.apiClient).close();
+        }
+    }
+
+    private static boolean isSameEndpoint(final Session a, final Session b) {
+        return Objects.equals(a.getState(), b.getState()) && a.getApiUrl().equals(b.getApiUrl());
+    }
+
+    private static long getLimit(final Session session, final ToLongFunction<CoreCapability> limit, final long defaultValue) {
+        final CoreCapability coreCapability = session.getCapability(CoreCapability.class);
+        if (coreCapability == null) {
+            return defaultValue;
+        }
+        try {
+            return Math.max(1, limit.applyAsLong(coreCapability));
+        } catch (final IllegalStateException e) {
+            return defaultValue;
+        }
+    }
+
+    private synchronized void invalidateApiClient() {
+        closeApiClient();
+        this.apiClient = null;
+        this.apiClientSession = null;
+    }
+
+    /**
+     * Connects to the event source of the server and passes every state change of the given types to the listener.
+     * The connection is reestablished automatically until the returned client (or this client) is closed.
+     *
+     * @param types the types to monitor. All types if empty.
+     */
+    public ListenableFuture<EventSourceClient> monitorEvents(@NonNullDecl final Collection<Class<? extends AbstractIdentifiableEntity>> types,
+                                                             @NonNullDecl final StateChangeListener stateChangeListener) {
+        Preconditions.checkState(!isShutdown(), "Unable to monitor events. JmapClient has been closed already");
+        return Futures.transform(getSession(), session -> {
+            Preconditions.checkState(session != null, "Session was null");
+            final HttpUrl eventSourceUrl = session.getEventSourceUrl(types, CloseAfter.NO, EVENT_SOURCE_PING_INTERVAL);
+            final EventSourceClient eventSourceClient = new EventSourceClient(
+                    okHttpClient,
+                    authentication,
+                    eventSourceUrl,
+                    EVENT_SOURCE_PING_INTERVAL,
+                    stateChangeListener
+            );
+            synchronized (eventSourceClients) {
+                Preconditions.checkState(!isShutdown(), "Unable to monitor events. JmapClient has been closed already");
+                eventSourceClients.add(eventSourceClient);
+            }
+            eventSourceClient.addCloseListener(() -> {
+                synchronized (eventSourceClients) {
+                    eventSourceClients.remove(eventSourceClient);
+                }
+            });
+            eventSourceClient.start();
+            return eventSourceClient;
         }, executorService);
     }
 
+    /**
+     * @return a download that completes as soon as the response headers have been received. The content is streamed
+     * from the network while it is read; the download must be closed. Blobs in the blob cache are read from disk.
+     */
+    public ListenableFuture<Download> download(@NonNullDecl final String accountId,
+                                               @NonNullDecl final String blobId,
+                                               @NullableDecl final String name,
+                                               @NullableDecl final String type) {
+        return download(accountId, blobId, name, type, 0);
+    }
+
+    /**
+     * @param rangeStart the position within the blob to resume at. The server may ignore the range and send the entire
+     *                   blob; check {@link Download#getOffset()}.
+     * @see #download(String, String, String, String)
+     */
+    public ListenableFuture<Download> download(@NonNullDecl final String accountId,
+                                               @NonNullDecl final String blobId,
+                                               @NullableDecl final String name,
+                                               @NullableDecl final String type,
+                                               final long rangeStart) {
+        final BlobCache blobCache = this.blobCache;
+        final Download cached = blobCache == null ? null : blobCache.open(accountId, blobId, rangeStart, type);
+        if (cached != null) {
+            return Futures.immediateFuture(cached);
+        }
+        return Futures.transformAsync(
+                getSession(),
+                session -> getBlobClient().download(Preconditions.checkNotNull(session, "Session was null").getDownloadUrl(accountId, blobId, name, type), rangeStart),
+                MoreExecutors.directExecutor()
+        );
+    }
+
+    /**
+     * Writes the blob into the channel. Data already in the channel is considered to be the beginning of the blob
+     * from an earlier, interrupted download; only the remainder is requested.
+     *
+     * @return the size of the blob
+     */
+    public ListenableFuture<Long> download(@NonNullDecl final String accountId,
+                                           @NonNullDecl final String blobId,
+                                           @NullableDecl final String name,
+                                           @NullableDecl final String type,
+                                           @NonNullDecl final FileChannel channel) {
+        return Futures.transformAsync(
+                getSession(),
+                session -> getBlobClient().download(Preconditions.checkNotNull(session, "Session was null").getDownloadUrl(accountId, blobId, name, type), channel),
+                MoreExecutors.directExecutor()
+        );
+    }
+
+    /**
+     * Returns the blob from the blob cache or downloads it into the cache first. Concurrent calls for the same blob
+     * share one download. Requires a blob cache; see {@link #setBlobCache(BlobCache)}.
+     */
+    public ListenableFuture<Path> getBlob(@NonNullDecl final String accountId,
+                                          @NonNullDecl final String blobId,
+                                          @NullableDecl final String name,
+                                          @NullableDecl final String type) {
+        final BlobCache blobCache = this.blobCache;
+        Preconditions.checkState(blobCache != null, "No blob cache has been set");
+        return blobCache.get(accountId, blobId, channel -> download(accountId, blobId, name, type, channel));
+    }
+
+    /**
+     * Uploads the file. The file is streamed from disk while the request is sent.
+     */
+    public ListenableFuture<Upload> upload(@NonNullDecl final String accountId, @NonNullDecl final Path path, @NullableDecl final String type) {
+        return upload(accountId, BlobClient.requestBody(path, type));
+    }
+
+    /**
+     * Uploads everything that can be read from the source. The request is sent with chunked transfer encoding.
+     */
+    public ListenableFuture<Upload> upload(@NonNullDecl final String accountId, @NonNullDecl final Source source, @NullableDecl final String type) {
+        return upload(accountId, BlobClient.requestBody(source, type));
+    }
+
+    private ListenableFuture<Upload> upload(final String accountId, final RequestBody requestBody) {
+        return Futures.transformAsync(
+                getSession(),
+                session -> getBlobClient().upload(Preconditions.checkNotNull(session, "Session was null").getUploadUrl(accountId), requestBody),
+                MoreExecutors.directExecutor()
+        );
+    }
+
+    private synchronized BlobClient getBlobClient() {
+        if (blobClient == null) {
+            blobClient = new BlobClient(okHttpClient, authentication);
+        }
+        return blobClient;
+    }
+
     public MultiCall newMultiCall() {
         return new MultiCall();
     }
@@ -108,13 +451,111 @@ public class JmapClient implements Closeable {
         this.sessionClient.setSessionCache(sessionCache);
     }
 
+    /**
+     * Runs the work of this client on an executor that is shared with other clients instead of a dedicated thread
+     * pool. Closing this client will not shut down the shared executor. Must be called before the first request.
+     */
+    public void setExecutorService(@NonNullDecl final ListeningExecutorService executorService) {
+        Preconditions.checkState(!isShutdown(), "Unable to change executor. JmapClient has been closed already");
+        this.executorService.shutdown();
+        this.executorService = new SharedExecutorService(executorService);
+    }
+
+    /**
+     * Serve downloads of blobs that are in the cache from disk. Blobs are added to the cache by
+     * {@link #getBlob(String, String, String, String)}.
+     */
+    public void setBlobCache(@NullableDecl final BlobCache blobCache) {
+        this.blobCache = blobCache;
+    }
+
+    /**
+     * Use an OkHttpClient that is shared with other clients (and its connection pool) instead of the default one.
+     */
+    public void setOkHttpClient(@NonNullDecl final OkHttpClient okHttpClient) {
+        this.okHttpClient = okHttpClient;
+        this.sessionClient.setOkHttpClient(okHttpClient);
+        invalidateApiClient();
+        synchronized (this) {
+            this.blobClient = null;
+        }
+    }
+
+    /**
+     * Parse API responses incrementally and complete the future of each method call as soon as its method responses
+     * have been read instead of waiting for the entire response to be deserialized.
+     */
+    public void setStreamingResponses(final boolean streamingResponses) {
+        this.streamingResponses = streamingResponses;
+        invalidateApiClient();
+    }
+
+    /**
+     * Sends requests over a single WebSocket connection (RFC 8887) instead of one HTTP POST per request. Falls back to
+     * HTTP if the session does not announce a WebSocket capability.
+     */
+    public void setWebSocketEnabled(final boolean webSocketEnabled) {
+        setWebSocketEnabled(webSocketEnabled, null);
+    }
+
+    /**
+     * @param stateChangeListener if not null and the server supports it, state changes are pushed over the WebSocket
+     *                            connection and passed to the listener
+     * @see #setWebSocketEnabled(boolean)
+     */
+    public synchronized void setWebSocketEnabled(final boolean webSocketEnabled, @NullableDecl final StateChangeListener stateChangeListener) {
+        this.webSocketEnabled = webSocketEnabled;
+        this.webSocketStateChangeListener = stateChangeListener;
+        invalidateApiClient();
+    }
+
+    /**
+     * Merges calls made via {@link #call(MethodCall)} within the given window into a single request. A request is sent
+     * early once it holds as many calls as the server accepts (maxCallsInRequest). A window of 0 disables coalescing,
+     * which is the default.
+     */
+    public void setCoalescingWindow(final long window, @NonNullDecl final TimeUnit unit) {
+        Preconditions.checkArgument(window >= 0, "Coalescing window must not be negative");
+        final CallCoalescer previous = this.callCoalescer;
+        final long windowMillis = unit.toMillis(window);
+        this.callCoalescer = windowMillis == 0 ? null : new CallCoalescer(windowMillis, () -> maxCallsInRequest, this::execute);
+        if (previous != null) {
+            previous.flush();
+        }
+    }
+
     private boolean isShutdown() {
         return executorService.isShutdown();
     }
 
+    /**
+     * Sends the calls that are still buffered for coalescing and stops accepting new requests. Does not block;
+     * requests that are still waiting for the session are handed to the API client and the API client is closed once
+     * the last of them has been. This makes it safe to call close() from a listener of a pending call.
+     */
     @Override
     public void close() {
-        executorService.shutdown();
+        final CallCoalescer coalescer = this.callCoalescer;
+        if (coalescer != null) {
+            coalescer.flush();
+        }
+        final List<EventSourceClient> eventSourceClients;
+        synchronized (this.eventSourceClients) {
+            executorService.shutdown();
+            eventSourceClients = new ArrayList<>(this.eventSourceClients);
+            this.eventSourceClients.clear();
+        }
+        final boolean idle;
+        synchronized (this.dispatchLock) {
+            closed = true;
+            idle = pendingDispatches == 0;
+        }
+        for (final EventSourceClient eventSourceClient : eventSourceClients) {
+            eventSourceClient.close();
+        }
+        if (idle) {
+            closeApiClient();
+        }
     }
 
     public class MultiCall {
@@ -70,7 +70,7 @@ public class JmapRequest {
         }
 
         //TODO throw illegal state when adding after build
-        private ListenableFuture<MethodResponses> add(final Request.Invocation invocation) {
+        ListenableFuture<MethodResponses> add(final Request.Invocation invocation) {
             final SettableFuture<MethodResponses> future = SettableFuture.create();
             this.map.put(invocation, future);
             return future;
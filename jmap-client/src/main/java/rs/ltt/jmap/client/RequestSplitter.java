@@ -0,0 +1,293 @@
+/*
+ * Copyright 2020 Daniel Gultsch
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package rs.ltt.jmap.client;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import org.checkerframework.checker.nullness.compatqual.NullableDecl;
+import rs.ltt.jmap.client.api.PartialResponseException;
+import rs.ltt.jmap.common.Request;
+import rs.ltt.jmap.common.entity.capability.CoreCapability;
+import rs.ltt.jmap.common.method.MethodCall;
+import rs.ltt.jmap.common.method.call.standard.GetMethodCall;
+import rs.ltt.jmap.common.method.call.standard.SetMethodCall;
+import rs.ltt.jmap.common.method.response.standard.GetMethodResponse;
+import rs.ltt.jmap.common.method.response.standard.SetMethodResponse;
+
+import java.lang.reflect.Field;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+
+/**
+ * Splits get and set calls that exceed the maxObjectsInGet or maxObjectsInSet limits of the server into several calls.
+ * The first part of a split call takes the place (and the id) of the original invocation so that the remaining calls
+ * in the request are unaffected. Invocations that are referenced by a result reference of another call are never
+ * split; the reference would only resolve against the first part. Neither are set calls that create objects which
+ * are referred to by their creation id. The other parts are dispatched as separate requests and the responses of all
+ * parts are merged into a single response for the original invocation.
+ * <p>
+ * The parts of a get call are executed in parallel. If they have been read at different states all parts are
+ * fetched again; a merged response only contains objects of a single state. The parts of a set call are executed one
+ * after another; if the call is guarded with ifInState each part is guarded with the new state of the previous one.
+ * Once a part has failed the remaining parts are not sent and the future fails with a
+ * {@link PartialResponseException} that holds the results of the parts that have been applied.
+ */
+final class RequestSplitter {
+
+    private static final Map<Class<?>, List<Field>> REFERENCE_FIELDS = new ConcurrentHashMap<>();
+
+    /**
+     * How often the parts of a get call are fetched before giving up on reading them at the same state.
+     */
+    private static final int MAX_GET_ATTEMPTS = 3;
+
+    private final long maxObjectsInGet;
+    private final long maxObjectsInSet;
+    private final Consumer<JmapRequest> dispatcher;
+
+    private RequestSplitter(final CoreCapability coreCapability, final Consumer<JmapRequest> dispatcher) {
+        this.maxObjectsInGet = limit(coreCapability::maxObjectsInGet);
+        this.maxObjectsInSet = limit(coreCapability::maxObjectsInSet);
+        this.dispatcher = dispatcher;
+    }
+
+    static JmapRequest split(final JmapRequest request,
+                             @NullableDecl final CoreCapability coreCapability,
+                             final Consumer<JmapRequest> dispatcher) {
+        if (coreCapability == null) {
+            return request;
+        }
+        return new RequestSplitter(coreCapability, dispatcher).split(request);
+    }
+
+    private static long limit(final LongSupplier supplier) {
+        try {
+            final long limit = supplier.getAsLong();
+            return limit > 0 ? limit : Long.MAX_VALUE;
+        } catch (final IllegalStateException e) {
+            return Long.MAX_VALUE;
+        }
+    }
+
+    private JmapRequest split(final JmapRequest request) {
+        final Map<Request.Invocation, SettableFuture<MethodResponses>> invocations = request.getInvocationFutureImmutableMap();
+        final List<List<? extends MethodCall>> parts = new ArrayList<>(invocations.size());
+        boolean needsSplit = false;
+        for (final Request.Invocation invocation : invocations.keySet()) {
+            final List<? extends MethodCall> part = split(invocation.getMethodCall());
+            needsSplit |= part.size() > 1;
+            parts.add(part);
+        }
+        if (!needsSplit) {
+            return request;
+        }
+        final Set<String> referenced = referencedInvocationIds(invocations.keySet());
+        final Set<String> creationIdReferences = creationIdReferences(invocations.keySet());
+        needsSplit = false;
+        int j = 0;
+        for (final Request.Invocation invocation : invocations.keySet()) {
+            if (referenced.contains(invocation.getId()) || createsReferencedObject(invocation.getMethodCall(), creationIdReferences)) {
+                parts.set(j, Collections.singletonList(invocation.getMethodCall()));
+            }
+            needsSplit |= parts.get(j).size() > 1;
+            j++;
+        }
+        if (!needsSplit) {
+            return request;
+        }
+        final JmapRequest.Builder builder = new JmapRequest.Builder();
+        int i = 0;
+        for (final Map.Entry<Request.Invocation, SettableFuture<MethodResponses>> entry : invocations.entrySet()) {
+            final List<? extends MethodCall> part = parts.get(i++);
+            final Request.Invocation invocation = entry.getKey();
+            final ListenableFuture<MethodResponses> first = builder.add(new Request.Invocation(part.get(0), invocation.getId()));
+            if (part.size() == 1) {
+                entry.getValue().setFuture(first);
+            } else if (part.get(0) instanceof SetMethodCall) {
+                entry.getValue().setFuture(executeSequentially(first, part.subList(1, part.size())));
+            } else {
+                entry.getValue().setFuture(executeInParallel(first, part, 1));
+            }
+        }
+        return builder.build();
+    }
+
+    private static Set<String> referencedInvocationIds(final Collection<Request.Invocation> invocations) {
+        final Set<String> ids = new HashSet<>();
+        for (final Request.Invocation invocation : invocations) {
+            final MethodCall methodCall = invocation.getMethodCall();
+            for (final Field field : referenceFields(methodCall.getClass())) {
+                try {
+                    final Request.Invocation.ResultReference reference = (Request.Invocation.ResultReference) field.get(methodCall);
+                    if (reference != null) {
+                        ids.add(reference.getId());
+                    }
+                } catch (final IllegalAccessException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Creation ids are scoped to the request. Objects that are referred to by their creation id have to be created in
+     * the same request as the reference.
+     */
+    private static Set<String> creationIdReferences(final Collection<Request.Invocation> invocations) {
+        final Set<String> references = new HashSet<>();
+        for (final Request.Invocation invocation : invocations) {
+            final MethodCall methodCall = invocation.getMethodCall();
+            if (methodCall instanceof SetMethodCall) {
+                references.addAll(((SetMethodCall<?>) methodCall).getCreationIdReferences());
+            } else if (methodCall instanceof GetMethodCall) {
+                references.addAll(((GetMethodCall<?>) methodCall).getCreationIdReferences());
+            }
+        }
+        return references;
+    }
+
+    private static boolean createsReferencedObject(final MethodCall methodCall, final Set<String> creationIdReferences) {
+        if (creationIdReferences.isEmpty() || !(methodCall instanceof SetMethodCall)) {
+            return false;
+        }
+        for (final String creationId : ((SetMethodCall<?>) methodCall).getCreationIds()) {
+            if (creationIdReferences.contains(creationId)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * RFC 8620 only allows result references as top level arguments; so they are always fields of the call itself.
+     */
+    private static List<Field> referenceFields(final Class<?> clazz) {
+        return REFERENCE_FIELDS.computeIfAbsent(clazz, c -> {
+            final List<Field> fields = new ArrayList<>();
+            for (Class<?> current = c; current != null; current = current.getSuperclass()) {
+                for (final Field field : current.getDeclaredFields()) {
+                    if (field.getType() == Request.Invocation.ResultReference.class) {
+                        field.setAccessible(true);
+                        fields.add(field);
+                    }
+                }
+            }
+            return fields;
+        });
+    }
+
+    private List<? extends MethodCall> split(final MethodCall methodCall) {
+        if (methodCall instanceof GetMethodCall) {
+            return ((GetMethodCall<?>) methodCall).split(maxObjectsInGet);
+        } else if (methodCall instanceof SetMethodCall) {
+            return ((SetMethodCall<?>) methodCall).split(maxObjectsInSet);
+        } else {
+            return Collections.singletonList(methodCall);
+        }
+    }
+
+    private ListenableFuture<MethodResponses> executeInParallel(final ListenableFuture<MethodResponses> first,
+                                                                final List<? extends MethodCall> parts,
+                                                                final int attempt) {
+        final List<ListenableFuture<MethodResponses>> futures = new ArrayList<>(parts.size());
+        futures.add(first);
+        for (final MethodCall methodCall : parts.subList(1, parts.size())) {
+            futures.add(dispatch(methodCall));
+        }
+        return Futures.whenAllSucceed(futures).callAsync(() -> {
+            final List<MethodResponses> responses = new ArrayList<>(futures.size());
+            for (final ListenableFuture<MethodResponses> future : futures) {
+                responses.add(Futures.getDone(future));
+            }
+            if (isSameState(responses)) {
+                return Futures.immediateFuture(merge(responses));
+            }
+            if (attempt >= MAX_GET_ATTEMPTS) {
+                throw new IllegalStateException(String.format(
+                        "Unable to read the %d parts of the split call at the same state",
+                        parts.size()
+                ));
+            }
+            return executeInParallel(dispatch(parts.get(0)), parts, attempt + 1);
+        }, MoreExecutors.directExecutor());
+    }
+
+    private static boolean isSameState(final List<MethodResponses> responses) {
+        final String state = responses.get(0).getMain(GetMethodResponse.class).getState();
+        for (final MethodResponses methodResponses : responses.subList(1, responses.size())) {
+            if (!Objects.equals(state, methodResponses.getMain(GetMethodResponse.class).getState())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private ListenableFuture<MethodResponses> executeSequentially(final ListenableFuture<MethodResponses> first,
+                                                                  final List<? extends MethodCall> remaining) {
+        ListenableFuture<MethodResponses> future = first;
+        for (final MethodCall methodCall : remaining) {
+            final SetMethodCall<?> setMethodCall = (SetMethodCall<?>) methodCall;
+            future = Futures.transformAsync(future, previous -> {
+                final SetMethodResponse<?> response = previous.getMain(SetMethodResponse.class);
+                final MethodCall next = setMethodCall.getIfInState() == null ? setMethodCall : setMethodCall.withIfInState(response.getNewState());
+                return Futures.catchingAsync(
+                        Futures.transform(dispatch(next), current -> merge(previous, current), MoreExecutors.directExecutor()),
+                        Throwable.class,
+                        throwable -> Futures.immediateFailedFuture(new PartialResponseException(previous, throwable)),
+                        MoreExecutors.directExecutor()
+                );
+            }, MoreExecutors.directExecutor());
+        }
+        return future;
+    }
+
+    private ListenableFuture<MethodResponses> dispatch(final MethodCall methodCall) {
+        final JmapRequest.Builder builder = new JmapRequest.Builder();
+        final ListenableFuture<MethodResponses> future = builder.call(methodCall).getMethodResponses();
+        final JmapRequest request = builder.build();
+        try {
+            dispatcher.accept(request);
+        } catch (final RuntimeException e) {
+            request.setException(e);
+        }
+        return future;
+    }
+
+    private static MethodResponses merge(final List<MethodResponses> responses) {
+        MethodResponses merged = responses.get(0);
+        for (final MethodResponses methodResponses : responses.subList(1, responses.size())) {
+            merged = merge(merged, methodResponses);
+        }
+        return merged;
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static MethodResponses merge(final MethodResponses a, final MethodResponses b) {
+        if (a.getMain() instanceof GetMethodResponse) {
+            return new MethodResponses(((GetMethodResponse) a.getMain()).merge(b.getMain(GetMethodResponse.class)));
+        } else if (a.getMain() instanceof SetMethodResponse) {
+            return new MethodResponses(((SetMethodResponse) a.getMain()).merge(b.getMain(SetMethodResponse.class)));
+        } else {
+            throw new IllegalStateException(String.format("Unable to merge %s", a.getMain().getClass().getSimpleName()));
+        }
+    }
+}
@@ -16,9 +16,11 @@
 
 package rs.ltt.jmap.client.api;
 
+import com.google.common.base.Charsets;
 import com.google.common.util.concurrent.SettableFuture;
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
+import com.google.gson.*;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
 import rs.ltt.jmap.client.JmapRequest;
 import rs.ltt.jmap.client.MethodResponses;
 import rs.ltt.jmap.client.util.ResponseAnalyzer;
@@ -28,63 +30,167 @@ import rs.ltt.jmap.common.Request;
 import rs.ltt.jmap.common.Response;
 import rs.ltt.jmap.common.method.MethodErrorResponse;
 import rs.ltt.jmap.common.method.MethodResponse;
-import rs.ltt.jmap.gson.JmapAdapters;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 public abstract class AbstractJmapApiClient implements JmapApiClient {
 
-    private final GsonBuilder gsonBuilder;
+    private boolean streamingResponses = false;
 
-    AbstractJmapApiClient() {
-        gsonBuilder = new GsonBuilder();
-        JmapAdapters.register(gsonBuilder);
-    }
+    private volatile long maxSizeRequest = Long.MAX_VALUE;
 
     abstract void onSessionStateRetrieved(String sessionState);
 
-    abstract InputStream send(String out) throws IOException, JmapApiException;
-
-    @Override
-    public void execute(final JmapRequest jmapRequest) {
-        try {
-            final Gson gson = gsonBuilder.create();
-            try (final InputStream inputStream = send(gson.toJson(jmapRequest.getRequest()))) {
-                final GenericResponse genericResponse = gson.fromJson(new InputStreamReader(inputStream), GenericResponse.class);
-                if (genericResponse instanceof ErrorResponse) {
-                    jmapRequest.setException(new ErrorResponseException((ErrorResponse) genericResponse));
-                } else if (genericResponse instanceof Response) {
-                    final Response response = (Response) genericResponse;
-                    final ResponseAnalyzer responseAnalyzer = ResponseAnalyzer.analyse(response);
-                    final Map<Request.Invocation, SettableFuture<MethodResponses>> map = jmapRequest.getInvocationFutureImmutableMap();
-
-                    // Notify about potentially updated session state *before* setting the response futures. This way we'll
-                    // make sure that additional requests guarded by a wait on one of the response futures will trigger
-                    // re-fetching the session resource.
-                    this.onSessionStateRetrieved(response.getSessionState());
-
-                    for (Map.Entry<Request.Invocation, SettableFuture<MethodResponses>> entry : map.entrySet()) {
-                        final Request.Invocation invocation = entry.getKey();
-                        final SettableFuture<MethodResponses> future = entry.getValue();
-                        final MethodResponses methodResponses = responseAnalyzer.find(invocation);
-                        if (methodResponses == null) {
-                            future.setException(new MethodResponseNotFoundException(invocation));
-                            continue;
-                        }
-                        final MethodResponse main = methodResponses.getMain();
-                        if (main instanceof MethodErrorResponse) {
-                            future.setException(new MethodErrorResponseException((MethodErrorResponse) main, methodResponses.getAdditional()));
-                        } else {
-                            future.set(methodResponses);
-                        }
-                    }
+    /**
+     * When enabled the response body is parsed incrementally and each method response future is completed as soon as
+     * all method responses for that invocation have been read. This avoids holding the entire response object graph
+     * in memory and allows callers to process early results while later method responses are still being parsed.
+     * Note that the session state is usually only transmitted after the method responses. In streaming mode a change
+     * of the session state will therefore only be picked up by requests made after the entire response has been read.
+     */
+    public void setStreamingResponses(final boolean streamingResponses) {
+        this.streamingResponses = streamingResponses;
+    }
+
+    /**
+     * Requests larger than maxSizeRequest bytes fail with a {@link RequestTooLargeException} instead of being sent.
+     */
+    public void setMaxSizeRequest(final long maxSizeRequest) {
+        this.maxSizeRequest = maxSizeRequest;
+    }
+
+    long getMaxSizeRequest() {
+        return maxSizeRequest;
+    }
+
+    void processResponse(final Gson gson, final InputStream inputStream, final JmapRequest jmapRequest) throws IOException {
+        if (streamingResponses) {
+            processStreaming(gson, inputStream, jmapRequest);
+        } else {
+            process(gson, inputStream, jmapRequest);
+        }
+    }
+
+    private void process(final Gson gson, final InputStream inputStream, final JmapRequest jmapRequest) {
+        process(gson.fromJson(new InputStreamReader(inputStream), GenericResponse.class), jmapRequest);
+    }
+
+    void process(final GenericResponse genericResponse, final JmapRequest jmapRequest) {
+        if (genericResponse instanceof ErrorResponse) {
+            jmapRequest.setException(new ErrorResponseException((ErrorResponse) genericResponse));
+        } else if (genericResponse instanceof Response) {
+            final Response response = (Response) genericResponse;
+            final ResponseAnalyzer responseAnalyzer = ResponseAnalyzer.analyse(response);
+            final Map<Request.Invocation, SettableFuture<MethodResponses>> map = jmapRequest.getInvocationFutureImmutableMap();
+
+            // Notify about potentially updated session state *before* setting the response futures. This way we'll
+            // make sure that additional requests guarded by a wait on one of the response futures will trigger
+            // re-fetching the session resource.
+            this.onSessionStateRetrieved(response.getSessionState());
+
+            for (Map.Entry<Request.Invocation, SettableFuture<MethodResponses>> entry : map.entrySet()) {
+                final Request.Invocation invocation = entry.getKey();
+                final SettableFuture<MethodResponses> future = entry.getValue();
+                complete(invocation, future, responseAnalyzer.find(invocation));
+            }
+        } else {
+            jmapRequest.setException(new JsonParseException("Unable to identify response as either error or response"));
+        }
+    }
+
+    private void processStreaming(final Gson gson, final InputStream inputStream, final JmapRequest jmapRequest) throws IOException {
+        final Map<String, Map.Entry<Request.Invocation, SettableFuture<MethodResponses>>> pending = new HashMap<>();
+        for (Map.Entry<Request.Invocation, SettableFuture<MethodResponses>> entry : jmapRequest.getInvocationFutureImmutableMap().entrySet()) {
+            pending.put(entry.getKey().getId(), entry);
+        }
+        final JsonObject otherProperties = new JsonObject();
+        boolean hasMethodResponses = false;
+        String sessionState = null;
+        boolean sessionStateNotified = false;
+        final JsonReader jsonReader = new JsonReader(new InputStreamReader(inputStream, Charsets.UTF_8));
+        jsonReader.beginObject();
+        while (jsonReader.hasNext()) {
+            final String name = jsonReader.nextName();
+            if ("methodResponses".equals(name)) {
+                hasMethodResponses = true;
+                readMethodResponses(gson, jsonReader, pending);
+            } else if ("sessionState".equals(name) && jsonReader.peek() == JsonToken.STRING) {
+                sessionState = jsonReader.nextString();
+                // If the server happens to send the session state first we can still notify *before* setting any of
+                // the response futures.
+                if (!hasMethodResponses) {
+                    this.onSessionStateRetrieved(sessionState);
+                    sessionStateNotified = true;
                 }
+            } else {
+                otherProperties.add(name, gson.fromJson(jsonReader, JsonElement.class));
+            }
+        }
+        jsonReader.endObject();
+        if (hasMethodResponses && !otherProperties.has("type")) {
+            if (!sessionStateNotified) {
+                this.onSessionStateRetrieved(sessionState);
+            }
+            for (Map.Entry<Request.Invocation, SettableFuture<MethodResponses>> entry : pending.values()) {
+                complete(entry.getKey(), entry.getValue(), null);
+            }
+        } else if (otherProperties.has("type") && !hasMethodResponses) {
+            jmapRequest.setException(new ErrorResponseException(gson.fromJson(otherProperties, ErrorResponse.class)));
+        } else {
+            jmapRequest.setException(new JsonParseException("Unable to identify response as either error or response"));
+        }
+    }
+
+    private static void readMethodResponses(final Gson gson,
+                                            final JsonReader jsonReader,
+                                            final Map<String, Map.Entry<Request.Invocation, SettableFuture<MethodResponses>>> pending) throws IOException {
+        // Method responses belonging to the same method call are adjacent to each other (RFC 8620 Section 3.4). This
+        // means an invocation is complete once we encounter a method response with a different id.
+        final List<MethodResponse> group = new ArrayList<>();
+        String groupId = null;
+        jsonReader.beginArray();
+        while (jsonReader.hasNext()) {
+            final Response.Invocation invocation = gson.fromJson(jsonReader, Response.Invocation.class);
+            if (groupId != null && !groupId.equals(invocation.getId())) {
+                completePending(pending, groupId, group);
+                group.clear();
             }
-        } catch (Exception e) {
-            jmapRequest.setException(e);
+            groupId = invocation.getId();
+            group.add(invocation.getMethodResponse());
+        }
+        jsonReader.endArray();
+        if (groupId != null) {
+            completePending(pending, groupId, group);
+        }
+    }
+
+    private static void completePending(final Map<String, Map.Entry<Request.Invocation, SettableFuture<MethodResponses>>> pending,
+                                        final String id,
+                                        final List<MethodResponse> methodResponses) {
+        final Map.Entry<Request.Invocation, SettableFuture<MethodResponses>> entry = pending.remove(id);
+        if (entry != null) {
+            complete(entry.getKey(), entry.getValue(), ResponseAnalyzer.toMethodResponses(methodResponses));
+        }
+    }
+
+    private static void complete(final Request.Invocation invocation,
+                                 final SettableFuture<MethodResponses> future,
+                                 final MethodResponses methodResponses) {
+        if (methodResponses == null) {
+            future.setException(new MethodResponseNotFoundException(invocation));
+            return;
+        }
+        final MethodResponse main = methodResponses.getMain();
+        if (main instanceof MethodErrorResponse) {
+            future.setException(new MethodErrorResponseException((MethodErrorResponse) main, methodResponses.getAdditional()));
+        } else {
+            future.set(methodResponses);
         }
     }
 }
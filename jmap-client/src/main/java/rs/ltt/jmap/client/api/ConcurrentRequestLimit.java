@@ -0,0 +1,91 @@
+/*
+ * Copyright 2020 Daniel Gultsch
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package rs.ltt.jmap.client.api;
+
+import com.google.common.base.Preconditions;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+
+/**
+ * Limits the number of requests that are in flight at the same time. Additional requests are queued and started once
+ * one of the running requests has completed. A limit can be shared by multiple {@link HttpJmapApiClient}s; the
+ * JmapClient shares one across all API clients it creates, so that the limit of the server holds even while requests
+ * made with an outdated session are still in flight.
+ */
+public class ConcurrentRequestLimit {
+
+    private final Queue<Runnable> pendingRequests = new ArrayDeque<>();
+    private int maxConcurrentRequests;
+    private int inFlightRequests = 0;
+
+    public ConcurrentRequestLimit(final int maxConcurrentRequests) {
+        Preconditions.checkArgument(maxConcurrentRequests > 0, "maxConcurrentRequests must be positive");
+        this.maxConcurrentRequests = maxConcurrentRequests;
+    }
+
+    public void setMaxConcurrentRequests(final int maxConcurrentRequests) {
+        Preconditions.checkArgument(maxConcurrentRequests > 0, "maxConcurrentRequests must be positive");
+        final List<Runnable> startable = new ArrayList<>();
+        synchronized (this) {
+            this.maxConcurrentRequests = maxConcurrentRequests;
+            while (inFlightRequests < maxConcurrentRequests && !pendingRequests.isEmpty()) {
+                inFlightRequests++;
+                startable.add(pendingRequests.poll());
+            }
+        }
+        for (final Runnable request : startable) {
+            request.run();
+        }
+    }
+
+    /**
+     * Starts the request right away if the limit allows it and queues it otherwise. Every started request must call
+     * {@link #release()} once it has completed.
+     */
+    void execute(final Runnable request) {
+        synchronized (this) {
+            if (inFlightRequests >= maxConcurrentRequests) {
+                pendingRequests.add(request);
+                return;
+            }
+            inFlightRequests++;
+        }
+        request.run();
+    }
+
+    /**
+     * Hands the slot of a completed request to the next queued request.
+     */
+    void release() {
+        final Runnable next;
+        synchronized (this) {
+            if (inFlightRequests > maxConcurrentRequests) {
+                inFlightRequests--;
+                return;
+            }
+            next = pendingRequests.poll();
+            if (next == null) {
+                inFlightRequests--;
+                return;
+            }
+        }
+        next.run();
+    }
+}
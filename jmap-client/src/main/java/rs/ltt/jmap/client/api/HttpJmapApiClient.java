@@ -17,14 +17,18 @@
 package rs.ltt.jmap.client.api;
 
 
+import com.google.common.base.Preconditions;
+import com.google.gson.Gson;
 import okhttp3.*;
 import okhttp3.logging.HttpLoggingInterceptor;
 import org.checkerframework.checker.nullness.compatqual.NonNullDecl;
 import org.checkerframework.checker.nullness.compatqual.NullableDecl;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import rs.ltt.jmap.client.JmapRequest;
 import rs.ltt.jmap.client.http.BasicAuthHttpAuthentication;
 import rs.ltt.jmap.client.http.HttpAuthentication;
+import rs.ltt.jmap.gson.JmapAdapters;
 
 import java.io.IOException;
 import java.io.InputStream;
@@ -33,10 +37,13 @@ public class HttpJmapApiClient extends AbstractJmapApiClient {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(HttpJmapApiClient.class);
 
-    private static MediaType MEDIA_TYPE_JSON = MediaType.get("application/json");
-
     public static final OkHttpClient OK_HTTP_CLIENT;
 
+    /**
+     * RFC 8620 recommends servers to allow at least 4 concurrent requests.
+     */
+    public static final int DEFAULT_MAX_CONCURRENT_REQUESTS = 4;
+
     static {
         final OkHttpClient.Builder builder = new OkHttpClient.Builder();
         final Logger OK_HTTP_LOGGER = LoggerFactory.getLogger(OkHttpClient.class);
@@ -62,12 +69,18 @@ public class HttpJmapApiClient extends AbstractJmapApiClient {
             }
             builder.addInterceptor(loggingInterceptor);
         }
+        final Dispatcher dispatcher = new Dispatcher();
+        // requests are limited per account by ConcurrentRequestLimit; do not cap them again per host
+        dispatcher.setMaxRequestsPerHost(dispatcher.getMaxRequests());
+        builder.dispatcher(dispatcher);
         OK_HTTP_CLIENT = builder.build();
     }
 
     private final HttpUrl apiUrl;
     private final HttpAuthentication httpAuthentication;
     private final SessionStateListener sessionStateListener;
+    private final OkHttpClient okHttpClient;
+    private final ConcurrentRequestLimit concurrentRequestLimit;
 
     public HttpJmapApiClient(final HttpUrl apiUrl, String username, String password) {
         this(apiUrl, new BasicAuthHttpAuthentication(username, password), null);
@@ -78,9 +91,29 @@ public class HttpJmapApiClient extends AbstractJmapApiClient {
     }
 
     public HttpJmapApiClient(final HttpUrl apiUrl, final HttpAuthentication httpAuthentication, @NullableDecl final SessionStateListener sessionStateListener) {
+        this(apiUrl, httpAuthentication, sessionStateListener, OK_HTTP_CLIENT);
+    }
+
+    public HttpJmapApiClient(final HttpUrl apiUrl,
+                             final HttpAuthentication httpAuthentication,
+                             @NullableDecl final SessionStateListener sessionStateListener,
+                             final OkHttpClient okHttpClient) {
+        this(apiUrl, httpAuthentication, sessionStateListener, okHttpClient, new ConcurrentRequestLimit(DEFAULT_MAX_CONCURRENT_REQUESTS));
+    }
+
+    /**
+     * @param concurrentRequestLimit the limit this client shares with other API clients of the same account
+     */
+    public HttpJmapApiClient(final HttpUrl apiUrl,
+                             final HttpAuthentication httpAuthentication,
+                             @NullableDecl final SessionStateListener sessionStateListener,
+                             final OkHttpClient okHttpClient,
+                             final ConcurrentRequestLimit concurrentRequestLimit) {
         this.apiUrl = apiUrl;
         this.httpAuthentication = httpAuthentication;
         this.sessionStateListener = sessionStateListener;
+        this.okHttpClient = okHttpClient;
+        this.concurrentRequestLimit = Preconditions.checkNotNull(concurrentRequestLimit);
     }
 
     @Override
@@ -91,13 +124,63 @@ public class HttpJmapApiClient extends AbstractJmapApiClient {
         }
     }
 
+    /**
+     * Limits the number of requests that are in flight at the same time. Additional requests are queued and sent once
+     * one of the running requests has completed. The limit applies to every client sharing it.
+     */
+    public void setMaxConcurrentRequests(final int maxConcurrentRequests) {
+        concurrentRequestLimit.setMaxConcurrentRequests(maxConcurrentRequests);
+    }
+
+    /**
+     * Sends the request asynchronously using OkHttp's dispatcher. The response is processed on the thread that
+     * receives it; no thread is blocked while waiting for the server.
+     */
     @Override
-    InputStream send(String out) throws IOException, JmapApiException {
+    public void execute(final JmapRequest jmapRequest) {
+        concurrentRequestLimit.execute(() -> enqueue(jmapRequest));
+    }
+
+    private void enqueue(final JmapRequest jmapRequest) {
+        final Gson gson = JmapAdapters.gson();
+        final Call call;
+        try {
+            call = okHttpClient.newCall(buildRequest(jmapRequest.getRequest(), gson));
+        } catch (final RuntimeException e) {
+            jmapRequest.setException(e);
+            concurrentRequestLimit.release();
+            return;
+        }
+        call.enqueue(new Callback() {
+            @Override
+            public void onFailure(@NonNullDecl final Call call, @NonNullDecl final IOException e) {
+                jmapRequest.setException(e);
+                concurrentRequestLimit.release();
+            }
+
+            @Override
+            public void onResponse(@NonNullDecl final Call call, @NonNullDecl final Response response) {
+                try (final InputStream inputStream = getResponseBody(response)) {
+                    processResponse(gson, inputStream, jmapRequest);
+                } catch (final Exception e) {
+                    jmapRequest.setException(e);
+                } finally {
+                    response.close();
+                    concurrentRequestLimit.release();
+                }
+            }
+        });
+    }
+
+    private Request buildRequest(final rs.ltt.jmap.common.Request request, final Gson gson) {
         Request.Builder requestBuilder = new Request.Builder();
         requestBuilder.url(apiUrl);
         this.httpAuthentication.authenticate(requestBuilder);
-        requestBuilder.post(RequestBody.create(MEDIA_TYPE_JSON, out));
-        final Response response = OK_HTTP_CLIENT.newCall(requestBuilder.build()).execute();
+        requestBuilder.post(new JsonRequestBody(gson, request, rs.ltt.jmap.common.Request.class, getMaxSizeRequest()));
+        return requestBuilder.build();
+    }
+
+    private InputStream getResponseBody(final Response response) throws JmapApiException {
         final int code = response.code();
         if (code == 404) {
             throw new EndpointNotFoundException(String.format("API URL(%s) not found", apiUrl));
@@ -106,11 +189,19 @@ public class HttpJmapApiClient extends AbstractJmapApiClient {
             throw new UnauthorizedException(String.format("API URL(%s) was unauthorized", apiUrl));
         }
 
-        //TODO: code 500+ should probably just throw internal server error exception
         final ResponseBody body = response.body();
+        //request level errors (RFC 8620 Section 3.6.1) come as problem details and are parsed as ErrorResponse
+        if (!response.isSuccessful() && !isProblemDetails(body)) {
+            throw new HttpStatusException(code, String.format("API URL(%s) responded with status code %d", apiUrl, code));
+        }
         if (body == null) {
             throw new IllegalStateException("response body was empty");
         }
         return body.byteStream();
     }
+
+    private static boolean isProblemDetails(@NullableDecl final ResponseBody body) {
+        final MediaType mediaType = body == null ? null : body.contentType();
+        return mediaType != null && "application".equals(mediaType.type()) && "problem+json".equals(mediaType.subtype());
+    }
 }
@@ -30,4 +30,8 @@ public abstract class JmapApiException extends Exception {
         super(throwable);
     }
 
+    JmapApiException(String message, Throwable throwable) {
+        super(message, throwable);
+    }
+
 }
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2020 Daniel Gultsch
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package rs.ltt.jmap.client.api;
+
+import com.google.common.base.Charsets;
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonWriter;
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.BufferedSink;
+import org.checkerframework.checker.nullness.compatqual.NonNullDecl;
+import org.checkerframework.checker.nullness.compatqual.NullableDecl;
+
+import java.io.*;
+import java.lang.reflect.Type;
+
+/**
+ * A {@link RequestBody} that serializes an object directly into the {@link BufferedSink} of the HTTP request instead
+ * of creating an intermediate JSON String. The object is serialized again whenever OkHttp calls
+ * {@link #writeTo(BufferedSink)} a second time (for example when following a redirect).
+ * <p>
+ * Since the size of the body is not known in advance it is counted while writing. Writing fails with a
+ * {@link RequestTooLargeException} as soon as the body exceeds maxSize.
+ */
+final class JsonRequestBody extends RequestBody {
+
+    private static final MediaType MEDIA_TYPE_JSON = MediaType.get("application/json");
+
+    private final Gson gson;
+    private final Object object;
+    private final Type type;
+    private final long maxSize;
+
+    JsonRequestBody(final Gson gson, final Object object, final Type type) {
+        this(gson, object, type, Long.MAX_VALUE);
+    }
+
+    JsonRequestBody(final Gson gson, final Object object, final Type type, final long maxSize) {
+        this.gson = gson;
+        this.object = object;
+        this.type = type;
+        this.maxSize = maxSize;
+    }
+
+    @NullableDecl
+    @Override
+    public MediaType contentType() {
+        return MEDIA_TYPE_JSON;
+    }
+
+    @Override
+    public void writeTo(final BufferedSink sink) throws IOException {
+        final OutputStream outputStream = maxSize == Long.MAX_VALUE ? sink.outputStream() : new LimitedOutputStream(sink.outputStream(), maxSize);
+        final Writer writer = new OutputStreamWriter(outputStream, Charsets.UTF_8);
+        final JsonWriter jsonWriter = gson.newJsonWriter(writer);
+        gson.toJson(object, type, jsonWriter);
+        jsonWriter.flush();
+    }
+
+    private static final class LimitedOutputStream extends FilterOutputStream {
+
+        private final long maxSize;
+        private long size = 0;
+
+        private LimitedOutputStream(final OutputStream outputStream, final long maxSize) {
+            super(outputStream);
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            count(1);
+            out.write(b);
+        }
+
+        @Override
+        public void write(@NonNullDecl final byte[] b, final int off, final int len) throws IOException {
+            count(len);
+            out.write(b, off, len);
+        }
+
+        private void count(final int length) throws RequestTooLargeException {
+            size += length;
+            if (size > maxSize) {
+                throw new RequestTooLargeException(String.format("Request exceeds maxSizeRequest of %d bytes", maxSize));
+            }
+        }
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright 2020 Daniel Gultsch
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package rs.ltt.jmap.client.api;
+
+import rs.ltt.jmap.client.MethodResponses;
+
+/**
+ * A set call that had to be split into several calls has only been partially applied. Some of the calls succeeded
+ * before one of them failed; the cause is the failure of that call.
+ */
+public class PartialResponseException extends JmapApiException {
+
+    private final MethodResponses methodResponses;
+
+    public PartialResponseException(final MethodResponses methodResponses, final Throwable cause) {
+        super("Split call has only been partially applied", cause);
+        this.methodResponses = methodResponses;
+    }
+
+    /**
+     * @return the merged responses of the calls that have been applied
+     */
+    public MethodResponses getMethodResponses() {
+        return methodResponses;
+    }
+}
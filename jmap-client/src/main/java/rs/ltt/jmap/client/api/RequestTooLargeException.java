@@ -0,0 +1,29 @@
+/*
+ * Copyright 2020 Daniel Gultsch
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package rs.ltt.jmap.client.api;
+
+import java.io.IOException;
+
+/**
+ * The request exceeds the maxSizeRequest or maxCallsInRequest limit of the server and has not been sent.
+ */
+public class RequestTooLargeException extends IOException {
+
+    public RequestTooLargeException(final String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,269 @@
+/*
+ * Copyright 2020 Daniel Gultsch
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package rs.ltt.jmap.client.api;
+
+import com.google.gson.*;
+import okhttp3.*;
+import okhttp3.logging.HttpLoggingInterceptor;
+import okio.ByteString;
+import org.checkerframework.checker.nullness.compatqual.NonNullDecl;
+import org.checkerframework.checker.nullness.compatqual.NullableDecl;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import rs.ltt.jmap.client.JmapRequest;
+import rs.ltt.jmap.client.event.StateChangeListener;
+import rs.ltt.jmap.client.http.HttpAuthentication;
+import rs.ltt.jmap.common.GenericResponse;
+import rs.ltt.jmap.common.entity.StateChange;
+import rs.ltt.jmap.gson.JmapAdapters;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends requests over a single WebSocket connection as specified in RFC 8887. Any number of requests can be in
+ * flight at the same time; responses are matched to their request by the request id. The connection is opened on
+ * the first request and reopened on the next request after it has been lost.
+ */
+public class WebSocketJmapApiClient extends AbstractJmapApiClient implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(WebSocketJmapApiClient.class);
+
+    private static final String SUB_PROTOCOL = "jmap";
+
+    private static final int CLOSE_NORMAL = 1000;
+
+    /**
+     * Interval in seconds in which the connection is pinged. A connection that did not answer a ping before the next
+     * one is due is considered broken; requests in flight on that connection fail.
+     */
+    private static final long PING_INTERVAL = 30;
+
+    private final String webSocketUrl;
+    private final HttpAuthentication httpAuthentication;
+    private final SessionStateListener sessionStateListener;
+    private final OkHttpClient okHttpClient;
+    @NullableDecl
+    private final StateChangeListener stateChangeListener;
+
+    private final Map<String, JmapRequest> inFlightRequests = new HashMap<>();
+    private final Queue<JmapRequest> pendingRequests = new ArrayDeque<>();
+    private long nextRequestId = 0;
+    private WebSocket webSocket = null;
+    private boolean open = false;
+    private boolean closed = false;
+
+    /**
+     * @param stateChangeListener if not null push notifications are enabled on the connection and passed to the
+     *                            listener
+     */
+    public WebSocketJmapApiClient(@NonNullDecl final String webSocketUrl,
+                                  @NonNullDecl final HttpAuthentication httpAuthentication,
+                                  @NullableDecl final SessionStateListener sessionStateListener,
+                                  @NonNullDecl final OkHttpClient okHttpClient,
+                                  @NullableDecl final StateChangeListener stateChangeListener) {
+        this.webSocketUrl = webSocketUrl;
+        this.httpAuthentication = httpAuthentication;
+        this.sessionStateListener = sessionStateListener;
+        final OkHttpClient.Builder builder = okHttpClient.newBuilder();
+        // the connection is long lived; the logging interceptor would only ever see the upgrade
+        builder.interceptors().removeIf(interceptor -> interceptor instanceof HttpLoggingInterceptor);
+        builder.readTimeout(0, TimeUnit.MILLISECONDS);
+        builder.pingInterval(PING_INTERVAL, TimeUnit.SECONDS);
+        this.okHttpClient = builder.build();
+        this.stateChangeListener = stateChangeListener;
+    }
+
+    @Override
+    void onSessionStateRetrieved(final String sessionState) {
+        if (sessionStateListener != null) {
+            sessionStateListener.onSessionStateRetrieved(sessionState);
+        }
+    }
+
+    @Override
+    public void execute(final JmapRequest jmapRequest) {
+        synchronized (this) {
+            if (closed) {
+                jmapRequest.setException(new IllegalStateException("WebSocket has been closed"));
+                return;
+            }
+            if (!open) {
+                pendingRequests.add(jmapRequest);
+                if (webSocket == null) {
+                    connect();
+                }
+                return;
+            }
+        }
+        transmit(jmapRequest);
+    }
+
+    private void connect() {
+        final Request.Builder requestBuilder = new Request.Builder();
+        requestBuilder.url(webSocketUrl);
+        requestBuilder.header("Sec-WebSocket-Protocol", SUB_PROTOCOL);
+        httpAuthentication.authenticate(requestBuilder);
+        this.webSocket = okHttpClient.newWebSocket(requestBuilder.build(), new Listener());
+    }
+
+    private void transmit(final JmapRequest jmapRequest) {
+        final Gson gson = JmapAdapters.gson();
+        final WebSocket webSocket;
+        final String requestId;
+        synchronized (this) {
+            webSocket = this.webSocket;
+            requestId = String.valueOf(nextRequestId++);
+            inFlightRequests.put(requestId, jmapRequest);
+        }
+        final boolean queued;
+        try {
+            final JsonObject request = gson.toJsonTree(jmapRequest.getRequest()).getAsJsonObject();
+            request.addProperty("@type", "Request");
+            request.addProperty("id", requestId);
+            final ByteString message = ByteString.encodeUtf8(gson.toJson(request));
+            if (message.size() > getMaxSizeRequest()) {
+                remove(requestId);
+                jmapRequest.setException(new RequestTooLargeException(String.format("Request exceeds maxSizeRequest of %d bytes", getMaxSizeRequest())));
+                return;
+            }
+            queued = webSocket != null && webSocket.send(message.utf8());
+        } catch (final RuntimeException e) {
+            remove(requestId);
+            jmapRequest.setException(e);
+            return;
+        }
+        if (!queued) {
+            remove(requestId);
+            jmapRequest.setException(new IOException("Unable to send request. WebSocket has been closed"));
+        }
+    }
+
+    private synchronized JmapRequest remove(final String requestId) {
+        final JmapRequest jmapRequest = inFlightRequests.remove(requestId);
+        closeIfIdle();
+        return jmapRequest;
+    }
+
+    private void onMessage(final String text) {
+        final Gson gson = JmapAdapters.gson();
+        final JsonObject message;
+        try {
+            message = gson.fromJson(text, JsonObject.class);
+        } catch (final JsonParseException e) {
+            LOGGER.warn("Unable to parse WebSocket message", e);
+            return;
+        }
+        final JsonElement type = message.get("@type");
+        if (type != null && type.isJsonPrimitive() && "StateChange".equals(type.getAsString())) {
+            if (stateChangeListener != null) {
+                stateChangeListener.onStateChange(gson.fromJson(message, StateChange.class));
+            }
+            return;
+        }
+        final JsonElement requestId = message.get("requestId");
+        final JmapRequest jmapRequest = requestId != null && requestId.isJsonPrimitive() ? remove(requestId.getAsString()) : null;
+        if (jmapRequest == null) {
+            //RFC 8887 allows the server to omit the request id on errors it can not attribute to a request
+            LOGGER.warn("Received WebSocket message that does not belong to any request: {}", text);
+            return;
+        }
+        try {
+            process(gson.fromJson(message, GenericResponse.class), jmapRequest);
+        } catch (final RuntimeException e) {
+            jmapRequest.setException(e);
+        }
+    }
+
+    private void onOpen(final WebSocket webSocket) {
+        final List<JmapRequest> pending;
+        synchronized (this) {
+            open = true;
+            pending = new ArrayList<>(pendingRequests);
+            pendingRequests.clear();
+        }
+        if (stateChangeListener != null) {
+            final JsonObject pushEnable = new JsonObject();
+            pushEnable.addProperty("@type", "WebSocketPushEnable");
+            pushEnable.add("dataTypes", JsonNull.INSTANCE);
+            webSocket.send(JmapAdapters.gson().toJson(pushEnable));
+        }
+        for (final JmapRequest jmapRequest : pending) {
+            transmit(jmapRequest);
+        }
+    }
+
+    private void onConnectionLost(final WebSocket webSocket, final Throwable throwable) {
+        final List<JmapRequest> failed = new ArrayList<>();
+        synchronized (this) {
+            if (this.webSocket != webSocket) {
+                return;
+            }
+            this.webSocket = null;
+            this.open = false;
+            failed.addAll(inFlightRequests.values());
+            failed.addAll(pendingRequests);
+            inFlightRequests.clear();
+            pendingRequests.clear();
+        }
+        for (final JmapRequest jmapRequest : failed) {
+            jmapRequest.setException(throwable);
+        }
+    }
+
+    private void closeIfIdle() {
+        if (closed && inFlightRequests.isEmpty() && pendingRequests.isEmpty() && webSocket != null) {
+            webSocket.close(CLOSE_NORMAL, null);
+        }
+    }
+
+    /**
+     * Closes the connection once all requests that are in flight have been answered.
+     */
+    @Override
+    public synchronized void close() {
+        closed = true;
+        closeIfIdle();
+    }
+
+    private class Listener extends WebSocketListener {
+
+        @Override
+        public void onOpen(@NonNullDecl final WebSocket webSocket, @NonNullDecl final Response response) {
+            WebSocketJmapApiClient.this.onOpen(webSocket);
+        }
+
+        @Override
+        public void onMessage(@NonNullDecl final WebSocket webSocket, @NonNullDecl final String text) {
+            WebSocketJmapApiClient.this.onMessage(text);
+        }
+
+        @Override
+        public void onClosing(@NonNullDecl final WebSocket webSocket, final int code, @NonNullDecl final String reason) {
+            webSocket.close(CLOSE_NORMAL, null);
+            onConnectionLost(webSocket, new IOException(String.format("WebSocket was closed by server (%d %s)", code, reason)));
+        }
+
+        @Override
+        public void onFailure(@NonNullDecl final WebSocket webSocket, @NonNullDecl final Throwable throwable, @NullableDecl final Response response) {
+            LOGGER.info("WebSocket connection failed", throwable);
+            onConnectionLost(webSocket, throwable);
+        }
+    }
+}
@@ -0,0 +1,272 @@
+/*
+ * Copyright 2020 Daniel Gultsch
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package rs.ltt.jmap.client.blob;
+
+import com.google.common.base.Preconditions;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import org.checkerframework.checker.nullness.compatqual.NonNullDecl;
+import org.checkerframework.checker.nullness.compatqual.NullableDecl;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.util.*;
+import java.util.function.Function;
+
+/**
+ * Keeps downloaded blobs on disk. Blobs are immutable; once a blob is in the cache it is never downloaded again.
+ * <p>
+ * Each blob is stored in its own file named after the SHA-256 of account id and blob id. Files are spread over 256
+ * subdirectories (by the first byte of the hash). The total size of all files is kept below a budget by deleting the
+ * least recently used blobs. The modification time of a file is used to remember its last use across restarts.
+ * <p>
+ * Paths returned by this cache point to files that may be deleted once other blobs are added. Open them right away.
+ */
+public class BlobCache {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(BlobCache.class);
+
+    private static final String PARTIAL_SUFFIX = ".part";
+
+    private final Path directory;
+    private final long maxBytes;
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, ListenableFuture<Path>> inFlight = new HashMap<>();
+    private long size = 0;
+
+    /**
+     * @param maxBytes the budget for all blobs in bytes. A single blob that is larger than the budget is still
+     *                 downloaded but evicted as soon as the next blob is added.
+     */
+    public BlobCache(@NonNullDecl final File directory, final long maxBytes) throws IOException {
+        Preconditions.checkArgument(maxBytes >= 0, "maxBytes must not be negative");
+        this.directory = directory.toPath();
+        this.maxBytes = maxBytes;
+        Files.createDirectories(this.directory);
+        restore();
+    }
+
+    /**
+     * Reads the blobs that are already on disk, oldest first. Partial downloads from a previous run are deleted; they
+     * are not part of the budget.
+     */
+    private synchronized void restore() throws IOException {
+        final List<Path> blobs = new ArrayList<>();
+        try (final DirectoryStream<Path> shards = Files.newDirectoryStream(directory)) {
+            for (final Path shard : shards) {
+                if (!Files.isDirectory(shard)) {
+                    continue;
+                }
+                try (final DirectoryStream<Path> files = Files.newDirectoryStream(shard)) {
+                    for (final Path file : files) {
+                        if (file.getFileName().toString().endsWith(PARTIAL_SUFFIX)) {
+                            Files.deleteIfExists(file);
+                        } else {
+                            blobs.add(file);
+                        }
+                    }
+                }
+            }
+        }
+        final Map<Path, FileTime> lastUse = new HashMap<>();
+        for (final Path blob : blobs) {
+            lastUse.put(blob, Files.getLastModifiedTime(blob));
+        }
+        blobs.sort(Comparator.comparing(lastUse::get));
+        for (final Path blob : blobs) {
+            final long length = Files.size(blob);
+            entries.put(blob.getFileName().toString(), length);
+            size += length;
+        }
+        evict(null);
+    }
+
+    /**
+     * @return the path of the cached blob or null if the blob is not in the cache
+     */
+    @NullableDecl
+    public Path get(@NonNullDecl final String accountId, @NonNullDecl final String blobId) {
+        final String key = key(accountId, blobId);
+        synchronized (this) {
+            if (entries.get(key) == null) {
+                return null;
+            }
+        }
+        final Path path = path(key);
+        try {
+            Files.setLastModifiedTime(path, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (final IOException e) {
+            LOGGER.warn("Unable to touch cached blob {}", path, e);
+        }
+        return path;
+    }
+
+    /**
+     * @param offset the position within the blob to start reading at
+     * @return the cached blob opened for reading or null if the blob is not in the cache
+     */
+    @NullableDecl
+    public Download open(@NonNullDecl final String accountId,
+                         @NonNullDecl final String blobId,
+                         final long offset,
+                         @NullableDecl final String type) {
+        final Path path = get(accountId, blobId);
+        if (path == null) {
+            return null;
+        }
+        try {
+            return Download.of(path, offset, type);
+        } catch (final IOException e) {
+            //the file might have been evicted in the meantime
+            LOGGER.info("Unable to open cached blob {}", path, e);
+            return null;
+        }
+    }
+
+    /**
+     * Returns the cached blob or downloads it into the cache. Concurrent calls for the same blob share one download.
+     * A download that failed is resumed by the next call.
+     *
+     * @param download writes the blob into the channel; see {@link BlobClient#download(okhttp3.HttpUrl, FileChannel)}
+     */
+    public ListenableFuture<Path> get(@NonNullDecl final String accountId,
+                                      @NonNullDecl final String blobId,
+                                      @NonNullDecl final Function<FileChannel, ListenableFuture<Long>> download) {
+        final Path cached = get(accountId, blobId);
+        if (cached != null) {
+            return Futures.immediateFuture(cached);
+        }
+        final String key = key(accountId, blobId);
+        final SettableFuture<Path> future;
+        synchronized (this) {
+            final ListenableFuture<Path> existing = inFlight.get(key);
+            if (existing != null) {
+                return Futures.nonCancellationPropagating(existing);
+            }
+            future = SettableFuture.create();
+            inFlight.put(key, future);
+        }
+        future.addListener(() -> {
+            synchronized (this) {
+                inFlight.remove(key);
+            }
+        }, MoreExecutors.directExecutor());
+        final Path partial = directory.resolve(key.substring(0, 2)).resolve(key + PARTIAL_SUFFIX);
+        final FileChannel channel;
+        try {
+            Files.createDirectories(partial.getParent());
+            channel = FileChannel.open(partial, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        } catch (final IOException e) {
+            future.setException(e);
+            return Futures.nonCancellationPropagating(future);
+        }
+        final ListenableFuture<Long> downloadFuture;
+        try {
+            downloadFuture = download.apply(channel);
+        } catch (final RuntimeException e) {
+            close(channel);
+            future.setException(e);
+            return Futures.nonCancellationPropagating(future);
+        }
+        Futures.addCallback(downloadFuture, new FutureCallback<Long>() {
+            @Override
+            public void onSuccess(@NullableDecl final Long length) {
+                close(channel);
+                try {
+                    future.set(add(key, partial));
+                } catch (final IOException e) {
+                    future.setException(e);
+                }
+            }
+
+            @Override
+            public void onFailure(@NonNullDecl final Throwable throwable) {
+                close(channel);
+                future.setException(throwable);
+            }
+        }, MoreExecutors.directExecutor());
+        return Futures.nonCancellationPropagating(future);
+    }
+
+    private Path add(final String key, final Path partial) throws IOException {
+        final Path path = path(key);
+        Files.move(partial, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        final long length = Files.size(path);
+        synchronized (this) {
+            final Long previous = entries.put(key, length);
+            size += length - (previous == null ? 0 : previous);
+            evict(key);
+        }
+        return path;
+    }
+
+    /**
+     * Must be called while holding the lock.
+     *
+     * @param keep the key that must not be evicted
+     */
+    private void evict(@NullableDecl final String keep) {
+        final Iterator<Map.Entry<String, Long>> iterator = entries.entrySet().iterator();
+        while (size > maxBytes && iterator.hasNext()) {
+            final Map.Entry<String, Long> eldest = iterator.next();
+            if (eldest.getKey().equals(keep)) {
+                continue;
+            }
+            try {
+                Files.deleteIfExists(path(eldest.getKey()));
+            } catch (final IOException e) {
+                LOGGER.warn("Unable to delete cached blob {}", eldest.getKey(), e);
+                continue;
+            }
+            iterator.remove();
+            size -= eldest.getValue();
+        }
+    }
+
+    /**
+     * @return the number of bytes used by all cached blobs
+     */
+    public synchronized long size() {
+        return size;
+    }
+
+    private Path path(final String key) {
+        return directory.resolve(key.substring(0, 2)).resolve(key);
+    }
+
+    private static String key(final String accountId, final String blobId) {
+        return Hashing.sha256().hashString(accountId + '\u0000' + blobId, StandardCharsets.UTF_8).toString();
+    }
+
+    private static void close(final FileChannel channel) {
+        try {
+            channel.close();
+        } catch (final IOException e) {
+            LOGGER.warn("Unable to close blob file", e);
+        }
+    }
+}
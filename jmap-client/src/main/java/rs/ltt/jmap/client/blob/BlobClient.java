@@ -0,0 +1,274 @@
+/*
+ * Copyright 2020 Daniel Gultsch
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package rs.ltt.jmap.client.blob;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import okhttp3.*;
+import okhttp3.logging.HttpLoggingInterceptor;
+import okio.BufferedSink;
+import okio.BufferedSource;
+import okio.Okio;
+import okio.Source;
+import org.checkerframework.checker.nullness.compatqual.NonNullDecl;
+import org.checkerframework.checker.nullness.compatqual.NullableDecl;
+import rs.ltt.jmap.client.api.UnauthorizedException;
+import rs.ltt.jmap.client.http.HttpAuthentication;
+import rs.ltt.jmap.common.entity.Upload;
+import rs.ltt.jmap.gson.JmapAdapters;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Transfers blobs from and to the download and upload endpoints (RFC 8620 Section 6). Content is streamed; memory
+ * usage does not depend on the size of the blob.
+ */
+public class BlobClient {
+
+    private static final Pattern CONTENT_RANGE = Pattern.compile("bytes (\\d+)-(\\d+)/(\\d+|\\*)");
+    private static final Pattern UNSATISFIABLE_RANGE = Pattern.compile("bytes \\*/(\\d+)");
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final OkHttpClient okHttpClient;
+    private final HttpAuthentication httpAuthentication;
+    private final Executor transferExecutor;
+
+    public BlobClient(@NonNullDecl final OkHttpClient okHttpClient, @NonNullDecl final HttpAuthentication httpAuthentication) {
+        this(okHttpClient, httpAuthentication, TransferExecutorHolder.EXECUTOR);
+    }
+
+    /**
+     * @param transferExecutor runs the transfers of {@link #download(HttpUrl, FileChannel)}. Those can take a long time;
+     *                         the executor should not be one that is needed to process other responses.
+     */
+    public BlobClient(@NonNullDecl final OkHttpClient okHttpClient,
+                      @NonNullDecl final HttpAuthentication httpAuthentication,
+                      @NonNullDecl final Executor transferExecutor) {
+        final OkHttpClient.Builder builder = okHttpClient.newBuilder();
+        // the logging interceptor would buffer the entire blob in memory
+        builder.interceptors().removeIf(interceptor -> interceptor instanceof HttpLoggingInterceptor);
+        this.okHttpClient = builder.build();
+        this.httpAuthentication = httpAuthentication;
+        this.transferExecutor = transferExecutor;
+    }
+
+    /**
+     * @param rangeStart the position within the blob to start at; used to resume an interrupted download. Servers
+     *                   are free to ignore the range and send the entire blob; see {@link Download#getOffset()}.
+     * @return a download that completes as soon as the response headers have been received
+     */
+    public ListenableFuture<Download> download(@NonNullDecl final HttpUrl url, final long rangeStart) {
+        final Request.Builder requestBuilder = new Request.Builder();
+        requestBuilder.url(url);
+        if (rangeStart > 0) {
+            requestBuilder.header("Range", String.format("bytes=%d-", rangeStart));
+        }
+        httpAuthentication.authenticate(requestBuilder);
+        final SettableFuture<Download> future = SettableFuture.create();
+        okHttpClient.newCall(requestBuilder.build()).enqueue(new Callback() {
+            @Override
+            public void onFailure(@NonNullDecl final Call call, @NonNullDecl final IOException e) {
+                future.setException(e);
+            }
+
+            @Override
+            public void onResponse(@NonNullDecl final Call call, @NonNullDecl final Response response) {
+                try {
+                    future.set(toDownload(response, rangeStart));
+                } catch (final Exception e) {
+                    response.close();
+                    future.setException(e);
+                }
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Downloads the blob into the channel. If the channel already holds data it is assumed to be the beginning of the
+     * blob from an earlier, interrupted download and only the remainder is requested. The channel is truncated if the
+     * server does not support ranges.
+     *
+     * @return the size of the blob; which is now the size of the channel
+     */
+    public ListenableFuture<Long> download(@NonNullDecl final HttpUrl url, @NonNullDecl final FileChannel channel) {
+        final long size;
+        try {
+            size = channel.size();
+        } catch (final IOException e) {
+            return Futures.immediateFailedFuture(e);
+        }
+        //the transfer must not block the thread of the OkHttp callback that completes the download future
+        return Futures.transformAsync(download(url, size), download -> {
+            try (final Download d = download) {
+                return Futures.immediateFuture(transfer(d, channel, size));
+            } catch (final IOException e) {
+                return Futures.immediateFailedFuture(e);
+            }
+        }, transferExecutor);
+    }
+
+    private static long transfer(final Download download, final FileChannel channel, final long size) throws IOException {
+        long position = download.getOffset();
+        if (position == 0) {
+            channel.truncate(0);
+        } else if (position != size) {
+            throw new IOException(String.format("Server responded with range starting at %d. Requested %d", position, size));
+        }
+        final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        final BufferedSource source = download.getSource();
+        while (source.read(buffer) != -1) {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+            buffer.clear();
+        }
+        return position;
+    }
+
+    private static Download toDownload(final Response response, final long rangeStart) throws IOException, UnauthorizedException {
+        final int code = response.code();
+        final ResponseBody body = response.body();
+        if (body == null) {
+            throw new IllegalStateException("response body was empty");
+        }
+        if (code == 206) {
+            final Matcher matcher = CONTENT_RANGE.matcher(String.valueOf(response.header("Content-Range")));
+            if (!matcher.matches()) {
+                throw new IOException(String.format("Invalid Content-Range %s", response.header("Content-Range")));
+            }
+            final String length = matcher.group(3);
+            return Download.of(response, body, Long.parseLong(matcher.group(1)), "*".equals(length) ? -1 : Long.parseLong(length));
+        }
+        if (code == 416) {
+            //the range starts at the end of the blob; the earlier download was complete
+            final Matcher matcher = UNSATISFIABLE_RANGE.matcher(String.valueOf(response.header("Content-Range")));
+            if (matcher.matches() && Long.parseLong(matcher.group(1)) == rangeStart) {
+                return Download.of(response, ResponseBody.create(body.contentType(), new byte[0]), rangeStart, rangeStart);
+            }
+        }
+        checkResponseCode(response);
+        return Download.of(response, body, 0, body.contentLength());
+    }
+
+    private static final class TransferExecutorHolder {
+
+        private static final Executor EXECUTOR = Executors.newCachedThreadPool(
+                new ThreadFactoryBuilder().setNameFormat("jmap-blob-transfer-%d").setDaemon(true).build()
+        );
+    }
+
+    public ListenableFuture<Upload> upload(@NonNullDecl final HttpUrl url, @NonNullDecl final RequestBody requestBody) {
+        final Request.Builder requestBuilder = new Request.Builder();
+        requestBuilder.url(url);
+        requestBuilder.post(requestBody);
+        httpAuthentication.authenticate(requestBuilder);
+        final SettableFuture<Upload> future = SettableFuture.create();
+        okHttpClient.newCall(requestBuilder.build()).enqueue(new Callback() {
+            @Override
+            public void onFailure(@NonNullDecl final Call call, @NonNullDecl final IOException e) {
+                future.setException(e);
+            }
+
+            @Override
+            public void onResponse(@NonNullDecl final Call call, @NonNullDecl final Response response) {
+                try (final ResponseBody body = response.body()) {
+                    checkResponseCode(response);
+                    if (body == null) {
+                        throw new IllegalStateException("response body was empty");
+                    }
+                    final Upload upload = JmapAdapters.gson().fromJson(body.charStream(), Upload.class);
+                    if (upload == null || upload.getBlobId() == null) {
+                        throw new IOException("Upload response did not contain a blob id");
+                    }
+                    future.set(upload);
+                } catch (final Exception e) {
+                    future.setException(e);
+                }
+            }
+        });
+        return future;
+    }
+
+    private static void checkResponseCode(final Response response) throws UnauthorizedException, BlobTransferException {
+        final int code = response.code();
+        if (code == 401) {
+            throw new UnauthorizedException(String.format("URL(%s) was unauthorized", response.request().url()));
+        }
+        if (!response.isSuccessful()) {
+            throw new BlobTransferException(code, String.format("URL(%s) responded with HTTP status %d", response.request().url(), code));
+        }
+    }
+
+    /**
+     * @return a request body that streams the file when the request is sent
+     */
+    public static RequestBody requestBody(@NonNullDecl final Path path, @NullableDecl final String type) {
+        final MediaType mediaType = type == null ? null : MediaType.parse(type);
+        return new RequestBody() {
+            @Override
+            public MediaType contentType() {
+                return mediaType;
+            }
+
+            @Override
+            public long contentLength() throws IOException {
+                return Files.size(path);
+            }
+
+            @Override
+            public void writeTo(@NonNullDecl final BufferedSink sink) throws IOException {
+                try (final Source source = Okio.source(path)) {
+                    sink.writeAll(source);
+                }
+            }
+        };
+    }
+
+    /**
+     * @return a request body that streams the source when the request is sent. The length is unknown; the body is
+     * sent chunked. The source can only be consumed once; the request can not be retried.
+     */
+    public static RequestBody requestBody(@NonNullDecl final Source source, @NullableDecl final String type) {
+        final MediaType mediaType = type == null ? null : MediaType.parse(type);
+        return new RequestBody() {
+            @Override
+            public MediaType contentType() {
+                return mediaType;
+            }
+
+            @Override
+            public void writeTo(@NonNullDecl final BufferedSink sink) throws IOException {
+                try (final Source s = source) {
+                    sink.writeAll(s);
+                }
+            }
+        };
+    }
+}
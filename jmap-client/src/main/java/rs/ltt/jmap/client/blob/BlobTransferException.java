@@ -0,0 +1,39 @@
+/*
+ * Copyright 2020 Daniel Gultsch
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package rs.ltt.jmap.client.blob;
+
+import java.io.IOException;
+
+/**
+ * The download or upload endpoint responded with an HTTP status that indicates an error.
+ */
+public class BlobTransferException extends IOException {
+
+    private final int code;
+
+    public BlobTransferException(final int code, final String message) {
+        super(message);
+        this.code = code;
+    }
+
+    /**
+     * @return the HTTP status code
+     */
+    public int getCode() {
+        return code;
+    }
+}
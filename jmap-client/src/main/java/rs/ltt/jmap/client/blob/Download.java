@@ -0,0 +1,115 @@
+/*
+ * Copyright 2020 Daniel Gultsch
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package rs.ltt.jmap.client.blob;
+
+import okhttp3.MediaType;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.BufferedSource;
+import okio.Okio;
+import org.checkerframework.checker.nullness.compatqual.NullableDecl;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A blob that is being downloaded or read from the {@link BlobCache}. The content is read as it is consumed; it is
+ * never buffered in memory as a whole. Must be closed to release the connection or the file.
+ */
+public class Download implements Closeable {
+
+    private final BufferedSource source;
+    private final Closeable closeable;
+    private final long offset;
+    private final long length;
+    private final String contentType;
+
+    private Download(final BufferedSource source,
+                     final Closeable closeable,
+                     final long offset,
+                     final long length,
+                     @NullableDecl final String contentType) {
+        this.source = source;
+        this.closeable = closeable;
+        this.offset = offset;
+        this.length = length;
+        this.contentType = contentType;
+    }
+
+    static Download of(final Response response, final ResponseBody body, final long offset, final long length) {
+        final MediaType mediaType = body.contentType();
+        return new Download(body.source(), response, offset, length, mediaType == null ? null : mediaType.toString());
+    }
+
+    static Download of(final Path path, final long offset, @NullableDecl final String contentType) throws IOException {
+        final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        final long length;
+        try {
+            length = channel.size();
+            //seeks instead of reading and discarding everything up to the offset
+            channel.position(Math.min(offset, length));
+        } catch (final IOException e) {
+            channel.close();
+            throw e;
+        }
+        final BufferedSource source = Okio.buffer(Okio.source(Channels.newInputStream(channel)));
+        return new Download(source, source, Math.min(offset, length), length, contentType);
+    }
+
+    public BufferedSource getSource() {
+        return source;
+    }
+
+    public InputStream getInputStream() {
+        return source.inputStream();
+    }
+
+    /**
+     * @return the position of the first byte of the content within the blob. This is 0 unless a range has been
+     * requested and the server honored it.
+     */
+    public long getOffset() {
+        return offset;
+    }
+
+    /**
+     * @return the size of the entire blob or -1 if the server did not announce it
+     */
+    public long getLength() {
+        return length;
+    }
+
+    @NullableDecl
+    public String getContentType() {
+        return contentType;
+    }
+
+    @Override
+    public void close() {
+        try {
+            closeable.close();
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
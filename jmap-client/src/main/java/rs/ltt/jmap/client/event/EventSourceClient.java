@@ -0,0 +1,283 @@
+/*
+ * Copyright 2020 Daniel Gultsch
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package rs.ltt.jmap.client.event;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import okhttp3.*;
+import okhttp3.logging.HttpLoggingInterceptor;
+import okio.BufferedSource;
+import org.checkerframework.checker.nullness.compatqual.NonNullDecl;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import rs.ltt.jmap.client.http.HttpAuthentication;
+import rs.ltt.jmap.common.entity.StateChange;
+import rs.ltt.jmap.gson.JmapAdapters;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Connects to the event source of a JMAP server (RFC 8620 Section 7.3) and hands every {@link StateChange} to a
+ * listener. The connection is kept open indefinitely; when it breaks it is reestablished with an exponential backoff.
+ * <p>
+ * The server sends a ping every pingInterval seconds. A connection that did not receive anything for three ping
+ * intervals is considered broken.
+ */
+public class EventSourceClient implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(EventSourceClient.class);
+
+    private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("jmap-event-source-%d").setDaemon(true).build()
+    );
+
+    /**
+     * Every open event source holds on to a connection and to the dispatcher thread reading it. They must not count
+     * against the limits of the dispatcher that API calls and blob transfers to the same host are enqueued on.
+     */
+    private static final Dispatcher DISPATCHER;
+
+    static {
+        DISPATCHER = new Dispatcher(Executors.newCachedThreadPool(
+                new ThreadFactoryBuilder().setNameFormat("jmap-event-source-reader-%d").setDaemon(true).build()
+        ));
+        DISPATCHER.setMaxRequests(Integer.MAX_VALUE);
+        DISPATCHER.setMaxRequestsPerHost(Integer.MAX_VALUE);
+    }
+
+    private static final long MIN_RECONNECT_DELAY = 1000;
+    private static final long MAX_RECONNECT_DELAY = 300_000;
+
+    private static final String EVENT_STATE = "state";
+
+    private final OkHttpClient okHttpClient;
+    private final HttpAuthentication httpAuthentication;
+    private final HttpUrl eventSourceUrl;
+    private final StateChangeListener stateChangeListener;
+
+    private boolean closed = false;
+    private Call call = null;
+    private ScheduledFuture<?> scheduledReconnect = null;
+    private String lastEventId = null;
+    /**
+     * The delay before the first reconnect after a connection that has delivered events; can be changed by the server.
+     */
+    private long initialReconnectDelay = MIN_RECONNECT_DELAY;
+    private long reconnectDelay = MIN_RECONNECT_DELAY;
+    private final List<Runnable> closeListeners = new ArrayList<>();
+
+    public EventSourceClient(@NonNullDecl final OkHttpClient okHttpClient,
+                             @NonNullDecl final HttpAuthentication httpAuthentication,
+                             @NonNullDecl final HttpUrl eventSourceUrl,
+                             final long pingInterval,
+                             @NonNullDecl final StateChangeListener stateChangeListener) {
+        final OkHttpClient.Builder builder = okHttpClient.newBuilder();
+        // the logging interceptor would try to buffer the never ending response body
+        builder.interceptors().removeIf(interceptor -> interceptor instanceof HttpLoggingInterceptor);
+        builder.dispatcher(DISPATCHER);
+        builder.readTimeout(pingInterval <= 0 ? 0 : pingInterval * 3, TimeUnit.SECONDS);
+        this.okHttpClient = builder.build();
+        this.httpAuthentication = httpAuthentication;
+        this.eventSourceUrl = eventSourceUrl;
+        this.stateChangeListener = stateChangeListener;
+    }
+
+    public synchronized void start() {
+        if (closed || call != null) {
+            return;
+        }
+        final Request.Builder requestBuilder = new Request.Builder();
+        requestBuilder.url(eventSourceUrl);
+        requestBuilder.header("Accept", "text/event-stream");
+        if (lastEventId != null) {
+            requestBuilder.header("Last-Event-ID", lastEventId);
+        }
+        httpAuthentication.authenticate(requestBuilder);
+        final Call call = okHttpClient.newCall(requestBuilder.build());
+        this.call = call;
+        call.enqueue(new Callback() {
+            @Override
+            public void onFailure(@NonNullDecl final Call call, @NonNullDecl final IOException e) {
+                LOGGER.info("Unable to connect to event source", e);
+                reconnect(call);
+            }
+
+            @Override
+            public void onResponse(@NonNullDecl final Call call, @NonNullDecl final Response response) {
+                try (final ResponseBody body = response.body()) {
+                    if (!response.isSuccessful() || body == null) {
+                        LOGGER.warn("Event source responded with HTTP status {}", response.code());
+                    } else {
+                        read(body.source());
+                    }
+                } catch (final IOException e) {
+                    LOGGER.info("Connection to event source broke", e);
+                }
+                reconnect(call);
+            }
+        });
+    }
+
+    /**
+     * Reads the stream as defined by the HTML Living Standard (Server-sent events).
+     */
+    private void read(final BufferedSource source) throws IOException {
+        String event = null;
+        final StringBuilder data = new StringBuilder();
+        boolean receivedEvent = false;
+        String line;
+        while ((line = source.readUtf8Line()) != null) {
+            if (line.isEmpty()) {
+                if (data.length() > 0) {
+                    //a server that accepts the connection but breaks it right away should not be retried at full speed
+                    if (!receivedEvent) {
+                        receivedEvent = true;
+                        synchronized (this) {
+                            reconnectDelay = initialReconnectDelay;
+                        }
+                    }
+                    dispatch(event, data.toString());
+                }
+                event = null;
+                data.setLength(0);
+                continue;
+            }
+            if (line.startsWith(":")) {
+                continue;
+            }
+            final int colon = line.indexOf(':');
+            final String field = colon < 0 ? line : line.substring(0, colon);
+            String value = colon < 0 ? "" : line.substring(colon + 1);
+            if (value.startsWith(" ")) {
+                value = value.substring(1);
+            }
+            switch (field) {
+                case "event":
+                    event = value;
+                    break;
+                case "data":
+                    if (data.length() > 0) {
+                        data.append('\n');
+                    }
+                    data.append(value);
+                    break;
+                case "id":
+                    synchronized (this) {
+                        lastEventId = value.isEmpty() ? null : value;
+                    }
+                    break;
+                case "retry":
+                    try {
+                        final long retry = Long.parseLong(value);
+                        synchronized (this) {
+                            initialReconnectDelay = Math.max(0, retry);
+                            reconnectDelay = initialReconnectDelay;
+                        }
+                    } catch (final NumberFormatException e) {
+                        LOGGER.debug("Ignoring invalid retry field {}", value);
+                    }
+                    break;
+                default:
+                    break;
+            }
+            if (isClosed()) {
+                return;
+            }
+        }
+    }
+
+    private void dispatch(final String event, final String data) {
+        if (!EVENT_STATE.equals(event)) {
+            return;
+        }
+        final Gson gson = JmapAdapters.gson();
+        final StateChange stateChange;
+        try {
+            stateChange = gson.fromJson(data, StateChange.class);
+        } catch (final JsonParseException e) {
+            LOGGER.warn("Unable to parse state change", e);
+            return;
+        }
+        if (stateChange != null && !isClosed()) {
+            stateChangeListener.onStateChange(stateChange);
+        }
+    }
+
+    private synchronized void reconnect(final Call call) {
+        if (this.call != call) {
+            return;
+        }
+        this.call = null;
+        if (closed) {
+            return;
+        }
+        final long delay = reconnectDelay;
+        reconnectDelay = Math.min(MAX_RECONNECT_DELAY, Math.max(MIN_RECONNECT_DELAY, delay * 2));
+        LOGGER.debug("Reconnecting to event source in {}ms", delay);
+        scheduledReconnect = SCHEDULER.schedule(this::start, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Registers a listener that is run once the client has been closed; right away if it has been closed already.
+     */
+    public void addCloseListener(@NonNullDecl final Runnable listener) {
+        synchronized (this) {
+            if (!closed) {
+                closeListeners.add(listener);
+                return;
+            }
+        }
+        listener.run();
+    }
+
+    @Override
+    public void close() {
+        final List<Runnable> listeners;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (scheduledReconnect != null) {
+                scheduledReconnect.cancel(false);
+                scheduledReconnect = null;
+            }
+            if (call != null) {
+                call.cancel();
+                call = null;
+            }
+            listeners = new ArrayList<>(closeListeners);
+            closeListeners.clear();
+        }
+        //outside of the lock; listeners may take locks of their own
+        for (final Runnable listener : listeners) {
+            listener.run();
+        }
+    }
+}
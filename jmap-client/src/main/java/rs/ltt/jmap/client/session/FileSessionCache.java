@@ -19,7 +19,6 @@ package rs.ltt.jmap.client.session;
 import com.google.common.base.Charsets;
 import com.google.common.hash.Hashing;
 import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
 import okhttp3.HttpUrl;
 import org.checkerframework.checker.nullness.compatqual.NonNullDecl;
 import org.slf4j.Logger;
@@ -34,15 +33,11 @@ public class FileSessionCache implements SessionCache {
 
     private final File directory;
 
-    private final GsonBuilder gsonBuilder = new GsonBuilder();
-
     public FileSessionCache() {
-        JmapAdapters.register(this.gsonBuilder);
         this.directory = null;
     }
 
     public FileSessionCache(@NonNullDecl File directory) {
-        JmapAdapters.register(this.gsonBuilder);
         this.directory = directory;
         LOGGER.debug("Initialize cache in {}", directory.getAbsolutePath());
     }
@@ -50,7 +45,7 @@ public class FileSessionCache implements SessionCache {
     @Override
     public void store(String username, HttpUrl sessionResource, Session session) {
         final File file = getFile(getFilename(username, sessionResource));
-        final Gson gson = this.gsonBuilder.create();
+        final Gson gson = JmapAdapters.gson();
         try {
             final FileWriter fileWriter = new FileWriter(file);
             gson.toJson(session, fileWriter);
@@ -77,7 +72,7 @@ public class FileSessionCache implements SessionCache {
     @Override
     public Session load(String username, HttpUrl sessionResource) {
         final File file = getFile(getFilename(username, sessionResource));
-        final Gson gson = this.gsonBuilder.create();
+        final Gson gson = JmapAdapters.gson();
         try {
             final Session session = gson.fromJson(new FileReader(file), Session.class);
             LOGGER.debug("Restored session from {}", file.getAbsolutePath());
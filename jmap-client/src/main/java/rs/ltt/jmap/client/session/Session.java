@@ -27,6 +27,7 @@ import rs.ltt.jmap.common.entity.AbstractIdentifiableEntity;
 import rs.ltt.jmap.common.entity.Account;
 import rs.ltt.jmap.common.entity.AccountCapability;
 import rs.ltt.jmap.common.entity.Capability;
+import rs.ltt.jmap.common.entity.capability.WebSocketCapability;
 
 import java.util.Collection;
 import java.util.Locale;
@@ -85,6 +86,24 @@ public class Session {
         return builder.build();
     }
 
+    /**
+     * @return the absolute WebSocket URL or null if the server does not support JMAP over WebSocket
+     */
+    public String getWebSocketUrl() {
+        final WebSocketCapability webSocketCapability = sessionResource.getCapability(WebSocketCapability.class);
+        final String webSocketUrl = webSocketCapability == null ? null : webSocketCapability.getUrl();
+        if (webSocketUrl == null) {
+            return null;
+        }
+        final String lowerCaseUrl = webSocketUrl.toLowerCase(Locale.US);
+        if (lowerCaseUrl.startsWith("ws:") || lowerCaseUrl.startsWith("wss:")) {
+            return webSocketUrl;
+        }
+        final HttpUrl url = base.resolve(webSocketUrl);
+        Preconditions.checkState(url != null, String.format("Unable to assemble final WebSocket Url from base=%s and url=%s", base, webSocketUrl));
+        return url.toString();
+    }
+
     public HttpUrl getUploadUrl(String accountId) {
         final String uploadUrl = sessionResource.getUploadUrl();
         Preconditions.checkState(uploadUrl != null, "Session Resource did not contain an upload Url");
@@ -17,10 +17,10 @@
 package rs.ltt.jmap.client.session;
 
 import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
 import com.google.gson.JsonIOException;
 import com.google.gson.JsonSyntaxException;
 import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.Response;
 import okhttp3.ResponseBody;
@@ -47,6 +47,7 @@ public class SessionClient {
     private SessionCache sessionCache;
     private Session currentSession = null;
     private boolean sessionResourceChanged = false;
+    private OkHttpClient okHttpClient = HttpJmapApiClient.OK_HTTP_CLIENT;
 
     public SessionClient(HttpAuthentication authentication) {
         this.sessionResource = null;
@@ -94,7 +95,7 @@ public class SessionClient {
         requestBuilder.url(base);
         httpAuthentication.authenticate(requestBuilder);
 
-        final Response response = HttpJmapApiClient.OK_HTTP_CLIENT.newCall(requestBuilder.build()).execute();
+        final Response response = okHttpClient.newCall(requestBuilder.build()).execute();
         final int code = response.code();
         if (code == 200 || code == 201) {
             final ResponseBody body = response.body();
@@ -102,9 +103,7 @@ public class SessionClient {
                 throw new InvalidSessionResourceException("Unable to fetch session object. Response body was empty.");
             }
             try (final InputStream inputStream = body.byteStream()) {
-                final GsonBuilder builder = new GsonBuilder();
-                JmapAdapters.register(builder);
-                final Gson gson = builder.create();
+                final Gson gson = JmapAdapters.gson();
                 final SessionResource sessionResource;
                 try {
                     sessionResource = gson.fromJson(new InputStreamReader(inputStream), SessionResource.class);
@@ -147,4 +146,8 @@ public class SessionClient {
         this.sessionCache = sessionCache;
     }
 
+    public void setOkHttpClient(OkHttpClient okHttpClient) {
+        this.okHttpClient = okHttpClient;
+    }
+
 }
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2020 Daniel Gultsch
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package rs.ltt.jmap.client.util;
+
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public final class ExecutorUtil {
+
+    private ExecutorUtil() {
+
+    }
+
+    public static boolean isVirtualThreadSupported() {
+        return VirtualThreadHolder.EXECUTOR != null;
+    }
+
+    /**
+     * Returns an executor that starts a new virtual thread for every task. Virtual threads are only available on Java
+     * 21 and later. Since virtual threads are cheap the same executor is shared between all callers.
+     *
+     * @throws UnsupportedOperationException if the runtime does not support virtual threads
+     */
+    public static ListeningExecutorService virtualThreadPerTaskExecutor() {
+        final ListeningExecutorService executorService = VirtualThreadHolder.EXECUTOR;
+        if (executorService == null) {
+            throw new UnsupportedOperationException("Virtual threads require Java 21 or later");
+        }
+        return executorService;
+    }
+
+    private static final class VirtualThreadHolder {
+
+        private static final ListeningExecutorService EXECUTOR = create();
+
+        private static ListeningExecutorService create() {
+            try {
+                final Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                return MoreExecutors.listeningDecorator((ExecutorService) method.invoke(null));
+            } catch (final Exception e) {
+                return null;
+            }
+        }
+    }
+}
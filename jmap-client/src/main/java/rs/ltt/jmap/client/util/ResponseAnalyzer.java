@@ -49,20 +49,21 @@ public class ResponseAnalyzer {
         }
         final Map<String, MethodResponses> actualMap = new HashMap<>();
         for (Map.Entry<String, List<MethodResponse>> entry : preMap.entrySet()) {
-            final List<MethodResponse> methodResponseList = entry.getValue();
-            final MethodResponses methodResponses;
-            if (methodResponseList.size() == 0) {
-                throw new AssertionError("Method response list can not be empty");
-            } else if (methodResponseList.size() == 1) {
-                methodResponses = new MethodResponses(methodResponseList.get(0));
-            } else {
-                methodResponses = new MethodResponses(methodResponseList.get(0), methodResponseList.subList(1, methodResponseList.size()).toArray(new MethodResponse[0]));
-            }
-            actualMap.put(entry.getKey(), methodResponses);
+            actualMap.put(entry.getKey(), toMethodResponses(entry.getValue()));
         }
         return new ResponseAnalyzer(actualMap);
     }
 
+    public static MethodResponses toMethodResponses(final List<MethodResponse> methodResponseList) {
+        if (methodResponseList.size() == 0) {
+            throw new AssertionError("Method response list can not be empty");
+        } else if (methodResponseList.size() == 1) {
+            return new MethodResponses(methodResponseList.get(0));
+        } else {
+            return new MethodResponses(methodResponseList.get(0), methodResponseList.subList(1, methodResponseList.size()).toArray(new MethodResponse[0]));
+        }
+    }
+
     public MethodResponses find(Request.Invocation invocation) {
         return methodResponsesMap.get(invocation.getId());
     }
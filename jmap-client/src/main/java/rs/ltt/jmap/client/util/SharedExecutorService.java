@@ -0,0 +1,106 @@
+/*
+ * Copyright 2020 Daniel Gultsch
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package rs.ltt.jmap.client.util;
+
+import com.google.common.util.concurrent.AbstractListeningExecutorService;
+import org.checkerframework.checker.nullness.compatqual.NonNullDecl;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A view on an executor that is shared between multiple clients. Shutting down this view rejects new tasks and waits
+ * for the tasks submitted through this view but leaves the underlying executor running.
+ */
+public class SharedExecutorService extends AbstractListeningExecutorService {
+
+    private final Executor executor;
+    private int running = 0;
+    private boolean shutdown = false;
+
+    public SharedExecutorService(@NonNullDecl final Executor executor) {
+        this.executor = executor;
+    }
+
+    @Override
+    public void execute(@NonNullDecl final Runnable command) {
+        synchronized (this) {
+            if (shutdown) {
+                throw new RejectedExecutionException("Executor has been shut down");
+            }
+            running++;
+        }
+        try {
+            executor.execute(() -> {
+                try {
+                    command.run();
+                } finally {
+                    finished();
+                }
+            });
+        } catch (final RuntimeException e) {
+            finished();
+            throw e;
+        }
+    }
+
+    private synchronized void finished() {
+        running--;
+        if (running == 0) {
+            notifyAll();
+        }
+    }
+
+    @Override
+    public synchronized void shutdown() {
+        this.shutdown = true;
+    }
+
+    @NonNullDecl
+    @Override
+    public List<Runnable> shutdownNow() {
+        shutdown();
+        return Collections.emptyList();
+    }
+
+    @Override
+    public synchronized boolean isShutdown() {
+        return shutdown;
+    }
+
+    @Override
+    public synchronized boolean isTerminated() {
+        return shutdown && running == 0;
+    }
+
+    @Override
+    public synchronized boolean awaitTermination(final long timeout, @NonNullDecl final TimeUnit unit) throws InterruptedException {
+        long remaining = unit.toNanos(timeout);
+        final long deadline = System.nanoTime() + remaining;
+        while (!isTerminated()) {
+            if (remaining <= 0) {
+                return false;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            remaining = deadline - System.nanoTime();
+        }
+        return true;
+    }
+}
@@ -17,33 +17,72 @@
 package rs.ltt.jmap.client;
 
 import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
 import com.google.common.io.Resources;
+import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
 import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.WebSocket;
+import okhttp3.WebSocketListener;
+import okhttp3.mockwebserver.Dispatcher;
 import okhttp3.mockwebserver.MockResponse;
 import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
 import org.hamcrest.CoreMatchers;
 import org.junit.Assert;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
 import rs.ltt.jmap.client.api.EndpointNotFoundException;
+import rs.ltt.jmap.client.api.HttpStatusException;
 import rs.ltt.jmap.client.api.MethodErrorResponseException;
 import rs.ltt.jmap.client.api.MethodResponseNotFoundException;
+import rs.ltt.jmap.client.api.PartialResponseException;
+import rs.ltt.jmap.client.api.RequestTooLargeException;
+import rs.ltt.jmap.client.blob.BlobCache;
+import rs.ltt.jmap.client.blob.Download;
 import rs.ltt.jmap.client.event.CloseAfter;
+import rs.ltt.jmap.client.event.EventSourceClient;
 import rs.ltt.jmap.client.session.Session;
+import rs.ltt.jmap.common.Request;
 import rs.ltt.jmap.common.entity.Email;
 import rs.ltt.jmap.common.entity.Mailbox;
+import rs.ltt.jmap.common.entity.StateChange;
+import rs.ltt.jmap.common.entity.Upload;
 import rs.ltt.jmap.common.entity.capability.WebSocketCapability;
 import rs.ltt.jmap.common.method.MethodErrorResponse;
 import rs.ltt.jmap.common.method.call.core.EchoMethodCall;
 import rs.ltt.jmap.common.method.call.mailbox.GetMailboxMethodCall;
+import rs.ltt.jmap.common.method.call.mailbox.SetMailboxMethodCall;
 import rs.ltt.jmap.common.method.error.UnknownMethodMethodErrorResponse;
+import rs.ltt.jmap.common.method.response.core.EchoMethodResponse;
 import rs.ltt.jmap.common.method.response.mailbox.GetMailboxMethodResponse;
+import rs.ltt.jmap.common.method.response.mailbox.SetMailboxMethodResponse;
 
+import java.io.File;
 import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static org.hamcrest.CoreMatchers.instanceOf;
 
@@ -140,6 +179,785 @@ public class HttpJmapClientTest {
         server.shutdown();
     }
 
+    @Test
+    public void fetchMailboxesStreaming() throws Exception {
+        final MockWebServer server = new MockWebServer();
+        server.enqueue(new MockResponse().setBody(readResourceAsString("fetch-mailboxes/01-session.json")));
+        server.enqueue(new MockResponse().setBody(readResourceAsString("fetch-mailboxes/02-mailboxes.json")));
+        server.start();
+
+        final JmapClient jmapClient = new JmapClient(
+                USERNAME,
+                PASSWORD,
+                server.url(WELL_KNOWN_PATH)
+        );
+        jmapClient.setStreamingResponses(true);
+
+        final ListenableFuture<MethodResponses> future = jmapClient.call(
+                GetMailboxMethodCall.builder().accountId(ACCOUNT_ID).build()
+        );
+
+        final GetMailboxMethodResponse mailboxResponse = future.get().getMain(GetMailboxMethodResponse.class);
+
+        Assert.assertEquals(7, mailboxResponse.getList().length);
+
+        server.shutdown();
+    }
+
+    @Test
+    public void streamRequestBody() throws Exception {
+        final MockWebServer server = new MockWebServer();
+        server.enqueue(new MockResponse().setBody(readResourceAsString("fetch-mailboxes/01-session.json")));
+        server.enqueue(new MockResponse().setBody("{\"methodResponses\":[[\"Mailbox/set\",{\"accountId\":\"test@example.com\",\"oldState\":\"0\",\"newState\":\"1\",\"created\":{\"new\":{\"id\":\"mb1\"}}},\"0\"]],\"sessionState\":\"0\"}"));
+        server.start();
+
+        final JmapClient jmapClient = new JmapClient(
+                USERNAME,
+                PASSWORD,
+                server.url(WELL_KNOWN_PATH)
+        );
+
+        //large enough to span several segments of the sink; non ASCII to check the encoding of the writer
+        final String name = Strings.repeat("M\u00e4ilbox ", 100_000);
+        final ListenableFuture<MethodResponses> future = jmapClient.call(
+                SetMailboxMethodCall.builder()
+                        .accountId(ACCOUNT_ID)
+                        .create(Collections.singletonMap("new", Mailbox.builder().name(name).build()))
+                        .build()
+        );
+
+        Assert.assertEquals("1", future.get().getMain(SetMailboxMethodResponse.class).getNewState());
+
+        // Skip session request
+        server.takeRequest();
+
+        final RecordedRequest request = server.takeRequest();
+        //the size is not known up front; the body is streamed with chunked transfer encoding
+        Assert.assertNull(request.getHeader("Content-Length"));
+        Assert.assertEquals("chunked", request.getHeader("Transfer-Encoding"));
+        Assert.assertTrue(request.getHeader("Content-Type").startsWith("application/json"));
+        final JsonObject call = JsonParser.parseString(request.getBody().readUtf8())
+                .getAsJsonObject()
+                .getAsJsonArray("methodCalls")
+                .get(0)
+                .getAsJsonArray()
+                .get(1)
+                .getAsJsonObject();
+        Assert.assertEquals(name, call.getAsJsonObject("create").getAsJsonObject("new").get("name").getAsString());
+
+        server.shutdown();
+    }
+
+    @Test
+    public void fetchMailboxesSharedExecutor() throws Exception {
+        final MockWebServer server = new MockWebServer();
+        server.enqueue(new MockResponse().setBody(readResourceAsString("fetch-mailboxes/01-session.json")));
+        server.enqueue(new MockResponse().setBody(readResourceAsString("fetch-mailboxes/02-mailboxes.json")));
+        server.start();
+
+        final ListeningExecutorService executorService = MoreExecutors.listeningDecorator(Executors.newCachedThreadPool());
+        final OkHttpClient okHttpClient = new OkHttpClient();
+
+        final JmapClient jmapClient = new JmapClient(
+                USERNAME,
+                PASSWORD,
+                server.url(WELL_KNOWN_PATH)
+        );
+        jmapClient.setExecutorService(executorService);
+        jmapClient.setOkHttpClient(okHttpClient);
+
+        final ListenableFuture<MethodResponses> future = jmapClient.call(
+                GetMailboxMethodCall.builder().accountId(ACCOUNT_ID).build()
+        );
+
+        final GetMailboxMethodResponse mailboxResponse = future.get().getMain(GetMailboxMethodResponse.class);
+
+        Assert.assertEquals(7, mailboxResponse.getList().length);
+        Assert.assertEquals(1, okHttpClient.connectionPool().connectionCount());
+
+        jmapClient.close();
+
+        Assert.assertFalse(executorService.isShutdown());
+
+        executorService.shutdown();
+        server.shutdown();
+    }
+
+    @Test
+    public void coalesceCalls() throws Exception {
+        final MockWebServer server = new MockWebServer();
+        server.enqueue(new MockResponse().setBody(readResourceAsString("fetch-mailboxes/01-session.json")));
+        server.enqueue(new MockResponse().setBody("{\"methodResponses\":[[\"Core/echo\",{\"libraryName\":\"first\"},\"0\"],[\"Core/echo\",{\"libraryName\":\"second\"},\"1\"]],\"sessionState\":\"0\"}"));
+        server.start();
+
+        final JmapClient jmapClient = new JmapClient(
+                USERNAME,
+                PASSWORD,
+                server.url(WELL_KNOWN_PATH)
+        );
+        jmapClient.setCoalescingWindow(200, TimeUnit.MILLISECONDS);
+
+        final ListenableFuture<MethodResponses> first = jmapClient.call(new EchoMethodCall());
+        final ListenableFuture<MethodResponses> second = jmapClient.call(new EchoMethodCall());
+
+        Assert.assertEquals("first", first.get().getMain(EchoMethodResponse.class).getLibraryName());
+        Assert.assertEquals("second", second.get().getMain(EchoMethodResponse.class).getLibraryName());
+        Assert.assertEquals(2, server.getRequestCount());
+
+        server.shutdown();
+    }
+
+    @Test
+    public void closeWithBufferedCalls() throws Exception {
+        final MockWebServer server = new MockWebServer();
+        server.enqueue(new MockResponse().setBody(readResourceAsString("fetch-mailboxes/01-session.json")));
+        server.enqueue(new MockResponse().setBody("{\"methodResponses\":[[\"Core/echo\",{\"libraryName\":\"first\"},\"0\"],[\"Core/echo\",{\"libraryName\":\"second\"},\"1\"]],\"sessionState\":\"0\"}"));
+        server.start();
+
+        final JmapClient jmapClient = new JmapClient(
+                USERNAME,
+                PASSWORD,
+                server.url(WELL_KNOWN_PATH)
+        );
+        jmapClient.setCoalescingWindow(1, TimeUnit.MINUTES);
+
+        final ListenableFuture<MethodResponses> first = jmapClient.call(new EchoMethodCall());
+        final ListenableFuture<MethodResponses> second = jmapClient.call(new EchoMethodCall());
+
+        jmapClient.close();
+
+        Assert.assertEquals("first", first.get(5, TimeUnit.SECONDS).getMain(EchoMethodResponse.class).getLibraryName());
+        Assert.assertEquals("second", second.get(5, TimeUnit.SECONDS).getMain(EchoMethodResponse.class).getLibraryName());
+        Assert.assertEquals(2, server.getRequestCount());
+
+        server.shutdown();
+    }
+
+    @Test
+    public void splitOversizedGetCall() throws Exception {
+        final MockWebServer server = new MockWebServer();
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(final RecordedRequest request) {
+                try {
+                    if (request.getPath().contains(WELL_KNOWN_PATH)) {
+                        return new MockResponse().setBody(readResourceAsString("split-request/01-session.json"));
+                    }
+                    if (request.getBody().readUtf8().contains("\"c\"")) {
+                        return new MockResponse().setBody(readResourceAsString("split-request/03-mailboxes.json"));
+                    }
+                    return new MockResponse().setBody(readResourceAsString("split-request/02-mailboxes.json"));
+                } catch (final IOException e) {
+                    return new MockResponse().setResponseCode(500);
+                }
+            }
+        });
+        server.start();
+
+        final JmapClient jmapClient = new JmapClient(
+                USERNAME,
+                PASSWORD,
+                server.url(WELL_KNOWN_PATH)
+        );
+
+        final ListenableFuture<MethodResponses> future = jmapClient.call(
+                GetMailboxMethodCall.builder().accountId(ACCOUNT_ID).ids(new String[]{"a", "b", "c"}).build()
+        );
+
+        final GetMailboxMethodResponse mailboxResponse = future.get().getMain(GetMailboxMethodResponse.class);
+
+        Assert.assertEquals(2, mailboxResponse.getList().length);
+        Assert.assertArrayEquals(new String[]{"c"}, mailboxResponse.getNotFound());
+        Assert.assertEquals(3, server.getRequestCount());
+
+        server.shutdown();
+    }
+
+    @Test
+    public void refetchSplitGetCallAtDifferentStates() throws Exception {
+        final AtomicInteger firstParts = new AtomicInteger();
+        final MockWebServer server = new MockWebServer();
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(final RecordedRequest request) {
+                try {
+                    if (request.getPath().contains(WELL_KNOWN_PATH)) {
+                        return new MockResponse().setBody(readResourceAsString("split-request/01-session.json"));
+                    }
+                    if (request.getBody().readUtf8().contains("\"c\"")) {
+                        return new MockResponse().setBody(readResourceAsString("split-request/03-mailboxes.json").replace("\"state\": \"1\"", "\"state\": \"2\""));
+                    }
+                    final String mailboxes = readResourceAsString("split-request/02-mailboxes.json");
+                    //the state moves on after the first part has been read for the first time
+                    if (firstParts.getAndIncrement() == 0) {
+                        return new MockResponse().setBody(mailboxes);
+                    }
+                    return new MockResponse().setBody(mailboxes.replace("\"state\": \"1\"", "\"state\": \"2\""));
+                } catch (final IOException e) {
+                    return new MockResponse().setResponseCode(500);
+                }
+            }
+        });
+        server.start();
+
+        final JmapClient jmapClient = new JmapClient(
+                USERNAME,
+                PASSWORD,
+                server.url(WELL_KNOWN_PATH)
+        );
+
+        final ListenableFuture<MethodResponses> future = jmapClient.call(
+                GetMailboxMethodCall.builder().accountId(ACCOUNT_ID).ids(new String[]{"a", "b", "c"}).build()
+        );
+
+        final GetMailboxMethodResponse mailboxResponse = future.get().getMain(GetMailboxMethodResponse.class);
+
+        Assert.assertEquals("2", mailboxResponse.getState());
+        Assert.assertEquals(2, mailboxResponse.getList().length);
+        Assert.assertArrayEquals(new String[]{"c"}, mailboxResponse.getNotFound());
+        Assert.assertEquals(5, server.getRequestCount());
+
+        server.shutdown();
+    }
+
+    @Test
+    public void partiallyAppliedSplitSetCall() throws Exception {
+        final MockWebServer server = new MockWebServer();
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(final RecordedRequest request) {
+                try {
+                    if (request.getPath().contains(WELL_KNOWN_PATH)) {
+                        return new MockResponse().setBody(readResourceAsString("split-request/01-session.json"));
+                    }
+                    if (request.getBody().readUtf8().contains("\"c\"")) {
+                        return new MockResponse().setResponseCode(500);
+                    }
+                    return new MockResponse().setBody(readResourceAsString("split-request/05-destroyed.json"));
+                } catch (final IOException e) {
+                    return new MockResponse().setResponseCode(500);
+                }
+            }
+        });
+        server.start();
+
+        final JmapClient jmapClient = new JmapClient(
+                USERNAME,
+                PASSWORD,
+                server.url(WELL_KNOWN_PATH)
+        );
+
+        final ListenableFuture<MethodResponses> future = jmapClient.call(
+                SetMailboxMethodCall.builder().accountId(ACCOUNT_ID).destroy(new String[]{"a", "b", "c"}).build()
+        );
+
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            Assert.fail("Expected the split set call to fail");
+        } catch (final ExecutionException e) {
+            Assert.assertThat(e.getCause(), instanceOf(PartialResponseException.class));
+            Assert.assertThat(e.getCause().getCause(), instanceOf(HttpStatusException.class));
+            final SetMailboxMethodResponse applied = ((PartialResponseException) e.getCause())
+                    .getMethodResponses()
+                    .getMain(SetMailboxMethodResponse.class);
+            Assert.assertArrayEquals(new String[]{"a", "b"}, applied.getDestroyed());
+        } finally {
+            Assert.assertEquals(3, server.getRequestCount());
+            server.shutdown();
+        }
+    }
+
+    @Test
+    public void doNotSplitReferencedGetCall() throws Exception {
+        final MockWebServer server = new MockWebServer();
+        server.enqueue(new MockResponse().setBody(readResourceAsString("split-request/01-session.json")));
+        server.enqueue(new MockResponse().setBody(readResourceAsString("split-request/04-referenced.json")));
+
+        final JmapClient jmapClient = new JmapClient(
+                USERNAME,
+                PASSWORD,
+                server.url(WELL_KNOWN_PATH)
+        );
+
+        final JmapClient.MultiCall multiCall = jmapClient.newMultiCall();
+        final JmapRequest.Call mailboxCall = multiCall.call(
+                GetMailboxMethodCall.builder().accountId(ACCOUNT_ID).ids(new String[]{"a", "b", "c"}).build()
+        );
+        final ListenableFuture<MethodResponses> referencingFuture = multiCall.call(
+                GetMailboxMethodCall.builder()
+                        .accountId(ACCOUNT_ID)
+                        .idsReference(mailboxCall.createResultReference(Request.Invocation.ResultReference.Path.LIST_IDS))
+                        .build()
+        ).getMethodResponses();
+        multiCall.execute();
+
+        final GetMailboxMethodResponse mailboxResponse = mailboxCall.getMethodResponses().get().getMain(GetMailboxMethodResponse.class);
+        final GetMailboxMethodResponse referencingResponse = referencingFuture.get().getMain(GetMailboxMethodResponse.class);
+
+        Assert.assertEquals(2, mailboxResponse.getList().length);
+        Assert.assertEquals(2, referencingResponse.getList().length);
+        Assert.assertEquals(2, server.getRequestCount());
+
+        server.takeRequest();
+        final String body = server.takeRequest().getBody().readUtf8();
+        Assert.assertThat(body, CoreMatchers.containsString("\"c\""));
+
+        server.shutdown();
+    }
+
+    @Test
+    public void rejectRequestWithTooManyCalls() throws Exception {
+        final MockWebServer server = new MockWebServer();
+        server.enqueue(new MockResponse().setBody(readResourceAsString("request-limits/01-session.json")));
+
+        final JmapClient jmapClient = new JmapClient(
+                USERNAME,
+                PASSWORD,
+                server.url(WELL_KNOWN_PATH)
+        );
+
+        final JmapClient.MultiCall multiCall = jmapClient.newMultiCall();
+        final ListenableFuture<MethodResponses> future = multiCall.call(new EchoMethodCall()).getMethodResponses();
+        multiCall.call(new EchoMethodCall());
+        multiCall.execute();
+
+        thrown.expect(ExecutionException.class);
+        thrown.expectCause(CoreMatchers.<Throwable>instanceOf(RequestTooLargeException.class));
+        try {
+            future.get();
+        } finally {
+            Assert.assertEquals(1, server.getRequestCount());
+            server.shutdown();
+        }
+    }
+
+    @Test
+    public void closeFromListenerOfFailedRequest() throws Exception {
+        final MockWebServer server = new MockWebServer();
+        server.enqueue(new MockResponse().setBody(readResourceAsString("request-limits/01-session.json")));
+
+        final JmapClient jmapClient = new JmapClient(
+                USERNAME,
+                PASSWORD,
+                server.url(WELL_KNOWN_PATH)
+        );
+
+        final JmapClient.MultiCall multiCall = jmapClient.newMultiCall();
+        final ListenableFuture<MethodResponses> future = multiCall.call(new EchoMethodCall()).getMethodResponses();
+        multiCall.call(new EchoMethodCall());
+        final SettableFuture<Void> closed = SettableFuture.create();
+        //the request is rejected on the dispatching thread, so the listener runs while the request is being dispatched
+        future.addListener(() -> {
+            jmapClient.close();
+            closed.set(null);
+        }, MoreExecutors.directExecutor());
+        multiCall.execute();
+
+        try {
+            closed.get(5, TimeUnit.SECONDS);
+            future.get();
+            Assert.fail("Request should have been rejected");
+        } catch (final ExecutionException e) {
+            Assert.assertThat(e.getCause(), instanceOf(RequestTooLargeException.class));
+        } finally {
+            server.shutdown();
+        }
+    }
+
+    @Test
+    public void rejectOversizedRequest() throws Exception {
+        final MockWebServer server = new MockWebServer();
+        server.enqueue(new MockResponse().setBody(readResourceAsString("request-limits/01-session.json")));
+
+        final JmapClient jmapClient = new JmapClient(
+                USERNAME,
+                PASSWORD,
+                server.url(WELL_KNOWN_PATH)
+        );
+
+        final String[] ids = new String[64];
+        Arrays.fill(ids, "0123456789");
+        final ListenableFuture<MethodResponses> future = jmapClient.call(
+                GetMailboxMethodCall.builder().accountId(ACCOUNT_ID).ids(ids).build()
+        );
+
+        thrown.expect(ExecutionException.class);
+        thrown.expectCause(CoreMatchers.<Throwable>instanceOf(RequestTooLargeException.class));
+        try {
+            future.get();
+        } finally {
+            server.shutdown();
+        }
+    }
+
+    @Test
+    public void monitorEvents() throws Exception {
+        final MockWebServer server = new MockWebServer();
+        server.enqueue(new MockResponse().setBody(readResourceAsString("session-urls/01-session.json")));
+        server.enqueue(new MockResponse()
+                .setHeader("Content-Type", "text/event-stream")
+                .setBody("event: ping\ndata: {\"interval\":60}\n\n" +
+                        ": comment\n" +
+                        "event: state\n" +
+                        "data: {\"@type\":\"StateChange\",\n" +
+                        "data: \"changed\":{\"" + ACCOUNT_ID + "\":{\"Email\":\"e2\",\"Mailbox\":\"m2\"}}}\n\n"));
+        server.start();
+
+        final JmapClient jmapClient = new JmapClient(
+                USERNAME,
+                PASSWORD,
+                server.url(WELL_KNOWN_PATH)
+        );
+        final BlockingQueue<StateChange> stateChanges = new LinkedBlockingQueue<>();
+        final EventSourceClient eventSourceClient = jmapClient.monitorEvents(Arrays.asList(Email.class, Mailbox.class), stateChanges::add).get();
+        final AtomicInteger closed = new AtomicInteger();
+        eventSourceClient.addCloseListener(closed::incrementAndGet);
+
+        final StateChange stateChange = stateChanges.poll(5, TimeUnit.SECONDS);
+        Assert.assertNotNull(stateChange);
+        Assert.assertEquals("e2", stateChange.getChanged(ACCOUNT_ID).get("Email"));
+        Assert.assertEquals("m2", stateChange.getChanged(ACCOUNT_ID).get("Mailbox"));
+        Assert.assertTrue(stateChange.getChanged("unknown").isEmpty());
+
+        server.takeRequest();
+        final RecordedRequest eventSourceRequest = server.takeRequest();
+        Assert.assertEquals("/jmap/eventsource/?types=Email,Mailbox&closeafter=no&ping=60", eventSourceRequest.getPath());
+        Assert.assertEquals("text/event-stream", eventSourceRequest.getHeader("Accept"));
+
+        jmapClient.close();
+        Assert.assertEquals(1, closed.get());
+        eventSourceClient.close();
+        Assert.assertEquals(1, closed.get());
+        server.shutdown();
+    }
+
+    @Test
+    public void monitorEventsDoesNotBlockApiCalls() throws Exception {
+        final int subscriptions = 6;
+        final CountDownLatch connected = new CountDownLatch(subscriptions);
+        final MockWebServer server = new MockWebServer();
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(final RecordedRequest request) {
+                try {
+                    if (request.getPath().contains(WELL_KNOWN_PATH)) {
+                        return new MockResponse().setBody(readResourceAsString("session-urls/01-session.json"));
+                    }
+                    if (request.getPath().startsWith("/jmap/eventsource/")) {
+                        connected.countDown();
+                        return new MockResponse()
+                                .setHeader("Content-Type", "text/event-stream")
+                                .setBody(Strings.repeat(": ping\n\n", 1000))
+                                .throttleBody(8, 1, TimeUnit.SECONDS);
+                    }
+                    return new MockResponse().setBody(readResourceAsString("fetch-mailboxes/02-mailboxes.json"));
+                } catch (final IOException e) {
+                    return new MockResponse().setResponseCode(500);
+                }
+            }
+        });
+        server.start();
+
+        final JmapClient jmapClient = new JmapClient(
+                USERNAME,
+                PASSWORD,
+                server.url(WELL_KNOWN_PATH)
+        );
+        //the default dispatcher allows 5 requests per host
+        jmapClient.setOkHttpClient(new OkHttpClient());
+
+        for (int i = 0; i < subscriptions; ++i) {
+            jmapClient.monitorEvents(Arrays.asList(Email.class, Mailbox.class), stateChange -> {}).get();
+        }
+        Assert.assertTrue(connected.await(5, TimeUnit.SECONDS));
+
+        final ListenableFuture<MethodResponses> future = jmapClient.call(
+                GetMailboxMethodCall.builder().accountId(ACCOUNT_ID).build()
+        );
+        final GetMailboxMethodResponse mailboxResponse = future.get(5, TimeUnit.SECONDS).getMain(GetMailboxMethodResponse.class);
+        Assert.assertEquals(7, mailboxResponse.getList().length);
+
+        jmapClient.close();
+        server.shutdown();
+    }
+
+    @Test
+    public void webSocketTransport() throws Exception {
+        final AtomicInteger httpApiRequests = new AtomicInteger();
+        final MockWebServer server = new MockWebServer();
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(final RecordedRequest request) {
+                try {
+                    if (request.getPath().contains(WELL_KNOWN_PATH)) {
+                        return new MockResponse().setBody(readResourceAsString("websocket/01-session.json"));
+                    }
+                    if (request.getPath().equals("/jmap/ws/")) {
+                        return new MockResponse().withWebSocketUpgrade(new WebSocketListener() {
+                            @Override
+                            public void onMessage(final WebSocket webSocket, final String text) {
+                                final JsonObject message = JsonParser.parseString(text).getAsJsonObject();
+                                final String type = message.get("@type").getAsString();
+                                if ("WebSocketPushEnable".equals(type)) {
+                                    webSocket.send("{\"@type\":\"StateChange\",\"changed\":{\"" + ACCOUNT_ID + "\":{\"Mailbox\":\"4012\"}}}");
+                                } else if ("Request".equals(type)) {
+                                    try {
+                                        final JsonObject response = JsonParser.parseString(readResourceAsString("fetch-mailboxes/02-mailboxes.json").replace("\uFEFF", "")).getAsJsonObject();
+                                        response.addProperty("@type", "Response");
+                                        response.addProperty("requestId", message.get("id").getAsString());
+                                        webSocket.send(response.toString());
+                                    } catch (final IOException e) {
+                                        webSocket.close(1011, null);
+                                    }
+                                }
+                            }
+
+                            @Override
+                            public void onClosing(final WebSocket webSocket, final int code, final String reason) {
+                                webSocket.close(1000, null);
+                            }
+                        });
+                    }
+                    httpApiRequests.incrementAndGet();
+                    return new MockResponse().setBody(readResourceAsString("fetch-mailboxes/02-mailboxes.json"));
+                } catch (final IOException e) {
+                    return new MockResponse().setResponseCode(500);
+                }
+            }
+        });
+        server.start();
+
+        final JmapClient jmapClient = new JmapClient(
+                USERNAME,
+                PASSWORD,
+                server.url(WELL_KNOWN_PATH)
+        );
+        final BlockingQueue<StateChange> stateChanges = new LinkedBlockingQueue<>();
+        jmapClient.setWebSocketEnabled(true, stateChanges::add);
+
+        final List<ListenableFuture<MethodResponses>> futures = new ArrayList<>();
+        for (int i = 0; i < 3; ++i) {
+            futures.add(jmapClient.call(GetMailboxMethodCall.builder().accountId(ACCOUNT_ID).build()));
+        }
+        for (final MethodResponses methodResponses : Futures.allAsList(futures).get(5, TimeUnit.SECONDS)) {
+            Assert.assertEquals(7, methodResponses.getMain(GetMailboxMethodResponse.class).getList().length);
+        }
+
+        final StateChange stateChange = stateChanges.poll(5, TimeUnit.SECONDS);
+        Assert.assertNotNull(stateChange);
+        Assert.assertEquals("4012", stateChange.getChanged(ACCOUNT_ID).get("Mailbox"));
+        Assert.assertEquals(0, httpApiRequests.get());
+
+        jmapClient.close();
+        server.shutdown();
+    }
+
+    @Test
+    public void reuseApiClientUntilSessionChanges() throws Exception {
+        final AtomicReference<String> sessionState = new AtomicReference<>("0");
+        final AtomicInteger sessionRequests = new AtomicInteger();
+        final AtomicInteger connections = new AtomicInteger();
+        final MockWebServer server = new MockWebServer();
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(final RecordedRequest request) {
+                try {
+                    if (request.getPath().contains(WELL_KNOWN_PATH)) {
+                        sessionRequests.incrementAndGet();
+                        return new MockResponse().setBody(readResourceAsString("websocket/01-session.json")
+                                .replace("\"state\": \"0\"", "\"state\": \"" + sessionState.get() + "\""));
+                    }
+                    if (request.getPath().equals("/jmap/ws/")) {
+                        connections.incrementAndGet();
+                        return new MockResponse().withWebSocketUpgrade(new WebSocketListener() {
+                            @Override
+                            public void onMessage(final WebSocket webSocket, final String text) {
+                                final JsonObject message = JsonParser.parseString(text).getAsJsonObject();
+                                try {
+                                    final JsonObject response = JsonParser.parseString(readResourceAsString("fetch-mailboxes/02-mailboxes.json").replace("\uFEFF", "")).getAsJsonObject();
+                                    response.addProperty("@type", "Response");
+                                    response.addProperty("requestId", message.get("id").getAsString());
+                                    response.addProperty("sessionState", sessionState.get());
+                                    webSocket.send(response.toString());
+                                } catch (final IOException e) {
+                                    webSocket.close(1011, null);
+                                }
+                            }
+
+                            @Override
+                            public void onClosing(final WebSocket webSocket, final int code, final String reason) {
+                                webSocket.close(1000, null);
+                            }
+                        });
+                    }
+                    return new MockResponse().setResponseCode(404);
+                } catch (final IOException e) {
+                    return new MockResponse().setResponseCode(500);
+                }
+            }
+        });
+        server.start();
+
+        final JmapClient jmapClient = new JmapClient(
+                USERNAME,
+                PASSWORD,
+                server.url(WELL_KNOWN_PATH)
+        );
+        jmapClient.setWebSocketEnabled(true);
+
+        //every call is sent over the same connection
+        for (int i = 0; i < 3; ++i) {
+            jmapClient.call(GetMailboxMethodCall.builder().accountId(ACCOUNT_ID).build()).get(5, TimeUnit.SECONDS);
+        }
+        Assert.assertEquals(1, sessionRequests.get());
+        Assert.assertEquals(1, connections.get());
+
+        //the response reports a new session state; the next call fetches the session again and reconnects
+        sessionState.set("1");
+        jmapClient.call(GetMailboxMethodCall.builder().accountId(ACCOUNT_ID).build()).get(5, TimeUnit.SECONDS);
+        Assert.assertEquals(1, connections.get());
+        jmapClient.call(GetMailboxMethodCall.builder().accountId(ACCOUNT_ID).build()).get(5, TimeUnit.SECONDS);
+        Assert.assertEquals(2, sessionRequests.get());
+        Assert.assertEquals(2, connections.get());
+
+        jmapClient.call(GetMailboxMethodCall.builder().accountId(ACCOUNT_ID).build()).get(5, TimeUnit.SECONDS);
+        Assert.assertEquals(2, sessionRequests.get());
+        Assert.assertEquals(2, connections.get());
+
+        jmapClient.close();
+        server.shutdown();
+    }
+
+    @Test
+    public void limitConcurrentRequests() throws Exception {
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicInteger maxInFlight = new AtomicInteger();
+        final MockWebServer server = new MockWebServer();
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(final RecordedRequest request) throws InterruptedException {
+                try {
+                    if (request.getPath().contains(WELL_KNOWN_PATH)) {
+                        return new MockResponse().setBody(readResourceAsString("concurrent-requests/01-session.json"));
+                    }
+                    maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+                    Thread.sleep(100);
+                    inFlight.decrementAndGet();
+                    return new MockResponse().setBody(readResourceAsString("fetch-mailboxes/02-mailboxes.json"));
+                } catch (final IOException e) {
+                    return new MockResponse().setResponseCode(500);
+                }
+            }
+        });
+        server.start();
+
+        final JmapClient jmapClient = new JmapClient(
+                USERNAME,
+                PASSWORD,
+                server.url(WELL_KNOWN_PATH)
+        );
+        jmapClient.getSession().get();
+
+        final List<ListenableFuture<MethodResponses>> futures = new ArrayList<>();
+        for (int i = 0; i < 6; ++i) {
+            futures.add(jmapClient.call(GetMailboxMethodCall.builder().accountId(ACCOUNT_ID).build()));
+        }
+        for (final MethodResponses methodResponses : Futures.allAsList(futures).get()) {
+            Assert.assertEquals(7, methodResponses.getMain(GetMailboxMethodResponse.class).getList().length);
+        }
+
+        Assert.assertEquals(2, maxInFlight.get());
+
+        server.shutdown();
+    }
+
+    @Test
+    public void limitConcurrentRequestsAcrossSessionChange() throws Exception {
+        final AtomicReference<String> sessionState = new AtomicReference<>("0");
+        final AtomicInteger apiRequests = new AtomicInteger();
+        final CountDownLatch bothInFlight = new CountDownLatch(2);
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicInteger maxInFlight = new AtomicInteger();
+        final MockWebServer server = new MockWebServer();
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(final RecordedRequest request) throws InterruptedException {
+                try {
+                    if (request.getPath().contains(WELL_KNOWN_PATH)) {
+                        return new MockResponse().setBody(readResourceAsString("concurrent-requests/01-session.json")
+                                .replace("\"state\": \"0\"", "\"state\": \"" + sessionState.get() + "\""));
+                    }
+                    maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+                    final int number = apiRequests.incrementAndGet();
+                    if (number <= 2) {
+                        bothInFlight.countDown();
+                        bothInFlight.await(5, TimeUnit.SECONDS);
+                    }
+                    if (number == 1) {
+                        //the first response reports a new session state; every later call uses a new API client
+                        sessionState.set("1");
+                    } else {
+                        Thread.sleep(300);
+                    }
+                    inFlight.decrementAndGet();
+                    return new MockResponse().setBody(readResourceAsString("fetch-mailboxes/02-mailboxes.json")
+                            .replace("\"sessionState\": \"0\"", "\"sessionState\": \"" + sessionState.get() + "\""));
+                } catch (final IOException e) {
+                    return new MockResponse().setResponseCode(500);
+                }
+            }
+        });
+        server.start();
+
+        final JmapClient jmapClient = new JmapClient(
+                USERNAME,
+                PASSWORD,
+                server.url(WELL_KNOWN_PATH)
+        );
+        jmapClient.getSession().get();
+
+        //one of the two is answered right away; the other one stays in flight with the API client of the outdated session
+        final ListenableFuture<MethodResponses> first = jmapClient.call(GetMailboxMethodCall.builder().accountId(ACCOUNT_ID).build());
+        final ListenableFuture<MethodResponses> second = jmapClient.call(GetMailboxMethodCall.builder().accountId(ACCOUNT_ID).build());
+        final CountDownLatch answered = new CountDownLatch(1);
+        first.addListener(answered::countDown, MoreExecutors.directExecutor());
+        second.addListener(answered::countDown, MoreExecutors.directExecutor());
+        Assert.assertTrue(answered.await(5, TimeUnit.SECONDS));
+        final List<ListenableFuture<MethodResponses>> futures = new ArrayList<>(Arrays.asList(first, second));
+        for (int i = 0; i < 4; ++i) {
+            futures.add(jmapClient.call(GetMailboxMethodCall.builder().accountId(ACCOUNT_ID).build()));
+        }
+        Futures.allAsList(futures).get(10, TimeUnit.SECONDS);
+
+        Assert.assertEquals(2, maxInFlight.get());
+
+        jmapClient.close();
+        server.shutdown();
+    }
+
+    @Test
+    public void fetchMailboxesExceptionStreaming() throws IOException, InterruptedException, ExecutionException {
+        final MockWebServer server = new MockWebServer();
+        server.enqueue(new MockResponse().setBody(readResourceAsString("fetch-mailboxes/01-session.json")));
+        server.enqueue(new MockResponse().setBody(readResourceAsString("fetch-mailboxes/unknown-method-call-id.json")));
+        server.start();
+
+        final JmapClient jmapClient = new JmapClient(
+                USERNAME,
+                PASSWORD,
+                server.url(WELL_KNOWN_PATH)
+        );
+        jmapClient.setStreamingResponses(true);
+
+        thrown.expect(ExecutionException.class);
+        thrown.expectCause(CoreMatchers.<Throwable>instanceOf(MethodResponseNotFoundException.class));
+        jmapClient.call(
+                GetMailboxMethodCall.builder().accountId(ACCOUNT_ID).build()
+        ).get();
+
+        server.shutdown();
+    }
+
     @Test
     public void endpointNotFound() throws ExecutionException, InterruptedException, IOException {
         final MockWebServer server = new MockWebServer();
@@ -282,4 +1100,81 @@ public class HttpJmapClientTest {
         final Session session = jmapClient.getSession().get();
         Assert.assertNotNull(session.getCapability(WebSocketCapability.class).getUrl());
     }
+
+    @Test
+    public void resumeDownloadAndUpload() throws IOException, ExecutionException, InterruptedException {
+        final MockWebServer server = new MockWebServer();
+        server.enqueue(new MockResponse().setBody(readResourceAsString("session-urls/01-session.json")));
+        server.enqueue(new MockResponse()
+                .setResponseCode(206)
+                .setHeader("Content-Range", "bytes 6-10/11")
+                .setBody("world"));
+        server.enqueue(new MockResponse()
+                .setResponseCode(201)
+                .setBody("{\"accountId\":\"test@example.com\",\"blobId\":\"B10B1D\",\"type\":\"text/plain\",\"size\":11}"));
+        server.start();
+        final JmapClient jmapClient = new JmapClient(
+                USERNAME,
+                PASSWORD,
+                server.url(WELL_KNOWN_PATH)
+        );
+
+        final Path file = Files.createTempFile("blob", ".txt");
+        Files.write(file, "Hello ".getBytes(Charsets.UTF_8));
+        try (final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            Assert.assertEquals(11L, (long) jmapClient.download(ACCOUNT_ID, "B10B1D", "lttrs", "text/plain", channel).get());
+        }
+        Assert.assertEquals("Hello world", new String(Files.readAllBytes(file), Charsets.UTF_8));
+
+        final Upload upload = jmapClient.upload(ACCOUNT_ID, file, "text/plain").get();
+        Assert.assertEquals("B10B1D", upload.getBlobId());
+        Assert.assertEquals(11L, (long) upload.getSize());
+
+        server.takeRequest();
+        final RecordedRequest download = server.takeRequest();
+        Assert.assertEquals("bytes=6-", download.getHeader("Range"));
+        final RecordedRequest uploadRequest = server.takeRequest();
+        Assert.assertEquals("/jmap/upload/test%40example.com/", uploadRequest.getPath());
+        Assert.assertEquals("11", uploadRequest.getHeader("Content-Length"));
+        Assert.assertEquals("Hello world", uploadRequest.getBody().readUtf8());
+
+        Files.delete(file);
+        server.shutdown();
+    }
+
+    @Test
+    public void blobCache() throws IOException, ExecutionException, InterruptedException {
+        final MockWebServer server = new MockWebServer();
+        server.enqueue(new MockResponse().setBody(readResourceAsString("session-urls/01-session.json")));
+        server.enqueue(new MockResponse().setBody("Hello world").setBodyDelay(200, TimeUnit.MILLISECONDS));
+        server.enqueue(new MockResponse().setBody("Bye, world!"));
+        server.start();
+        final JmapClient jmapClient = new JmapClient(
+                USERNAME,
+                PASSWORD,
+                server.url(WELL_KNOWN_PATH)
+        );
+        final File directory = Files.createTempDirectory("blobs").toFile();
+        final BlobCache blobCache = new BlobCache(directory, 15);
+        jmapClient.setBlobCache(blobCache);
+
+        final ListenableFuture<Path> first = jmapClient.getBlob(ACCOUNT_ID, "B10B1D", "hello.txt", "text/plain");
+        final ListenableFuture<Path> second = jmapClient.getBlob(ACCOUNT_ID, "B10B1D", "hello.txt", "text/plain");
+        Assert.assertEquals(first.get(), second.get());
+        Assert.assertEquals("Hello world", new String(Files.readAllBytes(first.get()), Charsets.UTF_8));
+
+        try (final Download download = jmapClient.download(ACCOUNT_ID, "B10B1D", "hello.txt", "text/plain", 6).get()) {
+            Assert.assertEquals(6, download.getOffset());
+            Assert.assertEquals("world", download.getSource().readUtf8());
+        }
+        Assert.assertEquals(2, server.getRequestCount());
+
+        jmapClient.getBlob(ACCOUNT_ID, "B10B2D", "bye.txt", "text/plain").get();
+        Assert.assertEquals(3, server.getRequestCount());
+        Assert.assertNull(blobCache.get(ACCOUNT_ID, "B10B1D"));
+        Assert.assertEquals(11, blobCache.size());
+        Assert.assertEquals(11, new BlobCache(directory, 15).size());
+
+        server.shutdown();
+    }
 }
@@ -23,6 +23,15 @@ public class Response implements GenericResponse {
     private Invocation[] methodResponses;
     private String sessionState;
 
+    public Response() {
+
+    }
+
+    public Response(Invocation[] methodResponses, String sessionState) {
+        this.methodResponses = methodResponses;
+        this.sessionState = sessionState;
+    }
+
     public Invocation[] getMethodResponses() {
         return methodResponses;
     }
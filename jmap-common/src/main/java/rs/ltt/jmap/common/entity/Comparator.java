@@ -16,9 +16,11 @@
 
 package rs.ltt.jmap.common.entity;
 
+import lombok.Getter;
 import rs.ltt.jmap.common.entity.filter.QueryString;
 import rs.ltt.jmap.common.util.IndexableStringUtils;
 
+@Getter
 public class Comparator implements QueryString {
 
     private String property;
@@ -0,0 +1,51 @@
+/*
+ * Copyright 2020 Daniel Gultsch
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package rs.ltt.jmap.common.entity;
+
+import com.google.common.base.MoreObjects;
+import lombok.Builder;
+import lombok.Getter;
+import lombok.Singular;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Pushed by the server (RFC 8620 Section 7.1) whenever the state of one or more types changes.
+ */
+@Getter
+@Builder
+public class StateChange {
+
+    /**
+     * Maps account ids to a map of type names (for example Email) and their new state.
+     */
+    @Singular("changed")
+    private Map<String, Map<String, String>> changed;
+
+    public Map<String, String> getChanged(final String accountId) {
+        final Map<String, String> types = changed == null ? null : changed.get(accountId);
+        return types == null ? Collections.emptyMap() : types;
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("changed", changed)
+                .toString();
+    }
+}
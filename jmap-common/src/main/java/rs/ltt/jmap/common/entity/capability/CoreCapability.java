@@ -32,7 +32,9 @@ import rs.ltt.jmap.common.util.Property;
 public class CoreCapability implements Capability {
 
     private Long maxSizeUpload;
+    private Long maxSizeRequest;
     private Long maxConcurrentUpload;
+    private Long maxConcurrentRequests;
     private Long maxCallsInRequest;
     private Long maxObjectsInGet;
     private Long maxObjectsInSet;
@@ -43,10 +45,18 @@ public class CoreCapability implements Capability {
         return Property.expected(maxSizeUpload);
     }
 
+    public long maxSizeRequest() {
+        return Property.expected(maxSizeRequest);
+    }
+
     public long maxConcurrentUpload() {
         return Property.expected(maxConcurrentUpload);
     }
 
+    public long maxConcurrentRequests() {
+        return Property.expected(maxConcurrentRequests);
+    }
+
     public long maxCallsInRequest() {
         return Property.expected(maxCallsInRequest);
     }
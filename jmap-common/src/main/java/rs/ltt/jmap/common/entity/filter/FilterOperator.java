@@ -16,12 +16,14 @@
 
 package rs.ltt.jmap.common.entity.filter;
 
+import lombok.Getter;
 import org.checkerframework.checker.nullness.compatqual.NonNullDecl;
 import rs.ltt.jmap.common.entity.AbstractIdentifiableEntity;
 import rs.ltt.jmap.common.util.IndexableStringUtils;
 
 import java.util.Arrays;
 
+@Getter
 public class FilterOperator<T extends AbstractIdentifiableEntity> implements Filter<T> {
 
     private Operator operator;
@@ -17,13 +17,16 @@
 package rs.ltt.jmap.common.method.call.standard;
 
 import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
 import com.google.gson.annotations.SerializedName;
 import lombok.NonNull;
 import rs.ltt.jmap.common.Request;
 import rs.ltt.jmap.common.entity.AbstractIdentifiableEntity;
 import rs.ltt.jmap.common.method.MethodCall;
 
-public abstract class GetMethodCall<T extends AbstractIdentifiableEntity> implements MethodCall {
+import java.util.*;
+
+public abstract class GetMethodCall<T extends AbstractIdentifiableEntity> implements MethodCall, Cloneable {
 
     private String accountId;
 
@@ -41,4 +44,49 @@ public abstract class GetMethodCall<T extends AbstractIdentifiableEntity> implem
         this.properties = properties;
         this.idsReference = idsReference;
     }
+
+    /**
+     * Splits this call into several calls that request at most maxObjectsInGet ids each. All other arguments are
+     * copied. Calls that use a result reference or refer to a creation id can not be split.
+     *
+     * @return a list of calls; containing only this call if no split was necessary
+     */
+    public List<GetMethodCall<T>> split(final long maxObjectsInGet) {
+        Preconditions.checkArgument(maxObjectsInGet > 0, "maxObjectsInGet must be positive");
+        if (ids == null || ids.length <= maxObjectsInGet || !getCreationIdReferences().isEmpty()) {
+            return Collections.singletonList(this);
+        }
+        final ImmutableList.Builder<GetMethodCall<T>> builder = ImmutableList.builder();
+        for (int i = 0; i < ids.length; i += maxObjectsInGet) {
+            final GetMethodCall<T> copy = copy();
+            copy.ids = Arrays.copyOfRange(ids, i, (int) Math.min(ids.length, i + maxObjectsInGet));
+            builder.add(copy);
+        }
+        return builder.build();
+    }
+
+    /**
+     * @return the creation ids (without the leading #) that are used in place of ids
+     */
+    public Set<String> getCreationIdReferences() {
+        if (ids == null) {
+            return Collections.emptySet();
+        }
+        final Set<String> references = new HashSet<>();
+        for (final String id : ids) {
+            if (id != null && id.length() > 1 && id.charAt(0) == '#') {
+                references.add(id.substring(1));
+            }
+        }
+        return references;
+    }
+
+    @SuppressWarnings("unchecked")
+    private GetMethodCall<T> copy() {
+        try {
+            return (GetMethodCall<T>) clone();
+        } catch (final CloneNotSupportedException e) {
+            throw new AssertionError(e);
+        }
+    }
 }
@@ -17,15 +17,20 @@
 package rs.ltt.jmap.common.method.call.standard;
 
 import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
 import com.google.gson.annotations.SerializedName;
 import lombok.NonNull;
 import rs.ltt.jmap.common.Request;
 import rs.ltt.jmap.common.entity.AbstractIdentifiableEntity;
 import rs.ltt.jmap.common.method.MethodCall;
 
-import java.util.Map;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.*;
 
-public abstract class SetMethodCall<T extends AbstractIdentifiableEntity> implements MethodCall {
+public abstract class SetMethodCall<T extends AbstractIdentifiableEntity> implements MethodCall, Cloneable {
+
+    private static final String ENTITY_PACKAGE = "rs.ltt.jmap.common.entity.";
 
     @NonNull
     private String accountId;
@@ -55,4 +60,190 @@ public abstract class SetMethodCall<T extends AbstractIdentifiableEntity> implem
         this.destroy = destroy;
         this.destroyReference = destroyReference;
     }
+
+    public String getIfInState() {
+        return ifInState;
+    }
+
+    /**
+     * Splits this call into several calls that create, update or destroy at most maxObjectsInSet objects each. Calls
+     * that use a result reference or that refer to a creation id (anywhere in their arguments, including the objects
+     * they create) can not be split.
+     * <p>
+     * All resulting calls keep the ifInState of this call. Callers that execute them one after another have to
+     * replace it with the newState of the previous call using {@link #withIfInState(String)}.
+     *
+     * @return a list of calls; containing only this call if no split was necessary
+     */
+    public List<SetMethodCall<T>> split(final long maxObjectsInSet) {
+        Preconditions.checkArgument(maxObjectsInSet > 0, "maxObjectsInSet must be positive");
+        final int total = (create == null ? 0 : create.size())
+                + (update == null ? 0 : update.size())
+                + (destroy == null ? 0 : destroy.length);
+        if (total <= maxObjectsInSet || destroyReference != null || !isSplittable() || !getCreationIdReferences().isEmpty()) {
+            return Collections.singletonList(this);
+        }
+        final ImmutableList.Builder<SetMethodCall<T>> builder = ImmutableList.builder();
+        SetMethodCall<T> current = emptyCopy();
+        int count = 0;
+        if (create != null) {
+            for (final Map.Entry<String, T> entry : create.entrySet()) {
+                if (count == maxObjectsInSet) {
+                    builder.add(current);
+                    current = emptyCopy();
+                    count = 0;
+                }
+                if (current.create == null) {
+                    current.create = new LinkedHashMap<>();
+                }
+                current.create.put(entry.getKey(), entry.getValue());
+                count++;
+            }
+        }
+        if (update != null) {
+            for (final Map.Entry<String, Map<String, Object>> entry : update.entrySet()) {
+                if (count == maxObjectsInSet) {
+                    builder.add(current);
+                    current = emptyCopy();
+                    count = 0;
+                }
+                if (current.update == null) {
+                    current.update = new LinkedHashMap<>();
+                }
+                current.update.put(entry.getKey(), entry.getValue());
+                count++;
+            }
+        }
+        if (destroy != null) {
+            final List<String> destroyed = new ArrayList<>();
+            for (final String id : destroy) {
+                if (count == maxObjectsInSet) {
+                    current.destroy = destroyed.isEmpty() ? null : destroyed.toArray(new String[0]);
+                    destroyed.clear();
+                    builder.add(current);
+                    current = emptyCopy();
+                    count = 0;
+                }
+                destroyed.add(id);
+                count++;
+            }
+            current.destroy = destroyed.isEmpty() ? null : destroyed.toArray(new String[0]);
+        }
+        builder.add(current);
+        return builder.build();
+    }
+
+    /**
+     * @return a copy of this call that is guarded by the given state instead
+     */
+    public SetMethodCall<T> withIfInState(final String ifInState) {
+        final SetMethodCall<T> copy = copy();
+        copy.ifInState = ifInState;
+        return copy;
+    }
+
+    /**
+     * @return the ids of the objects this call creates
+     */
+    public Set<String> getCreationIds() {
+        return create == null ? Collections.emptySet() : Collections.unmodifiableSet(create.keySet());
+    }
+
+    /**
+     * @return the creation ids (without the leading #) that are referred to by the arguments of this call
+     */
+    public Set<String> getCreationIdReferences() {
+        final Set<String> references = new HashSet<>();
+        if (create != null) {
+            for (final T object : create.values()) {
+                collectCreationIdReferences(object, references, Collections.newSetFromMap(new IdentityHashMap<>()));
+            }
+        }
+        if (update != null) {
+            for (final Map.Entry<String, Map<String, Object>> entry : update.entrySet()) {
+                collectCreationIdReference(entry.getKey(), references);
+                if (entry.getValue() != null) {
+                    for (final Map.Entry<String, Object> patch : entry.getValue().entrySet()) {
+                        //patch paths like mailboxIds/#draft refer to creation ids as well
+                        for (final String segment : patch.getKey().split("/")) {
+                            collectCreationIdReference(segment, references);
+                        }
+                        collectCreationIdReferences(patch.getValue(), references, Collections.newSetFromMap(new IdentityHashMap<>()));
+                    }
+                }
+            }
+        }
+        if (destroy != null) {
+            for (final String id : destroy) {
+                collectCreationIdReference(id, references);
+            }
+        }
+        return references;
+    }
+
+    /**
+     * Subclasses with arguments that only make sense for the call as a whole return false.
+     */
+    protected boolean isSplittable() {
+        return true;
+    }
+
+    protected static void collectCreationIdReference(final String value, final Set<String> references) {
+        if (value != null && value.length() > 1 && value.charAt(0) == '#') {
+            references.add(value.substring(1));
+        }
+    }
+
+    private static void collectCreationIdReferences(final Object value, final Set<String> references, final Set<Object> visited) {
+        if (value == null || value instanceof Enum || !visited.add(value)) {
+            return;
+        }
+        if (value instanceof String) {
+            collectCreationIdReference((String) value, references);
+        } else if (value instanceof Map) {
+            for (final Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                collectCreationIdReferences(entry.getKey(), references, visited);
+                collectCreationIdReferences(entry.getValue(), references, visited);
+            }
+        } else if (value instanceof Collection) {
+            for (final Object item : (Collection<?>) value) {
+                collectCreationIdReferences(item, references, visited);
+            }
+        } else if (value instanceof Object[]) {
+            for (final Object item : (Object[]) value) {
+                collectCreationIdReferences(item, references, visited);
+            }
+        } else if (value.getClass().getName().startsWith(ENTITY_PACKAGE)) {
+            for (Class<?> clazz = value.getClass(); clazz != null && clazz.getName().startsWith(ENTITY_PACKAGE); clazz = clazz.getSuperclass()) {
+                for (final Field field : clazz.getDeclaredFields()) {
+                    if (Modifier.isStatic(field.getModifiers()) || field.getType().isPrimitive()) {
+                        continue;
+                    }
+                    try {
+                        field.setAccessible(true);
+                        collectCreationIdReferences(field.get(value), references, visited);
+                    } catch (final IllegalAccessException e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+            }
+        }
+    }
+
+    private SetMethodCall<T> emptyCopy() {
+        final SetMethodCall<T> copy = copy();
+        copy.create = null;
+        copy.update = null;
+        copy.destroy = null;
+        return copy;
+    }
+
+    @SuppressWarnings("unchecked")
+    private SetMethodCall<T> copy() {
+        try {
+            return (SetMethodCall<T>) clone();
+        } catch (final CloneNotSupportedException e) {
+            throw new AssertionError(e);
+        }
+    }
 }
@@ -47,4 +47,14 @@ public class SetEmailSubmissionMethodCall extends SetMethodCall<EmailSubmission>
         this.onSuccessUpdateEmail = onSuccessUpdateEmail;
         this.onSuccessDestroyEmail = onSuccessDestroyEmail;
     }
+
+    /**
+     * The onSuccess arguments refer to submissions of this call; a part of the call would act on the submissions of
+     * the other parts.
+     */
+    @Override
+    protected boolean isSplittable() {
+        return (onSuccessUpdateEmail == null || onSuccessUpdateEmail.isEmpty())
+                && (onSuccessDestroyEmail == null || onSuccessDestroyEmail.isEmpty());
+    }
 }
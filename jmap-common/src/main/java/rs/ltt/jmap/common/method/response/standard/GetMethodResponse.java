@@ -17,13 +17,17 @@
 package rs.ltt.jmap.common.method.response.standard;
 
 import com.google.common.base.MoreObjects;
+import com.google.common.base.Preconditions;
 import lombok.Getter;
 import rs.ltt.jmap.common.entity.AbstractIdentifiableEntity;
 import rs.ltt.jmap.common.entity.TypedState;
 import rs.ltt.jmap.common.method.MethodResponse;
 
+import java.util.Arrays;
+import java.util.Objects;
+
 @Getter
-public abstract class GetMethodResponse<T extends AbstractIdentifiableEntity> implements MethodResponse {
+public abstract class GetMethodResponse<T extends AbstractIdentifiableEntity> implements MethodResponse, Cloneable {
 
     protected String accountId;
     protected String state;
@@ -45,4 +49,39 @@ public abstract class GetMethodResponse<T extends AbstractIdentifiableEntity> im
     public TypedState<T> getTypedState() {
         return TypedState.of(this.state);
     }
+
+    /**
+     * Combines the responses to a get call that has been split into several calls. Both responses have to be read at
+     * the same state.
+     *
+     * @return a new response containing the objects and not found ids of both responses
+     */
+    @SuppressWarnings("unchecked")
+    public GetMethodResponse<T> merge(final GetMethodResponse<T> other) {
+        Preconditions.checkArgument(
+                Objects.equals(state, other.state),
+                "Unable to merge responses of state %s and %s", state, other.state
+        );
+        final GetMethodResponse<T> merged;
+        try {
+            merged = (GetMethodResponse<T>) clone();
+        } catch (final CloneNotSupportedException e) {
+            throw new AssertionError(e);
+        }
+        merged.list = concat(list, other.list);
+        merged.notFound = concat(notFound, other.notFound);
+        return merged;
+    }
+
+    private static <E> E[] concat(final E[] a, final E[] b) {
+        if (a == null) {
+            return b;
+        }
+        if (b == null) {
+            return a;
+        }
+        final E[] result = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
 }
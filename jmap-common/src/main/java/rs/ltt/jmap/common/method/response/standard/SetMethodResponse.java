@@ -17,15 +17,18 @@
 package rs.ltt.jmap.common.method.response.standard;
 
 import com.google.common.base.MoreObjects;
+import com.google.common.collect.ObjectArrays;
 import lombok.Getter;
 import rs.ltt.jmap.common.entity.AbstractIdentifiableEntity;
 import rs.ltt.jmap.common.entity.SetError;
 import rs.ltt.jmap.common.method.MethodResponse;
 
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Objects;
 
 @Getter
-public abstract class SetMethodResponse<T extends AbstractIdentifiableEntity> implements MethodResponse {
+public abstract class SetMethodResponse<T extends AbstractIdentifiableEntity> implements MethodResponse, Cloneable {
 
     private String accountId;
     private String oldState;
@@ -56,4 +59,48 @@ public abstract class SetMethodResponse<T extends AbstractIdentifiableEntity> im
                 .add("notDestroyed", notDestroyed)
                 .toString();
     }
+
+    /**
+     * Combines the responses to a set call that has been split into several calls. The other call has to be applied
+     * after this one.
+     *
+     * @return a new response with the results of both responses; the oldState of this and the newState of the other.
+     * The oldState is null if there have been other changes between the two calls.
+     */
+    @SuppressWarnings("unchecked")
+    public SetMethodResponse<T> merge(final SetMethodResponse<T> other) {
+        final SetMethodResponse<T> merged;
+        try {
+            merged = (SetMethodResponse<T>) clone();
+        } catch (final CloneNotSupportedException e) {
+            throw new AssertionError(e);
+        }
+        if (!Objects.equals(newState, other.oldState)) {
+            merged.oldState = null;
+        }
+        merged.newState = other.newState;
+        merged.created = concat(created, other.created);
+        merged.updated = concat(updated, other.updated);
+        merged.notCreated = concat(notCreated, other.notCreated);
+        merged.notUpdated = concat(notUpdated, other.notUpdated);
+        merged.notDestroyed = concat(notDestroyed, other.notDestroyed);
+        if (destroyed == null) {
+            merged.destroyed = other.destroyed;
+        } else if (other.destroyed != null) {
+            merged.destroyed = ObjectArrays.concat(destroyed, other.destroyed, String.class);
+        }
+        return merged;
+    }
+
+    private static <V> Map<String, V> concat(final Map<String, V> a, final Map<String, V> b) {
+        if (a == null) {
+            return b;
+        }
+        if (b == null) {
+            return a;
+        }
+        final Map<String, V> result = new LinkedHashMap<>(a);
+        result.putAll(b);
+        return result;
+    }
 }
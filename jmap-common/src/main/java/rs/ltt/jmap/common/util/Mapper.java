@@ -19,11 +19,13 @@ package rs.ltt.jmap.common.util;
 import com.google.common.base.Charsets;
 import com.google.common.base.Function;
 import com.google.common.collect.ImmutableBiMap;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
 import com.google.common.io.Resources;
 import org.checkerframework.checker.nullness.compatqual.NullableDecl;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import rs.ltt.jmap.common.MappingRegistry;
 import rs.ltt.jmap.common.Utils;
 import rs.ltt.jmap.common.entity.AccountCapability;
 import rs.ltt.jmap.common.entity.Capability;
@@ -36,12 +38,19 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.net.URL;
-import java.util.Collections;
-import java.util.List;
+import java.util.*;
 
 public final class Mapper {
 
+    /**
+     * System property that makes the Mapper read the resource files even for types that are covered by a generated
+     * registry. Only needed if a module that adds to those types has been built without the registry processor.
+     */
+    public static final String SCAN_RESOURCES_PROPERTY = "rs.ltt.jmap.mapper.scanResources";
+
     private static Logger LOGGER = LoggerFactory.getLogger(Mapper.class);
+    private static final boolean SCAN_RESOURCES = Boolean.getBoolean(SCAN_RESOURCES_PROPERTY);
+    private static final List<MappingRegistry> REGISTRIES = loadRegistries();
     public static final ImmutableBiMap<String, Class<? extends MethodCall>> METHOD_CALLS = Mapper.get(MethodCall.class);
     public static final ImmutableBiMap<String, Class<? extends MethodResponse>> METHOD_RESPONSES = Mapper.get(MethodResponse.class);
     public static final ImmutableBiMap<String, Class<? extends MethodErrorResponse>> METHOD_ERROR_RESPONSES = Mapper.get(MethodErrorResponse.class);
@@ -52,8 +61,53 @@ public final class Mapper {
 
     }
 
+    private static List<MappingRegistry> loadRegistries() {
+        final ImmutableList.Builder<MappingRegistry> builder = new ImmutableList.Builder<>();
+        try {
+            for (final MappingRegistry registry : ServiceLoader.load(MappingRegistry.class, Mapper.class.getClassLoader())) {
+                builder.add(registry);
+            }
+        } catch (final ServiceConfigurationError e) {
+            LOGGER.warn("Unable to load generated mapping registries", e);
+        }
+        return builder.build();
+    }
+
+    /**
+     * Reads the mappings from the generated registries. The resource files are only scanned for types that no
+     * registry covers, unless {@link #SCAN_RESOURCES_PROPERTY} is set. In that case the mappings of modules that have
+     * been compiled without the registry processor are merged in; classes already known from a registry are not
+     * loaded again.
+     */
     private static <T> ImmutableBiMap<String, Class<? extends T>> get(Class<T> type) {
-        final ImmutableBiMap.Builder<String, Class<? extends T>> builder = new ImmutableBiMap.Builder<>();
+        final Map<String, Class<? extends T>> mappings = new LinkedHashMap<>();
+        getFromRegistries(type, mappings);
+        final boolean registered = !mappings.isEmpty();
+        if (!registered || SCAN_RESOURCES) {
+            getFromResources(type, mappings);
+        }
+        final ImmutableBiMap<String, Class<? extends T>> map = ImmutableBiMap.copyOf(mappings);
+        if (LOGGER.isWarnEnabled() && MapperLoggingUtils.isMissingWellKnown(map, type)) {
+            if (registered) {
+                LOGGER.warn(
+                        "Some well known mappings are missing. Set -D{}=true if a module has been built without the registry processor",
+                        SCAN_RESOURCES_PROPERTY
+                );
+            } else {
+                LOGGER.warn(
+                        "Some well known mappings are missing. Have you enabled resource merging for {}?",
+                        Utils.getFilenameFor(type)
+                );
+            }
+        }
+        return map;
+    }
+
+    private static <T> void getFromResources(final Class<T> type, final Map<String, Class<? extends T>> mappings) {
+        final Set<String> registered = new HashSet<>();
+        for (final Class<? extends T> clazz : mappings.values()) {
+            registered.add(clazz.getName());
+        }
         for (final BufferedReader bufferedReader : getSystemResources(type)) {
             if (bufferedReader == null) {
                 continue;
@@ -63,9 +117,12 @@ public final class Mapper {
                     final String[] parts = line.split(" ", 2);
                     if (parts.length == 2) {
                         final String name = parts[0];
+                        if (registered.contains(name) || mappings.containsKey(parts[1])) {
+                            continue;
+                        }
                         try {
                             Class<? extends T> clazz = Class.forName(name).asSubclass(type);
-                            builder.put(parts[1], clazz);
+                            mappings.put(parts[1], clazz);
                         } catch (ClassNotFoundException | ClassCastException e) {
                             LOGGER.warn("Mapping points to a class that doesn't exist {}", name);
                         }
@@ -75,14 +132,17 @@ public final class Mapper {
                 LOGGER.warn("Unable to read system resource", e);
             }
         }
-        final ImmutableBiMap<String, Class<? extends T>> map = builder.build();
-        if (LOGGER.isWarnEnabled() && MapperLoggingUtils.isMissingWellKnown(map, type)) {
-            LOGGER.warn(
-                    "Some well known mappings are missing. Have you enabled resource merging for {}?",
-                    Utils.getFilenameFor(type)
-            );
+    }
+
+    private static <T> void getFromRegistries(final Class<T> type, final Map<String, Class<? extends T>> mappings) {
+        for (final MappingRegistry registry : REGISTRIES) {
+            for (final String name : registry.getNames(type)) {
+                final Class<?> clazz = registry.get(type, name);
+                if (clazz != null) {
+                    mappings.putIfAbsent(name, clazz.asSubclass(type));
+                }
+            }
         }
-        return map;
     }
 
     private static <T> Iterable<BufferedReader> getSystemResources(final Class<T> type) {
@@ -18,6 +18,8 @@ package rs.ltt.jmap.common;
 
 import org.junit.Assert;
 import org.junit.Test;
+import rs.ltt.jmap.common.method.MethodCall;
+import rs.ltt.jmap.common.method.call.core.EchoMethodCall;
 import rs.ltt.jmap.common.util.Mapper;
 
 public class MapperTest {
@@ -37,4 +39,14 @@ public class MapperTest {
         }
     }
 
+    @Test
+    public void generatedRegistryMatchesMapper() {
+        final JmapMappingRegistry registry = new JmapMappingRegistry();
+        for (final String jsonName : registry.getNames(MethodCall.class)) {
+            Assert.assertEquals(registry.get(MethodCall.class, jsonName), Mapper.METHOD_CALLS.get(jsonName));
+        }
+        Assert.assertEquals(EchoMethodCall.class, JmapMappingRegistry.methodCall("Core/echo"));
+        Assert.assertNull(JmapMappingRegistry.methodCall("Unknown/method"));
+    }
+
 }
@@ -16,12 +16,20 @@
 
 package rs.ltt.jmap.common;
 
+import com.google.common.collect.ImmutableMap;
+import org.junit.Assert;
 import org.junit.Test;
+import rs.ltt.jmap.common.entity.Email;
+import rs.ltt.jmap.common.entity.EmailSubmission;
 import rs.ltt.jmap.common.method.call.email.GetEmailMethodCall;
 import rs.ltt.jmap.common.method.call.email.QueryEmailMethodCall;
+import rs.ltt.jmap.common.method.call.email.SetEmailMethodCall;
 import rs.ltt.jmap.common.method.call.mailbox.ChangesMailboxMethodCall;
 import rs.ltt.jmap.common.method.call.mailbox.GetMailboxMethodCall;
 import rs.ltt.jmap.common.method.call.snippet.GetSearchSnippetsMethodCall;
+import rs.ltt.jmap.common.method.call.submission.SetEmailSubmissionMethodCall;
+
+import java.util.Collections;
 
 public class MethodCallTest {
 
@@ -71,4 +79,52 @@ public class MethodCallTest {
                         ))
                 .build();
     }
+
+    @Test
+    public void splitSetCall() {
+        final SetEmailMethodCall call = SetEmailMethodCall.builder()
+                .accountId("dummy")
+                .destroy(new String[]{"1", "2", "3"})
+                .build();
+        Assert.assertEquals(2, call.split(2).size());
+    }
+
+    @Test
+    public void doNotSplitSetCallReferringToCreationIdInCreate() {
+        final SetEmailMethodCall call = SetEmailMethodCall.builder()
+                .accountId("dummy")
+                .create(ImmutableMap.of(
+                        "e0", Email.builder().mailboxId("#mb", true).build(),
+                        "e1", Email.builder().mailboxId("inbox", true).build()
+                ))
+                .build();
+        Assert.assertEquals(Collections.singleton("mb"), call.getCreationIdReferences());
+        Assert.assertEquals(1, call.split(1).size());
+    }
+
+    @Test
+    public void doNotSplitSetCallReferringToCreationIdInPatch() {
+        final SetEmailMethodCall call = SetEmailMethodCall.builder()
+                .accountId("dummy")
+                .update(ImmutableMap.of(
+                        "e0", ImmutableMap.of("mailboxIds/#mb", true),
+                        "e1", ImmutableMap.of("keywords/$seen", true)
+                ))
+                .build();
+        Assert.assertEquals(Collections.singleton("mb"), call.getCreationIdReferences());
+        Assert.assertEquals(1, call.split(1).size());
+    }
+
+    @Test
+    public void doNotSplitSubmissionWithOnSuccessActions() {
+        final SetEmailSubmissionMethodCall call = SetEmailSubmissionMethodCall.builder()
+                .accountId("dummy")
+                .create(ImmutableMap.of(
+                        "s0", EmailSubmission.builder().emailId("e0").identityId("i0").build(),
+                        "s1", EmailSubmission.builder().emailId("e1").identityId("i0").build()
+                ))
+                .onSuccessDestroyEmail(Collections.singletonList("#s0"))
+                .build();
+        Assert.assertEquals(1, call.split(1).size());
+    }
 }
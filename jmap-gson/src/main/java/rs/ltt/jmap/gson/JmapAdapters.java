@@ -16,20 +16,36 @@
 
 package rs.ltt.jmap.gson;
 
+import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
-import rs.ltt.jmap.gson.adapter.PatchObjectNullTypeAdapter;
-import rs.ltt.jmap.gson.adapter.RequestInvocationTypeAdapter;
-import rs.ltt.jmap.gson.adapter.ResultReferenceTypeAdapter;
-import rs.ltt.jmap.gson.deserializer.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import rs.ltt.jmap.common.util.Mapper;
+import rs.ltt.jmap.gson.adapter.*;
+import rs.ltt.jmap.gson.deserializer.AccountCapabilitiesDeserializer;
+import rs.ltt.jmap.gson.deserializer.CapabilitiesDeserializer;
+import rs.ltt.jmap.gson.deserializer.PrimaryAccountsDeserializer;
 import rs.ltt.jmap.gson.serializer.*;
 
+import java.util.Collection;
 
 public final class JmapAdapters {
 
+    private static final Logger LOGGER = LoggerFactory.getLogger(JmapAdapters.class);
+
     private JmapAdapters() {
 
     }
 
+    /**
+     * Returns a shared {@link Gson} instance with all JMAP adapters registered. Gson instances are thread safe and
+     * cache the type adapters they create. Reusing this instance avoids rebuilding the reflective type adapters for
+     * every request. The adapters for all known method calls and method responses are created eagerly.
+     */
+    public static Gson gson() {
+        return GsonHolder.GSON;
+    }
+
     public static void register(GsonBuilder builder) {
 
         ResultReferenceTypeAdapter.register(builder);
@@ -38,8 +54,8 @@ public final class JmapAdapters {
         CapabilitiesDeserializer.register(builder);
         AccountCapabilitiesDeserializer.register(builder);
         PrimaryAccountsDeserializer.register(builder);
-        GenericResponseDeserializer.register(builder);
-        ResponseInvocationDeserializer.register(builder);
+        GenericResponseTypeAdapter.register(builder);
+        ResponseInvocationTypeAdapter.register(builder);
 
         RequestInvocationTypeAdapter.register(builder);
         CapabilitiesSerializer.register(builder);
@@ -49,4 +65,27 @@ public final class JmapAdapters {
         StringMapSerializer.register(builder);
     }
 
+    private static void warmUp(final Gson gson, final Collection<? extends Class<?>> classes) {
+        for (final Class<?> clazz : classes) {
+            try {
+                gson.getAdapter(clazz);
+            } catch (final RuntimeException e) {
+                LOGGER.warn("Unable to create type adapter for {}", clazz.getName(), e);
+            }
+        }
+    }
+
+    private static final class GsonHolder {
+
+        private static final Gson GSON;
+
+        static {
+            final GsonBuilder builder = new GsonBuilder();
+            register(builder);
+            GSON = builder.create();
+            warmUp(GSON, Mapper.METHOD_CALLS.values());
+            warmUp(GSON, Mapper.METHOD_RESPONSES.values());
+        }
+    }
+
 }
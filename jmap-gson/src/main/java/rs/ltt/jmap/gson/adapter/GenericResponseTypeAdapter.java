@@ -0,0 +1,93 @@
+/*
+ * Copyright 2019 Daniel Gultsch
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package rs.ltt.jmap.gson.adapter;
+
+import com.google.gson.*;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import rs.ltt.jmap.common.ErrorResponse;
+import rs.ltt.jmap.common.GenericResponse;
+import rs.ltt.jmap.common.Response;
+
+import java.io.IOException;
+
+/**
+ * Distinguishes between {@link Response} and {@link ErrorResponse} while reading the stream. The method responses are
+ * read directly into their final objects instead of first building a tree of the entire response. All other
+ * properties are small and get buffered until the end of the object to support arbitrary property order.
+ */
+public class GenericResponseTypeAdapter extends TypeAdapter<GenericResponse> {
+
+    private final Gson gson;
+
+    private GenericResponseTypeAdapter(final Gson gson) {
+        this.gson = gson;
+    }
+
+    public static void register(final GsonBuilder builder) {
+        builder.registerTypeAdapterFactory(new Factory());
+    }
+
+    @Override
+    public void write(JsonWriter jsonWriter, GenericResponse genericResponse) throws IOException {
+        throw new IOException("No serialization support for GenericResponse via Type Adapter");
+    }
+
+    @Override
+    public GenericResponse read(JsonReader jsonReader) throws IOException {
+        if (jsonReader.peek() != JsonToken.BEGIN_OBJECT) {
+            throw new JsonParseException("unexpected json type when parsing response");
+        }
+        Response.Invocation[] methodResponses = null;
+        String sessionState = null;
+        final JsonObject otherProperties = new JsonObject();
+        jsonReader.beginObject();
+        while (jsonReader.hasNext()) {
+            final String name = jsonReader.nextName();
+            if ("methodResponses".equals(name)) {
+                methodResponses = gson.getAdapter(Response.Invocation[].class).read(jsonReader);
+            } else if ("sessionState".equals(name)) {
+                sessionState = gson.getAdapter(String.class).read(jsonReader);
+            } else {
+                otherProperties.add(name, gson.getAdapter(JsonElement.class).read(jsonReader));
+            }
+        }
+        jsonReader.endObject();
+        final boolean hasType = otherProperties.has("type");
+        if (hasType && methodResponses == null) {
+            return gson.getAdapter(ErrorResponse.class).fromJsonTree(otherProperties);
+        }
+        if (methodResponses != null && !hasType) {
+            return new Response(methodResponses, sessionState);
+        }
+        throw new JsonParseException("Unable to identify response as either error or response");
+    }
+
+    private static class Factory implements TypeAdapterFactory {
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public <T> TypeAdapter<T> create(final Gson gson, final TypeToken<T> typeToken) {
+            if (typeToken.getRawType() != GenericResponse.class) {
+                return null;
+            }
+            return (TypeAdapter<T>) new GenericResponseTypeAdapter(gson);
+        }
+    }
+}
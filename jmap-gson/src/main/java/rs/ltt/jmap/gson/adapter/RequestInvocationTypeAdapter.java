@@ -19,33 +19,31 @@ package rs.ltt.jmap.gson.adapter;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.gson.TypeAdapter;
+import com.google.gson.TypeAdapterFactory;
+import com.google.gson.reflect.TypeToken;
 import com.google.gson.stream.JsonReader;
 import com.google.gson.stream.JsonWriter;
 import rs.ltt.jmap.common.Request;
 import rs.ltt.jmap.common.method.MethodCall;
-import rs.ltt.jmap.gson.JmapAdapters;
 
 import java.io.IOException;
 
 import static rs.ltt.jmap.common.util.Mapper.METHOD_CALLS;
 
+/**
+ * Writes the method call of an invocation directly into the JSON stream. Null values are omitted with the exception of
+ * {@link rs.ltt.jmap.common.util.Patches.Null} which explicitly serializes to null.
+ */
 public class RequestInvocationTypeAdapter extends TypeAdapter<Request.Invocation> {
 
-    private static final Gson REGULAR_GSON;
-    private static final Gson NULL_SERIALIZING_GSON;
-
+    private final Gson gson;
 
-    static {
-        GsonBuilder regularBuilder = new GsonBuilder();
-        JmapAdapters.register(regularBuilder);
-        REGULAR_GSON = regularBuilder.create();
-        GsonBuilder nullSerializingBuilder = new GsonBuilder();
-        nullSerializingBuilder.serializeNulls();
-        NULL_SERIALIZING_GSON = nullSerializingBuilder.create();
+    private RequestInvocationTypeAdapter(final Gson gson) {
+        this.gson = gson;
     }
 
     public static void register(final GsonBuilder builder) {
-        builder.registerTypeAdapter(Request.Invocation.class, new RequestInvocationTypeAdapter());
+        builder.registerTypeAdapterFactory(new Factory());
     }
 
     @Override
@@ -58,13 +56,34 @@ public class RequestInvocationTypeAdapter extends TypeAdapter<Request.Invocation
         }
         jsonWriter.beginArray();
         jsonWriter.value(name);
-        NULL_SERIALIZING_GSON.toJson(REGULAR_GSON.toJsonTree(methodCall), jsonWriter);
+        final boolean serializeNulls = jsonWriter.getSerializeNulls();
+        jsonWriter.setSerializeNulls(false);
+        writeMethodCall(jsonWriter, methodCall);
+        jsonWriter.setSerializeNulls(serializeNulls);
         jsonWriter.value(invocation.getId());
         jsonWriter.endArray();
     }
 
+    @SuppressWarnings("unchecked")
+    private <T extends MethodCall> void writeMethodCall(final JsonWriter jsonWriter, final T methodCall) throws IOException {
+        final TypeAdapter<T> adapter = (TypeAdapter<T>) gson.getAdapter(methodCall.getClass());
+        adapter.write(jsonWriter, methodCall);
+    }
+
     @Override
     public Request.Invocation read(JsonReader jsonReader) throws IOException {
         throw new IOException("No deserialization support for Request.Invocation via Type Adapter");
     }
+
+    private static class Factory implements TypeAdapterFactory {
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public <T> TypeAdapter<T> create(final Gson gson, final TypeToken<T> typeToken) {
+            if (typeToken.getRawType() != Request.Invocation.class) {
+                return null;
+            }
+            return (TypeAdapter<T>) new RequestInvocationTypeAdapter(gson);
+        }
+    }
 }
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2019 Daniel Gultsch
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package rs.ltt.jmap.gson.adapter;
+
+import com.google.gson.*;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import rs.ltt.jmap.common.Response;
+import rs.ltt.jmap.common.method.MethodErrorResponse;
+import rs.ltt.jmap.common.method.MethodResponse;
+import rs.ltt.jmap.common.util.Mapper;
+
+import java.io.IOException;
+
+/**
+ * Reads the method response of an invocation straight from the stream. Since the name of the method response is the
+ * first element of the invocation array the type of the arguments object is known before reading it. Only error
+ * responses, which have to be inspected for their type, are buffered in a {@link JsonObject}.
+ */
+public class ResponseInvocationTypeAdapter extends TypeAdapter<Response.Invocation> {
+
+    private final Gson gson;
+
+    private ResponseInvocationTypeAdapter(final Gson gson) {
+        this.gson = gson;
+    }
+
+    public static void register(final GsonBuilder builder) {
+        builder.registerTypeAdapterFactory(new Factory());
+    }
+
+    @Override
+    public void write(JsonWriter jsonWriter, Response.Invocation invocation) throws IOException {
+        throw new IOException("No serialization support for Response.Invocation via Type Adapter");
+    }
+
+    @Override
+    public Response.Invocation read(JsonReader jsonReader) throws IOException {
+        if (jsonReader.peek() != JsonToken.BEGIN_ARRAY) {
+            throw new JsonParseException("Expected JSON array for invocation");
+        }
+        jsonReader.beginArray();
+        final String name = jsonReader.nextString();
+        if (jsonReader.peek() != JsonToken.BEGIN_OBJECT) {
+            throw new JsonParseException("Parameter (index 1 of JsonArray) must be of type object");
+        }
+        final MethodResponse methodResponse;
+        if ("error".equals(name)) {
+            final JsonObject jsonObject = gson.getAdapter(JsonObject.class).read(jsonReader);
+            final String errorType = jsonObject.get("type").getAsString();
+            final Class<? extends MethodErrorResponse> customErrorClazz = Mapper.METHOD_ERROR_RESPONSES.get(errorType);
+            final Class<? extends MethodErrorResponse> clazz = customErrorClazz != null ? customErrorClazz : MethodErrorResponse.class;
+            methodResponse = gson.getAdapter(clazz).fromJsonTree(jsonObject);
+        } else {
+            final Class<? extends MethodResponse> clazz = Mapper.METHOD_RESPONSES.get(name);
+            if (clazz == null) {
+                throw new JsonParseException("Unknown method response '" + name + "'");
+            }
+            methodResponse = gson.getAdapter(clazz).read(jsonReader);
+        }
+        final String id = jsonReader.nextString();
+        if (jsonReader.hasNext()) {
+            throw new JsonParseException("Invocation array has more than 3 values. Expected 3");
+        }
+        jsonReader.endArray();
+        return new Response.Invocation(methodResponse, id);
+    }
+
+    private static class Factory implements TypeAdapterFactory {
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public <T> TypeAdapter<T> create(final Gson gson, final TypeToken<T> typeToken) {
+            if (typeToken.getRawType() != Response.Invocation.class) {
+                return null;
+            }
+            return (TypeAdapter<T>) new ResponseInvocationTypeAdapter(gson);
+        }
+    }
+}
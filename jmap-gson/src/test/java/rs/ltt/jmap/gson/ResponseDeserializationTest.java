@@ -20,6 +20,14 @@ public class ResponseDeserializationTest extends AbstractGsonTest {
         Assert.assertNotNull(response.getMethodResponses());
         Assert.assertEquals(response.getMethodResponses().length, 2);
         Assert.assertThat(response.getMethodResponses()[1].getMethodResponse(), instanceOf(RequestTooLargeMethodErrorResponse.class));
+        Assert.assertEquals("0", response.getSessionState());
+    }
+
+    @Test
+    public void deserializeWithSharedGson() throws IOException {
+        GenericResponse genericResponse = JmapAdapters.gson().fromJson(readResourceAsString("response/mailbox-get-email-get.json"), GenericResponse.class);
+        Assert.assertThat(genericResponse, instanceOf(Response.class));
+        Assert.assertSame(JmapAdapters.gson(), JmapAdapters.gson());
     }
 
 }
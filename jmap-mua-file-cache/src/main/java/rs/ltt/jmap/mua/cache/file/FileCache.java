@@ -0,0 +1,663 @@
+/*
+ * Copyright 2020 Daniel Gultsch
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package rs.ltt.jmap.mua.cache.file;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParseException;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonWriter;
+import org.checkerframework.checker.nullness.compatqual.NonNullDecl;
+import org.checkerframework.checker.nullness.compatqual.NullableDecl;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import rs.ltt.jmap.common.entity.Thread;
+import rs.ltt.jmap.common.entity.*;
+import rs.ltt.jmap.gson.JmapAdapters;
+import rs.ltt.jmap.mua.cache.*;
+import rs.ltt.jmap.mua.util.QueryResult;
+import rs.ltt.jmap.mua.util.QueryResultItem;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Type;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A {@link Cache} that survives restarts of the process. All objects are held in memory (and read from there) just
+ * like with the {@link InMemoryCache}. In addition every write is appended to a write-ahead log and flushed to disk
+ * before the method returns. Once the log grows beyond the compaction threshold a snapshot of the entire cache is
+ * written and the log starts over.
+ * <p>
+ * On start up the snapshot and the log are read via memory mapped buffers and replayed. This restores the object
+ * states as well; a subsequent refresh() will only have to fetch the changes since. Memory mapping is only used while
+ * restoring; the entire data set is kept on the heap afterwards, so the cache is limited by the available heap and not
+ * by the size of the files.
+ */
+public class FileCache extends InMemoryCache implements Closeable {
+
+    public static final long DEFAULT_COMPACTION_THRESHOLD = 16 * 1024 * 1024;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(FileCache.class);
+
+    private static final String SNAPSHOT = "snapshot";
+    private static final String SNAPSHOT_TEMP = "snapshot.tmp";
+    private static final String LOG_PREFIX = "log-";
+
+    private static final int SNAPSHOT_BATCH_SIZE = 1000;
+
+    private final Gson gson = JmapAdapters.gson();
+    private final Object writeLock = new Object();
+    private final File directory;
+    private final long compactionThreshold;
+
+    private long generation = 0;
+    private RecordFile log;
+
+    public FileCache(final File directory) throws IOException {
+        this(directory, DEFAULT_COMPACTION_THRESHOLD);
+    }
+
+    public FileCache(final File directory, final long compactionThreshold) throws IOException {
+        this(directory, compactionThreshold, null, null);
+    }
+
+    /**
+     * Restores a cache that retains at most (roughly) the given number of bytes of email body values. See
+     * {@link InMemoryCache#InMemoryCache(long)}.
+     */
+    public FileCache(final File directory, final long compactionThreshold, final long maxBodyValueBytes) throws IOException {
+        this(directory, compactionThreshold, Long.valueOf(maxBodyValueBytes), null);
+    }
+
+    /**
+     * Restores a cache that maintains a full-text index. The index is rebuilt from the restored emails. See
+     * {@link InMemoryCache#InMemoryCache(FullTextIndex)}.
+     *
+     * @param fullTextIndex an empty index
+     */
+    public FileCache(final File directory, final long compactionThreshold, @NonNullDecl final FullTextIndex fullTextIndex) throws IOException {
+        this(directory, compactionThreshold, null, Preconditions.checkNotNull(fullTextIndex));
+    }
+
+    /**
+     * Combines {@link #FileCache(File, long, long)} and {@link #FileCache(File, long, FullTextIndex)}.
+     */
+    public FileCache(final File directory, final long compactionThreshold, final long maxBodyValueBytes, @NonNullDecl final FullTextIndex fullTextIndex) throws IOException {
+        this(directory, compactionThreshold, Long.valueOf(maxBodyValueBytes), Preconditions.checkNotNull(fullTextIndex));
+    }
+
+    private FileCache(final File directory,
+                      final long compactionThreshold,
+                      @NullableDecl final Long maxBodyValueBytes,
+                      @NullableDecl final FullTextIndex fullTextIndex) throws IOException {
+        super(maxBodyValueBytes, fullTextIndex);
+        Preconditions.checkArgument(compactionThreshold > 0, "compactionThreshold must be positive");
+        this.directory = directory;
+        this.compactionThreshold = compactionThreshold;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException(String.format("Unable to create cache directory %s", directory));
+        }
+        synchronized (writeLock) {
+            restore();
+        }
+    }
+
+    private void restore() throws IOException {
+        final RecordFile.Records snapshot = RecordFile.read(new File(directory, SNAPSHOT));
+        if (!snapshot.complete) {
+            throw new IOException(String.format("Snapshot in %s is corrupt", directory));
+        }
+        for (final byte[] record : snapshot.records) {
+            try {
+                replay(decode(record));
+            } catch (final RuntimeException | CacheWriteException e) {
+                throw new IOException(String.format("Unable to restore snapshot in %s", directory), e);
+            }
+        }
+        final File logFile = logFile(generation);
+        final RecordFile.Records records = RecordFile.read(logFile);
+        int replayed = 0;
+        for (final byte[] record : records.records) {
+            try {
+                replay(decode(record));
+            } catch (final RuntimeException | CacheWriteException e) {
+                LOGGER.warn("Unable to replay log entry. Discarding remaining log", e);
+                break;
+            }
+            ++replayed;
+        }
+        if (!records.complete) {
+            LOGGER.warn("Log ended with an incomplete entry. Discarding");
+        }
+        LOGGER.debug("Restored cache with {} snapshot entries and {} log entries", snapshot.records.size(), replayed);
+        this.log = RecordFile.open(logFile, records.validLength(replayed));
+        deleteStaleFiles();
+    }
+
+    private void deleteStaleFiles() {
+        final File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        final String current = logFile(generation).getName();
+        for (final File file : files) {
+            final String name = file.getName();
+            if ((name.startsWith(LOG_PREFIX) && !name.equals(current)) || name.equals(SNAPSHOT_TEMP)) {
+                if (!file.delete()) {
+                    LOGGER.warn("Unable to delete stale cache file {}", file);
+                }
+            }
+        }
+    }
+
+    private File logFile(final long generation) {
+        return new File(directory, LOG_PREFIX + generation);
+    }
+
+    @Override
+    public void setMailboxes(final TypedState<Mailbox> state, final Mailbox[] mailboxes) {
+        synchronized (writeLock) {
+            super.setMailboxes(state, mailboxes);
+            persist(Operation.SET_MAILBOXES, new ObjectsRecord<>(state.getState(), mailboxes));
+        }
+    }
+
+    @Override
+    public void updateMailboxes(final Update<Mailbox> update, final String[] updatedProperties) throws CacheWriteException {
+        synchronized (writeLock) {
+            super.updateMailboxes(update, updatedProperties);
+            persistChecked(Operation.UPDATE_MAILBOXES, new UpdateRecord<>(update, updatedProperties));
+        }
+    }
+
+    @Override
+    public void setThreadsAndEmails(final TypedState<Thread> threadState, final Thread[] threads, final TypedState<Email> emailState, final Email[] emails) {
+        synchronized (writeLock) {
+            super.setThreadsAndEmails(threadState, threads, emailState, emails);
+            persist(Operation.SET_THREADS_AND_EMAILS, new ThreadsAndEmailsRecord(threadState, threads, emailState, emails));
+        }
+    }
+
+    @Override
+    public void addThreadsAndEmail(final TypedState<Thread> threadState, final Thread[] threads, final TypedState<Email> emailState, final Email[] emails) {
+        synchronized (writeLock) {
+            super.addThreadsAndEmail(threadState, threads, emailState, emails);
+            persist(Operation.ADD_THREADS_AND_EMAILS, new ThreadsAndEmailsRecord(threadState, threads, emailState, emails));
+        }
+    }
+
+    @Override
+    public void updateThreads(final Update<Thread> update) throws CacheWriteException {
+        synchronized (writeLock) {
+            super.updateThreads(update);
+            persistChecked(Operation.UPDATE_THREADS, new UpdateRecord<>(update, null));
+        }
+    }
+
+    @Override
+    public void updateEmails(final Update<Email> update, final String[] updatedProperties) throws CacheWriteException {
+        synchronized (writeLock) {
+            super.updateEmails(update, updatedProperties);
+            persistChecked(Operation.UPDATE_EMAILS, new UpdateRecord<>(update, updatedProperties));
+        }
+    }
+
+    @Override
+    public void setEmailBody(final Email email) {
+        synchronized (writeLock) {
+            super.setEmailBody(email);
+            persist(Operation.SET_EMAIL_BODY, email);
+        }
+    }
+
+    @Override
+    public void setIdentities(final TypedState<Identity> state, final Identity[] identities) {
+        synchronized (writeLock) {
+            super.setIdentities(state, identities);
+            persist(Operation.SET_IDENTITIES, new ObjectsRecord<>(state.getState(), identities));
+        }
+    }
+
+    @Override
+    public void updateIdentities(final Update<Identity> update) throws CacheWriteException {
+        synchronized (writeLock) {
+            super.updateIdentities(update);
+            persistChecked(Operation.UPDATE_IDENTITIES, new UpdateRecord<>(update, null));
+        }
+    }
+
+    @Override
+    public void setQueryResult(final String query, final QueryResult queryResult) {
+        synchronized (writeLock) {
+            super.setQueryResult(query, queryResult);
+            persist(Operation.SET_QUERY_RESULT, new QueryResultRecord(query, null, queryResult));
+        }
+    }
+
+    @Override
+    public void addQueryResult(final String query, final String afterId, final QueryResult queryResult) throws CacheWriteException {
+        synchronized (writeLock) {
+            super.addQueryResult(query, afterId, queryResult);
+            persistChecked(Operation.ADD_QUERY_RESULT, new QueryResultRecord(query, afterId, queryResult));
+        }
+    }
+
+    @Override
+    public void updateQueryResults(final String query, final QueryUpdate<Email, QueryResultItem> update, final TypedState<Email> emailState) throws CacheWriteException {
+        synchronized (writeLock) {
+            super.updateQueryResults(query, update, emailState);
+            persistChecked(Operation.UPDATE_QUERY_RESULTS, new QueryUpdateRecord(query, update, emailState));
+        }
+    }
+
+    @Override
+    public void invalidateQueryResult(final String query) {
+        synchronized (writeLock) {
+            super.invalidateQueryResult(query);
+            persist(Operation.INVALIDATE_QUERY_RESULT, query);
+        }
+    }
+
+    private void persistChecked(final Operation operation, final Object payload) throws CacheWriteException {
+        try {
+            persist(operation, payload);
+        } catch (final UncheckedIOException e) {
+            throw new CacheWriteException(e.getCause());
+        }
+    }
+
+    /**
+     * Appends the operation to the log. The in-memory state has already been modified at this point. If appending
+     * fails we try to write a snapshot of the in-memory state instead, so that the log never misses an entry.
+     */
+    private void persist(final Operation operation, final Object payload) {
+        try {
+            log.append(encode(operation, payload));
+            if (log.size() > compactionThreshold) {
+                compact();
+            }
+        } catch (final IOException e) {
+            LOGGER.warn("Unable to append to log. Writing snapshot instead", e);
+            try {
+                compact();
+            } catch (final IOException snapshotException) {
+                throw new UncheckedIOException(snapshotException);
+            }
+        }
+    }
+
+    /**
+     * Writes a snapshot of the entire cache and starts a new (empty) log. The snapshot is written to a temporary file
+     * and then moved into place. A crash before the move leaves the previous snapshot and log intact; a crash after
+     * the move leaves the new snapshot referencing the new log.
+     */
+    public void compact() throws IOException {
+        synchronized (writeLock) {
+            final long next = generation + 1;
+            final RecordFile nextLog = RecordFile.open(logFile(next), 0);
+            final File temp = new File(directory, SNAPSHOT_TEMP);
+            try (final RecordFile snapshot = RecordFile.open(temp, 0)) {
+                writeSnapshot(snapshot, next);
+                snapshot.sync();
+            } catch (final IOException e) {
+                nextLog.close();
+                throw e;
+            }
+            Files.move(temp.toPath(), new File(directory, SNAPSHOT).toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            syncDirectory();
+            final RecordFile previous = this.log;
+            this.log = nextLog;
+            this.generation = next;
+            if (previous != null) {
+                previous.close();
+            }
+            deleteStaleFiles();
+        }
+    }
+
+    private void syncDirectory() {
+        try (final FileChannel channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (final IOException e) {
+            //not supported on all platforms
+            LOGGER.debug("Unable to sync cache directory", e);
+        }
+    }
+
+    private void writeSnapshot(final RecordFile snapshot, final long generation) throws IOException {
+        snapshot.write(encode(Operation.GENERATION, generation));
+        final ObjectsState objectsState = getObjectsState();
+        synchronized (this.mailboxes) {
+            snapshot.write(encode(Operation.SET_MAILBOXES, new ObjectsRecord<>(
+                    objectsState.mailboxState,
+                    this.mailboxes.values().toArray(new Mailbox[0])
+            )));
+        }
+        synchronized (this.identities) {
+            snapshot.write(encode(Operation.SET_IDENTITIES, new ObjectsRecord<>(
+                    getIdentityState(),
+                    this.identities.values().toArray(new Identity[0])
+            )));
+        }
+        final Thread[] threads;
+        synchronized (this.threads) {
+            threads = this.threads.values().toArray(new Thread[0]);
+        }
+        final Email[] emails;
+        synchronized (this.emails) {
+            emails = this.emails.values().toArray(new Email[0]);
+        }
+        writeThreadsAndEmails(snapshot, objectsState, threads, emails);
+        if (objectsState.emailState == null) {
+            return;
+        }
+        synchronized (this.queryResults) {
+            for (final Map.Entry<String, InMemoryQueryResult> entry : this.queryResults.entrySet()) {
+                final InMemoryQueryResult queryResult = entry.getValue();
+                if (queryResult.isProvisional()) {
+                    //provisional results are cheap to evaluate again
+                    continue;
+                }
+                snapshot.write(encode(Operation.SET_QUERY_RESULT, new QueryResultRecord(
+                        entry.getKey(),
+                        null,
+                        QueryResult.of(
+                                queryResult.getItems().toArray(new QueryResultItem[0]),
+                                TypedState.of(queryResult.getQueryState()),
+                                queryResult.isCanCalculateChanges(),
+                                0,
+                                TypedState.of(objectsState.emailState)
+                        )
+                )));
+            }
+        }
+    }
+
+    /**
+     * Writes threads and emails in batches of at most {@link #SNAPSHOT_BATCH_SIZE} so that no single record grows
+     * with the size of the cache. A leading record sets the states; the batches are added on top of them.
+     */
+    private void writeThreadsAndEmails(final RecordFile snapshot,
+                                       final ObjectsState objectsState,
+                                       final Thread[] threads,
+                                       final Email[] emails) throws IOException {
+        final TypedState<Thread> threadState = TypedState.of(objectsState.threadState);
+        final TypedState<Email> emailState = TypedState.of(objectsState.emailState);
+        if (objectsState.threadState == null || objectsState.emailState == null) {
+            //adding requires a state to add to. Without one the objects have never been fetched from a server
+            snapshot.write(encode(Operation.SET_THREADS_AND_EMAILS, new ThreadsAndEmailsRecord(threadState, threads, emailState, emails)));
+            return;
+        }
+        snapshot.write(encode(Operation.SET_THREADS_AND_EMAILS, new ThreadsAndEmailsRecord(threadState, new Thread[0], emailState, new Email[0])));
+        for (int i = 0; i < threads.length; i += SNAPSHOT_BATCH_SIZE) {
+            snapshot.write(encode(Operation.ADD_THREADS_AND_EMAILS, new ThreadsAndEmailsRecord(
+                    threadState,
+                    Arrays.copyOfRange(threads, i, Math.min(threads.length, i + SNAPSHOT_BATCH_SIZE)),
+                    emailState,
+                    new Email[0]
+            )));
+        }
+        for (int i = 0; i < emails.length; i += SNAPSHOT_BATCH_SIZE) {
+            snapshot.write(encode(Operation.ADD_THREADS_AND_EMAILS, new ThreadsAndEmailsRecord(
+                    threadState,
+                    new Thread[0],
+                    emailState,
+                    Arrays.copyOfRange(emails, i, Math.min(emails.length, i + SNAPSHOT_BATCH_SIZE))
+            )));
+        }
+    }
+
+    private void replay(final Entry entry) throws CacheWriteException {
+        final JsonElement payload = entry.payload;
+        switch (entry.operation) {
+            case GENERATION:
+                this.generation = payload.getAsLong();
+                break;
+            case SET_MAILBOXES: {
+                final ObjectsRecord<Mailbox> record = gson.fromJson(payload, new TypeToken<ObjectsRecord<Mailbox>>() {
+                }.getType());
+                super.setMailboxes(TypedState.of(record.state), record.objects);
+                break;
+            }
+            case UPDATE_MAILBOXES: {
+                final UpdateRecord<Mailbox> record = gson.fromJson(payload, updateRecordType(Mailbox.class));
+                super.updateMailboxes(record.toUpdate(), record.updatedProperties);
+                break;
+            }
+            case SET_THREADS_AND_EMAILS: {
+                final ThreadsAndEmailsRecord record = gson.fromJson(payload, ThreadsAndEmailsRecord.class);
+                super.setThreadsAndEmails(TypedState.of(record.threadState), record.threads, TypedState.of(record.emailState), record.emails);
+                break;
+            }
+            case ADD_THREADS_AND_EMAILS: {
+                final ThreadsAndEmailsRecord record = gson.fromJson(payload, ThreadsAndEmailsRecord.class);
+                super.addThreadsAndEmail(TypedState.of(record.threadState), record.threads, TypedState.of(record.emailState), record.emails);
+                break;
+            }
+            case UPDATE_THREADS: {
+                final UpdateRecord<Thread> record = gson.fromJson(payload, updateRecordType(Thread.class));
+                super.updateThreads(record.toUpdate());
+                break;
+            }
+            case UPDATE_EMAILS: {
+                final UpdateRecord<Email> record = gson.fromJson(payload, updateRecordType(Email.class));
+                super.updateEmails(record.toUpdate(), record.updatedProperties);
+                break;
+            }
+            case SET_EMAIL_BODY:
+                super.setEmailBody(gson.fromJson(payload, Email.class));
+                break;
+            case SET_IDENTITIES: {
+                final ObjectsRecord<Identity> record = gson.fromJson(payload, new TypeToken<ObjectsRecord<Identity>>() {
+                }.getType());
+                super.setIdentities(TypedState.of(record.state), record.objects);
+                break;
+            }
+            case UPDATE_IDENTITIES: {
+                final UpdateRecord<Identity> record = gson.fromJson(payload, updateRecordType(Identity.class));
+                super.updateIdentities(record.toUpdate());
+                break;
+            }
+            case SET_QUERY_RESULT: {
+                final QueryResultRecord record = gson.fromJson(payload, QueryResultRecord.class);
+                super.setQueryResult(record.query, record.toQueryResult());
+                break;
+            }
+            case ADD_QUERY_RESULT: {
+                final QueryResultRecord record = gson.fromJson(payload, QueryResultRecord.class);
+                super.addQueryResult(record.query, record.afterId, record.toQueryResult());
+                break;
+            }
+            case UPDATE_QUERY_RESULTS: {
+                final QueryUpdateRecord record = gson.fromJson(payload, QueryUpdateRecord.class);
+                super.updateQueryResults(record.query, record.toQueryUpdate(), TypedState.of(record.emailState));
+                break;
+            }
+            case INVALIDATE_QUERY_RESULT:
+                super.invalidateQueryResult(payload.getAsString());
+                break;
+            default:
+                throw new IllegalStateException(String.format("Unknown operation %s", entry.operation));
+        }
+    }
+
+    private static Type updateRecordType(final Class<? extends AbstractIdentifiableEntity> clazz) {
+        return TypeToken.getParameterized(UpdateRecord.class, clazz).getType();
+    }
+
+    /**
+     * Serializes the record straight into its UTF-8 bytes without building an intermediate JSON tree or String.
+     */
+    private byte[] encode(final Operation operation, final Object payload) {
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        try (final JsonWriter writer = gson.newJsonWriter(new OutputStreamWriter(buffer, Charsets.UTF_8))) {
+            writer.beginObject();
+            writer.name("operation").value(operation.name());
+            writer.name("payload");
+            gson.toJson(payload, payload.getClass(), writer);
+            writer.endObject();
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return buffer.toByteArray();
+    }
+
+    private Entry decode(final byte[] record) {
+        final Entry entry = gson.fromJson(new String(record, Charsets.UTF_8), Entry.class);
+        if (entry == null || entry.operation == null) {
+            throw new JsonParseException("Log entry is missing its operation");
+        }
+        return entry;
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (writeLock) {
+            log.close();
+        }
+    }
+
+    private enum Operation {
+        GENERATION,
+        SET_MAILBOXES,
+        UPDATE_MAILBOXES,
+        SET_THREADS_AND_EMAILS,
+        ADD_THREADS_AND_EMAILS,
+        UPDATE_THREADS,
+        UPDATE_EMAILS,
+        SET_EMAIL_BODY,
+        SET_IDENTITIES,
+        UPDATE_IDENTITIES,
+        SET_QUERY_RESULT,
+        ADD_QUERY_RESULT,
+        UPDATE_QUERY_RESULTS,
+        INVALIDATE_QUERY_RESULT
+    }
+
+    private static class Entry {
+        private Operation operation;
+        private JsonElement payload;
+    }
+
+    private static class ObjectsRecord<T extends AbstractIdentifiableEntity> {
+        private String state;
+        private T[] objects;
+
+        private ObjectsRecord(final String state, final T[] objects) {
+            this.state = state;
+            this.objects = objects;
+        }
+    }
+
+    private static class UpdateRecord<T extends AbstractIdentifiableEntity> {
+        private String oldState;
+        private String newState;
+        private T[] created;
+        private T[] updated;
+        private String[] destroyed;
+        private boolean hasMore;
+        private String[] updatedProperties;
+
+        private UpdateRecord(final Update<T> update, final String[] updatedProperties) {
+            this.oldState = update.getOldTypedState() == null ? null : update.getOldTypedState().getState();
+            this.newState = update.getNewTypedState().getState();
+            this.created = update.getCreated();
+            this.updated = update.getUpdated();
+            this.destroyed = update.getDestroyed();
+            this.hasMore = update.isHasMore();
+            this.updatedProperties = updatedProperties;
+        }
+
+        private Update<T> toUpdate() {
+            return Update.of(TypedState.of(oldState), TypedState.of(newState), created, updated, destroyed, hasMore);
+        }
+    }
+
+    private static class ThreadsAndEmailsRecord {
+        private String threadState;
+        private Thread[] threads;
+        private String emailState;
+        private Email[] emails;
+
+        private ThreadsAndEmailsRecord(final TypedState<Thread> threadState, final Thread[] threads, final TypedState<Email> emailState, final Email[] emails) {
+            this.threadState = threadState.getState();
+            this.threads = threads;
+            this.emailState = emailState.getState();
+            this.emails = emails;
+        }
+    }
+
+    private static class QueryResultRecord {
+        private String query;
+        private String afterId;
+        private QueryResultItem[] items;
+        private String queryState;
+        private boolean canCalculateChanges;
+        private long position;
+        private String objectState;
+
+        private QueryResultRecord(final String query, final String afterId, final QueryResult queryResult) {
+            this.query = query;
+            this.afterId = afterId;
+            this.items = queryResult.items;
+            this.queryState = queryResult.queryState.getState();
+            this.canCalculateChanges = queryResult.canCalculateChanges;
+            this.position = queryResult.position;
+            this.objectState = queryResult.objectState.getState();
+        }
+
+        private QueryResult toQueryResult() {
+            return QueryResult.of(items, TypedState.of(queryState), canCalculateChanges, position, TypedState.of(objectState));
+        }
+    }
+
+    private static class QueryUpdateRecord {
+        private String query;
+        private String oldState;
+        private String newState;
+        private String[] removed;
+        private List<AddedItem<QueryResultItem>> added;
+        private String emailState;
+
+        private QueryUpdateRecord(final String query, final QueryUpdate<Email, QueryResultItem> update, final TypedState<Email> emailState) {
+            this.query = query;
+            this.oldState = update.getOldTypedState().getState();
+            this.newState = update.getNewTypedState().getState();
+            this.removed = update.getRemoved();
+            this.added = new ArrayList<>(update.getAdded());
+            this.emailState = emailState.getState();
+        }
+
+        private QueryUpdate<Email, QueryResultItem> toQueryUpdate() {
+            return QueryUpdate.of(TypedState.of(oldState), TypedState.of(newState), removed, added);
+        }
+    }
+}
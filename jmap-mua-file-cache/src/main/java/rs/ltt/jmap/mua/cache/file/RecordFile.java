@@ -0,0 +1,201 @@
+/*
+ * Copyright 2020 Daniel Gultsch
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package rs.ltt.jmap.mua.cache.file;
+
+import com.google.common.collect.ImmutableList;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * An append only file of records. Every record is prefixed with its length and a CRC32 checksum. A record that has
+ * only been partially written (for example because the process crashed during the write) fails either the length
+ * or the checksum test and marks the end of the readable file.
+ */
+final class RecordFile implements Closeable {
+
+    private static final int HEADER_SIZE = 8;
+
+    /**
+     * The number of bytes mapped at once; a single mapping can not exceed 2 GiB.
+     */
+    private static final long WINDOW_SIZE = 64 * 1024 * 1024;
+
+    private final FileChannel channel;
+
+    private RecordFile(final FileChannel channel) {
+        this.channel = channel;
+    }
+
+    /**
+     * Opens the file for appending. The file is truncated to validLength first; discarding the remains of a
+     * partially written record.
+     */
+    static RecordFile open(final File file, final long validLength) throws IOException {
+        final FileChannel channel = FileChannel.open(
+                file.toPath(),
+                StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE
+        );
+        channel.truncate(validLength);
+        channel.position(validLength);
+        return new RecordFile(channel);
+    }
+
+    /**
+     * Reads all intact records. The file is mapped into memory one window at a time; the records themselves are
+     * copied onto the heap.
+     */
+    static Records read(final File file) throws IOException {
+        return read(file, WINDOW_SIZE);
+    }
+
+    static Records read(final File file, final long windowSize) throws IOException {
+        if (!file.exists()) {
+            return new Records(ImmutableList.of(), ImmutableList.of(), true);
+        }
+        try (final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            final long size = channel.size();
+            final Window window = new Window(channel, size, windowSize);
+            final ImmutableList.Builder<byte[]> records = ImmutableList.builder();
+            final ImmutableList.Builder<Long> offsets = ImmutableList.builder();
+            long validLength = 0;
+            while (size - validLength >= HEADER_SIZE) {
+                final ByteBuffer header = window.at(validLength, HEADER_SIZE);
+                final int length = header.getInt();
+                final int checksum = header.getInt();
+                if (length < 0 || length > size - validLength - HEADER_SIZE) {
+                    break;
+                }
+                final byte[] record = new byte[length];
+                window.at(validLength + HEADER_SIZE, length).get(record);
+                if (checksum(record) != checksum) {
+                    break;
+                }
+                records.add(record);
+                validLength += HEADER_SIZE + length;
+                offsets.add(validLength);
+            }
+            return new Records(records.build(), offsets.build(), validLength == size);
+        }
+    }
+
+    void write(final byte[] record) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + record.length);
+        buffer.putInt(record.length);
+        buffer.putInt(checksum(record));
+        buffer.put(record);
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Writes the record and waits until it has reached the storage device.
+     */
+    void append(final byte[] record) throws IOException {
+        write(record);
+        sync();
+    }
+
+    void sync() throws IOException {
+        channel.force(false);
+    }
+
+    long size() throws IOException {
+        return channel.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private static int checksum(final byte[] record) {
+        final CRC32 crc32 = new CRC32();
+        crc32.update(record, 0, record.length);
+        return (int) crc32.getValue();
+    }
+
+    private static class Window {
+
+        private final FileChannel channel;
+        private final long size;
+        private final long windowSize;
+        private MappedByteBuffer buffer;
+        private long start;
+
+        private Window(final FileChannel channel, final long size, final long windowSize) {
+            this.channel = channel;
+            this.size = size;
+            this.windowSize = windowSize;
+        }
+
+        /**
+         * @return a buffer positioned at the given offset of the file with at least length bytes remaining. The
+         * window is moved if the range is not mapped yet.
+         */
+        private ByteBuffer at(final long position, final int length) throws IOException {
+            if (buffer == null || position < start || position + length > start + buffer.capacity()) {
+                start = position;
+                buffer = channel.map(
+                        FileChannel.MapMode.READ_ONLY,
+                        position,
+                        Math.min(size - position, Math.max(windowSize, length))
+                );
+            }
+            buffer.position((int) (position - start));
+            return buffer;
+        }
+    }
+
+    static class Records {
+
+        /**
+         * The intact records in the order they were written.
+         */
+        final List<byte[]> records;
+
+        /**
+         * The offset right after each record.
+         */
+        final List<Long> offsets;
+
+        /**
+         * Whether or not the file ended with an intact record.
+         */
+        final boolean complete;
+
+        private Records(final List<byte[]> records, final List<Long> offsets, final boolean complete) {
+            this.records = records;
+            this.offsets = offsets;
+            this.complete = complete;
+        }
+
+        long validLength(final int count) {
+            return count == 0 ? 0 : offsets.get(count - 1);
+        }
+    }
+}
@@ -0,0 +1,247 @@
+/*
+ * Copyright 2020 Daniel Gultsch
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package rs.ltt.jmap.mua.cache.file;
+
+import com.google.gson.*;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import rs.ltt.jmap.common.entity.Thread;
+import rs.ltt.jmap.common.entity.*;
+import rs.ltt.jmap.gson.JmapAdapters;
+import rs.ltt.jmap.mua.Mua;
+import rs.ltt.jmap.mua.Status;
+import rs.ltt.jmap.mua.cache.FullTextIndex;
+import rs.ltt.jmap.mua.cache.ObjectsState;
+import rs.ltt.jmap.mua.cache.QueryStateWrapper;
+import rs.ltt.jmap.mua.cache.Update;
+import rs.ltt.jmap.mua.util.QueryResult;
+import rs.ltt.jmap.mua.util.QueryResultItem;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class FileCacheTest {
+
+    private static final String QUERY = "inbox";
+    private static final String ACCOUNT_ID = "test@example.com";
+    private static final String WELL_KNOWN_PATH = ".well-known/jmap";
+
+    private static final Gson GSON = JmapAdapters.gson();
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void restoreAfterReopen() throws Exception {
+        final File directory = temporaryFolder.newFolder();
+        try (final FileCache cache = new FileCache(directory)) {
+            populate(cache);
+        }
+        try (final FileCache cache = new FileCache(directory)) {
+            assertPopulated(cache);
+        }
+    }
+
+    @Test
+    public void restoreAfterCompaction() throws Exception {
+        final File directory = temporaryFolder.newFolder();
+        try (final FileCache cache = new FileCache(directory, 1)) {
+            populate(cache);
+        }
+        final File[] logs = directory.listFiles((dir, name) -> name.startsWith("log-"));
+        Assert.assertNotNull(logs);
+        Assert.assertEquals(1, logs.length);
+        try (final FileCache cache = new FileCache(directory)) {
+            assertPopulated(cache);
+        }
+    }
+
+    @Test
+    public void restoreSnapshotWrittenInBatches() throws Exception {
+        final File directory = temporaryFolder.newFolder();
+        final int count = 2500;
+        final Thread[] threads = new Thread[count];
+        final Email[] emails = new Email[count];
+        for (int i = 0; i < count; ++i) {
+            threads[i] = GSON.fromJson("{\"id\":\"t" + i + "\",\"emailIds\":[\"e" + i + "\"]}", Thread.class);
+            emails[i] = GSON.fromJson("{\"id\":\"e" + i + "\",\"threadId\":\"t" + i + "\",\"keywords\":{}}", Email.class);
+        }
+        try (final FileCache cache = new FileCache(directory)) {
+            cache.setThreadsAndEmails(TypedState.of("t1"), threads, TypedState.of("e1"), emails);
+            cache.compact();
+        }
+        try (final FileCache cache = new FileCache(directory)) {
+            final ObjectsState objectsState = cache.getObjectsState();
+            Assert.assertEquals("t1", objectsState.threadState);
+            Assert.assertEquals("e1", objectsState.emailState);
+            Assert.assertNotNull(cache.getEmail("e0"));
+            Assert.assertNotNull(cache.getEmail("e" + (count - 1)));
+        }
+    }
+
+    @Test
+    public void ignoreIncompleteLogEntry() throws Exception {
+        final File directory = temporaryFolder.newFolder();
+        try (final FileCache cache = new FileCache(directory)) {
+            populate(cache);
+        }
+        try (final FileOutputStream outputStream = new FileOutputStream(new File(directory, "log-0"), true)) {
+            outputStream.write(new byte[]{0, 0, 1, 0, 42, 42});
+        }
+        try (final FileCache cache = new FileCache(directory)) {
+            assertPopulated(cache);
+            cache.invalidateQueryResult(QUERY);
+        }
+        try (final FileCache cache = new FileCache(directory)) {
+            Assert.assertNull(cache.getQueryState(QUERY).queryState);
+        }
+    }
+
+    @Test
+    public void refreshFromPersistedState() throws Exception {
+        final File directory = temporaryFolder.newFolder();
+        try (final FileCache cache = new FileCache(directory)) {
+            populate(cache);
+        }
+        final ChangesServer changesServer = new ChangesServer();
+        final MockWebServer server = new MockWebServer();
+        server.setDispatcher(changesServer);
+        server.start();
+        try (final FileCache cache = new FileCache(directory, FileCache.DEFAULT_COMPACTION_THRESHOLD, 1024 * 1024, new FullTextIndex());
+             final Mua mua = Mua.builder()
+                     .sessionResource(server.url(WELL_KNOWN_PATH))
+                     .username(ACCOUNT_ID)
+                     .password("secret")
+                     .accountId(ACCOUNT_ID)
+                     .cache(cache)
+                     .build()) {
+            assertPopulated(cache);
+            Assert.assertEquals(Status.UNCHANGED, mua.refresh().get());
+            Assert.assertEquals("m1", changesServer.sinceStates.get("Mailbox/changes"));
+            Assert.assertEquals("t1", changesServer.sinceStates.get("Thread/changes"));
+            Assert.assertEquals("e2", changesServer.sinceStates.get("Email/changes"));
+            Assert.assertEquals("e2", cache.getObjectsState().emailState);
+        }
+        server.shutdown();
+    }
+
+    private static void populate(final FileCache cache) throws Exception {
+        cache.setMailboxes(TypedState.of("m1"), new Mailbox[]{
+                GSON.fromJson("{\"id\":\"mb1\",\"name\":\"Inbox\",\"role\":\"inbox\"}", Mailbox.class)
+        });
+        cache.setThreadsAndEmails(
+                TypedState.of("t1"),
+                new Thread[]{GSON.fromJson("{\"id\":\"t1\",\"emailIds\":[\"e1\"]}", Thread.class)},
+                TypedState.of("e1"),
+                new Email[]{GSON.fromJson("{\"id\":\"e1\",\"threadId\":\"t1\",\"keywords\":{}}", Email.class)}
+        );
+        cache.setQueryResult(QUERY, QueryResult.of(
+                new QueryResultItem[]{QueryResultItem.of("e1", "t1")},
+                TypedState.of("q1"),
+                true,
+                0,
+                TypedState.of("e1")
+        ));
+        cache.updateEmails(Update.of(
+                TypedState.of("e1"),
+                TypedState.of("e2"),
+                new Email[0],
+                new Email[]{GSON.fromJson("{\"id\":\"e1\",\"threadId\":\"t1\",\"keywords\":{\"$seen\":true}}", Email.class)},
+                new String[0],
+                false
+        ), Email.Properties.MUTABLE);
+    }
+
+    private static void assertPopulated(final FileCache cache) throws Exception {
+        final ObjectsState objectsState = cache.getObjectsState();
+        Assert.assertEquals("m1", objectsState.mailboxState);
+        Assert.assertEquals("t1", objectsState.threadState);
+        Assert.assertEquals("e2", objectsState.emailState);
+        Assert.assertEquals(1, cache.getSpecialMailboxes().size());
+        final QueryStateWrapper queryStateWrapper = cache.getQueryState(QUERY);
+        Assert.assertEquals("q1", queryStateWrapper.queryState);
+        Assert.assertTrue(queryStateWrapper.canCalculateChanges);
+        Assert.assertEquals("e1", queryStateWrapper.upTo.id);
+        Assert.assertTrue(cache.getMissing(QUERY).threadIds.isEmpty());
+    }
+
+    /**
+     * Reports that nothing has changed since the state the client asks for and records those states.
+     */
+    private static class ChangesServer extends Dispatcher {
+
+        private static final String SESSION = "{\"username\":\"" + ACCOUNT_ID + "\",\"apiUrl\":\"/jmap/\",\"state\":\"0\","
+                + "\"capabilities\":{\"urn:ietf:params:jmap:core\":{\"maxSizeUpload\":1073741824,\"maxConcurrentUpload\":5,"
+                + "\"maxSizeRequest\":10485760,\"maxConcurrentRequests\":5,\"maxCallsInRequest\":50,\"maxObjectsInGet\":4096,"
+                + "\"maxObjectsInSet\":4096,\"collationAlgorithms\":[]},\"urn:ietf:params:jmap:mail\":{}},"
+                + "\"accounts\":{\"" + ACCOUNT_ID + "\":{\"name\":\"" + ACCOUNT_ID + "\",\"isPersonal\":true,\"isReadOnly\":false,"
+                + "\"accountCapabilities\":{\"urn:ietf:params:jmap:core\":{},\"urn:ietf:params:jmap:mail\":{}}}},"
+                + "\"primaryAccounts\":{\"urn:ietf:params:jmap:mail\":\"" + ACCOUNT_ID + "\"}}";
+
+        private final Map<String, String> sinceStates = new ConcurrentHashMap<>();
+
+        @Override
+        public MockResponse dispatch(final RecordedRequest request) {
+            if (request.getPath().contains(WELL_KNOWN_PATH)) {
+                return new MockResponse().setBody(SESSION);
+            }
+            final JsonObject jmapRequest = JsonParser.parseString(request.getBody().readUtf8()).getAsJsonObject();
+            final JsonArray methodResponses = new JsonArray();
+            for (final JsonElement element : jmapRequest.getAsJsonArray("methodCalls")) {
+                final JsonArray invocation = element.getAsJsonArray();
+                final String method = invocation.get(0).getAsString();
+                final JsonObject arguments = invocation.get(1).getAsJsonObject();
+                final JsonObject response = new JsonObject();
+                response.addProperty("accountId", ACCOUNT_ID);
+                if (method.endsWith("/changes")) {
+                    final String sinceState = arguments.get("sinceState").getAsString();
+                    sinceStates.put(method, sinceState);
+                    response.addProperty("oldState", sinceState);
+                    response.addProperty("newState", sinceState);
+                    response.addProperty("hasMoreChanges", false);
+                    response.add("created", new JsonArray());
+                    response.add("updated", new JsonArray());
+                    response.add("destroyed", new JsonArray());
+                } else if (method.endsWith("/get")) {
+                    response.addProperty("state", sinceStates.get(method.replace("/get", "/changes")));
+                    response.add("list", new JsonArray());
+                    response.add("notFound", new JsonArray());
+                } else {
+                    return new MockResponse().setResponseCode(400);
+                }
+                final JsonArray methodResponse = new JsonArray();
+                methodResponse.add(method);
+                methodResponse.add(response);
+                methodResponse.add(invocation.get(2));
+                methodResponses.add(methodResponse);
+            }
+            final JsonObject jmapResponse = new JsonObject();
+            jmapResponse.add("methodResponses", methodResponses);
+            jmapResponse.addProperty("sessionState", "0");
+            return new MockResponse().setBody(jmapResponse.toString());
+        }
+    }
+}
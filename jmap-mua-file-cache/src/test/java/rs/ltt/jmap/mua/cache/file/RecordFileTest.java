@@ -0,0 +1,55 @@
+/*
+ * Copyright 2020 Daniel Gultsch
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package rs.ltt.jmap.mua.cache.file;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+
+public class RecordFileTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void readRecordsAcrossWindows() throws Exception {
+        final File file = temporaryFolder.newFile();
+        final String[] values = {"short", Strings.repeat("long", 10), "end"};
+        try (final RecordFile recordFile = RecordFile.open(file, 0)) {
+            for (final String value : values) {
+                recordFile.write(value.getBytes(Charsets.UTF_8));
+            }
+        }
+        try (final FileOutputStream outputStream = new FileOutputStream(file, true)) {
+            outputStream.write(new byte[]{0, 0, 0, 42, 0});
+        }
+
+        final RecordFile.Records records = RecordFile.read(file, 16);
+        Assert.assertEquals(values.length, records.records.size());
+        for (int i = 0; i < values.length; ++i) {
+            Assert.assertEquals(values[i], new String(records.records.get(i), Charsets.UTF_8));
+        }
+        Assert.assertFalse(records.complete);
+        Assert.assertEquals(file.length() - 5, records.validLength(values.length));
+    }
+}
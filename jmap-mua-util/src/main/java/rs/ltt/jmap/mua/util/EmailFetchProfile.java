@@ -0,0 +1,93 @@
+/*
+ * Copyright 2020 Daniel Gultsch
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package rs.ltt.jmap.mua.util;
+
+import com.google.common.base.Preconditions;
+import rs.ltt.jmap.common.entity.Email;
+import rs.ltt.jmap.common.method.call.email.GetEmailMethodCall;
+
+import java.util.Arrays;
+
+/**
+ * Describes which properties of an email are fetched when new emails are synchronized into the cache.
+ * <p>
+ * {@link #FULL} fetches the default properties including the text body values. {@link #HEADERS} only fetches what is
+ * needed to display a list of emails (addresses, subject, preview, keywords etc); the body of an email can then be
+ * fetched on demand once it is opened.
+ */
+public final class EmailFetchProfile {
+
+    public static final EmailFetchProfile FULL = new EmailFetchProfile(null, true);
+
+    public static final EmailFetchProfile HEADERS = new EmailFetchProfile(new String[]{
+            "id",
+            "blobId",
+            Email.Property.THREAD_ID,
+            Email.Property.MAILBOX_IDS,
+            Email.Property.KEYWORDS,
+            "size",
+            "receivedAt",
+            "messageId",
+            "inReplyTo",
+            "references",
+            "sender",
+            "from",
+            "to",
+            "cc",
+            "bcc",
+            "replyTo",
+            "subject",
+            "sentAt",
+            "hasAttachment",
+            "preview"
+    }, false);
+
+    private final String[] properties;
+    private final boolean fetchTextBodyValues;
+
+    private EmailFetchProfile(final String[] properties, final boolean fetchTextBodyValues) {
+        this.properties = properties;
+        this.fetchTextBodyValues = fetchTextBodyValues;
+    }
+
+    /**
+     * @param properties the properties to fetch or null for the default properties of Email/get. Must include the
+     *                   thread id; emails are stored in the cache by thread.
+     */
+    public static EmailFetchProfile of(final String[] properties, final boolean fetchTextBodyValues) {
+        Preconditions.checkArgument(
+                properties == null || Arrays.asList(properties).contains(Email.Property.THREAD_ID),
+                "properties must include threadId"
+        );
+        return new EmailFetchProfile(properties == null ? null : properties.clone(), fetchTextBodyValues);
+    }
+
+    public String[] getProperties() {
+        return properties == null ? null : properties.clone();
+    }
+
+    /**
+     * @return true if emails fetched with this profile are complete; false if bodies have to be fetched on demand
+     */
+    public boolean isFetchTextBodyValues() {
+        return fetchTextBodyValues;
+    }
+
+    public GetEmailMethodCall.GetEmailMethodCallBuilder apply(final GetEmailMethodCall.GetEmailMethodCallBuilder builder) {
+        return builder.properties(getProperties()).fetchTextBodyValues(fetchTextBodyValues ? true : null);
+    }
+}
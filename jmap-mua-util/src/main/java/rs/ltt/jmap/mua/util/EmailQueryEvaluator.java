@@ -0,0 +1,380 @@
+/*
+ * Copyright 2020 Daniel Gultsch
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package rs.ltt.jmap.mua.util;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Strings;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Ordering;
+import org.checkerframework.checker.nullness.compatqual.NullableDecl;
+import rs.ltt.jmap.common.entity.Comparator;
+import rs.ltt.jmap.common.entity.Email;
+import rs.ltt.jmap.common.entity.EmailAddress;
+import rs.ltt.jmap.common.entity.filter.EmailFilterCondition;
+import rs.ltt.jmap.common.entity.filter.Filter;
+import rs.ltt.jmap.common.entity.filter.FilterOperator;
+import rs.ltt.jmap.common.entity.query.EmailQuery;
+
+import java.util.*;
+
+/**
+ * Evaluates an {@link EmailQuery} against a set of emails that are available locally. The result is meant to be
+ * shown while the authoritative Email/query is still in flight or when the server can not be reached. It only
+ * approximates what a server would return; address and subject conditions for example are matched as case insensitive
+ * substrings.
+ * <p>
+ * Conditions that require the email body (text and body) and sort properties other than receivedAt, sentAt, size,
+ * from, to and subject are not supported. Neither are conditions and sort properties that need a property the emails
+ * have not been fetched with; see {@link #isSupported(EmailQuery, String[])}. Queries without comparators are sorted
+ * by receivedAt descending.
+ */
+public final class EmailQueryEvaluator {
+
+    private static final Set<String> SORT_PROPERTIES = ImmutableSet.of(
+            "receivedAt", "sentAt", "size", "from", "to", "subject"
+    );
+
+    private static final java.util.Comparator<Email> DEFAULT_ORDER = compare("receivedAt", false);
+
+    private final EmailQuery query;
+    private final Map<String, List<Email>> threads = new HashMap<>();
+
+    private EmailQueryEvaluator(final EmailQuery query, final Collection<Email> emails) {
+        this.query = query;
+        final ListMultimap<String, Email> threads = ArrayListMultimap.create();
+        for (final Email email : emails) {
+            if (email.getThreadId() != null) {
+                threads.put(email.getThreadId(), email);
+            }
+        }
+        for (final String threadId : threads.keySet()) {
+            this.threads.put(threadId, threads.get(threadId));
+        }
+    }
+
+    /**
+     * @return true if the query can be evaluated against emails that have been fetched with the default properties of
+     * Email/get (or with {@link EmailFetchProfile#HEADERS})
+     */
+    public static boolean isSupported(final EmailQuery query) {
+        return isSupported(query, null);
+    }
+
+    /**
+     * @param properties the properties the emails have been fetched with or null for the default properties of
+     *                   Email/get. An email that lacks the property of a condition would never match that condition.
+     * @return true if the query can be evaluated against emails that have been fetched with the given properties
+     */
+    public static boolean isSupported(final EmailQuery query, @NullableDecl final String[] properties) {
+        final Set<String> available = properties == null ? null : ImmutableSet.copyOf(properties);
+        if (query.comparators == null || query.comparators.length == 0) {
+            if (!isAvailable(available, "receivedAt")) {
+                return false;
+            }
+        } else {
+            for (final Comparator comparator : query.comparators) {
+                if (comparator == null || !SORT_PROPERTIES.contains(comparator.getProperty()) || !isAvailable(available, comparator.getProperty())) {
+                    return false;
+                }
+            }
+        }
+        return query.filter == null || isSupported(query.filter, available);
+    }
+
+    private static boolean isSupported(final Filter<Email> filter, final Set<String> available) {
+        if (filter instanceof FilterOperator) {
+            final FilterOperator<Email> operator = (FilterOperator<Email>) filter;
+            if (operator.getOperator() == null || operator.getConditions() == null) {
+                return false;
+            }
+            for (final Filter<Email> condition : operator.getConditions()) {
+                if (!isSupported(condition, available)) {
+                    return false;
+                }
+            }
+            return true;
+        } else if (filter instanceof EmailFilterCondition) {
+            final EmailFilterCondition condition = (EmailFilterCondition) filter;
+            if (condition.getText() != null || condition.getBody() != null) {
+                return false;
+            }
+            for (final String property : requiredProperties(condition)) {
+                if (!isAvailable(available, property)) {
+                    return false;
+                }
+            }
+            return true;
+        } else {
+            return false;
+        }
+    }
+
+    private static List<String> requiredProperties(final EmailFilterCondition condition) {
+        final List<String> properties = new ArrayList<>();
+        if (condition.getInMailbox() != null || condition.getInMailboxOtherThan() != null) {
+            properties.add(Email.Property.MAILBOX_IDS);
+        }
+        if (condition.getMinSize() != null || condition.getMaxSize() != null) {
+            properties.add("size");
+        }
+        if (condition.getAllInThreadHaveKeyword() != null
+                || condition.getSomeInThreadHaveKeyword() != null
+                || condition.getNoneInThreadHaveKeyword() != null
+                || condition.getHasKeyword() != null
+                || condition.getNotKeyword() != null) {
+            properties.add(Email.Property.KEYWORDS);
+        }
+        if (condition.getHasAttachment() != null) {
+            properties.add("hasAttachment");
+        }
+        if (condition.getFrom() != null) {
+            properties.add("from");
+        }
+        if (condition.getTo() != null) {
+            properties.add("to");
+        }
+        if (condition.getCc() != null) {
+            properties.add("cc");
+        }
+        if (condition.getBcc() != null) {
+            properties.add("bcc");
+        }
+        if (condition.getSubject() != null) {
+            properties.add("subject");
+        }
+        return properties;
+    }
+
+    private static boolean isAvailable(final Set<String> available, final String property) {
+        return available == null || available.contains(property);
+    }
+
+    /**
+     * @param emails all emails that are available locally. Thread conditions (allInThreadHaveKeyword etc) are
+     *               evaluated against the emails in this collection that share a thread id.
+     * @return the matching emails in sort order; with only the first email of every thread if the query collapses
+     * threads
+     * @throws IllegalArgumentException if the query is not supported; see {@link #isSupported(EmailQuery)}
+     */
+    public static QueryResultItem[] evaluate(final EmailQuery query, final Collection<Email> emails) {
+        Preconditions.checkArgument(isSupported(query), "Query can not be evaluated locally");
+        return new EmailQueryEvaluator(query, emails).evaluate();
+    }
+
+    private QueryResultItem[] evaluate() {
+        final List<Email> matches = new ArrayList<>();
+        for (final List<Email> thread : threads.values()) {
+            for (final Email email : thread) {
+                if (query.filter == null || matches(query.filter, email)) {
+                    matches.add(email);
+                }
+            }
+        }
+        matches.sort(comparator(query.comparators));
+        final boolean collapseThreads = query.collapseThreads != null && query.collapseThreads;
+        final Set<String> seenThreads = new HashSet<>();
+        final List<QueryResultItem> items = new ArrayList<>();
+        for (final Email email : matches) {
+            if (!collapseThreads || seenThreads.add(email.getThreadId())) {
+                items.add(QueryResultItem.of(email.getId(), email.getThreadId()));
+            }
+        }
+        return items.toArray(new QueryResultItem[0]);
+    }
+
+    private boolean matches(final Filter<Email> filter, final Email email) {
+        if (filter instanceof FilterOperator) {
+            final FilterOperator<Email> operator = (FilterOperator<Email>) filter;
+            switch (operator.getOperator()) {
+                case AND:
+                    for (final Filter<Email> condition : operator.getConditions()) {
+                        if (!matches(condition, email)) {
+                            return false;
+                        }
+                    }
+                    return true;
+                case OR:
+                    for (final Filter<Email> condition : operator.getConditions()) {
+                        if (matches(condition, email)) {
+                            return true;
+                        }
+                    }
+                    return false;
+                case NOT:
+                    for (final Filter<Email> condition : operator.getConditions()) {
+                        if (matches(condition, email)) {
+                            return false;
+                        }
+                    }
+                    return true;
+                default:
+                    throw new IllegalArgumentException(String.format("Unknown operator %s", operator.getOperator()));
+            }
+        }
+        return matches((EmailFilterCondition) filter, email);
+    }
+
+    private boolean matches(final EmailFilterCondition condition, final Email email) {
+        final Map<String, Boolean> mailboxIds = nullToEmpty(email.getMailboxIds());
+        if (condition.getInMailbox() != null && !isSet(mailboxIds, condition.getInMailbox())) {
+            return false;
+        }
+        if (condition.getInMailboxOtherThan() != null && !inMailboxOtherThan(mailboxIds, condition.getInMailboxOtherThan())) {
+            return false;
+        }
+        final long size = email.getSize() == null ? 0 : email.getSize();
+        if (condition.getMinSize() != null && size < condition.getMinSize()) {
+            return false;
+        }
+        if (condition.getMaxSize() != null && size >= condition.getMaxSize()) {
+            return false;
+        }
+        final List<Email> thread = threads.get(email.getThreadId());
+        if (condition.getAllInThreadHaveKeyword() != null && countInThread(thread, condition.getAllInThreadHaveKeyword()) != thread.size()) {
+            return false;
+        }
+        if (condition.getSomeInThreadHaveKeyword() != null && countInThread(thread, condition.getSomeInThreadHaveKeyword()) == 0) {
+            return false;
+        }
+        if (condition.getNoneInThreadHaveKeyword() != null && countInThread(thread, condition.getNoneInThreadHaveKeyword()) > 0) {
+            return false;
+        }
+        if (condition.getHasKeyword() != null && !hasKeyword(email, condition.getHasKeyword())) {
+            return false;
+        }
+        if (condition.getNotKeyword() != null && hasKeyword(email, condition.getNotKeyword())) {
+            return false;
+        }
+        if (condition.getHasAttachment() != null && condition.getHasAttachment() != Boolean.TRUE.equals(email.getHasAttachment())) {
+            return false;
+        }
+        if (condition.getFrom() != null && !contains(email.getFrom(), condition.getFrom())) {
+            return false;
+        }
+        if (condition.getTo() != null && !contains(email.getTo(), condition.getTo())) {
+            return false;
+        }
+        if (condition.getCc() != null && !contains(email.getCc(), condition.getCc())) {
+            return false;
+        }
+        if (condition.getBcc() != null && !contains(email.getBcc(), condition.getBcc())) {
+            return false;
+        }
+        return condition.getSubject() == null || containsIgnoreCase(email.getSubject(), condition.getSubject());
+    }
+
+    private static boolean inMailboxOtherThan(final Map<String, Boolean> mailboxIds, final String[] excluded) {
+        final List<String> excludedIds = Arrays.asList(excluded);
+        for (final Map.Entry<String, Boolean> entry : mailboxIds.entrySet()) {
+            if (Boolean.TRUE.equals(entry.getValue()) && !excludedIds.contains(entry.getKey())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int countInThread(final List<Email> thread, final String keyword) {
+        int count = 0;
+        for (final Email email : thread) {
+            if (hasKeyword(email, keyword)) {
+                ++count;
+            }
+        }
+        return count;
+    }
+
+    private static boolean hasKeyword(final Email email, final String keyword) {
+        return isSet(nullToEmpty(email.getKeywords()), keyword);
+    }
+
+    private static boolean isSet(final Map<String, Boolean> map, final String key) {
+        return Boolean.TRUE.equals(map.get(key));
+    }
+
+    private static Map<String, Boolean> nullToEmpty(final Map<String, Boolean> map) {
+        return map == null ? Collections.emptyMap() : map;
+    }
+
+    private static boolean contains(final List<EmailAddress> addresses, final String needle) {
+        if (addresses == null) {
+            return false;
+        }
+        for (final EmailAddress address : addresses) {
+            if (containsIgnoreCase(address.getName(), needle) || containsIgnoreCase(address.getEmail(), needle)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean containsIgnoreCase(final String haystack, final String needle) {
+        return haystack != null && haystack.toLowerCase(Locale.ROOT).contains(needle.toLowerCase(Locale.ROOT));
+    }
+
+    private static java.util.Comparator<Email> comparator(final Comparator[] comparators) {
+        java.util.Comparator<Email> comparator = null;
+        if (comparators != null) {
+            for (final Comparator current : comparators) {
+                final java.util.Comparator<Email> next = compare(current.getProperty(), current.getIsAscending() == null || current.getIsAscending());
+                comparator = comparator == null ? next : comparator.thenComparing(next);
+            }
+        }
+        if (comparator == null) {
+            comparator = DEFAULT_ORDER;
+        }
+        //the id makes the order stable among emails that compare equal
+        return comparator.thenComparing(Email::getId, Ordering.natural().nullsLast());
+    }
+
+    private static java.util.Comparator<Email> compare(final String property, final boolean ascending) {
+        final Ordering<Comparable<?>> ordering = ascending ? Ordering.natural() : Ordering.natural().reverse();
+        final java.util.Comparator<Comparable<?>> nullsLast = ordering.nullsLast();
+        switch (property) {
+            case "receivedAt":
+                return java.util.Comparator.comparing(Email::getReceivedAt, nullsLast);
+            case "sentAt":
+                return java.util.Comparator.comparing(Email::getSentAt, nullsLast);
+            case "size":
+                return java.util.Comparator.comparing(Email::getSize, nullsLast);
+            case "from":
+                return java.util.Comparator.comparing(email -> sortKey(email.getFrom()), nullsLast);
+            case "to":
+                return java.util.Comparator.comparing(email -> sortKey(email.getTo()), nullsLast);
+            case "subject":
+                return java.util.Comparator.comparing(email -> lowerCase(email.getSubject()), nullsLast);
+            default:
+                throw new IllegalArgumentException(String.format("Unable to sort by %s", property));
+        }
+    }
+
+    /**
+     * RFC 8621 sorts by the name of the first address or the email address if the name is empty.
+     */
+    private static String sortKey(final List<EmailAddress> addresses) {
+        if (addresses == null || addresses.isEmpty()) {
+            return null;
+        }
+        final EmailAddress first = addresses.get(0);
+        return lowerCase(Strings.isNullOrEmpty(first.getName()) ? first.getEmail() : first.getName());
+    }
+
+    private static String lowerCase(final String value) {
+        return value == null ? null : value.toLowerCase(Locale.ROOT);
+    }
+}
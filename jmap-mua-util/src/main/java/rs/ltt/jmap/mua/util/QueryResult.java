@@ -91,6 +91,14 @@ public class QueryResult {
         );
     }
 
+    public static QueryResult of(final QueryResultItem[] items,
+                                 final TypedState<Email> queryState,
+                                 final boolean canCalculateChanges,
+                                 final long position,
+                                 final TypedState<Email> objectState) {
+        return new QueryResult(items, queryState, canCalculateChanges, position, objectState);
+    }
+
     private static ImmutableMap<String, String> map(GetEmailMethodResponse emailMethodResponse) {
         ImmutableMap.Builder<String, String> builder = new ImmutableMap.Builder<>();
         for (Email email : emailMethodResponse.getList()) {
@@ -39,6 +39,13 @@ import java.util.concurrent.Executor;
 public class UpdateUtil {
 
     public static MethodResponsesFuture emails(JmapClient.MultiCall multiCall, String accountId, String state) {
+        return emails(multiCall, accountId, state, EmailFetchProfile.FULL);
+    }
+
+    /**
+     * @param fetchProfile the properties that are fetched for created emails
+     */
+    public static MethodResponsesFuture emails(JmapClient.MultiCall multiCall, String accountId, String state, EmailFetchProfile fetchProfile) {
         final JmapRequest.Call changesCallInfo = multiCall.call(
                 ChangesEmailMethodCall.builder()
                         .accountId(accountId)
@@ -47,10 +54,9 @@ public class UpdateUtil {
         );
         final ListenableFuture<MethodResponses> changes = changesCallInfo.getMethodResponses();
         final ListenableFuture<MethodResponses> created = multiCall.call(
-                GetEmailMethodCall.builder()
+                fetchProfile.apply(GetEmailMethodCall.builder())
                         .accountId(accountId)
                         .idsReference(changesCallInfo.createResultReference(Request.Invocation.ResultReference.Path.CREATED))
-                        .fetchTextBodyValues(true)
                         .build()
         ).getMethodResponses();
         final ListenableFuture<MethodResponses> updated = multiCall.call(
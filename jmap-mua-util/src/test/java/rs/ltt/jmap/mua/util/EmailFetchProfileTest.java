@@ -0,0 +1,62 @@
+/*
+ * Copyright 2020 Daniel Gultsch
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package rs.ltt.jmap.mua.util;
+
+import com.google.gson.JsonObject;
+import org.junit.Assert;
+import org.junit.Test;
+import rs.ltt.jmap.common.entity.Email;
+import rs.ltt.jmap.common.method.call.email.GetEmailMethodCall;
+import rs.ltt.jmap.gson.JmapAdapters;
+
+import java.util.Arrays;
+import java.util.List;
+
+public class EmailFetchProfileTest {
+
+    @Test
+    public void fullFetchesDefaultPropertiesAndBodyValues() {
+        final JsonObject call = serialize(EmailFetchProfile.FULL);
+        Assert.assertFalse(call.has("properties"));
+        Assert.assertTrue(call.get("fetchTextBodyValues").getAsBoolean());
+    }
+
+    @Test
+    public void headersOmitBody() {
+        final JsonObject call = serialize(EmailFetchProfile.HEADERS);
+        Assert.assertFalse(call.has("fetchTextBodyValues"));
+        final List<String> properties = Arrays.asList(EmailFetchProfile.HEADERS.getProperties());
+        Assert.assertTrue(properties.contains(Email.Property.THREAD_ID));
+        Assert.assertTrue(properties.contains("preview"));
+        Assert.assertFalse(properties.contains("bodyValues"));
+        Assert.assertFalse(properties.contains("textBody"));
+        Assert.assertEquals(properties.size(), call.getAsJsonArray("properties").size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void customProfileRequiresThreadId() {
+        EmailFetchProfile.of(new String[]{"id", "subject"}, false);
+    }
+
+    private static JsonObject serialize(final EmailFetchProfile profile) {
+        final GetEmailMethodCall call = profile.apply(GetEmailMethodCall.builder())
+                .accountId("test@example.com")
+                .ids(new String[]{"e0"})
+                .build();
+        return JmapAdapters.gson().toJsonTree(call).getAsJsonObject();
+    }
+}
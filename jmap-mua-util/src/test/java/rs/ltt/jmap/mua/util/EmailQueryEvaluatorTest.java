@@ -0,0 +1,143 @@
+/*
+ * Copyright 2020 Daniel Gultsch
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package rs.ltt.jmap.mua.util;
+
+import com.google.common.collect.ImmutableList;
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import org.junit.Assert;
+import org.junit.Test;
+import rs.ltt.jmap.common.entity.Comparator;
+import rs.ltt.jmap.common.entity.Email;
+import rs.ltt.jmap.common.entity.EmailAddress;
+import rs.ltt.jmap.common.entity.Keyword;
+import rs.ltt.jmap.common.entity.filter.EmailFilterCondition;
+import rs.ltt.jmap.common.entity.filter.FilterOperator;
+import rs.ltt.jmap.common.entity.query.EmailQuery;
+import rs.ltt.jmap.gson.JmapAdapters;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+
+public class EmailQueryEvaluatorTest {
+
+    private static final Gson GSON = JmapAdapters.gson();
+
+    private static final Collection<Email> EMAILS = ImmutableList.of(
+            email("e1", "t1", "inbox", 1, "alice@example.com", Keyword.SEEN),
+            email("e2", "t1", "inbox", 3, "bob@example.com"),
+            email("e3", "t2", "inbox", 2, "carol@example.com", Keyword.SEEN, Keyword.FLAGGED),
+            email("e4", "t3", "archive", 4, "alice@example.com", Keyword.SEEN)
+    );
+
+    @Test
+    public void inMailboxNewestFirst() {
+        Assert.assertEquals(
+                ImmutableList.of("e2", "e3", "e1"),
+                evaluate(EmailQuery.of(EmailFilterCondition.builder().inMailbox("inbox").build()))
+        );
+    }
+
+    @Test
+    public void collapseThreads() {
+        Assert.assertEquals(
+                ImmutableList.of("e4", "e2", "e3"),
+                evaluate(EmailQuery.unfiltered(true))
+        );
+    }
+
+    @Test
+    public void operatorsAndKeywords() {
+        final EmailQuery query = EmailQuery.of(
+                FilterOperator.and(
+                        EmailFilterCondition.builder().hasKeyword(Keyword.SEEN).build(),
+                        FilterOperator.not(
+                                EmailFilterCondition.builder().notKeyword(Keyword.FLAGGED).inMailbox("archive").build()
+                        )
+                ),
+                new Comparator[]{new Comparator("receivedAt", true)}
+        );
+        Assert.assertEquals(ImmutableList.of("e1", "e3"), evaluate(query));
+    }
+
+    @Test
+    public void threadKeywordsAndAddresses() {
+        Assert.assertEquals(
+                ImmutableList.of("e4", "e3"),
+                evaluate(EmailQuery.of(EmailFilterCondition.builder().allInThreadHaveKeyword(Keyword.SEEN).build()))
+        );
+        Assert.assertEquals(
+                ImmutableList.of("e1", "e4"),
+                evaluate(EmailQuery.of(
+                        EmailFilterCondition.builder().from("ALICE").build(),
+                        new Comparator[]{new Comparator("receivedAt", true)}
+                ))
+        );
+    }
+
+    @Test
+    public void textSearchIsNotSupported() {
+        Assert.assertFalse(EmailQueryEvaluator.isSupported(EmailQuery.of(EmailFilterCondition.builder().text("hello").build())));
+        Assert.assertFalse(EmailQueryEvaluator.isSupported(EmailQuery.of(null, new Comparator[]{new Comparator("hasKeyword", true)})));
+    }
+
+    @Test
+    public void requirePropertiesOfConditions() {
+        final String[] properties = new String[]{"id", Email.Property.THREAD_ID, Email.Property.MAILBOX_IDS, "receivedAt"};
+        Assert.assertTrue(EmailQueryEvaluator.isSupported(EmailQuery.of(EmailFilterCondition.builder().inMailbox("inbox").build()), properties));
+        Assert.assertFalse(EmailQueryEvaluator.isSupported(EmailQuery.of(EmailFilterCondition.builder().minSize(2L).build()), properties));
+        Assert.assertFalse(EmailQueryEvaluator.isSupported(EmailQuery.of(EmailFilterCondition.builder().hasAttachment(true).build()), properties));
+        Assert.assertFalse(EmailQueryEvaluator.isSupported(EmailQuery.of(null, new Comparator[]{new Comparator("subject", true)}), properties));
+        Assert.assertTrue(EmailQueryEvaluator.isSupported(
+                EmailQuery.of(EmailFilterCondition.builder().hasAttachment(true).minSize(2L).build()),
+                EmailFetchProfile.HEADERS.getProperties()
+        ));
+    }
+
+    private static List<String> evaluate(final EmailQuery query) {
+        final List<String> ids = new ArrayList<>();
+        for (final QueryResultItem item : EmailQueryEvaluator.evaluate(query, EMAILS)) {
+            ids.add(item.getEmailId());
+        }
+        return ids;
+    }
+
+    private static Email email(final String id,
+                               final String threadId,
+                               final String mailboxId,
+                               final long receivedAt,
+                               final String from,
+                               final String... keywords) {
+        final JsonObject keywordMap = new JsonObject();
+        for (final String keyword : keywords) {
+            keywordMap.addProperty(keyword, true);
+        }
+        final Email email = Email.builder()
+                .threadId(threadId)
+                .mailboxId(mailboxId, true)
+                .receivedAt(new Date(receivedAt * 1000))
+                .from(EmailAddress.builder().email(from).build())
+                .build();
+        //the id can only be set by deserialization
+        final JsonObject json = GSON.toJsonTree(email).getAsJsonObject();
+        json.addProperty("id", id);
+        json.add("keywords", keywordMap);
+        return GSON.fromJson(json, Email.class);
+    }
+}
@@ -18,23 +18,31 @@ package rs.ltt.jmap.mua;
 
 import com.google.common.base.Preconditions;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
 import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
 import org.checkerframework.checker.nullness.compatqual.NonNullDecl;
 import org.checkerframework.checker.nullness.compatqual.NullableDecl;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import rs.ltt.jmap.client.JmapClient;
+import rs.ltt.jmap.client.event.EventSourceClient;
 import rs.ltt.jmap.client.session.InMemorySessionCache;
 import rs.ltt.jmap.client.session.SessionCache;
+import rs.ltt.jmap.client.util.ExecutorUtil;
 import rs.ltt.jmap.common.entity.*;
 import rs.ltt.jmap.common.entity.filter.Filter;
 import rs.ltt.jmap.common.entity.query.EmailQuery;
 import rs.ltt.jmap.mua.cache.Cache;
+import rs.ltt.jmap.mua.cache.EmailBodyCache;
 import rs.ltt.jmap.mua.cache.InMemoryCache;
+import rs.ltt.jmap.mua.cache.LocalQueryCache;
 import rs.ltt.jmap.mua.service.EmailService;
 import rs.ltt.jmap.mua.service.IdentityService;
 import rs.ltt.jmap.mua.service.MailboxService;
+import rs.ltt.jmap.mua.service.PushService;
 import rs.ltt.jmap.mua.service.QueryService;
+import rs.ltt.jmap.mua.util.EmailFetchProfile;
 
 import java.util.Collection;
 
@@ -42,8 +50,8 @@ public class Mua extends MuaSession {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(Mua.class);
 
-    private Mua(JmapClient jmapClient, Cache cache, String accountId) {
-        super(jmapClient, cache, accountId);
+    private Mua(JmapClient jmapClient, Cache cache, String accountId, ListeningExecutorService executorService) {
+        super(jmapClient, cache, accountId, executorService);
     }
 
     public static Builder builder() {
@@ -62,6 +70,15 @@ public class Mua extends MuaSession {
         return getService(MailboxService.class).refreshMailboxes();
     }
 
+    /**
+     * Listens to state changes pushed by the server and updates the cache whenever mailboxes, emails, threads or
+     * identities change. Polling {@link #refresh()} is not necessary while subscribed. Close the returned client to
+     * unsubscribe.
+     */
+    public ListenableFuture<EventSourceClient> subscribe() {
+        return getService(PushService.class).subscribe();
+    }
+
     public ListenableFuture<Boolean> createMailbox(final Mailbox mailbox) {
         return getService(MailboxService.class).createMailbox(mailbox);
     }
@@ -70,6 +87,11 @@ public class Mua extends MuaSession {
         return getService(QueryService.class).query(filter);
     }
 
+    /**
+     * If the cache is a {@link LocalQueryCache} and has no result for this query yet, a provisional result evaluated
+     * against the cached emails is stored before the query is sent to the server. That result remains in the cache if
+     * the server can not be reached.
+     */
     public ListenableFuture<Status> query(@NonNullDecl final EmailQuery query) {
         return getService(QueryService.class).query(query);
     }
@@ -78,6 +100,16 @@ public class Mua extends MuaSession {
         return getService(QueryService.class).query(query, afterEmailId);
     }
 
+    /**
+     * Fetches the body of an email that has been synchronized with {@link EmailFetchProfile#HEADERS} (or whose body
+     * has been evicted from the cache) and stores it in the cache if the cache is an {@link EmailBodyCache}.
+     *
+     * @return the email with all default properties and its text body values
+     */
+    public ListenableFuture<Email> fetchBody(@NonNullDecl final String emailId) {
+        return getService(EmailService.class).fetchBody(emailId);
+    }
+
     /**
      * Stores an email as a draft. This method will take care of adding the draft and seen keyword and moving the email
      * to the draft mailbox.
@@ -279,6 +311,9 @@ public class Mua extends MuaSession {
         private SessionCache sessionCache = new InMemorySessionCache();
         private Cache cache = new InMemoryCache();
         private Long queryPageSize = null;
+        private EmailFetchProfile emailFetchProfile = EmailFetchProfile.FULL;
+        private ListeningExecutorService executorService = null;
+        private OkHttpClient okHttpClient = null;
 
         private Builder() {
 
@@ -317,6 +352,16 @@ public class Mua extends MuaSession {
             return this;
         }
 
+        /**
+         * Selects the properties that are fetched for emails that enter the cache through queries and updates.
+         * Defaults to {@link EmailFetchProfile#FULL}. With {@link EmailFetchProfile#HEADERS} bodies are fetched on
+         * demand with {@link Mua#fetchBody(String)}.
+         */
+        public Builder emailFetchProfile(@NonNullDecl EmailFetchProfile emailFetchProfile) {
+            this.emailFetchProfile = Preconditions.checkNotNull(emailFetchProfile);
+            return this;
+        }
+
         public Builder sessionCache(SessionCache sessionCache) {
             this.sessionCache = sessionCache;
             return this;
@@ -327,13 +372,44 @@ public class Mua extends MuaSession {
             return this;
         }
 
+        /**
+         * Runs network and cache IO on an executor that is shared with other Mua instances instead of creating
+         * dedicated threads for every instance. The executor will not be shut down when the Mua is closed.
+         */
+        public Builder executorService(ListeningExecutorService executorService) {
+            this.executorService = executorService;
+            return this;
+        }
+
+        /**
+         * Runs network and cache IO on virtual threads. Requires Java 21 or later.
+         */
+        public Builder virtualThreads() {
+            return executorService(ExecutorUtil.virtualThreadPerTaskExecutor());
+        }
+
+        /**
+         * Shares the connection pool of the given OkHttpClient with other Mua instances.
+         */
+        public Builder okHttpClient(OkHttpClient okHttpClient) {
+            this.okHttpClient = okHttpClient;
+            return this;
+        }
+
         public Mua build() {
             Preconditions.checkNotNull(accountId, "accountId is required");
 
             final JmapClient jmapClient = new JmapClient(this.username, this.password, this.sessionResource);
             jmapClient.setSessionCache(this.sessionCache);
-            final Mua mua = new Mua(jmapClient, cache, accountId);
+            if (this.executorService != null) {
+                jmapClient.setExecutorService(this.executorService);
+            }
+            if (this.okHttpClient != null) {
+                jmapClient.setOkHttpClient(this.okHttpClient);
+            }
+            final Mua mua = new Mua(jmapClient, cache, accountId, this.executorService);
             mua.setQueryPageSize(this.queryPageSize);
+            mua.setEmailFetchProfile(this.emailFetchProfile);
             return mua;
         }
     }
@@ -16,14 +16,19 @@
 
 package rs.ltt.jmap.mua;
 
+import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableClassToInstanceMap;
 import com.google.common.util.concurrent.ListeningExecutorService;
 import com.google.common.util.concurrent.MoreExecutors;
+import org.checkerframework.checker.nullness.compatqual.NullableDecl;
 import rs.ltt.jmap.client.JmapClient;
+import rs.ltt.jmap.client.util.SharedExecutorService;
 import rs.ltt.jmap.mua.cache.Cache;
 import rs.ltt.jmap.mua.service.*;
+import rs.ltt.jmap.mua.util.EmailFetchProfile;
 
 import java.io.Closeable;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
 
 public class MuaSession implements Closeable {
@@ -31,18 +36,36 @@ public class MuaSession implements Closeable {
     protected final JmapClient jmapClient;
     private final Cache cache;
     private final String accountId;
-    private final ListeningExecutorService ioExecutorService = MoreExecutors.listeningDecorator(Executors.newSingleThreadExecutor());
+    private final ListeningExecutorService ioExecutorService;
     private final ImmutableClassToInstanceMap<MuaService> services;
     private Long queryPageSize = null;
+    private EmailFetchProfile emailFetchProfile = EmailFetchProfile.FULL;
 
     public MuaSession(final JmapClient jmapClient, final Cache cache, final String accountId) {
+        this(jmapClient, cache, accountId, null);
+    }
+
+    /**
+     * @param executorService an executor shared between multiple sessions. Cache IO of this session will still be
+     *                        executed sequentially on that executor. If null a dedicated thread will be used.
+     */
+    public MuaSession(final JmapClient jmapClient,
+                      final Cache cache,
+                      final String accountId,
+                      @NullableDecl final Executor executorService) {
         this.jmapClient = jmapClient;
+        if (executorService == null) {
+            this.ioExecutorService = MoreExecutors.listeningDecorator(Executors.newSingleThreadExecutor());
+        } else {
+            this.ioExecutorService = new SharedExecutorService(MoreExecutors.newSequentialExecutor(executorService));
+        }
         this.cache = cache;
         this.accountId = accountId;
         this.services = ImmutableClassToInstanceMap.<MuaService>builder()
                 .put(EmailService.class, new EmailService(this))
                 .put(IdentityService.class, new IdentityService(this))
                 .put(MailboxService.class, new MailboxService(this))
+                .put(PushService.class, new PushService(this))
                 .put(QueryService.class, new QueryService(this))
                 .put(ThreadService.class, new ThreadService(this))
                 .build();
@@ -81,4 +104,12 @@ public class MuaSession implements Closeable {
     public void setQueryPageSize(Long queryPageSize) {
         this.queryPageSize = queryPageSize;
     }
+
+    public EmailFetchProfile getEmailFetchProfile() {
+        return emailFetchProfile;
+    }
+
+    public void setEmailFetchProfile(final EmailFetchProfile emailFetchProfile) {
+        this.emailFetchProfile = Preconditions.checkNotNull(emailFetchProfile);
+    }
 }
@@ -0,0 +1,32 @@
+/*
+ * Copyright 2020 Daniel Gultsch
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package rs.ltt.jmap.mua.cache;
+
+import rs.ltt.jmap.common.entity.Email;
+
+/**
+ * A {@link Cache} that stores bodies fetched on demand. Caches that do not implement this interface still work with
+ * lazily fetched bodies; the body is returned to the caller but not cached.
+ */
+public interface EmailBodyCache extends Cache {
+
+    /**
+     * Merges the body properties of the email into the cached version of the email. Bodies are immutable; this is
+     * independent of the email state. Does nothing if the email is not in the cache.
+     */
+    void setEmailBody(Email email);
+}
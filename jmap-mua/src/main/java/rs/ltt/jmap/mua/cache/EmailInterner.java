@@ -0,0 +1,91 @@
+/*
+ * Copyright 2020 Daniel Gultsch
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package rs.ltt.jmap.mua.cache;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+import rs.ltt.jmap.common.entity.Email;
+import rs.ltt.jmap.common.entity.EmailAddress;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Deduplicates the parts of an email that are shared by many emails. A mailbox typically contains thousands of
+ * emails that all have the same mailbox ids and one of a handful of keyword combinations; and most senders appear in
+ * more than one email. Those maps, lists and addresses are replaced with a canonical immutable instance that is
+ * shared by all emails in the cache.
+ */
+final class EmailInterner {
+
+    private static final String[] ADDRESS_PROPERTIES = {"sender", "from", "to", "cc", "bcc", "replyTo"};
+
+    private final Interner<Map<String, Boolean>> flags = Interners.newWeakInterner();
+    private final Interner<EmailAddress> addresses = Interners.newWeakInterner();
+    private final Interner<List<EmailAddress>> addressLists = Interners.newWeakInterner();
+    private final Interner<String> strings = Interners.newWeakInterner();
+
+    /**
+     * @return a copy of the email with the shareable properties replaced by their canonical instances. The email
+     * itself is left untouched; it belongs to the caller.
+     */
+    Email intern(final Email email) {
+        return internInPlace(InMemoryCache.copyOf(email));
+    }
+
+    /**
+     * Replaces the shareable properties of the email with their canonical instances. The email must be a private copy
+     * that has not been published to other threads yet.
+     */
+    Email internInPlace(final Email email) {
+        final PropertyAccessor<Email> accessor = PropertyAccessor.EMAIL;
+        if (email.getThreadId() != null) {
+            accessor.set(email, Email.Property.THREAD_ID, strings.intern(email.getThreadId()));
+        }
+        accessor.set(email, Email.Property.MAILBOX_IDS, intern(email.getMailboxIds()));
+        accessor.set(email, Email.Property.KEYWORDS, intern(email.getKeywords()));
+        for (final String property : ADDRESS_PROPERTIES) {
+            @SuppressWarnings("unchecked") final List<EmailAddress> list = (List<EmailAddress>) accessor.get(email, property);
+            accessor.set(email, property, internAddresses(list));
+        }
+        return email;
+    }
+
+    private Map<String, Boolean> intern(final Map<String, Boolean> map) {
+        if (map == null || map.containsKey(null) || map.containsValue(null)) {
+            return map;
+        }
+        final ImmutableMap.Builder<String, Boolean> builder = ImmutableMap.builder();
+        for (final Map.Entry<String, Boolean> entry : map.entrySet()) {
+            builder.put(strings.intern(entry.getKey()), entry.getValue());
+        }
+        return flags.intern(builder.build());
+    }
+
+    private List<EmailAddress> internAddresses(final List<EmailAddress> list) {
+        if (list == null || list.contains(null)) {
+            return list;
+        }
+        final ImmutableList.Builder<EmailAddress> builder = ImmutableList.builder();
+        for (final EmailAddress address : list) {
+            builder.add(addresses.intern(address));
+        }
+        return addressLists.intern(builder.build());
+    }
+}
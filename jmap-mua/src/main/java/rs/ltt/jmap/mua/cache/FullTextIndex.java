@@ -0,0 +1,276 @@
+/*
+ * Copyright 2020 Daniel Gultsch
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package rs.ltt.jmap.mua.cache;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Ordering;
+import rs.ltt.jmap.common.entity.Email;
+import rs.ltt.jmap.common.entity.EmailAddress;
+import rs.ltt.jmap.common.entity.EmailBodyValue;
+
+import java.text.Normalizer;
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * An inverted index over the subject, the address fields and the text of emails. Pass an instance to
+ * {@link InMemoryCache#InMemoryCache(FullTextIndex)} to have it maintained as emails enter and leave the cache.
+ * <p>
+ * Text is split into words at every character that is neither a letter nor a digit; words are compared in lower case
+ * and without diacritics. The last word of a search is matched as a prefix unless the search ends with whitespace;
+ * making the index suitable for search-as-you-type. Results contain every word of the search and are ranked by how
+ * rare the words are and by the fields they have been found in.
+ */
+public final class FullTextIndex {
+
+    private static final int MAX_TOKEN_LENGTH = 64;
+
+    private static final double SATURATION = 2.0;
+
+    private static final Pattern COMBINING_MARKS = Pattern.compile("\\p{M}+");
+
+    private TreeMap<String, Map<String, Posting>> postings = new TreeMap<>();
+    private Map<String, String[]> terms = new HashMap<>();
+
+    /**
+     * Indexes the email; replacing previous postings for the same id. The text is taken from the fetched body values
+     * and from the preview if no body values have been fetched.
+     */
+    public synchronized void add(final Email email) {
+        remove(email.getId());
+        final Map<String, Posting> document = new HashMap<>();
+        index(document, Field.SUBJECT, email.getSubject());
+        index(document, Field.FROM, email.getFrom());
+        index(document, Field.TO, email.getTo());
+        index(document, Field.CC, email.getCc());
+        index(document, Field.BCC, email.getBcc());
+        final Map<String, EmailBodyValue> bodyValues = email.getBodyValues();
+        if (bodyValues == null || bodyValues.isEmpty()) {
+            index(document, Field.BODY, email.getPreview());
+        } else {
+            for (final EmailBodyValue bodyValue : bodyValues.values()) {
+                index(document, Field.BODY, bodyValue == null ? null : bodyValue.getValue());
+            }
+        }
+        for (final Map.Entry<String, Posting> entry : document.entrySet()) {
+            postings.computeIfAbsent(entry.getKey(), term -> new HashMap<>()).put(email.getId(), entry.getValue());
+        }
+        terms.put(email.getId(), document.keySet().toArray(new String[0]));
+    }
+
+    public synchronized void remove(final String emailId) {
+        final String[] terms = this.terms.remove(emailId);
+        if (terms == null) {
+            return;
+        }
+        for (final String term : terms) {
+            final Map<String, Posting> postings = this.postings.get(term);
+            if (postings != null) {
+                postings.remove(emailId);
+                if (postings.isEmpty()) {
+                    this.postings.remove(term);
+                }
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        postings.clear();
+        terms.clear();
+    }
+
+    /**
+     * Replaces the content of the index with the given emails. The new index is built on the side; concurrent
+     * searches see either the old or the new content but never a partially built index.
+     */
+    public void replaceAll(final Collection<Email> emails) {
+        final FullTextIndex index = new FullTextIndex();
+        for (final Email email : emails) {
+            index.add(email);
+        }
+        synchronized (this) {
+            this.postings = index.postings;
+            this.terms = index.terms;
+        }
+    }
+
+    public synchronized boolean contains(final String emailId) {
+        return terms.containsKey(emailId);
+    }
+
+    /**
+     * @return the number of indexed emails
+     */
+    public synchronized int size() {
+        return terms.size();
+    }
+
+    /**
+     * @return the ids of the best matching emails; best match first
+     */
+    public List<String> search(final String query, final int limit) {
+        return search(query, EnumSet.allOf(Field.class), limit);
+    }
+
+    /**
+     * @param fields only words found in one of these fields are considered
+     * @return the ids of the best matching emails; best match first
+     */
+    public synchronized List<String> search(final String query, final Set<Field> fields, final int limit) {
+        final List<String> tokens = tokenize(query);
+        if (tokens.isEmpty() || fields.isEmpty() || limit <= 0) {
+            return Collections.emptyList();
+        }
+        final boolean prefix = !Character.isWhitespace(query.charAt(query.length() - 1));
+        final int mask = mask(fields);
+        Map<String, Double> scores = null;
+        for (int i = 0; i < tokens.size(); ++i) {
+            final String token = tokens.get(i);
+            final Map<String, Map<String, Posting>> matches;
+            if (prefix && i == tokens.size() - 1) {
+                matches = postings.subMap(token, true, token + Character.MAX_VALUE, false);
+            } else {
+                final Map<String, Posting> exact = postings.get(token);
+                matches = exact == null ? Collections.emptyMap() : Collections.singletonMap(token, exact);
+            }
+            final Map<String, Double> tokenScores = new HashMap<>();
+            for (final Map<String, Posting> postings : matches.values()) {
+                final double idf = Math.log(1 + (double) terms.size() / postings.size());
+                for (final Map.Entry<String, Posting> entry : postings.entrySet()) {
+                    final Posting posting = entry.getValue();
+                    if ((posting.fields & mask) == 0 || (scores != null && !scores.containsKey(entry.getKey()))) {
+                        continue;
+                    }
+                    final int weight = posting.weight(mask);
+                    final double score = idf * weight / (weight + SATURATION);
+                    tokenScores.merge(entry.getKey(), score, Math::max);
+                }
+            }
+            if (scores != null) {
+                for (final Map.Entry<String, Double> entry : tokenScores.entrySet()) {
+                    entry.setValue(entry.getValue() + scores.get(entry.getKey()));
+                }
+            }
+            scores = tokenScores;
+            if (scores.isEmpty()) {
+                return Collections.emptyList();
+            }
+        }
+        final Ordering<Map.Entry<String, Double>> byScore = Ordering.<Double>natural().reverse()
+                .onResultOf((Map.Entry<String, Double> entry) -> entry.getValue());
+        final Ordering<Map.Entry<String, Double>> ranking = byScore.compound(
+                Ordering.<String>natural().onResultOf((Map.Entry<String, Double> entry) -> entry.getKey())
+        );
+        final ImmutableList.Builder<String> result = ImmutableList.builder();
+        for (final Map.Entry<String, Double> entry : ranking.leastOf(scores.entrySet(), limit)) {
+            result.add(entry.getKey());
+        }
+        return result.build();
+    }
+
+    private static void index(final Map<String, Posting> document, final Field field, final List<EmailAddress> addresses) {
+        if (addresses == null) {
+            return;
+        }
+        for (final EmailAddress address : addresses) {
+            index(document, field, address.getName());
+            index(document, field, address.getEmail());
+        }
+    }
+
+    private static void index(final Map<String, Posting> document, final Field field, final String text) {
+        if (text == null) {
+            return;
+        }
+        for (final String token : tokenize(text)) {
+            document.computeIfAbsent(token, t -> new Posting()).add(field);
+        }
+    }
+
+    static List<String> tokenize(final String text) {
+        final String normalized = COMBINING_MARKS.matcher(Normalizer.normalize(text, Normalizer.Form.NFD))
+                .replaceAll("")
+                .toLowerCase(Locale.ROOT);
+        final List<String> tokens = new ArrayList<>();
+        int start = -1;
+        for (int i = 0; i <= normalized.length(); ++i) {
+            final boolean partOfToken = i < normalized.length() && Character.isLetterOrDigit(normalized.charAt(i));
+            if (partOfToken && start < 0) {
+                start = i;
+            } else if (!partOfToken && start >= 0) {
+                //very long tokens are usually encoded data and not worth indexing
+                if (i - start <= MAX_TOKEN_LENGTH) {
+                    tokens.add(normalized.substring(start, i));
+                }
+                start = -1;
+            }
+        }
+        return tokens;
+    }
+
+    private static int mask(final Set<Field> fields) {
+        int mask = 0;
+        for (final Field field : fields) {
+            mask |= 1 << field.ordinal();
+        }
+        return mask;
+    }
+
+    public enum Field {
+        SUBJECT(4),
+        FROM(3),
+        TO(2),
+        CC(2),
+        BCC(2),
+        BODY(1);
+
+        private final int weight;
+
+        Field(final int weight) {
+            this.weight = weight;
+        }
+    }
+
+    private static class Posting {
+
+        private static final Field[] FIELDS = Field.values();
+
+        private int fields;
+        /**
+         * The weight of the term in every field; indexed by the ordinal of the field.
+         */
+        private final int[] weights = new int[FIELDS.length];
+
+        private void add(final Field field) {
+            fields |= 1 << field.ordinal();
+            weights[field.ordinal()] += field.weight;
+        }
+
+        /**
+         * @return the combined weight of the term in the fields of the mask
+         */
+        private int weight(final int mask) {
+            int weight = 0;
+            for (int i = 0; i < weights.length; ++i) {
+                if ((mask & (1 << i)) != 0) {
+                    weight += weights[i];
+                }
+            }
+            return weight;
+        }
+    }
+}
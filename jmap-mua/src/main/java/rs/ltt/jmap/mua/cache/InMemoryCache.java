@@ -16,31 +16,118 @@
 
 package rs.ltt.jmap.mua.cache;
 
+import com.google.common.collect.HashMultiset;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Multiset;
 import org.checkerframework.checker.nullness.compatqual.NonNullDecl;
+import org.checkerframework.checker.nullness.compatqual.NullableDecl;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import rs.ltt.jmap.common.entity.Thread;
 import rs.ltt.jmap.common.entity.*;
+import rs.ltt.jmap.common.entity.query.EmailQuery;
+import rs.ltt.jmap.mua.util.EmailQueryEvaluator;
 import rs.ltt.jmap.mua.util.QueryResult;
 import rs.ltt.jmap.mua.util.QueryResultItem;
 
-import java.lang.reflect.Field;
 import java.util.*;
-
-public class InMemoryCache implements Cache {
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.UnaryOperator;
+
+/**
+ * Writers are serialized per object type by synchronizing on the respective map. Reading objects and states does not
+ * take a lock: the maps are concurrent, the object states are published as one immutable {@link ObjectsState} and
+ * every query result publishes an immutable summary of its state after each modification.
+ * <p>
+ * The items of a query result are not published that way. {@link #getMissing(String)} and the item accessors of a
+ * query result copy them while holding the lock on {@link #queryResults} and therefore wait for writers of query
+ * results (and for thread writers updating the missing threads). They never wait for writers of emails or mailboxes.
+ */
+public class InMemoryCache implements LocalQueryCache, EmailBodyCache {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(InMemoryCache.class);
 
-    protected final HashMap<String, Mailbox> mailboxes = new HashMap<>();
-    protected final HashMap<String, Thread> threads = new HashMap<>();
-    protected final HashMap<String, Email> emails = new HashMap<>();
-    protected final HashMap<String, Identity> identities = new HashMap<>();
-    protected final HashMap<String, InMemoryQueryResult> queryResults = new HashMap<>();
-    private String mailboxState = null;
-    private String threadState = null;
-    private String emailState = null;
-    private String identityState = null;
+    /**
+     * Rough estimate of the memory retained by a map entry and an {@link EmailBodyValue} excluding the strings.
+     */
+    private static final long BODY_VALUE_OVERHEAD = 96;
+
+    private static final String[] BODY_PROPERTIES = new String[]{
+            "bodyStructure", "bodyValues", "textBody", "htmlBody", "attachments"
+    };
+
+    protected final ConcurrentHashMap<String, Mailbox> mailboxes = new ConcurrentHashMap<>();
+    protected final ConcurrentHashMap<String, Thread> threads = new ConcurrentHashMap<>();
+    protected final ConcurrentHashMap<String, Email> emails = new ConcurrentHashMap<>();
+    protected final ConcurrentHashMap<String, Identity> identities = new ConcurrentHashMap<>();
+    protected final ConcurrentHashMap<String, InMemoryQueryResult> queryResults = new ConcurrentHashMap<>();
+    private final AtomicReference<ObjectsState> objectsState = new AtomicReference<>(new ObjectsState(null, null, null));
+    private volatile String identityState = null;
+
+    @NullableDecl
+    private final SegmentedLru bodyValues;
+    private final Set<String> evictedBodyValues = ConcurrentHashMap.newKeySet();
+    /**
+     * The evicted body values that have been asked for with {@link #getEmail(String)} since they were evicted. Only
+     * those are fetched again; fetching every evicted body would evict others that are then fetched on the next
+     * refresh and so on.
+     */
+    private final Set<String> requestedBodyValues = ConcurrentHashMap.newKeySet();
+    private final EmailInterner emailInterner = new EmailInterner();
+    @NullableDecl
+    private final FullTextIndex fullTextIndex;
+
+    /**
+     * Creates a cache that retains everything it is given.
+     */
+    public InMemoryCache() {
+        this((SegmentedLru) null, null);
+    }
+
+    /**
+     * Creates a cache that retains everything it is given and keeps the index up to date with the emails in the cache.
+     *
+     * @param fullTextIndex an empty index
+     */
+    public InMemoryCache(@NonNullDecl final FullTextIndex fullTextIndex) {
+        this((SegmentedLru) null, fullTextIndex);
+    }
+
+    /**
+     * Creates a cache that retains at most (roughly) the given number of bytes of email body values. Once that
+     * budget is exceeded the body values of the emails that have been accessed the least are dropped while the
+     * remaining properties of the email are kept. Emails with dropped body values are reported by
+     * {@link #getMissing(String)} to be fetched again once they have been accessed with {@link #getEmail(String)}.
+     *
+     * @param maxBodyValueBytes the budget for body values in bytes
+     */
+    public InMemoryCache(final long maxBodyValueBytes) {
+        this(new SegmentedLru(maxBodyValueBytes), null);
+    }
+
+    /**
+     * Combines {@link #InMemoryCache(long)} and {@link #InMemoryCache(FullTextIndex)}. Body values are indexed before
+     * they are dropped; an email stays searchable by its body after its body values have been evicted.
+     */
+    public InMemoryCache(final long maxBodyValueBytes, @NonNullDecl final FullTextIndex fullTextIndex) {
+        this(new SegmentedLru(maxBodyValueBytes), fullTextIndex);
+    }
+
+    /**
+     * For subclasses that pass on the options of their own constructors.
+     *
+     * @param maxBodyValueBytes the budget for body values in bytes or null to retain all body values
+     * @param fullTextIndex     an empty index or null to not index emails
+     */
+    protected InMemoryCache(@NullableDecl final Long maxBodyValueBytes, @NullableDecl final FullTextIndex fullTextIndex) {
+        this(maxBodyValueBytes == null ? null : new SegmentedLru(maxBodyValueBytes), fullTextIndex);
+    }
+
+    private InMemoryCache(@NullableDecl final SegmentedLru bodyValues, @NullableDecl final FullTextIndex fullTextIndex) {
+        this.bodyValues = bodyValues;
+        this.fullTextIndex = fullTextIndex;
+    }
 
     @Override
     public String getIdentityState() {
@@ -49,56 +136,69 @@ public class InMemoryCache implements Cache {
 
     @Override
     public String getMailboxState() {
-        return mailboxState;
+        return objectsState.get().mailboxState;
     }
 
 
     @Override
     @NonNullDecl
     public QueryStateWrapper getQueryState(String query) {
-        synchronized (this.queryResults) {
-            final String mailboxState = this.mailboxState;
-            final String threadState = this.threadState;
-            final String emailState = this.emailState;
-            final ObjectsState objectsState = new ObjectsState(mailboxState, threadState, emailState);
-            final InMemoryQueryResult queryResult = queryResults.get(query);
-            if (queryResult == null) {
-                return new QueryStateWrapper(null,false,null,objectsState);
-            } else {
-                final QueryStateWrapper.UpTo upTo;
-                if (queryResult.items.size() > 0) {
-                    final int lastPosition = queryResult.items.size() - 1;
-                    final QueryResultItem lastItem = queryResult.items.get(lastPosition);
-                    final String id = lastItem.getEmailId();
-                    upTo = new QueryStateWrapper.UpTo(id, lastPosition);
-                } else {
-                    upTo = null;
-                }
-                return new QueryStateWrapper(queryResult.queryState, queryResult.canCalculateChanges, upTo, objectsState);
-            }
+        final ObjectsState objectsState = this.objectsState.get();
+        final InMemoryQueryResult queryResult = queryResults.get(query);
+        if (queryResult == null) {
+            return new QueryStateWrapper(null, false, null, objectsState);
+        } else {
+            final InMemoryQueryResult.Summary summary = queryResult.summary;
+            return new QueryStateWrapper(summary.queryState, summary.canCalculateChanges, summary.upTo, objectsState);
         }
     }
 
     @NonNullDecl
     @Override
     public ObjectsState getObjectsState() {
-        return new ObjectsState(mailboxState, threadState, emailState);
+        return objectsState.get();
+    }
+
+    private void setMailboxState(final String mailboxState) {
+        updateObjectsState(s -> new ObjectsState(mailboxState, s.threadState, s.emailState));
+    }
+
+    private void setThreadState(final String threadState) {
+        updateObjectsState(s -> new ObjectsState(s.mailboxState, threadState, s.emailState));
+    }
+
+    private void setEmailState(final String emailState) {
+        updateObjectsState(s -> new ObjectsState(s.mailboxState, s.threadState, emailState));
+    }
+
+    private void updateObjectsState(final UnaryOperator<ObjectsState> function) {
+        this.objectsState.updateAndGet(function);
+    }
+
+    /**
+     * Replaces the content of the map without ever exposing an empty map to concurrent readers.
+     */
+    private static <T extends AbstractIdentifiableEntity> void replace(final Map<String, T> map, final T[] objects) {
+        final Set<String> ids = new HashSet<>();
+        for (final T object : objects) {
+            map.put(object.getId(), object);
+            ids.add(object.getId());
+        }
+        map.keySet().retainAll(ids);
     }
 
     @Override
     public void setMailboxes(TypedState<Mailbox> state, Mailbox[] mailboxes) {
         synchronized (this.mailboxes) {
-            this.mailboxes.clear();
-            for (Mailbox mailbox : mailboxes) {
-                this.mailboxes.put(mailbox.getId(), mailbox);
-            }
-            this.mailboxState = state.getState();
+            replace(this.mailboxes, mailboxes);
+            setMailboxState(state.getState());
         }
 
     }
 
     @Override
     public void updateMailboxes(Update<Mailbox> mailboxUpdate, final String[] updatedProperties) throws CacheWriteException {
+        checkProperties(PropertyAccessor.MAILBOX, updatedProperties);
         synchronized (this.mailboxes) {
             for (Mailbox mailbox : mailboxUpdate.getCreated()) {
                 this.mailboxes.put(mailbox.getId(), mailbox);
@@ -108,14 +208,12 @@ public class InMemoryCache implements Cache {
                 if (target == null) {
                     throw new CacheWriteException(String.format("Unable to update Mailbox(%s). Can not find in cache", mailbox.getId()));
                 }
-                if (updatedProperties != null) {
-                    for (String property : updatedProperties) { //can be null
-                        try {
-                            copyProperty(target, mailbox, property, Mailbox.class);
-                        } catch (NoSuchFieldException | IllegalAccessException e) {
-                            throw new CacheWriteException(String.format("Unable to update Mailbox(%s). Can not update field %s", mailbox.getId(), property), e);
-                        }
-                    }
+                if (updatedProperties != null) { //can be null
+                    //copy on write; readers holding on to the old instance never see a partially applied update
+                    final Mailbox updated = Mailbox.builder().build();
+                    PropertyAccessor.MAILBOX.copyAll(updated, target);
+                    PropertyAccessor.MAILBOX.copy(updated, mailbox, updatedProperties);
+                    this.mailboxes.put(updated.getId(), updated);
                 } else {
                     this.mailboxes.put(mailbox.getId(), mailbox);
                 }
@@ -123,18 +221,16 @@ public class InMemoryCache implements Cache {
             for (String id : mailboxUpdate.getDestroyed()) {
                 this.mailboxes.remove(id);
             }
-            this.mailboxState = mailboxUpdate.getNewTypedState().getState();
+            setMailboxState(mailboxUpdate.getNewTypedState().getState());
         }
     }
 
     @Override
     public Collection<Mailbox> getSpecialMailboxes() throws NotSynchronizedException {
-        synchronized (this.mailboxes) {
-            if (this.mailboxState == null) {
-                throw new NotSynchronizedException("Mailboxes have not been synchronized yet. Run refresh() first.");
-            }
-            return this.mailboxes.values();
+        if (getMailboxState() == null) {
+            throw new NotSynchronizedException("Mailboxes have not been synchronized yet. Run refresh() first.");
         }
+        return ImmutableList.copyOf(this.mailboxes.values());
     }
 
     @Override
@@ -151,22 +247,26 @@ public class InMemoryCache implements Cache {
 
     private void setThreads(final TypedState<Thread> typedState, Thread[] threads) {
         synchronized (this.threads) {
-            this.threads.clear();
-            for (Thread thread : threads) {
-                this.threads.put(thread.getId(), thread);
+            replace(this.threads, threads);
+            synchronized (this.queryResults) {
+                for (final InMemoryQueryResult queryResult : this.queryResults.values()) {
+                    queryResult.trackMissingThreads(this.threads);
+                }
             }
-            this.threadState = typedState.getState();
+            setThreadState(typedState.getState());
         }
     }
 
     private void addThreads(final TypedState<Thread> typedState, final Thread[] threads) throws CacheConflictException {
         synchronized (this.threads) {
-            if (typedState.getState() == null || !typedState.getState().equals(this.threadState)) {
-                throw new CacheConflictException(String.format("Trying to add threads with an outdated state. Run update first. Cached state=%s. Your state=%s", this.threadState, typedState.getState()));
+            final String threadState = getObjectsState().threadState;
+            if (typedState.getState() == null || !typedState.getState().equals(threadState)) {
+                throw new CacheConflictException(String.format("Trying to add threads with an outdated state. Run update first. Cached state=%s. Your state=%s", threadState, typedState.getState()));
             }
             for (Thread thread : threads) {
                 this.threads.put(thread.getId(), thread);
             }
+            threadsAdded(threads);
         }
     }
 
@@ -192,67 +292,256 @@ public class InMemoryCache implements Cache {
             for (String id : threadUpdate.getDestroyed()) {
                 this.threads.remove(id);
             }
-            this.threadState = threadUpdate.getNewTypedState().getState();
+            threadsAdded(threadUpdate.getCreated());
+            threadsDestroyed(threadUpdate.getDestroyed());
+            setThreadState(threadUpdate.getNewTypedState().getState());
+        }
+    }
+
+    /**
+     * Must be called while holding the lock on {@link #threads} and after the threads have been put into the map.
+     */
+    private void threadsAdded(final Thread[] threads) {
+        synchronized (this.queryResults) {
+            for (final InMemoryQueryResult queryResult : this.queryResults.values()) {
+                for (final Thread thread : threads) {
+                    queryResult.missingThreadIds.remove(thread.getId());
+                }
+            }
+        }
+    }
+
+    /**
+     * Must be called while holding the lock on {@link #threads} and after the threads have been removed from the map.
+     */
+    private void threadsDestroyed(final String[] ids) {
+        synchronized (this.queryResults) {
+            for (final InMemoryQueryResult queryResult : this.queryResults.values()) {
+                for (final String id : ids) {
+                    if (queryResult.threadIds.contains(id)) {
+                        queryResult.missingThreadIds.add(id);
+                    }
+                }
+            }
         }
     }
 
     private void setEmails(TypedState<Email> typedState, Email[] emails) {
         synchronized (this.emails) {
-            this.emails.clear();
-            for (Email email : emails) {
-                this.emails.put(email.getId(), email);
+            final Set<String> evicted = new HashSet<>(this.evictedBodyValues);
+            final Set<String> requested = new HashSet<>(this.requestedBodyValues);
+            emails = emails.clone();
+            for (int i = 0; i < emails.length; ++i) {
+                emails[i] = emailInterner.intern(withCachedBody(emails[i]));
+            }
+            replace(this.emails, emails);
+            if (this.fullTextIndex != null) {
+                this.fullTextIndex.replaceAll(Arrays.asList(emails));
+            }
+            if (this.bodyValues != null) {
+                this.bodyValues.clear();
+                this.evictedBodyValues.clear();
+                this.requestedBodyValues.clear();
+                for (final Email email : emails) {
+                    accountBodyValues(email);
+                }
+                //bodies that have been evicted before are still missing
+                for (final String id : evicted) {
+                    final Email email = this.emails.get(id);
+                    if (email != null && estimateBodyValuesSize(email) == 0 && email.getTextBody() != null) {
+                        this.evictedBodyValues.add(id);
+                        if (requested.contains(id)) {
+                            this.requestedBodyValues.add(id);
+                        }
+                    }
+                }
             }
-            this.emailState = typedState.getState();
+            setEmailState(typedState.getState());
         }
     }
 
     private void addEmails(TypedState<Email> typedState, Email[] emails) throws CacheConflictException {
         synchronized (this.emails) {
-            if (typedState.getState() == null || !typedState.getState().equals(this.emailState)) {
-                throw new CacheConflictException(String.format("Trying to add emails with an outdated state. Run update first. Cached state=%s. Your state=%s", this.emailState, typedState.getState()));
+            final String emailState = getObjectsState().emailState;
+            if (typedState.getState() == null || !typedState.getState().equals(emailState)) {
+                throw new CacheConflictException(String.format("Trying to add emails with an outdated state. Run update first. Cached state=%s. Your state=%s", emailState, typedState.getState()));
             }
             for (Email email : emails) {
-                this.emails.put(email.getId(), email);
+                addEmail(withCachedBody(email));
             }
         }
     }
 
+    /**
+     * Must be called while holding the lock on {@link #emails}.
+     */
+    private void addEmail(final Email email) {
+        final boolean evicted = this.evictedBodyValues.contains(email.getId());
+        final boolean requested = this.requestedBodyValues.contains(email.getId());
+        this.emails.put(email.getId(), emailInterner.intern(email));
+        index(email);
+        accountBodyValues(email);
+        if (evicted && estimateBodyValuesSize(email) == 0 && email.getTextBody() != null) {
+            this.evictedBodyValues.add(email.getId());
+            if (requested) {
+                this.requestedBodyValues.add(email.getId());
+            }
+        }
+    }
+
+    /**
+     * Emails fetched with a lightweight {@link rs.ltt.jmap.mua.util.EmailFetchProfile} arrive without their body.
+     * Must be called while holding the lock on {@link #emails}.
+     *
+     * @return the email; with the body of the cached version if it arrived without one
+     */
+    private Email withCachedBody(final Email email) {
+        if (email.getTextBody() != null || email.getBodyValues() != null) {
+            return email;
+        }
+        final Email cached = this.emails.get(email.getId());
+        if (cached == null || (cached.getTextBody() == null && cached.getBodyValues() == null)) {
+            return email;
+        }
+        final Email merged = copyOf(email);
+        PropertyAccessor.EMAIL.copy(merged, cached, BODY_PROPERTIES);
+        return merged;
+    }
+
     @Override
     public void updateEmails(Update<Email> emailUpdate, String[] updatedProperties) throws CacheWriteException {
+        checkProperties(PropertyAccessor.EMAIL, updatedProperties);
         synchronized (this.emails) {
 
             //TODO check state
 
             for (Email email : emailUpdate.getCreated()) {
-                this.emails.put(email.getId(), email);
+                addEmail(withCachedBody(email));
             }
             for (Email email : emailUpdate.getUpdated()) {
                 Email target = emails.get(email.getId());
                 if (target == null) {
                     throw new CacheWriteException(String.format("Unable to update Email(%s). Can not find in cache", email.getId()));
                 }
-                for (String property : updatedProperties) {
-                    try {
-                        copyProperty(target, email, property, Email.class);
-                    } catch (NoSuchFieldException | IllegalAccessException e) {
-                        throw new CacheWriteException(String.format("Unable to update Mailbox(%s). Can not update field %s", email.getId(), property), e);
-                    }
-                }
+                //copy on write; readers holding on to the old instance never see a partially applied update
+                final Email updated = copyOf(target);
+                PropertyAccessor.EMAIL.copy(updated, email, updatedProperties);
+                this.emails.put(updated.getId(), emailInterner.internInPlace(updated));
             }
             for (String id : emailUpdate.getDestroyed()) {
                 this.emails.remove(id);
+                if (this.fullTextIndex != null) {
+                    this.fullTextIndex.remove(id);
+                }
+                if (this.bodyValues != null) {
+                    this.bodyValues.remove(id);
+                    this.evictedBodyValues.remove(id);
+                    this.requestedBodyValues.remove(id);
+                }
+            }
+            setEmailState(emailUpdate.getNewTypedState().getState());
+        }
+    }
+
+    @Override
+    public void setEmailBody(final Email email) {
+        synchronized (this.emails) {
+            final Email cached = this.emails.get(email.getId());
+            if (cached == null) {
+                return;
+            }
+            final Email merged = copyOf(cached);
+            PropertyAccessor.EMAIL.copy(merged, email, BODY_PROPERTIES);
+            addEmail(merged);
+        }
+    }
+
+    /**
+     * Must be called while holding the lock on {@link #emails}. Updates do not need to be indexed; the indexed
+     * properties of an email are immutable.
+     */
+    private void index(final Email email) {
+        if (this.fullTextIndex == null) {
+            return;
+        }
+        final Map<String, EmailBodyValue> bodyValues = email.getBodyValues();
+        //an email fetched again without body values should not lose the postings of its body
+        if ((bodyValues == null || bodyValues.isEmpty()) && this.fullTextIndex.contains(email.getId())) {
+            return;
+        }
+        this.fullTextIndex.add(email);
+    }
+
+    /**
+     * Must be called while holding the lock on {@link #emails}.
+     */
+    private void accountBodyValues(final Email email) {
+        if (this.bodyValues == null) {
+            return;
+        }
+        this.evictedBodyValues.remove(email.getId());
+        this.requestedBodyValues.remove(email.getId());
+        final long size = estimateBodyValuesSize(email);
+        if (size == 0) {
+            this.bodyValues.remove(email.getId());
+            return;
+        }
+        for (final String id : this.bodyValues.put(email.getId(), size)) {
+            this.emails.computeIfPresent(id, (key, evicted) -> withoutBodyValues(evicted));
+            this.evictedBodyValues.add(id);
+        }
+    }
+
+    private static Email withoutBodyValues(final Email email) {
+        final Email copy = copyOf(email);
+        PropertyAccessor.EMAIL.set(copy, "bodyValues", Collections.emptyMap());
+        return copy;
+    }
+
+    /**
+     * @return a shallow copy that keeps sharing the interned properties of the original
+     */
+    static Email copyOf(final Email email) {
+        final Email copy = Email.builder().build();
+        PropertyAccessor.EMAIL.copyAll(copy, email);
+        return copy;
+    }
+
+    static long estimateBodyValuesSize(final Email email) {
+        final Map<String, EmailBodyValue> bodyValues = email.getBodyValues();
+        if (bodyValues == null) {
+            return 0;
+        }
+        long size = 0;
+        for (final Map.Entry<String, EmailBodyValue> entry : bodyValues.entrySet()) {
+            size += BODY_VALUE_OVERHEAD + 2L * entry.getKey().length();
+            final String value = entry.getValue() == null ? null : entry.getValue().getValue();
+            if (value != null) {
+                size += 2L * value.length();
             }
-            this.emailState = emailUpdate.getNewTypedState().getState();
         }
+        return size;
+    }
+
+    /**
+     * @return the cached email or null if the email is not in the cache. If the cache has a budget for body values
+     * the access counts towards keeping the body values of the email; evicted body values will be reported as missing.
+     */
+    @NullableDecl
+    public Email getEmail(final String id) {
+        if (this.bodyValues != null) {
+            this.bodyValues.touch(id);
+            if (this.evictedBodyValues.contains(id)) {
+                this.requestedBodyValues.add(id);
+            }
+        }
+        return this.emails.get(id);
     }
 
     @Override
     public void setIdentities(final TypedState<Identity> typedState, final Identity[] identities) {
         synchronized (this.identities) {
-            this.identities.clear();
-            for (Identity identity : identities) {
-                this.identities.put(identity.getId(), identity);
-            }
+            replace(this.identities, identities);
             if (typedState.getState() == null) {
                 LOGGER.warn("Identity state was null");
             } else {
@@ -289,13 +578,35 @@ public class InMemoryCache implements Cache {
     public void setQueryResult(String query, QueryResult queryResult) {
         synchronized (this.queryResults) {
             final String emailState = queryResult.objectState.getState();
-            if (emailState == null || !emailState.equals(this.emailState)) {
-                throw new CacheConflictException(String.format("Email state must match when updating query results. Cached state=%s. Your state=%s", this.emailState, emailState));
+            final String cachedEmailState = getObjectsState().emailState;
+            if (emailState == null || !emailState.equals(cachedEmailState)) {
+                throw new CacheConflictException(String.format("Email state must match when updating query results. Cached state=%s. Your state=%s", cachedEmailState, emailState));
             }
-            this.queryResults.put(query, new InMemoryQueryResult(queryResult.queryState.getState(), queryResult.canCalculateChanges, queryResult.items));
+            this.queryResults.put(query, new InMemoryQueryResult(queryResult.queryState.getState(), queryResult.canCalculateChanges, queryResult.items, this.threads, this.queryResults));
         }
     }
 
+    @Override
+    public boolean setProvisionalQueryResult(final EmailQuery query, @NullableDecl final String[] properties) {
+        if (getObjectsState().emailState == null || !EmailQueryEvaluator.isSupported(query, properties)) {
+            return false;
+        }
+        final String queryString = query.toQueryString();
+        final InMemoryQueryResult current = this.queryResults.get(queryString);
+        if (current != null && !current.isProvisional()) {
+            return false;
+        }
+        final QueryResultItem[] items = EmailQueryEvaluator.evaluate(query, this.emails.values());
+        synchronized (this.queryResults) {
+            final InMemoryQueryResult existing = this.queryResults.get(queryString);
+            if (existing != null && !existing.isProvisional()) {
+                return false;
+            }
+            this.queryResults.put(queryString, new InMemoryQueryResult(null, false, items, this.threads, this.queryResults));
+        }
+        return true;
+    }
+
     @Override
     public void addQueryResult(String queryString, String afterEmailId, QueryResult queryResult) throws CacheWriteException, CacheConflictException {
         synchronized (this.queryResults) {
@@ -304,14 +615,15 @@ public class InMemoryCache implements Cache {
 
             //TODO simply ignore if already applied
 
-            if (emailState == null || !emailState.equals(this.emailState)) {
-                throw new CacheConflictException(String.format("Email state must match when updating query results. Cached state=%s. Your state=%s", this.emailState, emailState));
+            final String cachedEmailState = getObjectsState().emailState;
+            if (emailState == null || !emailState.equals(cachedEmailState)) {
+                throw new CacheConflictException(String.format("Email state must match when updating query results. Cached state=%s. Your state=%s", cachedEmailState, emailState));
             }
             final InMemoryQueryResult inMemoryQueryResult = this.queryResults.get(queryString);
             if (inMemoryQueryResult == null) {
                 throw new CacheConflictException("QueryResult does not exist in our database");
             }
-            if (queryState == null || !queryState.equals(inMemoryQueryResult.queryState)) {
+            if (queryState == null || !queryState.equals(inMemoryQueryResult.getQueryState())) {
                 throw new CacheConflictException("QueryState does not match");
             }
             final int currentItemCount = inMemoryQueryResult.items.size();
@@ -325,7 +637,10 @@ public class InMemoryCache implements Cache {
             if (currentItemCount != queryResult.position) {
                 throw new CorruptCacheException(String.format("Unexpected QueryPage. Cache has %d items. Page starts at position %d",currentItemCount,queryResult.position));
             }
-            inMemoryQueryResult.items.addAll(Arrays.asList(queryResult.items));
+            for (final QueryResultItem item : queryResult.items) {
+                inMemoryQueryResult.add(inMemoryQueryResult.items.size(), item, this.threads);
+            }
+            inMemoryQueryResult.publish(queryState);
         }
     }
 
@@ -336,10 +651,11 @@ public class InMemoryCache implements Cache {
             if (queryResult == null) {
                 throw new CacheWriteException("Unable to update query. Can not find cached version");
             }
-            if (emailState.getState() == null || !emailState.getState().equals(this.emailState)) {
-                throw new CacheConflictException(String.format("Email state must match when updating query results. Cached state=%s. Your state=%s", this.emailState, emailState.getState()));
+            final String cachedEmailState = getObjectsState().emailState;
+            if (emailState.getState() == null || !emailState.getState().equals(cachedEmailState)) {
+                throw new CacheConflictException(String.format("Email state must match when updating query results. Cached state=%s. Your state=%s", cachedEmailState, emailState.getState()));
             }
-            if (update.getOldTypedState().getState() == null || !update.getOldTypedState().getState().equals(queryResult.queryState)) {
+            if (update.getOldTypedState().getState() == null || !update.getOldTypedState().getState().equals(queryResult.getQueryState())) {
                 throw new CacheConflictException(String.format("OldState (%s) did not match our expectation ", update.getOldTypedState().getState()));
             }
             for (String removed : update.getRemoved()) {
@@ -349,9 +665,9 @@ public class InMemoryCache implements Cache {
             for (AddedItem<QueryResultItem> addedItem : update.getAdded()) {
                 //TODO it is probably save to just not add an item that exceeds the range (position > length) but this indicates a broken uper layer
                 LOGGER.info("now adding " + addedItem.getItem().getEmailId() + " on index " + addedItem.getIndex());
-                queryResult.items.add((int) addedItem.getIndex(), addedItem.getItem());
+                queryResult.add((int) addedItem.getIndex(), addedItem.getItem(), this.threads);
             }
-            queryResult.queryState = update.getNewTypedState().getState();
+            queryResult.publish(update.getNewTypedState().getState());
         }
     }
 
@@ -364,52 +680,174 @@ public class InMemoryCache implements Cache {
 
     @Override
     public Missing getMissing(final String query) throws CacheReadException {
-        final List<String> threadIds = new ArrayList<>();
+        final ObjectsState objectsState = getObjectsState();
+        final List<String> threadIds;
+        final List<String> emailIds = new ArrayList<>();
         synchronized (this.queryResults) {
             final InMemoryQueryResult queryResult = this.queryResults.get(query);
             if (queryResult == null) {
                 throw new CacheReadException("Unable to find cached version");
             }
-            for (QueryResultItem item : queryResult.items) {
-                threadIds.add(item.getThreadId());
+            threadIds = new ArrayList<>(queryResult.missingThreadIds);
+            //intersect from the smaller side; the requested ids span all queries
+            if (this.requestedBodyValues.size() <= queryResult.items.size()) {
+                for (final String emailId : this.requestedBodyValues) {
+                    if (queryResult.positionOf(emailId) >= 0) {
+                        addMissingEmail(queryResult, emailId, emailIds);
+                    }
+                }
+            } else if (!this.requestedBodyValues.isEmpty()) {
+                for (final QueryResultItem item : queryResult.items) {
+                    if (this.requestedBodyValues.contains(item.getEmailId())) {
+                        addMissingEmail(queryResult, item.getEmailId(), emailIds);
+                    }
+                }
             }
         }
-        synchronized (this.threads) {
-            threadIds.removeIf(this.threads::containsKey);
-            return new Missing(this.threadState, this.emailState, threadIds);
+        return new Missing(objectsState.threadState, objectsState.emailState, threadIds, emailIds);
+    }
+
+    private void addMissingEmail(final InMemoryQueryResult queryResult, final String emailId, final List<String> emailIds) {
+        final Email email = this.emails.get(emailId);
+        //emails of missing threads will be fetched anyway
+        if (email != null && !queryResult.missingThreadIds.contains(email.getThreadId())) {
+            emailIds.add(emailId);
         }
     }
 
-    private static <T extends AbstractIdentifiableEntity> void copyProperty(T target, T source, String property, Class<T> clazz) throws NoSuchFieldException, IllegalAccessException {
-        Field field = clazz.getDeclaredField(property);
-        field.setAccessible(true);
-        field.set(target, field.get(source));
+    private static void checkProperties(final PropertyAccessor<?> accessor, final String[] properties) throws CacheWriteException {
+        if (properties == null) {
+            return;
+        }
+        for (final String property : properties) {
+            if (!accessor.hasProperty(property)) {
+                throw new CacheWriteException(String.format("Unable to update property %s. Property does not exist", property));
+            }
+        }
     }
 
     protected static class InMemoryQueryResult {
 
-        private String queryState;
-        private final boolean canCalculateChanges;
-        private final ArrayList<QueryResultItem> items;
+        private final QueryResultList items;
+        /**
+         * The thread ids of all items; one entry per item.
+         */
+        private final Multiset<String> threadIds = HashMultiset.create();
+        /**
+         * The thread ids of items whose thread is not in the cache. Kept up to date by both the query writers and the
+         * thread writers (while holding the lock on {@link #queryResults}) so that {@link #getMissing(String)} does not
+         * have to look at every item.
+         */
+        private final Set<String> missingThreadIds = new LinkedHashSet<>();
+        private volatile Summary summary;
+        /**
+         * The lock writers hold while modifying the items; the lock on {@link #queryResults}.
+         */
+        private final Object lock;
+
+        InMemoryQueryResult(String queryState, boolean canCalculateChanges, QueryResultItem[] items, Map<String, Thread> threads, Object lock) {
+            this.items = new QueryResultList(items);
+            this.lock = lock;
+            for (final QueryResultItem item : items) {
+                this.threadIds.add(item.getThreadId());
+            }
+            this.summary = new Summary(queryState, canCalculateChanges, this.items);
+            trackMissingThreads(threads);
+        }
 
-        InMemoryQueryResult(String queryState, boolean canCalculateChanges, QueryResultItem[] items) {
-            this.queryState = queryState;
-            this.canCalculateChanges = canCalculateChanges;
-            this.items = new ArrayList<>(Arrays.asList(items));
+        /**
+         * @return true if the result has been evaluated locally and has not been confirmed by the server yet
+         */
+        public boolean isProvisional() {
+            return summary.queryState == null;
+        }
+
+        private void add(final int position, final QueryResultItem item, final Map<String, Thread> threads) {
+            items.add(position, item);
+            threadIds.add(item.getThreadId());
+            if (!threads.containsKey(item.getThreadId())) {
+                missingThreadIds.add(item.getThreadId());
+            }
         }
 
         private void remove(String emailId) {
-            Iterator<QueryResultItem> iterator = items.iterator();
-            while (iterator.hasNext()) {
-                if (emailId.equals(iterator.next().getEmailId())) {
-                    iterator.remove();
-                    break;
+            final QueryResultItem item = items.remove(emailId);
+            if (item != null) {
+                threadIds.remove(item.getThreadId());
+                if (!threadIds.contains(item.getThreadId())) {
+                    missingThreadIds.remove(item.getThreadId());
+                }
+            }
+        }
+
+        private void trackMissingThreads(final Map<String, Thread> threads) {
+            missingThreadIds.clear();
+            for (final String threadId : threadIds.elementSet()) {
+                if (!threads.containsKey(threadId)) {
+                    missingThreadIds.add(threadId);
                 }
             }
         }
 
+        /**
+         * Makes the modifications of the items visible to readers of {@link #getQueryState(String)}. Must be called
+         * by writers (while holding the lock on {@link #queryResults}) once they are done modifying the items.
+         */
+        private void publish(final String queryState) {
+            this.summary = new Summary(queryState, summary.canCalculateChanges, items);
+        }
+
+        /**
+         * @return a copy of the items
+         */
         public List<QueryResultItem> getItems() {
-            return ImmutableList.copyOf(items);
+            synchronized (lock) {
+                return ImmutableList.copyOf(items);
+            }
+        }
+
+        /**
+         * @return a copy of at most limit items starting at offset. Only the requested page is copied.
+         */
+        public List<QueryResultItem> getItems(final int offset, final int limit) {
+            synchronized (lock) {
+                return Collections.unmodifiableList(items.copyOf(offset, limit));
+            }
+        }
+
+        /**
+         * @return the position of the email in this query or -1 if the query does not contain the email
+         */
+        public int positionOf(final String emailId) {
+            synchronized (lock) {
+                return items.positionOf(emailId);
+            }
+        }
+
+        public String getQueryState() {
+            return summary.queryState;
+        }
+
+        public boolean isCanCalculateChanges() {
+            return summary.canCalculateChanges;
+        }
+
+        private static class Summary {
+            private final String queryState;
+            private final boolean canCalculateChanges;
+            private final QueryStateWrapper.UpTo upTo;
+
+            private Summary(final String queryState, final boolean canCalculateChanges, final List<QueryResultItem> items) {
+                this.queryState = queryState;
+                this.canCalculateChanges = canCalculateChanges;
+                //a provisional result must look like no result at all to the query logic
+                if (items.isEmpty() || queryState == null) {
+                    this.upTo = null;
+                } else {
+                    final int lastPosition = items.size() - 1;
+                    this.upTo = new QueryStateWrapper.UpTo(items.get(lastPosition).getEmailId(), lastPosition);
+                }
+            }
         }
     }
 }
@@ -0,0 +1,41 @@
+/*
+ * Copyright 2020 Daniel Gultsch
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package rs.ltt.jmap.mua.cache;
+
+import org.checkerframework.checker.nullness.compatqual.NullableDecl;
+import rs.ltt.jmap.common.entity.query.EmailQuery;
+
+/**
+ * A {@link Cache} that can answer queries from the emails it holds. Before the first Email/query for a query is sent to
+ * the server, the Mua asks the cache to store a provisional result; which makes results available instantly and while
+ * the server can not be reached.
+ * <p>
+ * A provisional result must not be reported by {@link Cache#getQueryState(String)}; meaning the query state is null and
+ * canCalculateChanges is false. It is replaced by the first result received from the server.
+ */
+public interface LocalQueryCache extends Cache {
+
+    /**
+     * Evaluates the query against the emails in the cache and stores the result. Does nothing if the cache already
+     * holds a result received from the server or if the query can not be evaluated locally.
+     *
+     * @param properties the properties the emails in the cache have been fetched with or null for the default
+     *                   properties of Email/get
+     * @return true if a provisional result has been stored
+     */
+    boolean setProvisionalQueryResult(EmailQuery query, @NullableDecl String[] properties) throws CacheWriteException;
+}
@@ -18,6 +18,7 @@ package rs.ltt.jmap.mua.cache;
 
 import com.google.common.base.MoreObjects;
 
+import java.util.Collections;
 import java.util.List;
 
 public class Missing {
@@ -25,11 +26,20 @@ public class Missing {
     public final String threadState;
     public final String emailState;
     public final List<String> threadIds;
+    /**
+     * Emails that are cached but are missing their body values; for example because they have been evicted.
+     */
+    public final List<String> emailIds;
 
     public Missing(String threadState, String emailState, List<String> threadIds) {
+        this(threadState, emailState, threadIds, Collections.emptyList());
+    }
+
+    public Missing(String threadState, String emailState, List<String> threadIds, List<String> emailIds) {
         this.threadState = threadState;
         this.emailState = emailState;
         this.threadIds = threadIds;
+        this.emailIds = emailIds;
     }
 
     @Override
@@ -38,6 +48,7 @@ public class Missing {
                 .add("threadState", threadState)
                 .add("emailState", emailState)
                 .add("threadIds", threadIds)
+                .add("emailIds", emailIds)
                 .toString();
     }
 }
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2020 Daniel Gultsch
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package rs.ltt.jmap.mua.cache;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.gson.annotations.SerializedName;
+import rs.ltt.jmap.common.entity.AbstractIdentifiableEntity;
+import rs.ltt.jmap.common.entity.Email;
+import rs.ltt.jmap.common.entity.Identity;
+import rs.ltt.jmap.common.entity.Mailbox;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A table of the properties of an entity, keyed by their JMAP property name. The fields are looked up (and made
+ * accessible) once per class; applying a partial update to an object is then reduced to a map lookup and a field
+ * copy per property.
+ */
+public final class PropertyAccessor<T extends AbstractIdentifiableEntity> {
+
+    public static final PropertyAccessor<Email> EMAIL = of(Email.class);
+    public static final PropertyAccessor<Mailbox> MAILBOX = of(Mailbox.class);
+    public static final PropertyAccessor<Identity> IDENTITY = of(Identity.class);
+
+    private final Class<T> clazz;
+    private final ImmutableMap<String, Field> fields;
+
+    private PropertyAccessor(final Class<T> clazz, final ImmutableMap<String, Field> fields) {
+        this.clazz = clazz;
+        this.fields = fields;
+    }
+
+    public static <T extends AbstractIdentifiableEntity> PropertyAccessor<T> of(final Class<T> clazz) {
+        final Map<String, Field> fields = new HashMap<>();
+        for (Class<?> current = clazz; current != null && current != Object.class; current = current.getSuperclass()) {
+            for (final Field field : current.getDeclaredFields()) {
+                final int modifiers = field.getModifiers();
+                if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers) || field.isSynthetic()) {
+                    continue;
+                }
+                final SerializedName serializedName = field.getAnnotation(SerializedName.class);
+                final String name = serializedName == null ? field.getName() : serializedName.value();
+                if (fields.containsKey(name)) {
+                    //fields of a subclass shadow those of the super class
+                    continue;
+                }
+                field.setAccessible(true);
+                fields.put(name, field);
+            }
+        }
+        return new PropertyAccessor<>(clazz, ImmutableMap.copyOf(fields));
+    }
+
+    public boolean hasProperty(final String property) {
+        return fields.containsKey(property);
+    }
+
+    public Object get(final T object, final String property) {
+        try {
+            return getField(property).get(object);
+        } catch (final IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Copies the given properties from source to target.
+     *
+     * @throws IllegalArgumentException if one of the properties does not exist
+     */
+    public void copy(final T target, final T source, final String[] properties) {
+        try {
+            for (final String property : properties) {
+                final Field field = getField(property);
+                field.set(target, field.get(source));
+            }
+        } catch (final IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Copies all properties from source to target.
+     */
+    public void copyAll(final T target, final T source) {
+        try {
+            for (final Field field : fields.values()) {
+                field.set(target, field.get(source));
+            }
+        } catch (final IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @throws IllegalArgumentException if the property does not exist
+     */
+    public void set(final T object, final String property, final Object value) {
+        try {
+            getField(property).set(object, value);
+        } catch (final IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private Field getField(final String property) {
+        final Field field = fields.get(property);
+        if (field == null) {
+            throw new IllegalArgumentException(String.format("%s has no property %s", clazz.getSimpleName(), property));
+        }
+        return field;
+    }
+}
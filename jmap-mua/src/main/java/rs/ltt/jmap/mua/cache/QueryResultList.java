@@ -0,0 +1,288 @@
+/*
+ * Copyright 2020 Daniel Gultsch
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package rs.ltt.jmap.mua.cache;
+
+import com.google.common.base.Preconditions;
+import rs.ltt.jmap.mua.util.QueryResultItem;
+
+import java.util.*;
+
+/**
+ * The items of a query result, stored in a treap that is ordered by position and augmented with subtree sizes. An
+ * additional index from email id to tree node allows to find and remove an email without scanning the list.
+ * Inserting at a position, removing by email id and looking up the position of an email all take O(log n).
+ * <p>
+ * This class is not thread safe.
+ */
+final class QueryResultList extends AbstractList<QueryResultItem> {
+
+    private final Map<String, Node> index = new HashMap<>();
+    private final Random random = new Random();
+    private Node root = null;
+
+    QueryResultList(final QueryResultItem[] items) {
+        for (final QueryResultItem item : items) {
+            add(item);
+        }
+    }
+
+    @Override
+    public QueryResultItem get(final int position) {
+        return node(position).item;
+    }
+
+    @Override
+    public int size() {
+        return size(root);
+    }
+
+    @Override
+    public void add(final int position, final QueryResultItem item) {
+        Preconditions.checkPositionIndex(position, size());
+        final Node node = new Node(item, random.nextInt());
+        if (root == null) {
+            root = node;
+        } else {
+            Node current = root;
+            int remaining = position;
+            while (true) {
+                final int leftSize = size(current.left);
+                if (remaining <= leftSize) {
+                    if (current.left == null) {
+                        current.left = node;
+                        break;
+                    }
+                    current = current.left;
+                } else {
+                    remaining -= leftSize + 1;
+                    if (current.right == null) {
+                        current.right = node;
+                        break;
+                    }
+                    current = current.right;
+                }
+            }
+            node.parent = current;
+            for (Node p = current; p != null; p = p.parent) {
+                p.size++;
+            }
+            while (node.parent != null && node.priority > node.parent.priority) {
+                rotateUp(node);
+            }
+        }
+        index.put(item.getEmailId(), node);
+        modCount++;
+    }
+
+    @Override
+    public QueryResultItem remove(final int position) {
+        final Node node = node(position);
+        remove(node);
+        return node.item;
+    }
+
+    /**
+     * @return the removed item or null if the email was not part of this list
+     */
+    QueryResultItem remove(final String emailId) {
+        final Node node = index.get(emailId);
+        if (node == null) {
+            return null;
+        }
+        remove(node);
+        return node.item;
+    }
+
+    /**
+     * @return the position of the email or -1 if the email is not part of this list
+     */
+    int positionOf(final String emailId) {
+        final Node node = index.get(emailId);
+        if (node == null) {
+            return -1;
+        }
+        int position = size(node.left);
+        for (Node current = node; current.parent != null; current = current.parent) {
+            if (current == current.parent.right) {
+                position += size(current.parent.left) + 1;
+            }
+        }
+        return position;
+    }
+
+    /**
+     * @return a copy of at most limit items starting at offset. Takes O(log n + limit).
+     */
+    List<QueryResultItem> copyOf(final int offset, final int limit) {
+        Preconditions.checkArgument(offset >= 0, "offset must not be negative");
+        Preconditions.checkArgument(limit >= 0, "limit must not be negative");
+        if (offset >= size()) {
+            return Collections.emptyList();
+        }
+        final List<QueryResultItem> page = new ArrayList<>(Math.min(limit, size() - offset));
+        for (Node current = node(offset); current != null && page.size() < limit; current = successor(current)) {
+            page.add(current.item);
+        }
+        return page;
+    }
+
+    @Override
+    public void clear() {
+        root = null;
+        index.clear();
+        modCount++;
+    }
+
+    @Override
+    public Iterator<QueryResultItem> iterator() {
+        return new Iterator<QueryResultItem>() {
+
+            private final int expectedModCount = modCount;
+            private Node next = first(root);
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public QueryResultItem next() {
+                if (modCount != expectedModCount) {
+                    throw new ConcurrentModificationException();
+                }
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                final Node current = next;
+                next = successor(current);
+                return current.item;
+            }
+        };
+    }
+
+    private void remove(final Node node) {
+        while (node.left != null && node.right != null) {
+            rotateUp(node.left.priority > node.right.priority ? node.left : node.right);
+        }
+        final Node child = node.left != null ? node.left : node.right;
+        final Node parent = node.parent;
+        if (child != null) {
+            child.parent = parent;
+        }
+        if (parent == null) {
+            root = child;
+        } else {
+            if (parent.left == node) {
+                parent.left = child;
+            } else {
+                parent.right = child;
+            }
+            for (Node p = parent; p != null; p = p.parent) {
+                p.size--;
+            }
+        }
+        final String emailId = node.item.getEmailId();
+        if (index.get(emailId) == node) {
+            index.remove(emailId);
+        }
+        modCount++;
+    }
+
+    private Node node(final int position) {
+        Preconditions.checkElementIndex(position, size());
+        Node current = root;
+        int remaining = position;
+        while (true) {
+            final int leftSize = size(current.left);
+            if (remaining < leftSize) {
+                current = current.left;
+            } else if (remaining == leftSize) {
+                return current;
+            } else {
+                remaining -= leftSize + 1;
+                current = current.right;
+            }
+        }
+    }
+
+    private void rotateUp(final Node node) {
+        final Node parent = node.parent;
+        final Node grandparent = parent.parent;
+        if (node == parent.left) {
+            parent.left = node.right;
+            if (node.right != null) {
+                node.right.parent = parent;
+            }
+            node.right = parent;
+        } else {
+            parent.right = node.left;
+            if (node.left != null) {
+                node.left.parent = parent;
+            }
+            node.left = parent;
+        }
+        parent.parent = node;
+        node.parent = grandparent;
+        if (grandparent == null) {
+            root = node;
+        } else if (grandparent.left == parent) {
+            grandparent.left = node;
+        } else {
+            grandparent.right = node;
+        }
+        parent.size = size(parent.left) + size(parent.right) + 1;
+        node.size = size(node.left) + size(node.right) + 1;
+    }
+
+    private static Node first(Node node) {
+        if (node == null) {
+            return null;
+        }
+        while (node.left != null) {
+            node = node.left;
+        }
+        return node;
+    }
+
+    private static Node successor(Node node) {
+        if (node.right != null) {
+            return first(node.right);
+        }
+        while (node.parent != null && node == node.parent.right) {
+            node = node.parent;
+        }
+        return node.parent;
+    }
+
+    private static int size(final Node node) {
+        return node == null ? 0 : node.size;
+    }
+
+    private static class Node {
+        private final QueryResultItem item;
+        private final int priority;
+        private int size = 1;
+        private Node left;
+        private Node right;
+        private Node parent;
+
+        private Node(final QueryResultItem item, final int priority) {
+            this.item = item;
+            this.priority = priority;
+        }
+    }
+}
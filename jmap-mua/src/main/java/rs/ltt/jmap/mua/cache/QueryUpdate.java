@@ -45,6 +45,10 @@ public class QueryUpdate<T extends AbstractIdentifiableEntity, U> extends Abstra
         return new QueryUpdate<>(queryChangesMethodResponse.getOldTypedQueryState(), queryChangesMethodResponse.getNewTypedQueryState(), queryChangesMethodResponse.getRemoved(), queryChangesMethodResponse.getAdded());
     }
 
+    public static <T extends AbstractIdentifiableEntity, U> QueryUpdate<T, U> of(TypedState<T> oldState, TypedState<T> newState, String[] removed, List<AddedItem<U>> added) {
+        return new QueryUpdate<>(oldState, newState, removed, added);
+    }
+
     public String[] getRemoved() {
         return removed;
     }
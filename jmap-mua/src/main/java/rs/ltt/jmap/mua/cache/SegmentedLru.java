@@ -0,0 +1,123 @@
+/*
+ * Copyright 2020 Daniel Gultsch
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package rs.ltt.jmap.mua.cache;
+
+import com.google.common.base.Preconditions;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A weighted segmented LRU. New keys enter a probationary segment and are promoted into a protected segment once they
+ * are accessed again. Keys are evicted from the probationary segment first; so a single scan over many keys can not
+ * push out the keys that are accessed repeatedly.
+ */
+final class SegmentedLru {
+
+    private static final int PROTECTED_PERCENTAGE = 80;
+
+    private final long maxWeight;
+    private final long maxProtectedWeight;
+    private final LinkedHashMap<String, Long> probation = new LinkedHashMap<>();
+    private final LinkedHashMap<String, Long> protect = new LinkedHashMap<>();
+    private long weight = 0;
+    private long protectedWeight = 0;
+
+    SegmentedLru(final long maxWeight) {
+        Preconditions.checkArgument(maxWeight >= 0, "maxWeight must not be negative");
+        this.maxWeight = maxWeight;
+        this.maxProtectedWeight = maxWeight / 100 * PROTECTED_PERCENTAGE;
+    }
+
+    /**
+     * Adds (or replaces) the key.
+     *
+     * @return the keys that had to be evicted to stay within the weight limit. This can include the key itself.
+     */
+    synchronized List<String> put(final String key, final long weight) {
+        remove(key);
+        probation.put(key, weight);
+        this.weight += weight;
+        final List<String> evicted = new ArrayList<>();
+        while (this.weight > maxWeight) {
+            evicted.add(evict());
+        }
+        return evicted;
+    }
+
+    synchronized void touch(final String key) {
+        final Long probationWeight = probation.remove(key);
+        if (probationWeight != null) {
+            protect.put(key, probationWeight);
+            protectedWeight += probationWeight;
+            demote();
+            return;
+        }
+        final Long protectedWeight = protect.remove(key);
+        if (protectedWeight != null) {
+            protect.put(key, protectedWeight);
+        }
+    }
+
+    synchronized void remove(final String key) {
+        final Long probationWeight = probation.remove(key);
+        if (probationWeight != null) {
+            weight -= probationWeight;
+        }
+        final Long protectedWeight = protect.remove(key);
+        if (protectedWeight != null) {
+            weight -= protectedWeight;
+            this.protectedWeight -= protectedWeight;
+        }
+    }
+
+    synchronized void clear() {
+        probation.clear();
+        protect.clear();
+        weight = 0;
+        protectedWeight = 0;
+    }
+
+    synchronized long weight() {
+        return weight;
+    }
+
+    private void demote() {
+        final Iterator<Map.Entry<String, Long>> iterator = protect.entrySet().iterator();
+        while (protectedWeight > maxProtectedWeight && iterator.hasNext()) {
+            final Map.Entry<String, Long> eldest = iterator.next();
+            iterator.remove();
+            protectedWeight -= eldest.getValue();
+            probation.put(eldest.getKey(), eldest.getValue());
+        }
+    }
+
+    private String evict() {
+        final LinkedHashMap<String, Long> segment = probation.isEmpty() ? protect : probation;
+        final Iterator<Map.Entry<String, Long>> iterator = segment.entrySet().iterator();
+        final Map.Entry<String, Long> eldest = iterator.next();
+        iterator.remove();
+        weight -= eldest.getValue();
+        if (segment == protect) {
+            protectedWeight -= eldest.getValue();
+        }
+        return eldest.getKey();
+    }
+}
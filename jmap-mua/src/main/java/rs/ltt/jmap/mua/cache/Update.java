@@ -45,6 +45,10 @@ public class Update<T extends AbstractIdentifiableEntity> extends AbstractUpdate
                 changesMethodResponse.isHasMoreChanges());
     }
 
+    public static <T extends AbstractIdentifiableEntity> Update<T> of(TypedState<T> oldState, TypedState<T> newState, T[] created, T[] updated, String[] destroyed, boolean hasMore) {
+        return new Update<>(oldState, newState, created, updated, destroyed, hasMore);
+    }
+
     public T[] getCreated() {
         return created;
     }
@@ -32,6 +32,7 @@ import rs.ltt.jmap.client.MethodResponses;
 import rs.ltt.jmap.common.Request;
 import rs.ltt.jmap.common.entity.*;
 import rs.ltt.jmap.common.entity.filter.EmailFilterCondition;
+import rs.ltt.jmap.common.method.call.email.GetEmailMethodCall;
 import rs.ltt.jmap.common.method.call.email.QueryEmailMethodCall;
 import rs.ltt.jmap.common.method.call.email.SetEmailMethodCall;
 import rs.ltt.jmap.common.method.call.submission.SetEmailSubmissionMethodCall;
@@ -44,9 +45,11 @@ import rs.ltt.jmap.common.util.Patches;
 import rs.ltt.jmap.mua.*;
 import rs.ltt.jmap.mua.cache.CacheConflictException;
 import rs.ltt.jmap.mua.cache.CacheWriteException;
+import rs.ltt.jmap.mua.cache.EmailBodyCache;
 import rs.ltt.jmap.mua.cache.ObjectsState;
 import rs.ltt.jmap.mua.cache.Update;
 import rs.ltt.jmap.mua.util.CreateUtil;
+import rs.ltt.jmap.mua.util.EmailFetchProfile;
 import rs.ltt.jmap.mua.util.MailboxUtil;
 import rs.ltt.jmap.mua.util.UpdateUtil;
 
@@ -288,7 +291,7 @@ public class EmailService extends MuaService {
         Preconditions.checkNotNull(state, "state can not be null when updating emails");
         LOGGER.info("Refreshing emails since state {}", state);
         final SettableFuture<Status> settableFuture = SettableFuture.create();
-        final UpdateUtil.MethodResponsesFuture methodResponsesFuture = UpdateUtil.emails(multiCall, accountId, state);
+        final UpdateUtil.MethodResponsesFuture methodResponsesFuture = UpdateUtil.emails(multiCall, accountId, state, getEmailFetchProfile());
         methodResponsesFuture.addListener(() -> {
             try {
                 final ChangesEmailMethodResponse changesResponse = methodResponsesFuture.changes(ChangesEmailMethodResponse.class);
@@ -306,6 +309,32 @@ public class EmailService extends MuaService {
         return settableFuture;
     }
 
+    /**
+     * Fetches the email including its body. The body of an email is immutable; only the body properties are merged
+     * into the cached version of the email. This does not depend on (or change) the email state of the cache and
+     * therefore does not have to be coordinated with a running refresh. Caches that are not an {@link EmailBodyCache}
+     * do not store the body; the fetched email is returned regardless.
+     */
+    public ListenableFuture<Email> fetchBody(@NonNullDecl final String emailId) {
+        Preconditions.checkNotNull(emailId, "emailId can not be null");
+        final ListenableFuture<MethodResponses> future = jmapClient.call(
+                EmailFetchProfile.FULL.apply(GetEmailMethodCall.builder())
+                        .accountId(accountId)
+                        .ids(new String[]{emailId})
+                        .build()
+        );
+        return Futures.transform(future, methodResponses -> {
+            final Email[] emails = methodResponses.getMain(GetEmailMethodResponse.class).getList();
+            if (emails.length == 0) {
+                throw new IllegalArgumentException(String.format("Unable to fetch body. Email %s does not exist", emailId));
+            }
+            if (cache instanceof EmailBodyCache) {
+                ((EmailBodyCache) cache).setEmailBody(emails[0]);
+            }
+            return emails[0];
+        }, ioExecutorService);
+    }
+
     public ListenableFuture<Boolean> discardDraft(final @NonNullDecl IdentifiableEmailWithKeywords email) {
         Preconditions.checkNotNull(email);
         Preconditions.checkArgument(email.getKeywords().containsKey(Keyword.DRAFT), "Email does not have $draft keyword");
@@ -34,11 +34,22 @@ import rs.ltt.jmap.mua.util.UpdateUtil;
 
 public class IdentityService extends MuaService {
 
+    private static final String REFRESH = "refresh";
+
+    private final SingleFlight<Status> inFlight = new SingleFlight<>();
+
     public IdentityService(final MuaSession muaSession) {
         super(muaSession);
     }
 
+    /**
+     * A refresh requested while another one is in flight is run once more after the current one completes.
+     */
     public ListenableFuture<Status> refreshIdentities() {
+        return inFlight.joinFollowUp(REFRESH, this::executeRefreshIdentities);
+    }
+
+    private ListenableFuture<Status> executeRefreshIdentities() {
         final ListenableFuture<String> identityStateFuture = ioExecutorService.submit(cache::getIdentityState);
         return Futures.transformAsync(identityStateFuture, state -> {
             if (state == null) {
@@ -81,7 +92,7 @@ public class IdentityService extends MuaService {
         return future;
     }
 
-    private ListenableFuture<Status> updateIdentities(final String state, final JmapClient.MultiCall multiCall) {
+    protected ListenableFuture<Status> updateIdentities(final String state, final JmapClient.MultiCall multiCall) {
         Preconditions.checkNotNull(state, "State can not be null when updating identities");
         final SettableFuture<Status> settableFuture = SettableFuture.create();
         final UpdateUtil.MethodResponsesFuture methodResponsesFuture = UpdateUtil.identities(multiCall, accountId, state);
@@ -22,6 +22,7 @@ import rs.ltt.jmap.client.JmapClient;
 import rs.ltt.jmap.mua.MuaSession;
 import rs.ltt.jmap.mua.cache.Cache;
 import rs.ltt.jmap.mua.cache.ObjectsState;
+import rs.ltt.jmap.mua.util.EmailFetchProfile;
 
 import java.util.concurrent.ExecutionException;
 
@@ -49,6 +50,10 @@ public abstract class MuaService {
         return muaSession.getQueryPageSize();
     }
 
+    protected EmailFetchProfile getEmailFetchProfile() {
+        return muaSession.getEmailFetchProfile();
+    }
+
     protected ListenableFuture<ObjectsState> getObjectsState() {
         return ioExecutorService.submit(cache::getObjectsState);
     }
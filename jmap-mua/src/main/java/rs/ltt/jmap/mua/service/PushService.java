@@ -0,0 +1,108 @@
+/*
+ * Copyright 2020 Daniel Gultsch
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package rs.ltt.jmap.mua.service;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import org.checkerframework.checker.nullness.compatqual.NonNullDecl;
+import org.checkerframework.checker.nullness.compatqual.NullableDecl;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import rs.ltt.jmap.client.event.EventSourceClient;
+import rs.ltt.jmap.common.entity.*;
+import rs.ltt.jmap.common.entity.Thread;
+import rs.ltt.jmap.mua.MuaSession;
+import rs.ltt.jmap.mua.Status;
+import rs.ltt.jmap.mua.cache.ObjectsState;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Subscribes to the state changes pushed by the server and refreshes the cache once the state of one of the cached
+ * types differs from the cached one. Updates are run through {@link QueryService#refresh()} and
+ * {@link IdentityService#refreshIdentities()}; a push that arrives while a refresh is in flight is picked up by the
+ * follow up of that refresh instead of requesting the same changes a second time.
+ */
+public class PushService extends MuaService {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PushService.class);
+
+    private static final List<Class<? extends AbstractIdentifiableEntity>> TYPES = ImmutableList.of(
+            Mailbox.class,
+            Email.class,
+            Thread.class,
+            Identity.class
+    );
+
+    public PushService(MuaSession muaSession) {
+        super(muaSession);
+    }
+
+    public ListenableFuture<EventSourceClient> subscribe() {
+        return jmapClient.monitorEvents(TYPES, this::onStateChange);
+    }
+
+    private void onStateChange(final StateChange stateChange) {
+        final Map<String, String> changed = stateChange.getChanged(accountId);
+        if (changed.isEmpty()) {
+            return;
+        }
+        ioExecutorService.execute(() -> update(changed));
+    }
+
+    private void update(final Map<String, String> changed) {
+        final ObjectsState objectsState = cache.getObjectsState();
+        final String identityState = cache.getIdentityState();
+        final ImmutableList.Builder<ListenableFuture<Status>> futuresListBuilder = new ImmutableList.Builder<>();
+        if (hasMoved(changed, Mailbox.class, objectsState.mailboxState)
+                || hasMoved(changed, Email.class, objectsState.emailState)
+                || hasMoved(changed, Thread.class, objectsState.threadState)) {
+            futuresListBuilder.add(getService(QueryService.class).refresh());
+        }
+        if (hasMoved(changed, Identity.class, identityState)) {
+            futuresListBuilder.add(getService(IdentityService.class).refreshIdentities());
+        }
+        final List<ListenableFuture<Status>> futures = futuresListBuilder.build();
+        if (futures.isEmpty()) {
+            return;
+        }
+        LOGGER.info("Processing pushed state change {}", changed);
+        Futures.addCallback(Futures.allAsList(futures), new FutureCallback<List<Status>>() {
+            @Override
+            public void onSuccess(@NullableDecl List<Status> statuses) {
+                LOGGER.debug("Pushed state change resulted in {}", statuses);
+            }
+
+            @Override
+            public void onFailure(@NonNullDecl Throwable throwable) {
+                LOGGER.warn("Unable to process pushed state change", throwable);
+            }
+        }, MoreExecutors.directExecutor());
+    }
+
+    /**
+     * Types that have never been synchronized are ignored; there is nothing to update.
+     */
+    private static boolean hasMoved(final Map<String, String> changed, final Class<? extends AbstractIdentifiableEntity> type, final String cachedState) {
+        final String state = changed.get(type.getSimpleName());
+        return cachedState != null && state != null && !state.equals(cachedState);
+    }
+}
@@ -33,6 +33,8 @@ import rs.ltt.jmap.client.session.Session;
 import rs.ltt.jmap.common.Request;
 import rs.ltt.jmap.common.entity.AddedItem;
 import rs.ltt.jmap.common.entity.Email;
+import rs.ltt.jmap.common.entity.Thread;
+import rs.ltt.jmap.common.entity.TypedState;
 import rs.ltt.jmap.common.entity.capability.CoreCapability;
 import rs.ltt.jmap.common.entity.filter.Filter;
 import rs.ltt.jmap.common.entity.query.EmailQuery;
@@ -53,6 +55,8 @@ import rs.ltt.jmap.mua.util.QueryResult;
 import rs.ltt.jmap.mua.util.QueryResultItem;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.ExecutionException;
 
@@ -60,12 +64,23 @@ public class QueryService extends MuaService {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(QueryService.class);
 
+    private static final String REFRESH = "refresh";
+
+    private final SingleFlight<Status> inFlight = new SingleFlight<>();
+
     public QueryService(MuaSession muaSession) {
         super(muaSession);
     }
 
+    /**
+     * A refresh requested while another one is in flight is run once more after the current one completes; changes
+     * that happened after the current refresh started would be missed otherwise.
+     */
     public ListenableFuture<Status> refresh() {
-        return Futures.transformAsync(getObjectsState(), this::refresh, MoreExecutors.directExecutor());
+        return inFlight.joinFollowUp(
+                REFRESH,
+                () -> Futures.transformAsync(getObjectsState(), this::refresh, MoreExecutors.directExecutor())
+        );
     }
 
     private ListenableFuture<Status> refresh(ObjectsState objectsState) {
@@ -111,8 +126,21 @@ public class QueryService extends MuaService {
         return query(EmailQuery.of(filter));
     }
 
+    /**
+     * Concurrent calls for the same query share one future.
+     */
     public ListenableFuture<Status> query(@NonNullDecl final EmailQuery query) {
-        final ListenableFuture<QueryStateWrapper> queryStateFuture = ioExecutorService.submit(() -> cache.getQueryState(query.toQueryString()));
+        return inFlight.join("query:" + query.toQueryString(), () -> executeQuery(query));
+    }
+
+    private ListenableFuture<Status> executeQuery(@NonNullDecl final EmailQuery query) {
+        final ListenableFuture<QueryStateWrapper> queryStateFuture = ioExecutorService.submit(() -> {
+            final QueryStateWrapper queryStateWrapper = cache.getQueryState(query.toQueryString());
+            if (queryStateWrapper.queryState == null) {
+                setProvisionalQueryResult(query);
+            }
+            return queryStateWrapper;
+        });
 
         return Futures.transformAsync(queryStateFuture, queryStateWrapper -> {
             Preconditions.checkNotNull(queryStateWrapper, "QueryStateWrapper can not be null");
@@ -127,7 +155,14 @@ public class QueryService extends MuaService {
         }, MoreExecutors.directExecutor());
     }
 
+    /**
+     * Concurrent calls for the same page of the same query share one future.
+     */
     public ListenableFuture<Status> query(@NonNullDecl final EmailQuery query, final String afterEmailId) {
+        return inFlight.join("page:" + query.toQueryString() + ":" + afterEmailId, () -> executeQuery(query, afterEmailId));
+    }
+
+    private ListenableFuture<Status> executeQuery(@NonNullDecl final EmailQuery query, final String afterEmailId) {
         final ListenableFuture<QueryStateWrapper> queryStateFuture = ioExecutorService.submit(() -> cache.getQueryState(query.toQueryString()));
         return Futures.transformAsync(
                 queryStateFuture,
@@ -212,6 +247,23 @@ public class QueryService extends MuaService {
         return settableFuture;
     }
 
+    /**
+     * Stores a result evaluated against the cache that is available while the initial query is in flight or if the
+     * server can not be reached.
+     */
+    private void setProvisionalQueryResult(final EmailQuery query) {
+        if (!(cache instanceof LocalQueryCache)) {
+            return;
+        }
+        try {
+            if (((LocalQueryCache) cache).setProvisionalQueryResult(query, getEmailFetchProfile().getProperties())) {
+                LOGGER.debug("Stored provisional result for {}", query);
+            }
+        } catch (final CacheWriteException e) {
+            LOGGER.warn("Unable to store provisional query result", e);
+        }
+    }
+
     private void addQueryResult(final EmailQuery query, String afterEmailId, final QueryResult queryResult) throws CacheWriteException {
         try {
             cache.addQueryResult(query.toQueryString(), afterEmailId, queryResult);
@@ -362,10 +414,9 @@ public class QueryService extends MuaService {
             );
             getThreadsResponsesFuture = threadCall.getMethodResponses();
             getEmailResponsesFuture = multiCall.call(
-                    GetEmailMethodCall.builder()
+                    getEmailFetchProfile().apply(GetEmailMethodCall.builder())
                             .accountId(accountId)
                             .idsReference(threadCall.createResultReference(Request.Invocation.ResultReference.Path.LIST_EMAIL_IDS))
-                            .fetchTextBodyValues(true)
                             .build()
             ).getMethodResponses();
         } else {
@@ -448,30 +499,53 @@ public class QueryService extends MuaService {
     private ListenableFuture<Status> fetchMissing(final Missing missing) {
         Preconditions.checkNotNull(missing, "Missing can not be null");
         Preconditions.checkNotNull(missing.threadIds, "Missing.ThreadIds can not be null; pass empty list instead");
-        if (missing.threadIds.size() == 0) {
+        Preconditions.checkNotNull(missing.emailIds, "Missing.EmailIds can not be null; pass empty list instead");
+        //bodies are fetched on demand (Mua.fetchBody) unless the profile fetches them eagerly
+        final List<String> emailIds = getEmailFetchProfile().isFetchTextBodyValues() ? missing.emailIds : Collections.emptyList();
+        if (missing.threadIds.size() == 0 && emailIds.size() == 0) {
             return Futures.immediateFuture(Status.UNCHANGED);
         }
-        LOGGER.info("fetching " + missing.threadIds.size() + " missing threads");
+        LOGGER.info("fetching " + missing.threadIds.size() + " missing threads and " + emailIds.size() + " emails with missing body values");
         final SettableFuture<Status> settableFuture = SettableFuture.create();
         final JmapClient.MultiCall multiCall = jmapClient.newMultiCall();
         final ListenableFuture<Status> updateThreadsFuture = getService(ThreadService.class).updateThreads(missing.threadState, multiCall);
         final ListenableFuture<Status> updateEmailsFuture = getService(EmailService.class).updateEmails(missing.emailState, multiCall);
-        final JmapRequest.Call threadsCall = multiCall.call(
-                GetThreadMethodCall.builder()
-                        .accountId(accountId)
-                        .ids(missing.threadIds.toArray(new String[0]))
-                        .build()
-        );
-        final ListenableFuture<MethodResponses> getThreadsResponsesFuture = threadsCall.getMethodResponses();
-        final ListenableFuture<MethodResponses> getEmailsResponsesFuture = multiCall.call(
-                GetEmailMethodCall.builder()
-                        .accountId(accountId)
-                        .idsReference(threadsCall.createResultReference(Request.Invocation.ResultReference.Path.LIST_EMAIL_IDS))
-                        .fetchTextBodyValues(true)
-                        .build()
-        ).getMethodResponses();
+        final ListenableFuture<MethodResponses> getThreadsResponsesFuture;
+        final ListenableFuture<MethodResponses> getEmailsResponsesFuture;
+        if (missing.threadIds.size() > 0) {
+            final JmapRequest.Call threadsCall = multiCall.call(
+                    GetThreadMethodCall.builder()
+                            .accountId(accountId)
+                            .ids(missing.threadIds.toArray(new String[0]))
+                            .build()
+            );
+            getThreadsResponsesFuture = threadsCall.getMethodResponses();
+            getEmailsResponsesFuture = multiCall.call(
+                    getEmailFetchProfile().apply(GetEmailMethodCall.builder())
+                            .accountId(accountId)
+                            .idsReference(threadsCall.createResultReference(Request.Invocation.ResultReference.Path.LIST_EMAIL_IDS))
+                            .build()
+            ).getMethodResponses();
+        } else {
+            getThreadsResponsesFuture = null;
+            getEmailsResponsesFuture = null;
+        }
+        final ListenableFuture<MethodResponses> getBodyValuesResponsesFuture;
+        if (emailIds.size() > 0) {
+            getBodyValuesResponsesFuture = multiCall.call(
+                    GetEmailMethodCall.builder()
+                            .accountId(accountId)
+                            .ids(emailIds.toArray(new String[0]))
+                            .fetchTextBodyValues(true)
+                            .build()
+            ).getMethodResponses();
+        } else {
+            getBodyValuesResponsesFuture = null;
+        }
         multiCall.execute();
-        getThreadsResponsesFuture.addListener(() -> {
+        //all responses are part of the same request and complete at the same time
+        final ListenableFuture<MethodResponses> lastResponsesFuture = getBodyValuesResponsesFuture != null ? getBodyValuesResponsesFuture : getEmailsResponsesFuture;
+        lastResponsesFuture.addListener(() -> {
             try {
                 Status updateThreadsStatus = updateThreadsFuture.get();
                 if (updateThreadsStatus == Status.HAS_MORE) {
@@ -483,9 +557,28 @@ public class QueryService extends MuaService {
                     //throw
                 }
 
-                GetThreadMethodResponse getThreadMethodResponse = getThreadsResponsesFuture.get().getMain(GetThreadMethodResponse.class);
-                GetEmailMethodResponse getEmailMethodResponse = getEmailsResponsesFuture.get().getMain(GetEmailMethodResponse.class);
-                cache.addThreadsAndEmail(getThreadMethodResponse.getTypedState(), getThreadMethodResponse.getList(), getEmailMethodResponse.getTypedState(), getEmailMethodResponse.getList());
+                final TypedState<Thread> threadState;
+                final Thread[] threads;
+                TypedState<Email> emailState = null;
+                final List<Email> emails = new ArrayList<>();
+                if (getThreadsResponsesFuture != null) {
+                    GetThreadMethodResponse getThreadMethodResponse = getThreadsResponsesFuture.get().getMain(GetThreadMethodResponse.class);
+                    GetEmailMethodResponse getEmailMethodResponse = getEmailsResponsesFuture.get().getMain(GetEmailMethodResponse.class);
+                    threadState = getThreadMethodResponse.getTypedState();
+                    threads = getThreadMethodResponse.getList();
+                    emailState = getEmailMethodResponse.getTypedState();
+                    emails.addAll(Arrays.asList(getEmailMethodResponse.getList()));
+                } else {
+                    //the thread state has just been brought up to date by updateThreads()
+                    threadState = TypedState.of(cache.getObjectsState().threadState);
+                    threads = new Thread[0];
+                }
+                if (getBodyValuesResponsesFuture != null) {
+                    GetEmailMethodResponse getEmailMethodResponse = getBodyValuesResponsesFuture.get().getMain(GetEmailMethodResponse.class);
+                    emailState = getEmailMethodResponse.getTypedState();
+                    emails.addAll(Arrays.asList(getEmailMethodResponse.getList()));
+                }
+                cache.addThreadsAndEmail(threadState, threads, emailState, emails.toArray(new Email[0]));
 
                 settableFuture.set(Status.UPDATED);
 
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2020 Daniel Gultsch
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package rs.ltt.jmap.mua.service;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * A registry of operations that are currently in flight. Callers that request an operation that is already running
+ * share the future of that operation instead of starting it a second time. The futures handed out do not propagate
+ * cancellation; one caller canceling its future does not affect the others.
+ */
+final class SingleFlight<V> {
+
+    private final Map<String, Flight<V>> flights = new HashMap<>();
+
+    /**
+     * Starts the operation unless an operation with the same key is in flight; in which case the caller joins that
+     * one.
+     */
+    ListenableFuture<V> join(final String key, final Supplier<ListenableFuture<V>> operation) {
+        final SettableFuture<V> future;
+        synchronized (this) {
+            final Flight<V> flight = flights.get(key);
+            if (flight != null) {
+                return Futures.nonCancellationPropagating(flight.current);
+            }
+            future = SettableFuture.create();
+            flights.put(key, new Flight<>(future));
+        }
+        run(key, future, operation);
+        return Futures.nonCancellationPropagating(future);
+    }
+
+    /**
+     * Starts the operation unless an operation with the same key is in flight. In that case the operation is run once
+     * more after the one in flight has completed; all callers that arrive in the meantime share that follow up run.
+     * This is useful for operations that might miss changes that happened after they started.
+     */
+    ListenableFuture<V> joinFollowUp(final String key, final Supplier<ListenableFuture<V>> operation) {
+        final SettableFuture<V> future;
+        synchronized (this) {
+            final Flight<V> flight = flights.get(key);
+            if (flight != null) {
+                if (flight.followUp == null) {
+                    flight.followUp = SettableFuture.create();
+                    flight.followUpOperation = operation;
+                }
+                return Futures.nonCancellationPropagating(flight.followUp);
+            }
+            future = SettableFuture.create();
+            flights.put(key, new Flight<>(future));
+        }
+        run(key, future, operation);
+        return Futures.nonCancellationPropagating(future);
+    }
+
+    private void run(final String key, final SettableFuture<V> future, final Supplier<ListenableFuture<V>> operation) {
+        future.addListener(() -> onComplete(key, future), MoreExecutors.directExecutor());
+        try {
+            future.setFuture(operation.get());
+        } catch (final RuntimeException e) {
+            future.setException(e);
+        }
+    }
+
+    private void onComplete(final String key, final SettableFuture<V> future) {
+        final SettableFuture<V> followUp;
+        final Supplier<ListenableFuture<V>> followUpOperation;
+        synchronized (this) {
+            final Flight<V> flight = flights.get(key);
+            if (flight == null || flight.current != future) {
+                return;
+            }
+            if (flight.followUp == null) {
+                flights.remove(key);
+                return;
+            }
+            followUp = flight.followUp;
+            followUpOperation = flight.followUpOperation;
+            flight.current = followUp;
+            flight.followUp = null;
+            flight.followUpOperation = null;
+        }
+        run(key, followUp, followUpOperation);
+    }
+
+    private static class Flight<V> {
+        private SettableFuture<V> current;
+        private SettableFuture<V> followUp;
+        private Supplier<ListenableFuture<V>> followUpOperation;
+
+        private Flight(final SettableFuture<V> current) {
+            this.current = current;
+        }
+    }
+}
@@ -0,0 +1,316 @@
+/*
+ * Copyright 2020 Daniel Gultsch
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package rs.ltt.jmap.mua;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Resources;
+import com.google.gson.*;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import org.junit.Assert;
+import org.junit.Test;
+import rs.ltt.jmap.common.entity.Email;
+import rs.ltt.jmap.common.entity.filter.EmailFilterCondition;
+import rs.ltt.jmap.common.entity.query.EmailQuery;
+import rs.ltt.jmap.mua.cache.InMemoryCache;
+import rs.ltt.jmap.mua.util.EmailFetchProfile;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+public class LazyBodyTest {
+
+    private static final String ACCOUNT_ID = "test@example.com";
+    private static final String USERNAME = "test@example.com";
+    private static final String PASSWORD = "secret";
+    private static final String WELL_KNOWN_PATH = ".well-known/jmap";
+
+    @Test
+    public void fetchBodyWithoutTouchingTheSyncState() throws Exception {
+        final FakeServer fakeServer = new FakeServer();
+        final MockWebServer server = new MockWebServer();
+        server.setDispatcher(fakeServer);
+        server.start();
+
+        final InMemoryCache cache = new InMemoryCache();
+
+        try (final Mua mua = Mua.builder()
+                .sessionResource(server.url(WELL_KNOWN_PATH))
+                .username(USERNAME)
+                .password(PASSWORD)
+                .accountId(ACCOUNT_ID)
+                .cache(cache)
+                .emailFetchProfile(EmailFetchProfile.HEADERS)
+                .build()) {
+
+            //the initial query only fetches the headers of e1
+            mua.query(EmailQuery.of(EmailFilterCondition.builder().inMailbox("mb1").build())).get();
+            final Email headersOnly = cache.getEmail("e1");
+            Assert.assertNotNull(headersOnly);
+            Assert.assertEquals("Preview of e1", headersOnly.getPreview());
+            Assert.assertNull(headersOnly.getBodyValues());
+            Assert.assertNull(headersOnly.getTextBody());
+
+            final Email fetched = mua.fetchBody("e1").get();
+            Assert.assertEquals("Body of e1", fetched.getBodyValues().get("1").getValue());
+            Assert.assertEquals(1, fakeServer.lastMethodCalls().size());
+            final Email merged = cache.getEmail("e1");
+            Assert.assertEquals("Preview of e1", merged.getPreview());
+            Assert.assertEquals("Body of e1", merged.getBodyValues().get("1").getValue());
+            Assert.assertEquals(1, merged.getTextBody().size());
+
+            //e0 has not been synchronized; its body is returned but not cached
+            Assert.assertEquals("Body of e0", mua.fetchBody("e0").get().getBodyValues().get("1").getValue());
+            Assert.assertNull(cache.getEmail("e0"));
+
+            //thread t0 is not in the cache yet. fetchMissing() fetches it along with the headers of e0
+            mua.query(EmailQuery.unfiltered()).get();
+            Assert.assertTrue(fakeServer.received("Thread/get", "t0"));
+            Assert.assertEquals("Subject of e0", cache.getEmail("e0").getSubject());
+            Assert.assertNull(cache.getEmail("e0").getBodyValues());
+        }
+
+        server.shutdown();
+    }
+
+    private static String readResourceAsString(final String filename) throws IOException {
+        return Resources.asCharSource(Resources.getResource(filename), Charsets.UTF_8).read().trim();
+    }
+
+    /**
+     * Answers Mailbox, Thread and Email calls from a fixed set of emails. The server never changes; all states are 0.
+     */
+    private static class FakeServer extends Dispatcher {
+
+        private final Map<String, JsonObject> emails = new LinkedHashMap<>();
+        private final List<JsonArray> methodCalls = new CopyOnWriteArrayList<>();
+
+        private FakeServer() {
+            emails.put("e0", email("e0", "t0", "mb0"));
+            emails.put("e1", email("e1", "t1", "mb1"));
+        }
+
+        private static JsonObject email(final String id, final String threadId, final String mailboxId) {
+            final JsonObject email = new JsonObject();
+            email.addProperty("id", id);
+            email.addProperty("blobId", "b" + id);
+            email.addProperty("threadId", threadId);
+            final JsonObject mailboxIds = new JsonObject();
+            mailboxIds.addProperty(mailboxId, true);
+            email.add("mailboxIds", mailboxIds);
+            email.add("keywords", new JsonObject());
+            email.addProperty("size", 1024);
+            email.addProperty("receivedAt", "2020-01-01T00:00:00Z");
+            email.addProperty("subject", "Subject of " + id);
+            email.addProperty("preview", "Preview of " + id);
+            final JsonObject textPart = new JsonObject();
+            textPart.addProperty("partId", "1");
+            textPart.addProperty("type", "text/plain");
+            final JsonArray textBody = new JsonArray();
+            textBody.add(textPart);
+            email.add("textBody", textBody);
+            email.add("htmlBody", textBody);
+            email.add("attachments", new JsonArray());
+            final JsonObject bodyValue = new JsonObject();
+            bodyValue.addProperty("value", "Body of " + id);
+            bodyValue.addProperty("isEncodingProblem", false);
+            bodyValue.addProperty("isTruncated", false);
+            final JsonObject bodyValues = new JsonObject();
+            bodyValues.add("1", bodyValue);
+            email.add("bodyValues", bodyValues);
+            return email;
+        }
+
+        JsonArray lastMethodCalls() {
+            return methodCalls.get(methodCalls.size() - 1);
+        }
+
+        boolean received(final String method, final String id) {
+            for (final JsonArray calls : methodCalls) {
+                for (final JsonElement call : calls) {
+                    final JsonArray invocation = call.getAsJsonArray();
+                    final JsonObject arguments = invocation.get(1).getAsJsonObject();
+                    if (method.equals(invocation.get(0).getAsString()) && arguments.has("ids")
+                            && arguments.getAsJsonArray("ids").contains(new JsonPrimitive(id))) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public MockResponse dispatch(final RecordedRequest request) {
+            try {
+                if (request.getPath().contains(WELL_KNOWN_PATH)) {
+                    return new MockResponse().setBody(readResourceAsString("common/01-session.json"));
+                }
+                final JsonObject jmapRequest = JsonParser.parseString(request.getBody().readUtf8()).getAsJsonObject();
+                final JsonArray methodCalls = jmapRequest.getAsJsonArray("methodCalls");
+                this.methodCalls.add(methodCalls);
+                final Map<String, JsonObject> responses = new HashMap<>();
+                final JsonArray methodResponses = new JsonArray();
+                for (final JsonElement element : methodCalls) {
+                    final JsonArray invocation = element.getAsJsonArray();
+                    final String method = invocation.get(0).getAsString();
+                    final JsonObject arguments = resolveReferences(invocation.get(1).getAsJsonObject(), responses);
+                    final String id = invocation.get(2).getAsString();
+                    final JsonObject response = respond(method, arguments);
+                    responses.put(id, response);
+                    final JsonArray methodResponse = new JsonArray();
+                    methodResponse.add(method);
+                    methodResponse.add(response);
+                    methodResponse.add(id);
+                    methodResponses.add(methodResponse);
+                }
+                final JsonObject jmapResponse = new JsonObject();
+                jmapResponse.add("methodResponses", methodResponses);
+                jmapResponse.addProperty("sessionState", "0");
+                return new MockResponse().setBody(jmapResponse.toString());
+            } catch (final RuntimeException | IOException e) {
+                return new MockResponse().setResponseCode(500);
+            }
+        }
+
+        private static JsonObject resolveReferences(final JsonObject arguments, final Map<String, JsonObject> responses) {
+            final JsonObject resolved = new JsonObject();
+            for (final Map.Entry<String, JsonElement> entry : arguments.entrySet()) {
+                if (entry.getKey().startsWith("#")) {
+                    final JsonObject reference = entry.getValue().getAsJsonObject();
+                    final JsonObject response = responses.get(reference.get("resultOf").getAsString());
+                    final String[] path = reference.get("path").getAsString().substring(1).split("/");
+                    resolved.add(entry.getKey().substring(1), evaluate(response, path, 0));
+                } else {
+                    resolved.add(entry.getKey(), entry.getValue());
+                }
+            }
+            return resolved;
+        }
+
+        private static JsonElement evaluate(final JsonElement element, final String[] path, final int index) {
+            if (index == path.length || element == null || element.isJsonNull()) {
+                return element;
+            }
+            if ("*".equals(path[index])) {
+                final JsonArray result = new JsonArray();
+                for (final JsonElement item : element.getAsJsonArray()) {
+                    final JsonElement value = evaluate(item, path, index + 1);
+                    if (value != null && value.isJsonArray()) {
+                        result.addAll(value.getAsJsonArray());
+                    } else if (value != null) {
+                        result.add(value);
+                    }
+                }
+                return result;
+            }
+            return evaluate(element.getAsJsonObject().get(path[index]), path, index + 1);
+        }
+
+        private JsonObject respond(final String method, final JsonObject arguments) {
+            final JsonObject response = new JsonObject();
+            response.addProperty("accountId", ACCOUNT_ID);
+            switch (method) {
+                case "Mailbox/get":
+                    response.addProperty("state", "0");
+                    final JsonArray mailboxes = new JsonArray();
+                    for (final String id : new String[]{"mb0", "mb1"}) {
+                        final JsonObject mailbox = new JsonObject();
+                        mailbox.addProperty("id", id);
+                        mailbox.addProperty("name", id);
+                        mailboxes.add(mailbox);
+                    }
+                    response.add("list", mailboxes);
+                    response.add("notFound", new JsonArray());
+                    return response;
+                case "Mailbox/changes":
+                case "Thread/changes":
+                case "Email/changes":
+                    response.add("oldState", arguments.get("sinceState"));
+                    response.addProperty("newState", "0");
+                    response.addProperty("hasMoreChanges", false);
+                    response.add("created", new JsonArray());
+                    response.add("updated", new JsonArray());
+                    response.add("destroyed", new JsonArray());
+                    return response;
+                case "Email/query":
+                    final JsonObject filter = arguments.has("filter") ? arguments.getAsJsonObject("filter") : null;
+                    final JsonArray ids = new JsonArray();
+                    for (final JsonObject email : emails.values()) {
+                        if (filter == null || !filter.has("inMailbox")
+                                || email.getAsJsonObject("mailboxIds").has(filter.get("inMailbox").getAsString())) {
+                            ids.add(email.get("id"));
+                        }
+                    }
+                    response.addProperty("queryState", "0");
+                    response.addProperty("canCalculateChanges", false);
+                    response.addProperty("position", 0);
+                    response.addProperty("total", ids.size());
+                    response.add("ids", ids);
+                    return response;
+                case "Thread/get":
+                    response.addProperty("state", "0");
+                    final JsonArray threads = new JsonArray();
+                    for (final JsonElement threadId : arguments.getAsJsonArray("ids")) {
+                        final JsonObject thread = new JsonObject();
+                        thread.add("id", threadId);
+                        final JsonArray emailIds = new JsonArray();
+                        for (final JsonObject email : emails.values()) {
+                            if (email.get("threadId").equals(threadId)) {
+                                emailIds.add(email.get("id"));
+                            }
+                        }
+                        thread.add("emailIds", emailIds);
+                        threads.add(thread);
+                    }
+                    response.add("list", threads);
+                    response.add("notFound", new JsonArray());
+                    return response;
+                case "Email/get":
+                    response.addProperty("state", "0");
+                    final JsonArray list = new JsonArray();
+                    final JsonArray notFound = new JsonArray();
+                    final JsonArray properties = arguments.has("properties") ? arguments.getAsJsonArray("properties") : null;
+                    final boolean fetchTextBodyValues = arguments.has("fetchTextBodyValues") && arguments.get("fetchTextBodyValues").getAsBoolean();
+                    for (final JsonElement id : arguments.getAsJsonArray("ids")) {
+                        final JsonObject email = emails.get(id.getAsString());
+                        if (email == null) {
+                            notFound.add(id);
+                            continue;
+                        }
+                        final JsonObject result = new JsonObject();
+                        for (final Map.Entry<String, JsonElement> entry : email.entrySet()) {
+                            if (properties == null || properties.contains(new JsonPrimitive(entry.getKey())) || "id".equals(entry.getKey())) {
+                                result.add(entry.getKey(), entry.getValue());
+                            }
+                        }
+                        if (result.has("bodyValues") && !fetchTextBodyValues) {
+                            result.add("bodyValues", new JsonObject());
+                        }
+                        list.add(result);
+                    }
+                    response.add("list", list);
+                    response.add("notFound", notFound);
+                    return response;
+                default:
+                    throw new IllegalArgumentException(String.format("Unknown method %s", method));
+            }
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2020 Daniel Gultsch
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package rs.ltt.jmap.mua.cache;
+
+import com.google.common.collect.ImmutableList;
+import com.google.gson.Gson;
+import org.junit.Assert;
+import org.junit.Test;
+import rs.ltt.jmap.common.entity.Email;
+import rs.ltt.jmap.common.entity.Thread;
+import rs.ltt.jmap.common.entity.TypedState;
+import rs.ltt.jmap.gson.JmapAdapters;
+
+import java.util.EnumSet;
+
+public class FullTextIndexTest {
+
+    private static final Gson GSON = JmapAdapters.gson();
+
+    @Test
+    public void tokenize() {
+        Assert.assertEquals(
+                ImmutableList.of("cafe", "creme", "alice", "example", "com"),
+                FullTextIndex.tokenize("Café Crème <alice@example.com>")
+        );
+    }
+
+    @Test
+    public void rankBySubjectAndMatchPrefix() {
+        final FullTextIndex index = new FullTextIndex();
+        index.add(email("e1", "Quarterly report", "bob@example.com", "see the numbers"));
+        index.add(email("e2", "Lunch", "carol@example.com", "the quarterly report is attached"));
+        index.add(email("e3", "Holiday", "dave@example.com", "nothing to report"));
+
+        Assert.assertEquals(ImmutableList.of("e1", "e2"), index.search("quarterly report", 10));
+        Assert.assertEquals(ImmutableList.of("e1", "e2"), index.search("report quart", 10));
+        Assert.assertEquals(ImmutableList.of(), index.search("report quart ", 10));
+        Assert.assertEquals(ImmutableList.of("e1"), index.search("report", 1));
+        Assert.assertEquals(ImmutableList.of("e2"), index.search("carol", EnumSet.of(FullTextIndex.Field.FROM), 10));
+        Assert.assertEquals(ImmutableList.of(), index.search("carol", EnumSet.of(FullTextIndex.Field.SUBJECT), 10));
+    }
+
+    @Test
+    public void rankByRequestedFieldsOnly() {
+        final FullTextIndex index = new FullTextIndex();
+        index.add(email("e1", "Report", "bob@example.com", "report"));
+        index.add(email("e2", "Lunch", "bob@example.com", "report report"));
+
+        Assert.assertEquals(ImmutableList.of("e1", "e2"), index.search("report", 10));
+        Assert.assertEquals(ImmutableList.of("e2", "e1"), index.search("report", EnumSet.of(FullTextIndex.Field.BODY), 10));
+    }
+
+    @Test
+    public void removePostings() {
+        final FullTextIndex index = new FullTextIndex();
+        index.add(email("e1", "Hello", "bob@example.com", "world"));
+        index.add(email("e2", "Hello again", "bob@example.com", "world"));
+        index.remove("e1");
+        Assert.assertEquals(ImmutableList.of("e2"), index.search("hello world", 10));
+        index.remove("e2");
+        Assert.assertEquals(0, index.size());
+        Assert.assertEquals(ImmutableList.of(), index.search("hello", 10));
+    }
+
+    @Test
+    public void replaceAll() {
+        final FullTextIndex index = new FullTextIndex();
+        index.add(email("e1", "Hello", "bob@example.com", "world"));
+        index.replaceAll(ImmutableList.of(email("e2", "Goodbye", "bob@example.com", "world")));
+        Assert.assertFalse(index.contains("e1"));
+        Assert.assertEquals(ImmutableList.of("e2"), index.search("world", 10));
+    }
+
+    @Test
+    public void maintainedByCache() throws CacheWriteException {
+        final FullTextIndex index = new FullTextIndex();
+        final InMemoryCache cache = new InMemoryCache(index);
+        cache.setThreadsAndEmails(
+                TypedState.of("t1"),
+                new Thread[0],
+                TypedState.of("e1"),
+                new Email[]{email("e1", "Invoice", "bob@example.com", "please pay")}
+        );
+        cache.addThreadsAndEmail(
+                TypedState.of("t1"),
+                new Thread[0],
+                TypedState.of("e1"),
+                new Email[]{email("e2", "Reminder", "bob@example.com", "please pay the invoice")}
+        );
+        Assert.assertEquals(ImmutableList.of("e1", "e2"), index.search("invoice", 10));
+
+        cache.updateEmails(
+                Update.of(TypedState.of("e1"), TypedState.of("e2"), new Email[0], new Email[0], new String[]{"e1"}, false),
+                null
+        );
+        Assert.assertEquals(ImmutableList.of("e2"), index.search("invoice", 10));
+    }
+
+    private static Email email(final String id, final String subject, final String from, final String body) {
+        return GSON.fromJson(String.format(
+                "{\"id\":\"%s\",\"threadId\":\"t%s\",\"subject\":\"%s\",\"from\":[{\"email\":\"%s\"}],\"bodyValues\":{\"1\":{\"value\":\"%s\"}}}",
+                id,
+                id,
+                subject,
+                from,
+                body
+        ), Email.class);
+    }
+}
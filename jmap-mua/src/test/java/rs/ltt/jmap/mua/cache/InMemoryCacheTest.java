@@ -0,0 +1,476 @@
+/*
+ * Copyright 2020 Daniel Gultsch
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package rs.ltt.jmap.mua.cache;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import com.google.gson.Gson;
+import com.google.gson.annotations.SerializedName;
+import org.junit.Assert;
+import org.junit.Test;
+import rs.ltt.jmap.common.entity.AbstractIdentifiableEntity;
+import rs.ltt.jmap.common.entity.AddedItem;
+import rs.ltt.jmap.common.entity.Email;
+import rs.ltt.jmap.common.entity.Mailbox;
+import rs.ltt.jmap.common.entity.Thread;
+import rs.ltt.jmap.common.entity.TypedState;
+import rs.ltt.jmap.common.entity.query.EmailQuery;
+import rs.ltt.jmap.gson.JmapAdapters;
+import rs.ltt.jmap.mua.util.QueryResult;
+import rs.ltt.jmap.mua.util.QueryResultItem;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class InMemoryCacheTest {
+
+    private static final Gson GSON = JmapAdapters.gson();
+
+    @Test
+    public void evictBodyValuesLeastAccessed() throws CacheReadException {
+        final InMemoryCache cache = new InMemoryCache(5000);
+        cache.setThreadsAndEmails(
+                TypedState.of("t1"),
+                new Thread[]{thread(1), thread(2), thread(3)},
+                TypedState.of("e1"),
+                new Email[]{email(1), email(2)}
+        );
+        final QueryResultItem[] all = new QueryResultItem[]{item(1), item(2), item(3)};
+        cache.setQueryResult("inbox", QueryResult.of(
+                all,
+                TypedState.of("q1"),
+                true,
+                0,
+                TypedState.of("e1")
+        ));
+        Assert.assertNotNull(cache.getEmail("e1"));
+
+        cache.addThreadsAndEmail(TypedState.of("t1"), new Thread[0], TypedState.of("e1"), new Email[]{email(3)});
+
+        Assert.assertEquals(1, cache.getEmail("e1").getBodyValues().size());
+        Assert.assertTrue(cache.getEmail("e2").getBodyValues().isEmpty());
+        Assert.assertEquals("t2", cache.getEmail("e2").getThreadId());
+        Assert.assertEquals(1, cache.getEmail("e3").getBodyValues().size());
+
+        final Missing missing = cache.getMissing("inbox");
+        Assert.assertTrue(missing.threadIds.isEmpty());
+        Assert.assertEquals(ImmutableList.of("e2"), missing.emailIds);
+
+        cache.addThreadsAndEmail(TypedState.of("t1"), new Thread[0], TypedState.of("e1"), new Email[]{email(2)});
+        Assert.assertFalse(cache.getMissing("inbox").emailIds.contains("e2"));
+    }
+
+    @Test
+    public void reportEvictedBodyValuesOfSmallQuery() throws CacheReadException {
+        final InMemoryCache cache = new InMemoryCache(2500);
+        cache.setThreadsAndEmails(
+                TypedState.of("t1"),
+                new Thread[]{thread(1), thread(2), thread(3), thread(4)},
+                TypedState.of("e1"),
+                new Email[]{email(1), email(2), email(3), email(4)}
+        );
+        cache.setQueryResult("single", QueryResult.of(
+                new QueryResultItem[]{item(1)},
+                TypedState.of("q1"),
+                true,
+                0,
+                TypedState.of("e1")
+        ));
+        Assert.assertTrue(cache.getEmail("e1").getBodyValues().isEmpty());
+        Assert.assertEquals(ImmutableList.of("e1"), cache.getMissing("single").emailIds);
+    }
+
+    @Test
+    public void reportOnlyRequestedEvictedBodyValues() throws CacheReadException {
+        final InMemoryCache cache = new InMemoryCache(2500);
+        cache.setThreadsAndEmails(
+                TypedState.of("t1"),
+                new Thread[]{thread(1), thread(2), thread(3)},
+                TypedState.of("e1"),
+                new Email[]{email(1), email(2), email(3)}
+        );
+        final QueryResultItem[] all = new QueryResultItem[]{item(1), item(2), item(3)};
+        cache.setQueryResult("inbox", QueryResult.of(
+                all,
+                TypedState.of("q1"),
+                true,
+                0,
+                TypedState.of("e1")
+        ));
+        Assert.assertTrue(cache.getMissing("inbox").emailIds.isEmpty());
+
+        Assert.assertTrue(cache.getEmail("e1").getBodyValues().isEmpty());
+        Assert.assertEquals(ImmutableList.of("e1"), cache.getMissing("inbox").emailIds);
+
+        //fetching e1 again evicts e3 which has not been asked for
+        cache.addThreadsAndEmail(TypedState.of("t1"), new Thread[0], TypedState.of("e1"), new Email[]{email(1)});
+        Assert.assertTrue(cache.getMissing("inbox").emailIds.isEmpty());
+    }
+
+    @Test
+    public void trackMissingThreads() throws Exception {
+        final InMemoryCache cache = new InMemoryCache();
+        cache.setThreadsAndEmails(TypedState.of("t1"), new Thread[]{thread(1)}, TypedState.of("e1"), new Email[]{email(1)});
+        cache.setQueryResult("inbox", QueryResult.of(
+                new QueryResultItem[]{item(1), item(2), QueryResultItem.of("e4", "t2"), item(3)},
+                TypedState.of("q1"),
+                true,
+                0,
+                TypedState.of("e1")
+        ));
+        Assert.assertEquals(ImmutableList.of("t2", "t3"), cache.getMissing("inbox").threadIds);
+
+        cache.addThreadsAndEmail(TypedState.of("t1"), new Thread[]{thread(2)}, TypedState.of("e1"), new Email[]{email(2)});
+        Assert.assertEquals(ImmutableList.of("t3"), cache.getMissing("inbox").threadIds);
+
+        cache.updateThreads(Update.of(TypedState.of("t1"), TypedState.of("t2"), new Thread[0], new Thread[0], new String[]{"t2"}, false));
+        Assert.assertEquals(ImmutableList.of("t3", "t2"), cache.getMissing("inbox").threadIds);
+
+        cache.updateQueryResults("inbox", QueryUpdate.<Email, QueryResultItem>of(
+                TypedState.of("q1"),
+                TypedState.of("q2"),
+                new String[]{"e2"},
+                Collections.<AddedItem<QueryResultItem>>emptyList()
+        ), TypedState.of("e1"));
+        Assert.assertEquals(ImmutableList.of("t3", "t2"), cache.getMissing("inbox").threadIds);
+
+        cache.updateQueryResults("inbox", QueryUpdate.<Email, QueryResultItem>of(
+                TypedState.of("q2"),
+                TypedState.of("q3"),
+                new String[]{"e4"},
+                Collections.<AddedItem<QueryResultItem>>emptyList()
+        ), TypedState.of("e1"));
+        Assert.assertEquals(ImmutableList.of("t3"), cache.getMissing("inbox").threadIds);
+    }
+
+    @Test
+    public void queryResultItemsAreCopies() throws Exception {
+        final InMemoryCache cache = new InMemoryCache();
+        cache.setThreadsAndEmails(TypedState.of("t1"), new Thread[]{thread(1)}, TypedState.of("e1"), new Email[]{email(1)});
+        final QueryResultItem[] all = new QueryResultItem[]{item(1), item(2), item(3)};
+        cache.setQueryResult("inbox", QueryResult.of(
+                all,
+                TypedState.of("q1"),
+                true,
+                0,
+                TypedState.of("e1")
+        ));
+        final InMemoryCache.InMemoryQueryResult queryResult = cache.queryResults.get("inbox");
+        final List<QueryResultItem> items = queryResult.getItems();
+        final List<QueryResultItem> page = queryResult.getItems(1, 5);
+
+        cache.updateQueryResults("inbox", QueryUpdate.<Email, QueryResultItem>of(
+                TypedState.of("q1"),
+                TypedState.of("q2"),
+                new String[]{"e2"},
+                Collections.<AddedItem<QueryResultItem>>emptyList()
+        ), TypedState.of("e1"));
+
+        Assert.assertEquals(ImmutableList.copyOf(all), items);
+        Assert.assertEquals(ImmutableList.of(all[1], all[2]), page);
+        Assert.assertEquals(ImmutableList.of(all[2]), queryResult.getItems(1, 5));
+    }
+
+    @Test
+    public void updateMailboxesCopyOnWrite() throws CacheWriteException {
+        final InMemoryCache cache = new InMemoryCache();
+        cache.setMailboxes(TypedState.of("m1"), new Mailbox[]{GSON.fromJson("{\"id\":\"mb1\",\"name\":\"Inbox\",\"totalEmails\":1}", Mailbox.class)});
+        final Mailbox before = cache.mailboxes.get("mb1");
+        cache.updateMailboxes(Update.of(
+                TypedState.of("m1"),
+                TypedState.of("m2"),
+                new Mailbox[0],
+                new Mailbox[]{GSON.fromJson("{\"id\":\"mb1\",\"totalEmails\":2}", Mailbox.class)},
+                new String[0],
+                false
+        ), new String[]{"totalEmails"});
+        Assert.assertEquals(Long.valueOf(1), before.getTotalEmails());
+        Assert.assertEquals(Long.valueOf(2), cache.mailboxes.get("mb1").getTotalEmails());
+        Assert.assertEquals("Inbox", cache.mailboxes.get("mb1").getName());
+    }
+
+    @Test
+    public void readsDoNotWaitForEmailWriters() throws Exception {
+        final InMemoryCache cache = new InMemoryCache();
+        cache.setMailboxes(TypedState.of("m1"), new Mailbox[]{GSON.fromJson("{\"id\":\"mb1\",\"name\":\"Inbox\"}", Mailbox.class)});
+        cache.setThreadsAndEmails(TypedState.of("t1"), new Thread[]{thread(1)}, TypedState.of("e1"), new Email[]{email(1)});
+        cache.setQueryResult("inbox", QueryResult.of(
+                new QueryResultItem[]{item(1)},
+                TypedState.of("q1"),
+                true,
+                0,
+                TypedState.of("e1")
+        ));
+        final ExecutorService executorService = Executors.newSingleThreadExecutor();
+        try {
+            synchronized (cache.emails) {
+                final Future<?> reads = executorService.submit(() -> {
+                    Assert.assertNotNull(cache.getEmail("e1"));
+                    Assert.assertEquals("e1", cache.getObjectsState().emailState);
+                    Assert.assertEquals("q1", cache.getQueryState("inbox").queryState);
+                    Assert.assertEquals(1, cache.getSpecialMailboxes().size());
+                    Assert.assertTrue(cache.getMissing("inbox").threadIds.isEmpty());
+                    return null;
+                });
+                reads.get(5, TimeUnit.SECONDS);
+            }
+            //getMissing copies the items of the query under the lock of the query results
+            synchronized (cache.queryResults) {
+                final Future<?> reads = executorService.submit(() -> {
+                    Assert.assertNotNull(cache.getEmail("e1"));
+                    Assert.assertEquals("q1", cache.getQueryState("inbox").queryState);
+                    return null;
+                });
+                reads.get(5, TimeUnit.SECONDS);
+            }
+        } finally {
+            executorService.shutdown();
+        }
+    }
+
+    @Test
+    public void concurrentReadsSeeWholeUpdates() throws Exception {
+        final int emailCount = 100;
+        final int updateCount = 200;
+        final InMemoryCache cache = new InMemoryCache();
+        cache.setMailboxes(TypedState.of("0"), new Mailbox[]{
+                GSON.fromJson("{\"id\":\"mb1\",\"name\":\"Inbox\",\"totalEmails\":0,\"unreadEmails\":0}", Mailbox.class)
+        });
+        final Email[] emails = new Email[emailCount];
+        for (int i = 0; i < emailCount; ++i) {
+            emails[i] = flagged(i, false);
+        }
+        cache.setThreadsAndEmails(TypedState.of("0"), new Thread[0], TypedState.of("0"), emails);
+
+        final AtomicBoolean done = new AtomicBoolean(false);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final ExecutorService executorService = Executors.newFixedThreadPool(4);
+        final List<Future<?>> readers = new ArrayList<>();
+        for (int r = 0; r < 4; ++r) {
+            readers.add(executorService.submit(() -> {
+                int lastState = 0;
+                try {
+                    while (!done.get()) {
+                        final int state = Integer.parseInt(cache.getObjectsState().emailState);
+                        Assert.assertTrue(state >= lastState);
+                        lastState = state;
+                        for (int i = 0; i < emailCount; ++i) {
+                            //keywords and mailboxIds are updated together; a reader never sees only one of them
+                            final Email email = cache.getEmail("e" + i);
+                            Assert.assertEquals(email.getKeywords().containsKey("$flagged"), email.getMailboxIds().containsKey("mb2"));
+                        }
+                        for (final Mailbox mailbox : cache.getSpecialMailboxes()) {
+                            Assert.assertEquals(mailbox.getTotalEmails(), mailbox.getUnreadEmails());
+                        }
+                    }
+                } catch (final Throwable t) {
+                    failure.compareAndSet(null, t);
+                }
+            }));
+        }
+        try {
+            for (int u = 1; u <= updateCount; ++u) {
+                final Email[] updated = new Email[emailCount];
+                for (int i = 0; i < emailCount; ++i) {
+                    updated[i] = flagged(i, u % 2 == 1);
+                }
+                cache.updateEmails(Update.of(
+                        TypedState.of(String.valueOf(u - 1)),
+                        TypedState.of(String.valueOf(u)),
+                        new Email[0],
+                        updated,
+                        new String[0],
+                        false
+                ), Email.Properties.MUTABLE);
+                cache.updateMailboxes(Update.of(
+                        TypedState.of(String.valueOf(u - 1)),
+                        TypedState.of(String.valueOf(u)),
+                        new Mailbox[0],
+                        new Mailbox[]{GSON.fromJson(String.format("{\"id\":\"mb1\",\"totalEmails\":%d,\"unreadEmails\":%d}", u, u), Mailbox.class)},
+                        new String[0],
+                        false
+                ), new String[]{"totalEmails", "unreadEmails"});
+            }
+        } finally {
+            done.set(true);
+            for (final Future<?> reader : readers) {
+                reader.get(5, TimeUnit.SECONDS);
+            }
+            executorService.shutdown();
+        }
+        if (failure.get() != null) {
+            throw new AssertionError("Reader saw a partially applied update", failure.get());
+        }
+        Assert.assertEquals(String.valueOf(updateCount), cache.getObjectsState().emailState);
+    }
+
+    @Test
+    public void propertyAccessorMatchesReflectiveCopy() throws Exception {
+        assertSameCopy(
+                PropertyAccessor.MAILBOX,
+                Mailbox.class,
+                "{\"id\":\"mb1\",\"name\":\"Inbox\",\"role\":\"inbox\",\"totalEmails\":1,\"unreadEmails\":1,\"isSubscribed\":false}",
+                "{\"id\":\"mb1\",\"name\":\"Archive\",\"parentId\":\"mb0\",\"totalEmails\":2,\"unreadEmails\":0,\"sortOrder\":3,\"isSubscribed\":true}"
+        );
+        assertSameCopy(
+                PropertyAccessor.EMAIL,
+                Email.class,
+                "{\"id\":\"e1\",\"threadId\":\"t1\",\"mailboxIds\":{\"mb1\":true},\"keywords\":{},\"subject\":\"Hi\"}",
+                "{\"id\":\"e1\",\"threadId\":\"t1\",\"mailboxIds\":{\"mb2\":true},\"keywords\":{\"$seen\":true},\"preview\":\"Hello\",\"header:User-Agent:asText\":\"Test\"}"
+        );
+    }
+
+    /**
+     * Copies every property once with the accessor and once with the field lookup that InMemoryCache used before
+     * and expects the same result.
+     */
+    private static <T extends AbstractIdentifiableEntity> void assertSameCopy(final PropertyAccessor<T> accessor,
+                                                                             final Class<T> clazz,
+                                                                             final String target,
+                                                                             final String source) throws Exception {
+        for (final Field field : clazz.getDeclaredFields()) {
+            if (Modifier.isStatic(field.getModifiers()) || field.isSynthetic()) {
+                continue;
+            }
+            final SerializedName serializedName = field.getAnnotation(SerializedName.class);
+            final String property = serializedName == null ? field.getName() : serializedName.value();
+            final T viaAccessor = GSON.fromJson(target, clazz);
+            accessor.copy(viaAccessor, GSON.fromJson(source, clazz), new String[]{property});
+            final T viaReflection = GSON.fromJson(target, clazz);
+            final Field declaredField = clazz.getDeclaredField(field.getName());
+            declaredField.setAccessible(true);
+            declaredField.set(viaReflection, declaredField.get(GSON.fromJson(source, clazz)));
+            Assert.assertEquals(property, GSON.toJson(viaReflection), GSON.toJson(viaAccessor));
+        }
+    }
+
+    @Test
+    public void shareIdenticalProperties() {
+        final InMemoryCache cache = new InMemoryCache();
+        final String json = "{\"id\":\"%s\",\"threadId\":\"t1\",\"mailboxIds\":{\"mb1\":true},\"keywords\":{\"$seen\":true},\"from\":[{\"email\":\"alice@example.com\"}]}";
+        cache.setThreadsAndEmails(
+                TypedState.of("t1"),
+                new Thread[]{thread(1)},
+                TypedState.of("e1"),
+                new Email[]{GSON.fromJson(String.format(json, "e1"), Email.class), GSON.fromJson(String.format(json, "e2"), Email.class)}
+        );
+        final Email first = cache.getEmail("e1");
+        final Email second = cache.getEmail("e2");
+        Assert.assertSame(first.getMailboxIds(), second.getMailboxIds());
+        Assert.assertSame(first.getKeywords(), second.getKeywords());
+        Assert.assertSame(first.getFrom(), second.getFrom());
+        Assert.assertSame(first.getThreadId(), second.getThreadId());
+    }
+
+    @Test
+    public void doNotModifyEmailsOfCaller() {
+        final InMemoryCache cache = new InMemoryCache();
+        final Email email = GSON.fromJson("{\"id\":\"e1\",\"threadId\":\"t1\",\"mailboxIds\":{\"mb1\":true}}", Email.class);
+        final Map<String, Boolean> mailboxIds = email.getMailboxIds();
+        cache.setThreadsAndEmails(TypedState.of("t1"), new Thread[]{thread(1)}, TypedState.of("e1"), new Email[]{email});
+        Assert.assertSame(mailboxIds, email.getMailboxIds());
+        Assert.assertNotSame(email, cache.getEmail("e1"));
+        Assert.assertEquals(mailboxIds, cache.getEmail("e1").getMailboxIds());
+    }
+
+    @Test
+    public void setEmailBodyOnlyMergesTheBody() {
+        final InMemoryCache cache = new InMemoryCache();
+        final Email headers = GSON.fromJson("{\"id\":\"e1\",\"threadId\":\"t1\",\"keywords\":{}}", Email.class);
+        cache.setThreadsAndEmails(TypedState.of("t1"), new Thread[]{thread(1)}, TypedState.of("e1"), new Email[]{headers});
+
+        //fetched at a newer state; the keyword is only applied once Email/changes reports it
+        cache.setEmailBody(GSON.fromJson(
+                "{\"id\":\"e1\",\"threadId\":\"t1\",\"keywords\":{\"$seen\":true},\"textBody\":[{\"partId\":\"1\"}],\"bodyValues\":{\"1\":{\"value\":\"Body\"}}}",
+                Email.class
+        ));
+        Assert.assertEquals("Body", cache.getEmail("e1").getBodyValues().get("1").getValue());
+        Assert.assertTrue(cache.getEmail("e1").getKeywords().isEmpty());
+        Assert.assertEquals("e1", cache.getObjectsState().emailState);
+
+        //fetching the headers again keeps the body
+        cache.addThreadsAndEmail(TypedState.of("t1"), new Thread[0], TypedState.of("e1"), new Email[]{headers});
+        Assert.assertEquals("Body", cache.getEmail("e1").getBodyValues().get("1").getValue());
+        Assert.assertEquals(1, cache.getEmail("e1").getTextBody().size());
+
+        cache.setEmailBody(email(2));
+        Assert.assertNull(cache.getEmail("e2"));
+    }
+
+    @Test
+    public void provisionalQueryResult() throws CacheReadException {
+        final InMemoryCache cache = new InMemoryCache();
+        final EmailQuery query = EmailQuery.unfiltered();
+        Assert.assertFalse(cache.setProvisionalQueryResult(query, null));
+
+        cache.setThreadsAndEmails(TypedState.of("t1"), new Thread[]{thread(1)}, TypedState.of("e1"), new Email[]{email(1), email(2)});
+        //sorting by receivedAt requires emails that have been fetched with it
+        Assert.assertFalse(cache.setProvisionalQueryResult(query, Email.Properties.THREAD_ID));
+        Assert.assertTrue(cache.setProvisionalQueryResult(query, null));
+        final QueryStateWrapper provisional = cache.getQueryState(query.toQueryString());
+        Assert.assertNull(provisional.queryState);
+        Assert.assertNull(provisional.upTo);
+        Assert.assertEquals(ImmutableList.of("t2"), cache.getMissing(query.toQueryString()).threadIds);
+
+        cache.setQueryResult(query.toQueryString(), QueryResult.of(
+                new QueryResultItem[]{item(1)},
+                TypedState.of("q1"),
+                true,
+                0,
+                TypedState.of("e1")
+        ));
+        Assert.assertFalse(cache.setProvisionalQueryResult(query, null));
+        Assert.assertEquals("q1", cache.getQueryState(query.toQueryString()).queryState);
+    }
+
+    private static Thread thread(final int i) {
+        return GSON.fromJson(String.format("{\"id\":\"t%d\",\"emailIds\":[\"e%d\"]}", i, i), Thread.class);
+    }
+
+    private static Email email(final int i) {
+        return GSON.fromJson(String.format(
+                "{\"id\":\"e%d\",\"threadId\":\"t%d\",\"bodyValues\":{\"1\":{\"value\":\"%s\"}}}",
+                i,
+                i,
+                Strings.repeat("x", 1000)
+        ), Email.class);
+    }
+
+    private static Email flagged(final int i, final boolean flagged) {
+        return GSON.fromJson(String.format(
+                "{\"id\":\"e%d\",\"threadId\":\"t%d\",\"keywords\":{%s},\"mailboxIds\":{\"%s\":true}}",
+                i,
+                i,
+                flagged ? "\"$flagged\":true" : "",
+                flagged ? "mb2" : "mb1"
+        ), Email.class);
+    }
+
+    private static QueryResultItem item(final int i) {
+        return QueryResultItem.of("e" + i, "t" + i);
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2020 Daniel Gultsch
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package rs.ltt.jmap.mua.cache;
+
+import org.junit.Assert;
+import org.junit.Test;
+import rs.ltt.jmap.mua.util.QueryResultItem;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+public class QueryResultListTest {
+
+    @Test
+    public void matchesArrayList() {
+        final Random random = new Random(42);
+        final List<QueryResultItem> expected = new ArrayList<>();
+        final QueryResultList actual = new QueryResultList(new QueryResultItem[0]);
+        int next = 0;
+        for (int i = 0; i < 5000; ++i) {
+            if (expected.isEmpty() || random.nextInt(3) > 0) {
+                final QueryResultItem item = QueryResultItem.of("e" + next, "t" + next);
+                next++;
+                final int position = random.nextInt(expected.size() + 1);
+                expected.add(position, item);
+                actual.add(position, item);
+            } else {
+                final QueryResultItem item = expected.remove(random.nextInt(expected.size()));
+                Assert.assertSame(item, actual.remove(item.getEmailId()));
+            }
+        }
+        Assert.assertEquals(expected, actual);
+        for (int i = 0; i < expected.size(); ++i) {
+            Assert.assertEquals(i, actual.positionOf(expected.get(i).getEmailId()));
+            Assert.assertSame(expected.get(i), actual.get(i));
+        }
+        Assert.assertEquals(expected.subList(10, 30), actual.copyOf(10, 20));
+        Assert.assertEquals(expected.subList(expected.size() - 5, expected.size()), actual.copyOf(expected.size() - 5, 20));
+        Assert.assertTrue(actual.copyOf(expected.size(), 20).isEmpty());
+        Assert.assertEquals(-1, actual.positionOf("unknown"));
+        Assert.assertNull(actual.remove("unknown"));
+    }
+}
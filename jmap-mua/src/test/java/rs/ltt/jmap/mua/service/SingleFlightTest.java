@@ -0,0 +1,83 @@
+/*
+ * Copyright 2020 Daniel Gultsch
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package rs.ltt.jmap.mua.service;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+public class SingleFlightTest {
+
+    @Test
+    public void concurrentCallsShareOneRun() throws ExecutionException, InterruptedException {
+        final SingleFlight<Integer> singleFlight = new SingleFlight<>();
+        final List<SettableFuture<Integer>> runs = new ArrayList<>();
+        final ListenableFuture<Integer> first = singleFlight.join("a", () -> run(runs));
+        final ListenableFuture<Integer> second = singleFlight.join("a", () -> run(runs));
+        final ListenableFuture<Integer> other = singleFlight.join("b", () -> run(runs));
+        Assert.assertEquals(2, runs.size());
+        runs.get(0).set(1);
+        runs.get(1).set(2);
+        Assert.assertEquals(1, (int) first.get());
+        Assert.assertEquals(1, (int) second.get());
+        Assert.assertEquals(2, (int) other.get());
+        final ListenableFuture<Integer> third = singleFlight.join("a", () -> run(runs));
+        Assert.assertEquals(3, runs.size());
+        runs.get(2).set(3);
+        Assert.assertEquals(3, (int) third.get());
+    }
+
+    @Test
+    public void callsDuringRunAreCoalescedIntoOneFollowUp() throws ExecutionException, InterruptedException {
+        final SingleFlight<Integer> singleFlight = new SingleFlight<>();
+        final List<SettableFuture<Integer>> runs = new ArrayList<>();
+        final ListenableFuture<Integer> first = singleFlight.joinFollowUp("a", () -> run(runs));
+        final ListenableFuture<Integer> second = singleFlight.joinFollowUp("a", () -> run(runs));
+        final ListenableFuture<Integer> third = singleFlight.joinFollowUp("a", () -> run(runs));
+        Assert.assertEquals(1, runs.size());
+        runs.get(0).set(1);
+        Assert.assertEquals(1, (int) first.get());
+        Assert.assertEquals(2, runs.size());
+        Assert.assertFalse(second.isDone());
+        runs.get(1).set(2);
+        Assert.assertEquals(2, (int) second.get());
+        Assert.assertEquals(2, (int) third.get());
+        Assert.assertEquals(2, runs.size());
+    }
+
+    @Test
+    public void cancelingOneCallerDoesNotCancelTheRun() {
+        final SingleFlight<Integer> singleFlight = new SingleFlight<>();
+        final List<SettableFuture<Integer>> runs = new ArrayList<>();
+        final ListenableFuture<Integer> first = singleFlight.join("a", () -> run(runs));
+        final ListenableFuture<Integer> second = singleFlight.join("a", () -> run(runs));
+        first.cancel(true);
+        Assert.assertFalse(runs.get(0).isCancelled());
+        Assert.assertFalse(second.isDone());
+    }
+
+    private static ListenableFuture<Integer> run(final List<SettableFuture<Integer>> runs) {
+        final SettableFuture<Integer> future = SettableFuture.create();
+        runs.add(future);
+        return future;
+    }
+}